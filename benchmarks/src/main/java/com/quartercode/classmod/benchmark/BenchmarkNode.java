@@ -0,0 +1,134 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.extra.def.DefaultChildFeatureHolder;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.ReferenceProperty;
+
+/**
+ * A node of a binary tree of feature holders which is used by the persistence benchmarks.
+ * Every node stores some values and its two children. Every right child also references its left sibling.
+ */
+public class BenchmarkNode extends DefaultChildFeatureHolder<BenchmarkNode> {
+
+    public static final FeatureDefinition<ObjectProperty<String>>        NAME;
+    public static final FeatureDefinition<ObjectProperty<Integer>>       VALUE;
+    public static final FeatureDefinition<ObjectProperty<BenchmarkNode>> LEFT;
+    public static final FeatureDefinition<ObjectProperty<BenchmarkNode>> RIGHT;
+    public static final FeatureDefinition<ReferenceProperty<BenchmarkNode>> LINK;
+
+    static {
+
+        NAME = new AbstractFeatureDefinition<ObjectProperty<String>>("name") {
+
+            @Override
+            public ObjectProperty<String> create(FeatureHolder holder) {
+
+                return new ObjectProperty<String>(getName(), holder);
+            }
+
+        };
+
+        VALUE = new AbstractFeatureDefinition<ObjectProperty<Integer>>("value") {
+
+            @Override
+            public ObjectProperty<Integer> create(FeatureHolder holder) {
+
+                return new ObjectProperty<Integer>(getName(), holder);
+            }
+
+        };
+
+        LEFT = new AbstractFeatureDefinition<ObjectProperty<BenchmarkNode>>("left") {
+
+            @Override
+            public ObjectProperty<BenchmarkNode> create(FeatureHolder holder) {
+
+                return new ObjectProperty<BenchmarkNode>(getName(), holder);
+            }
+
+        };
+
+        RIGHT = new AbstractFeatureDefinition<ObjectProperty<BenchmarkNode>>("right") {
+
+            @Override
+            public ObjectProperty<BenchmarkNode> create(FeatureHolder holder) {
+
+                return new ObjectProperty<BenchmarkNode>(getName(), holder);
+            }
+
+        };
+
+        LINK = new AbstractFeatureDefinition<ReferenceProperty<BenchmarkNode>>("link") {
+
+            @Override
+            public ReferenceProperty<BenchmarkNode> create(FeatureHolder holder) {
+
+                return new ReferenceProperty<BenchmarkNode>(getName(), holder);
+            }
+
+        };
+
+    }
+
+    /**
+     * Creates a complete binary tree of benchmark nodes with the given depth.
+     * 
+     * @param depth The depth of the tree. A tree with depth d contains 2^d - 1 nodes.
+     * @return The root node of the new tree.
+     */
+    public static BenchmarkNode createTree(int depth) {
+
+        return createSubtree(depth, 0);
+    }
+
+    private static BenchmarkNode createSubtree(int depth, int index) {
+
+        BenchmarkNode node = new BenchmarkNode();
+        node.get(NAME).set("node" + index);
+        node.get(VALUE).set(index);
+
+        if (depth > 1) {
+            BenchmarkNode left = createSubtree(depth - 1, index * 2 + 1);
+            left.setParent(node);
+            node.get(LEFT).set(left);
+
+            BenchmarkNode right = createSubtree(depth - 1, index * 2 + 2);
+            right.setParent(node);
+            node.get(RIGHT).set(right);
+
+            // Links must not create cycles since the hash codes of properties include their values
+            right.get(LINK).set(left);
+        }
+
+        return node;
+    }
+
+    /**
+     * Creates a new benchmark node.
+     */
+    public BenchmarkNode() {
+
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The benchmark runner runs the Classmod benchmarks with the GC profiler, so every result also reports the allocation rate.
+ * All normal JMH command line options are supported (e.g. a regular expression which selects the benchmarks to run).
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar FeatureHolderBenchmark
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The main method which runs the benchmarks which are selected by the given JMH command line options.
+     * 
+     * @param args The JMH command line options.
+     * @throws CommandLineOptionException The given command line options are invalid.
+     * @throws RunnerException Something goes wrong while running the benchmarks.
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+
+        Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+
+    private BenchmarkRunner() {
+
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.util.CollectionPropertyAccessorFactory;
+import com.quartercode.classmod.util.CollectionPropertyAccessorFactory.CriteriumMatcher;
+import com.quartercode.classmod.util.FunctionDefinitionFactory;
+
+/**
+ * Benchmarks the collection getter functions which are created by the {@link CollectionPropertyAccessorFactory} with different collection sizes.
+ */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class CollectionPropertyBenchmark {
+
+    private static final CriteriumMatcher<Integer> EVEN_MATCHER = new CriteriumMatcher<Integer>() {
+
+                                                                    @Override
+                                                                    public boolean matches(Integer element, Object... arguments) {
+
+                                                                        return element % 2 == 0;
+                                                                    }
+
+                                                                };
+
+    @Param ({ "10", "100", "1000", "10000" })
+    private int                                    size;
+
+    @Param ({ "list", "set" })
+    private String                                 type;
+
+    private Function<Collection<Integer>>          getAll;
+    private Function<Collection<Integer>>          getEven;
+    private Function<Integer>                      getSingle;
+    private Integer                                lastElement;
+
+    @Setup
+    public void setUp() {
+
+        final Collection<Integer> content = type.equals("list") ? new ArrayList<Integer>() : new HashSet<Integer>();
+        for (int element = 0; element < size; element++) {
+            content.add(element);
+        }
+        lastElement = size - 1;
+
+        FeatureDefinition<ObjectProperty<Collection<Integer>>> elements = new AbstractFeatureDefinition<ObjectProperty<Collection<Integer>>>("elements") {
+
+            @Override
+            public ObjectProperty<Collection<Integer>> create(FeatureHolder holder) {
+
+                return new ObjectProperty<Collection<Integer>>(getName(), holder, content);
+            }
+
+        };
+
+        FunctionDefinition<Collection<Integer>> getAllDefinition = FunctionDefinitionFactory.create("getAll", DefaultFeatureHolder.class, CollectionPropertyAccessorFactory.createGet(elements));
+        FunctionDefinition<Collection<Integer>> getEvenDefinition = FunctionDefinitionFactory.create("getEven", DefaultFeatureHolder.class, CollectionPropertyAccessorFactory.createGet(elements, EVEN_MATCHER));
+        FunctionDefinition<Integer> getSingleDefinition = FunctionDefinitionFactory.create("getSingle", DefaultFeatureHolder.class, CollectionPropertyAccessorFactory.createGetSingle(elements, new CriteriumMatcher<Integer>() {
+
+            @Override
+            public boolean matches(Integer element, Object... arguments) {
+
+                return element.equals(lastElement);
+            }
+
+        }));
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        getAll = holder.get(getAllDefinition);
+        getEven = holder.get(getEvenDefinition);
+        getSingle = holder.get(getSingleDefinition);
+    }
+
+    @Benchmark
+    public Collection<Integer> getAll() throws ExecutorInvocationException {
+
+        return getAll.invoke();
+    }
+
+    @Benchmark
+    public Collection<Integer> getFiltered() throws ExecutorInvocationException {
+
+        return getEven.invoke();
+    }
+
+    @Benchmark
+    public Integer getSingle() throws ExecutorInvocationException {
+
+        return getSingle.invoke();
+    }
+
+}
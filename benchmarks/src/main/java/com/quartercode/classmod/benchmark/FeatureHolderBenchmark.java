@@ -0,0 +1,96 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+
+/**
+ * Benchmarks the feature lookup through {@link DefaultFeatureHolder#get(FeatureDefinition)} with varying feature counts.
+ */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class FeatureHolderBenchmark {
+
+    @Param ({ "1", "10", "50", "200" })
+    private int                                            featureCount;
+
+    private final List<FeatureDefinition<ObjectProperty<Integer>>> definitions = new ArrayList<FeatureDefinition<ObjectProperty<Integer>>>();
+    private DefaultFeatureHolder                           holder;
+    private int                                            index;
+
+    @Setup
+    public void setUp() {
+
+        holder = new DefaultFeatureHolder();
+
+        for (int counter = 0; counter < featureCount; counter++) {
+            FeatureDefinition<ObjectProperty<Integer>> definition = new AbstractFeatureDefinition<ObjectProperty<Integer>>("feature" + counter) {
+
+                @Override
+                public ObjectProperty<Integer> create(FeatureHolder holder) {
+
+                    return new ObjectProperty<Integer>(getName(), holder, 0);
+                }
+
+            };
+
+            definitions.add(definition);
+            // Create the feature
+            holder.get(definition);
+        }
+    }
+
+    @Benchmark
+    public Feature getExisting() {
+
+        index = (index + 1) % featureCount;
+        return holder.get(definitions.get(index));
+    }
+
+    @Benchmark
+    public Feature getNew() {
+
+        // Every holder creates the feature the first time it's requested
+        return new DefaultFeatureHolder().get(definitions.get(0));
+    }
+
+}
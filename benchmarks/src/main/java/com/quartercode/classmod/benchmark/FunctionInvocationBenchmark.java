@@ -0,0 +1,142 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.Delay;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Limit;
+import com.quartercode.classmod.extra.Lockable;
+import com.quartercode.classmod.extra.Prioritized;
+import com.quartercode.classmod.util.FunctionDefinitionFactory;
+
+/**
+ * Benchmarks {@link Function#invoke(Object...)} with different amounts of {@link FunctionExecutor}s which use different annotations.
+ */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class FunctionInvocationBenchmark {
+
+    @Param ({ "1", "2", "5", "10" })
+    private int            executorCount;
+
+    @Param ({ "none", "prioritized", "limit", "delay", "lockable" })
+    private String         annotation;
+
+    private Function<Void> function;
+
+    @Setup
+    public void setUp() {
+
+        FunctionDefinition<Void> definition = FunctionDefinitionFactory.create("benchmarkFunction", Integer.class);
+        for (int counter = 0; counter < executorCount; counter++) {
+            definition.addExecutor(DefaultFeatureHolder.class, "executor" + counter, createExecutor(annotation));
+        }
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        holder.setLocked(false);
+        function = holder.get(definition);
+    }
+
+    @Benchmark
+    public Void invoke() throws ExecutorInvocationException {
+
+        return function.invoke(1);
+    }
+
+    private static FunctionExecutor<Void> createExecutor(String annotation) {
+
+        if (annotation.equals("prioritized")) {
+            return new FunctionExecutor<Void>() {
+
+                @Override
+                @Prioritized (Prioritized.LEVEL_7)
+                public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return invocation.next(arguments);
+                }
+
+            };
+        } else if (annotation.equals("limit")) {
+            return new FunctionExecutor<Void>() {
+
+                @Override
+                @Limit (Integer.MAX_VALUE - 1)
+                public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return invocation.next(arguments);
+                }
+
+            };
+        } else if (annotation.equals("delay")) {
+            return new FunctionExecutor<Void>() {
+
+                @Override
+                @Delay (firstDelay = 1, delay = 1)
+                public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return invocation.next(arguments);
+                }
+
+            };
+        } else if (annotation.equals("lockable")) {
+            return new FunctionExecutor<Void>() {
+
+                @Override
+                @Lockable
+                public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return invocation.next(arguments);
+                }
+
+            };
+        } else {
+            return new FunctionExecutor<Void>() {
+
+                @Override
+                public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return invocation.next(arguments);
+                }
+
+            };
+        }
+    }
+
+}
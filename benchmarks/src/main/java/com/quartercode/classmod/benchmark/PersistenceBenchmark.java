@@ -0,0 +1,112 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+import com.quartercode.classmod.persistence.def.BinaryPersistenceEngine;
+import com.quartercode.classmod.persistence.def.JaxbPersistenceEngine;
+import com.quartercode.classmod.persistence.def.StaxPersistenceEngine;
+
+/**
+ * Benchmarks the round-trip (writing and reading) of holder graphs with different sizes through the available persistence engines.
+ * The graphs are binary trees of {@link BenchmarkNode}s with parent links and references.
+ * The size of the written data is printed during the setup.
+ */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 5, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+@State (Scope.Thread)
+public class PersistenceBenchmark {
+
+    @Param ({ "jaxb", "stax", "binary" })
+    private String            engineName;
+
+    @Param ({ "7", "10", "13" })
+    private int               depth;
+
+    private PersistenceEngine engine;
+    private BenchmarkNode     tree;
+    private byte[]            data;
+
+    @Setup
+    public void setUp() throws JAXBException, IOException {
+
+        if (engineName.equals("jaxb")) {
+            engine = new JaxbPersistenceEngine(BenchmarkNode.class);
+        } else if (engineName.equals("stax")) {
+            engine = new StaxPersistenceEngine(BenchmarkNode.class);
+        } else {
+            engine = new BinaryPersistenceEngine();
+        }
+
+        tree = BenchmarkNode.createTree(depth);
+        data = write(tree);
+        System.out.println("Written data size (" + engineName + ", depth " + depth + "): " + data.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+
+        return write(tree);
+    }
+
+    @Benchmark
+    public FeatureHolder read() throws IOException {
+
+        return read(data);
+    }
+
+    @Benchmark
+    public FeatureHolder roundTrip() throws IOException {
+
+        return read(write(tree));
+    }
+
+    private byte[] write(BenchmarkNode root) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        engine.write(root, output);
+        return output.toByteArray();
+    }
+
+    private FeatureHolder read(byte[] data) throws IOException {
+
+        return engine.read(new ByteArrayInputStream(data));
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.util.FunctionDefinitionFactory;
+import com.quartercode.classmod.util.PropertyAccessorFactory;
+
+/**
+ * Benchmarks {@link Property} access, both directly and through getter and setter functions which are created by the {@link PropertyAccessorFactory}.
+ */
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+@State (Scope.Thread)
+public class PropertyAccessBenchmark {
+
+    private static final FeatureDefinition<ObjectProperty<Integer>> VALUE;
+    private static final FunctionDefinition<Integer>                GET_VALUE;
+    private static final FunctionDefinition<Void>                   SET_VALUE;
+
+    static {
+
+        VALUE = new AbstractFeatureDefinition<ObjectProperty<Integer>>("value") {
+
+            @Override
+            public ObjectProperty<Integer> create(FeatureHolder holder) {
+
+                return new ObjectProperty<Integer>(getName(), holder, 0);
+            }
+
+        };
+
+        GET_VALUE = FunctionDefinitionFactory.create("getValue", DefaultFeatureHolder.class, PropertyAccessorFactory.createGet(VALUE));
+        SET_VALUE = FunctionDefinitionFactory.create("setValue", DefaultFeatureHolder.class, PropertyAccessorFactory.createSet(VALUE), Integer.class);
+
+    }
+
+    private DefaultFeatureHolder                                    holder;
+    private Function<Integer>                                       getter;
+    private Function<Void>                                          setter;
+    private Integer                                                 value = 42;
+
+    @Setup
+    public void setUp() {
+
+        holder = new DefaultFeatureHolder();
+        getter = holder.get(GET_VALUE);
+        setter = holder.get(SET_VALUE);
+    }
+
+    @Benchmark
+    public Integer getDirect() {
+
+        return holder.get(VALUE).get();
+    }
+
+    @Benchmark
+    public void setDirect() {
+
+        holder.get(VALUE).set(value);
+    }
+
+    @Benchmark
+    public Integer getThroughFunction() throws ExecutorInvocationException {
+
+        return getter.invoke();
+    }
+
+    @Benchmark
+    public Void setThroughFunction() throws ExecutorInvocationException {
+
+        return setter.invoke(value);
+    }
+
+    @Benchmark
+    public Integer getThroughFunctionLookup() throws ExecutorInvocationException {
+
+        return holder.get(GET_VALUE).invoke();
+    }
+
+}
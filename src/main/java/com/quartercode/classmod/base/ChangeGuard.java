@@ -0,0 +1,38 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.base;
+
+/**
+ * A change guard is called right before the persistent state of a {@link FeatureHolder} or one of its {@link Feature}s is changed.
+ * Unlike a {@link ChangeTracker}, which is notified after a change, a guard can still see the old state.
+ * For example, that allows to preserve the old state for a snapshot which is taken while the holder is changed (copy-on-write).
+ * 
+ * @see ChangeTracker
+ */
+public interface ChangeGuard {
+
+    /**
+     * Is called right before the persistent state of the given {@link FeatureHolder} or one of its {@link Feature}s is changed.
+     * The state can still be read during the call.
+     * 
+     * @param holder The {@link FeatureHolder} which is about to be changed.
+     */
+    public void beforeChange(FeatureHolder holder);
+
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.base;
+
+import java.util.List;
+import com.quartercode.classmod.util.ChangeListeners;
+
+/**
+ * A change listener is notified about the changes of a {@link Feature} or of all features of a {@link FeatureHolder}.
+ * Changes are coalesced within a batch (see {@link ChangeListeners#beginBatch()}): no matter how often a feature is changed during the batch,
+ * the listener is called once per holder when the batch ends, and can read the final state of the changed features.
+ * Outside of a batch, the listener is called right after every change.
+ * 
+ * @see ChangeListeners
+ */
+public interface ChangeListener {
+
+    /**
+     * Is called with the {@link Feature}s of the given {@link FeatureHolder} which were changed since the last call.
+     * Every feature is contained only once, in the order of the first change. The features already contain their final values.
+     * 
+     * @param holder The {@link FeatureHolder} whose features were changed.
+     * @param features The changed (dirty) {@link Feature}s.
+     */
+    public void featuresChanged(FeatureHolder holder, List<Feature> features);
+
+}
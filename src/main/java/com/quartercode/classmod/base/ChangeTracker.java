@@ -0,0 +1,46 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.base;
+
+/**
+ * A change tracker is notified about the modifications of the persistent state of {@link FeatureHolder}s.
+ * It is attached to a holder, and all holders which are children of that holder use it as well.
+ * That allows to track all changes of a holder graph (e.g. for only saving the changed parts of the graph).
+ * 
+ * @see FeatureHolder
+ * @see Feature
+ */
+public interface ChangeTracker {
+
+    /**
+     * Is called after the persistent state of the given {@link Feature} was changed (e.g. by setting the value of a property).
+     * The changed {@link FeatureHolder} can be retrieved through {@link Feature#getHolder()}.
+     * 
+     * @param feature The {@link Feature} which was changed.
+     */
+    public void featureChanged(Feature feature);
+
+    /**
+     * Is called after the state of the given {@link FeatureHolder} itself was changed (e.g. its parent or its lock state).
+     * 
+     * @param holder The {@link FeatureHolder} which was changed.
+     */
+    public void holderChanged(FeatureHolder holder);
+
+}
@@ -0,0 +1,39 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.base;
+
+/**
+ * A feature loader loads the {@link Feature}s of a {@link FeatureHolder} lazily.
+ * Holders which support feature loaders (e.g. the default feature holder) call the loader once, right before their features are accessed for the first time.
+ * That allows to create empty holders which are only filled with their stored features when they are actually used.
+ * 
+ * @see FeatureHolder
+ */
+public interface FeatureLoader {
+
+    /**
+     * Loads the stored {@link Feature}s of the given {@link FeatureHolder} and adds them to it.
+     * This is called at most once per holder.
+     * If the features can't be loaded (e.g. because the storage is corrupted), an unchecked exception should be thrown.
+     * 
+     * @param holder The {@link FeatureHolder} whose {@link Feature}s should be loaded.
+     */
+    public void loadFeatures(FeatureHolder holder);
+
+}
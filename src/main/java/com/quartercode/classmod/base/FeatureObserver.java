@@ -0,0 +1,39 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.base;
+
+/**
+ * A feature observer is notified after a single {@link Feature} was changed.
+ * Unlike a {@link ChangeTracker}, which tracks the persistent state of a whole holder graph, an observer is attached to one feature
+ * and is also notified about changes which aren't persistent (e.g. of transient properties).
+ * 
+ * @see Feature
+ * @see ChangeTracker
+ */
+public interface FeatureObserver {
+
+    /**
+     * Is called after the given {@link Feature} was changed (e.g. by setting the value of a property).
+     * The observer is called by the thread which changed the feature, so it should return quickly.
+     * 
+     * @param feature The {@link Feature} which was changed.
+     */
+    public void featureChanged(Feature feature);
+
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.base;
+
+/**
+ * A lazy feature loader is a {@link FeatureLoader} which can also load single {@link Feature}s of a {@link FeatureHolder}.
+ * Holders which support lazy feature loaders (e.g. the default feature holder) use it for loading a single feature when it's requested by its name.
+ * Only when all features are accessed (e.g. by iterating over the holder), {@link #loadFeatures(FeatureHolder)} is called for loading all remaining ones.
+ * That allows to keep the stored features in their serialized form until they are actually used.
+ * 
+ * @see FeatureLoader
+ * @see FeatureHolder
+ */
+public interface LazyFeatureLoader extends FeatureLoader {
+
+    /**
+     * Loads the stored {@link Feature} with the given name of the given {@link FeatureHolder} and returns it without adding it to the holder.
+     * The loaded feature isn't loaded again by later calls of this method or {@link #loadFeatures(FeatureHolder)}.
+     * If the features can't be loaded (e.g. because the storage is corrupted), an unchecked exception should be thrown.
+     * 
+     * @param holder The {@link FeatureHolder} whose {@link Feature} should be loaded.
+     * @param name The name of the {@link Feature} which should be loaded.
+     * @return The loaded {@link Feature}, or null if there is no stored feature with the given name.
+     */
+    public Feature loadFeature(FeatureHolder holder, String name);
+
+}
@@ -18,9 +18,16 @@
 
 package com.quartercode.classmod.base.def;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.xml.bind.annotation.XmlAttribute;
+import com.quartercode.classmod.base.ChangeListener;
 import com.quartercode.classmod.base.Feature;
 import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.FeatureObserver;
+import com.quartercode.classmod.util.ChangeGuards;
+import com.quartercode.classmod.util.ChangeListeners;
 
 /**
  * An abstract feature is a part of a {@link FeatureHolder} and is used for creating modifiable classes.
@@ -32,8 +39,10 @@ import com.quartercode.classmod.base.FeatureHolder;
 public class AbstractFeature implements Feature {
 
     @XmlAttribute
-    private final String  name;
-    private FeatureHolder holder;
+    private final String                         name;
+    private FeatureHolder                        holder;
+    // Stays null until the first observer is added, so unobserved features only pay for one volatile read per change
+    private transient volatile FeatureObserver[] observers;
 
     /**
      * Creates a new abstract feature with the given name and {@link FeatureHolder}.
@@ -69,6 +78,102 @@ public class AbstractFeature implements Feature {
         this.holder = holder;
     }
 
+    /**
+     * Adds the given {@link FeatureObserver} which is notified after every change of this feature.
+     * 
+     * @param observer The {@link FeatureObserver} to add.
+     */
+    public void addObserver(FeatureObserver observer) {
+
+        synchronized (this) {
+            List<FeatureObserver> newObservers = observers == null ? new ArrayList<FeatureObserver>() : new ArrayList<FeatureObserver>(Arrays.asList(observers));
+            newObservers.add(observer);
+            observers = newObservers.toArray(new FeatureObserver[newObservers.size()]);
+        }
+    }
+
+    /**
+     * Removes the given {@link FeatureObserver}, so it's no longer notified about changes of this feature.
+     * 
+     * @param observer The {@link FeatureObserver} to remove.
+     */
+    public void removeObserver(FeatureObserver observer) {
+
+        synchronized (this) {
+            if (observers != null) {
+                List<FeatureObserver> newObservers = new ArrayList<FeatureObserver>(Arrays.asList(observers));
+                newObservers.remove(observer);
+                observers = newObservers.isEmpty() ? null : newObservers.toArray(new FeatureObserver[newObservers.size()]);
+            }
+        }
+    }
+
+    /**
+     * Adds the given {@link ChangeListener} which is notified about the changes of this feature.
+     * Multiple changes within one batch are coalesced (see {@link ChangeListeners}).
+     * 
+     * @param listener The {@link ChangeListener} to add.
+     */
+    public void addChangeListener(ChangeListener listener) {
+
+        addObserver(new ListenerObserver(listener));
+    }
+
+    /**
+     * Removes the given {@link ChangeListener}, so it's no longer notified about the changes of this feature.
+     * 
+     * @param listener The {@link ChangeListener} to remove.
+     */
+    public void removeChangeListener(ChangeListener listener) {
+
+        removeObserver(new ListenerObserver(listener));
+    }
+
+    /**
+     * Notifies all {@link FeatureObserver}s and {@link ChangeListener}s that this feature was changed.
+     * The listeners of the {@link FeatureHolder} are notified as well if it's a {@link DefaultFeatureHolder}.
+     * This is called by {@link #notifyChanged()}, but features with non-persistent state (e.g. transient properties) should call it directly.
+     * It must also be called if the state of the feature was modified from the outside (e.g. by adding an element to a stored collection).
+     */
+    public void notifyObservers() {
+
+        FeatureObserver[] currentObservers = observers;
+        if (currentObservers != null) {
+            for (FeatureObserver observer : currentObservers) {
+                observer.featureChanged(this);
+            }
+        }
+
+        if (holder instanceof DefaultFeatureHolder) {
+            ((DefaultFeatureHolder) holder).notifyChangeListeners(this);
+        }
+    }
+
+    /**
+     * Calls the registered {@link ChangeGuards} because the persistent state of this feature is about to be changed.
+     * This should be called by subclasses right before every modification (e.g. before a new property value is set).
+     */
+    protected void notifyChanging() {
+
+        if (holder != null) {
+            ChangeGuards.beforeChange(holder);
+        }
+    }
+
+    /**
+     * Notifies the {@link FeatureHolder} that the persistent state of this feature was changed.
+     * This should be called by subclasses after every modification (e.g. after a new property value was set).
+     * If the holder is a {@link DefaultFeatureHolder}, its {@link DefaultFeatureHolder#featureChanged(Feature)} method is called.
+     * After that, the {@link FeatureObserver}s are notified.
+     */
+    protected void notifyChanged() {
+
+        if (holder instanceof DefaultFeatureHolder) {
+            ((DefaultFeatureHolder) holder).featureChanged(this);
+        }
+        notifyObservers();
+    }
+
     @Override
     public int hashCode() {
 
@@ -107,4 +212,36 @@ public class AbstractFeature implements Feature {
         return getClass().getName() + " [name=" + name + "]";
     }
 
+    /*
+     * Forwards the changes to a change listener; two observers are equal if they forward to the same listener, so they can be removed.
+     */
+    private static class ListenerObserver implements FeatureObserver {
+
+        private final ChangeListener listener;
+
+        private ListenerObserver(ChangeListener listener) {
+
+            this.listener = listener;
+        }
+
+        @Override
+        public void featureChanged(Feature feature) {
+
+            ChangeListeners.featureChanged(listener, feature.getHolder(), feature);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return System.identityHashCode(listener);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            return obj instanceof ListenerObserver && ((ListenerObserver) obj).listener == listener;
+        }
+
+    }
+
 }
@@ -18,17 +18,35 @@
 
 package com.quartercode.classmod.base.def;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlID;
+import javax.xml.bind.annotation.XmlTransient;
+import com.quartercode.classmod.base.ChangeListener;
+import com.quartercode.classmod.base.ChangeTracker;
 import com.quartercode.classmod.base.Feature;
 import com.quartercode.classmod.base.FeatureDefinition;
 import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.FeatureLoader;
+import com.quartercode.classmod.base.LazyFeatureLoader;
 import com.quartercode.classmod.base.Persistent;
 import com.quartercode.classmod.extra.LockableClass;
+import com.quartercode.classmod.util.ChangeGuards;
+import com.quartercode.classmod.util.ChangeListeners;
+import com.quartercode.classmod.util.HolderIds;
+import com.quartercode.classmod.util.PersistentClasses;
 
 /**
  * A default feature holder is a class which is modifiable through {@link Feature}s.
@@ -43,8 +61,21 @@ import com.quartercode.classmod.extra.LockableClass;
  */
 public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
 
-    private final Set<Feature> features = new HashSet<Feature>();
-    private boolean            locked;
+    // Ids are allocated lazily, maybe by multiple threads which write the same graph concurrently
+    private static final AtomicLongFieldUpdater<DefaultFeatureHolder> ID_UPDATER = AtomicLongFieldUpdater.newUpdater(DefaultFeatureHolder.class, "id");
+
+    // Features are stored by name, so adding them doesn't compute their (maybe expensive) hash codes
+    private final Map<String, Feature>                                features   = new LinkedHashMap<String, Feature>();
+    private volatile long                                             id;
+    private boolean                                                   locked;
+    private ChangeTracker                                             changeTracker;
+    private FeatureLoader                                             featureLoader;
+    // Stays null until the first listener is added, so changes of holders without listeners only cost one volatile read
+    private transient volatile ChangeListener[]                       changeListeners;
+
+    // JAXB doesn't call the setter of a collection property, so the persistent features are transferred through this field
+    @XmlElement (name = "features")
+    private Set<Object>                                               jaxbPersistentFeatures;
 
     /**
      * Creates a new default feature holder.
@@ -60,49 +91,173 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
         return locked;
     }
 
+    /**
+     * Changes the lock state of the default feature holder and of all its {@link LockableClass} {@link Feature}s.
+     * Features which haven't been loaded by the {@link FeatureLoader} yet aren't loaded by this method; they get the lock state of the holder once they are loaded.
+     * 
+     * @param locked True if the default feature holder should be locked, false if not.
+     */
     @Override
     public void setLocked(boolean locked) {
 
+        ChangeGuards.beforeChange(this);
         this.locked = locked;
+        applyLocked();
+
+        holderChanged();
+    }
 
-        for (Feature feature : this) {
+    /*
+     * Only accesses the features which are already loaded.
+     */
+    private void applyLocked() {
+
+        for (Feature feature : features.values()) {
             if (feature instanceof LockableClass) {
                 ((LockableClass) feature).setLocked(locked);
             }
         }
     }
 
+    /**
+     * Returns the {@link ChangeTracker} which is notified about modifications of the default feature holder.
+     * By default, that's just the tracker which was set using {@link #setChangeTracker(ChangeTracker)}.
+     * Subclasses may also return the tracker of another holder (e.g. the one of their parent).
+     * 
+     * @return The {@link ChangeTracker} of the default feature holder, or null if there is none.
+     */
+    @XmlTransient
+    public ChangeTracker getChangeTracker() {
+
+        return changeTracker;
+    }
+
+    /**
+     * Changes the {@link ChangeTracker} which is notified about modifications of the default feature holder.
+     * 
+     * @param changeTracker The new {@link ChangeTracker} of the default feature holder. Null removes the current tracker.
+     */
+    public void setChangeTracker(ChangeTracker changeTracker) {
+
+        this.changeTracker = changeTracker;
+    }
+
+    /**
+     * Notifies the {@link ChangeTracker} of the default feature holder that the persistent state of the given {@link Feature} was changed.
+     * This should be called by {@link Feature}s after every modification.
+     * If there is no tracker, nothing happens.
+     * 
+     * @param feature The {@link Feature} of the default feature holder which was changed.
+     */
+    public void featureChanged(Feature feature) {
+
+        ChangeTracker tracker = getChangeTracker();
+        if (tracker != null) {
+            tracker.featureChanged(feature);
+        }
+    }
+
+    /**
+     * Notifies the {@link ChangeTracker} of the default feature holder that the state of the holder itself (e.g. the lock state) was changed.
+     * If there is no tracker, nothing happens.
+     */
+    protected void holderChanged() {
+
+        ChangeTracker tracker = getChangeTracker();
+        if (tracker != null) {
+            tracker.holderChanged(this);
+        }
+    }
+
+    /**
+     * Adds the given {@link ChangeListener} which is notified about the changes of all {@link Feature}s of the default feature holder.
+     * Multiple changes within one batch are coalesced, so the listener is called once with all dirty features (see {@link ChangeListeners}).
+     * 
+     * @param listener The {@link ChangeListener} to add.
+     */
+    public void addChangeListener(ChangeListener listener) {
+
+        synchronized (this) {
+            List<ChangeListener> newListeners = changeListeners == null ? new ArrayList<ChangeListener>() : new ArrayList<ChangeListener>(Arrays.asList(changeListeners));
+            newListeners.add(listener);
+            changeListeners = newListeners.toArray(new ChangeListener[newListeners.size()]);
+        }
+    }
+
+    /**
+     * Removes the given {@link ChangeListener}, so it's no longer notified about the changes of the default feature holder.
+     * 
+     * @param listener The {@link ChangeListener} to remove.
+     */
+    public void removeChangeListener(ChangeListener listener) {
+
+        synchronized (this) {
+            if (changeListeners != null) {
+                List<ChangeListener> newListeners = new ArrayList<ChangeListener>(Arrays.asList(changeListeners));
+                newListeners.remove(listener);
+                changeListeners = newListeners.isEmpty() ? null : newListeners.toArray(new ChangeListener[newListeners.size()]);
+            }
+        }
+    }
+
+    /*
+     * Called by the features of this holder after every change (including the non-persistent ones).
+     */
+    void notifyChangeListeners(Feature feature) {
+
+        ChangeListener[] currentListeners = changeListeners;
+        if (currentListeners != null) {
+            for (ChangeListener listener : currentListeners) {
+                ChangeListeners.featureChanged(listener, this, feature);
+            }
+        }
+    }
+
     // If this doesn't succeed we have a really serious programming problem
     @SuppressWarnings ("unchecked")
     @Override
     public <F extends Feature> F get(FeatureDefinition<F> definition) {
 
-        for (Feature feature : features) {
-            if (feature.getName().equals(definition.getName())) {
-                return (F) feature;
+        Feature existingFeature = features.get(definition.getName());
+        if (existingFeature == null && featureLoader instanceof LazyFeatureLoader) {
+            // Only load the requested feature
+            existingFeature = ((LazyFeatureLoader) featureLoader).loadFeature(this, definition.getName());
+            if (existingFeature != null) {
+                if (existingFeature instanceof LockableClass) {
+                    ((LockableClass) existingFeature).setLocked(locked);
+                }
+                features.put(existingFeature.getName(), existingFeature);
             }
+        } else if (existingFeature == null && featureLoader != null) {
+            existingFeature = getFeatures().get(definition.getName());
+        }
+        if (existingFeature != null) {
+            return (F) existingFeature;
         }
 
+        ChangeGuards.beforeChange(this);
         F feature = definition.create(this);
         if (feature instanceof LockableClass) {
             ((LockableClass) feature).setLocked(locked);
         }
-        features.add(feature);
+        features.put(feature.getName(), feature);
         return feature;
     }
 
     /**
      * Returns a set of all {@link Persistent} {@link Feature}s of the default feature holder.
      * This uses an object set since JAXB can't handle interfaces.
+     * If the features are loaded lazily (see {@link #setFeatureLoader(FeatureLoader)}), all features of the holder are loaded.
+     * However, the returned set compares the features by identity, so it doesn't load any other holders through the hash codes of the features.
      * 
      * @return All {@link Persistent} {@link Feature}s of the default feature holder.
      */
-    @XmlElement (name = "features")
+    @XmlTransient
     public Set<Object> getPersistentFeatures() {
 
-        Set<Object> persistentFeatures = new HashSet<Object>();
-        for (Feature feature : features) {
-            if (feature.getClass().isAnnotationPresent(Persistent.class)) {
+        Set<Object> persistentFeatures = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (Feature feature : getFeatures().values()) {
+            if (PersistentClasses.isPersistent(feature.getClass())) {
                 persistentFeatures.add(feature);
             }
         }
@@ -112,6 +267,7 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
 
     /**
      * Adds the given set of {@link Persistent} {@link Feature}s to the default feature holder.
+     * Features replace existing features with the same name.
      * This uses an object set since JAXB can't handle interfaces.
      * 
      * @param persistentFeatures The {@link Persistent} {@link Feature}s to add.
@@ -120,20 +276,149 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
 
         for (Object persistentFeature : persistentFeatures) {
             if (persistentFeature instanceof Feature) {
-                features.add((Feature) persistentFeature);
+                features.put( ((Feature) persistentFeature).getName(), (Feature) persistentFeature);
             }
         }
     }
 
+    /**
+     * Collects the {@link Persistent} {@link Feature}s before the default feature holder is marshalled by JAXB.
+     * 
+     * @param marshaller The marshaller which marshals this object.
+     */
+    protected void beforeMarshal(Marshaller marshaller) {
+
+        jaxbPersistentFeatures = getPersistentFeatures();
+    }
+
+    /**
+     * Releases the collected {@link Persistent} {@link Feature}s after the default feature holder was marshalled by JAXB.
+     * 
+     * @param marshaller The marshaller which marshals this object.
+     */
+    protected void afterMarshal(Marshaller marshaller) {
+
+        jaxbPersistentFeatures = null;
+    }
+
+    /**
+     * Adds the unmarshalled {@link Persistent} {@link Feature}s after the default feature holder was unmarshalled by JAXB.
+     * 
+     * @param unmarshaller The unmarshaller which unmarshals this object.
+     * @param parent The object which was unmarshalled as the parent one from the xml structure.
+     */
+    protected void afterUnmarshal(Unmarshaller unmarshaller, Object parent) {
+
+        if (jaxbPersistentFeatures != null) {
+            setPersistentFeatures(jaxbPersistentFeatures);
+            jaxbPersistentFeatures = null;
+        }
+    }
+
     @Override
     public Iterator<Feature> iterator() {
 
-        return features.iterator();
+        return getFeatures().values().iterator();
+    }
+
+    /**
+     * Sets the {@link FeatureLoader} which loads the stored {@link Feature}s of the default feature holder lazily.
+     * The loader is called once, right before the features are accessed for the first time (e.g. through {@link #get(FeatureDefinition)}).
+     * It should add the loaded features using {@link #setPersistentFeatures(Set)}.
+     * If the loader is a {@link LazyFeatureLoader}, {@link #get(FeatureDefinition)} only loads the requested feature through it.
+     * All remaining features are loaded once all features are accessed (e.g. through {@link #iterator()}).
+     * Loaded features get the lock state of the holder. Note that the loading isn't synchronized, like all other accesses to the features.
+     * 
+     * Only {@link #get(FeatureDefinition)} and {@link #setLocked(boolean)} leave the remaining features unloaded.
+     * {@link #hashCode()}, {@link #equals(Object)} and {@link #toString()} compare the contents of the holder, so they load all features of the holder.
+     * Moreover, the hash codes and equality checks of the features include the holders they reference, so {@link #hashCode()} and {@link #equals(Object)}
+     * load every holder which is reachable through the feature values. Lazily loaded holders should therefore be stored in identity-based containers
+     * (e.g. an {@link IdentityHashMap}).
+     * 
+     * @param featureLoader The {@link FeatureLoader} which loads the features of the holder.
+     */
+    public void setFeatureLoader(FeatureLoader featureLoader) {
+
+        this.featureLoader = featureLoader;
+    }
+
+    /**
+     * Returns whether the {@link Feature}s of the default feature holder were already loaded by the {@link FeatureLoader}.
+     * If no loader was set, this always returns true.
+     * 
+     * @return True if there is no {@link FeatureLoader} which still has to be called, false if there is.
+     */
+    public boolean isFeaturesLoaded() {
+
+        return featureLoader == null;
+    }
+
+    private Map<String, Feature> getFeatures() {
+
+        if (featureLoader != null) {
+            // Remove the loader before calling it, so accesses during loading don't call it again
+            FeatureLoader loader = featureLoader;
+            featureLoader = null;
+            loader.loadFeatures(this);
+            applyLocked();
+        }
+
+        return features;
+    }
+
+    /**
+     * Returns the unique numeric id of the default feature holder.
+     * The id is allocated by {@link HolderIds} the first time it's requested and is kept when the holder is persisted and loaded again,
+     * unless another holder already uses it at loading time (see {@link #restoreHolderId(long)}).
+     * 
+     * @return The unique numeric id of the default feature holder.
+     */
+    @XmlTransient
+    public long getHolderId() {
+
+        long currentId = id;
+        if (currentId == 0) {
+            long newId = HolderIds.allocate();
+            currentId = ID_UPDATER.compareAndSet(this, 0, newId) ? newId : id;
+        }
+        return currentId;
+    }
+
+    /**
+     * Changes the unique numeric id of the default feature holder to the given one.
+     * The id is claimed (see {@link HolderIds#claim(long)}), so it's never allocated for new holders.
+     * 
+     * @param id The new numeric id of the default feature holder. It must be positive.
+     * @throws IllegalStateException The id is already used by another holder.
+     */
+    public void setHolderId(long id) {
+
+        if (this.id != id && !HolderIds.claim(id)) {
+            throw new IllegalStateException("Holder id " + id + " is already taken");
+        }
+        this.id = id;
+    }
+
+    /**
+     * Restores the given persisted numeric id of the default feature holder.
+     * If the id is still free, it's claimed for the holder (see {@link HolderIds#claim(long)}).
+     * Otherwise, the id is already used by another holder and a new one is allocated, so ids stay unique after loading.
+     * Persistence engines should therefore resolve references through the persisted ids and not through the restored ones.
+     * 
+     * @param id The persisted numeric id of the default feature holder. It must be positive.
+     * @return The numeric id the holder actually got. It is different from the persisted one if that one was already taken.
+     */
+    public long restoreHolderId(long id) {
+
+        if (this.id != id) {
+            this.id = HolderIds.claim(id) ? id : HolderIds.allocate();
+        }
+        return this.id;
     }
 
     /**
      * Returns the unique serialization id for the default feature holder.
-     * The id is just the identy hash code ({@link System#identityHashCode(Object)}) of the object as a hexadecimal string.
+     * The id is just the string representation of the numeric {@link #getHolderId() holder id} (see {@link HolderIds#toString(long)}).
      * 
      * @return The unique serialization id for the default feature holder.
      */
@@ -141,7 +426,22 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
     @XmlID
     public String getId() {
 
-        return Integer.toHexString(System.identityHashCode(this));
+        return HolderIds.toString(getHolderId());
+    }
+
+    /**
+     * Restores the unique serialization id of the default feature holder from the given string representation.
+     * The id is restored with {@link #restoreHolderId(long)}, so a new one is allocated if it's already taken.
+     * If the string doesn't represent a valid holder id (see {@link HolderIds#parse(String)}), a new id is allocated when it's requested.
+     * 
+     * @param id The serialization id which was created by {@link #getId()}.
+     */
+    public void setId(String id) {
+
+        long holderId = HolderIds.parse(id);
+        if (holderId > 0) {
+            restoreHolderId(holderId);
+        }
     }
 
     @Override
@@ -149,7 +449,7 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
 
         final int prime = 31;
         int result = 1;
-        result = prime * result + (features == null ? 0 : features.hashCode());
+        result = prime * result + (features == null ? 0 : getFeatures().hashCode());
         return result;
     }
 
@@ -170,7 +470,7 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
             if (other.features != null) {
                 return false;
             }
-        } else if (!features.equals(other.features)) {
+        } else if (!getFeatures().equals(other.getFeatures())) {
             return false;
         }
         return true;
@@ -180,7 +480,7 @@ public class DefaultFeatureHolder implements FeatureHolder, LockableClass {
     public String toString() {
 
         StringBuffer featureString = new StringBuffer();
-        for (Feature feature : features) {
+        for (Feature feature : getFeatures().values()) {
             featureString.append(", ").append(feature.getName());
         }
         featureString.append("{").append(featureString.length() == 0 ? "" : featureString.substring(2)).append("}");
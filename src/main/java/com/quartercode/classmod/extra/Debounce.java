@@ -0,0 +1,52 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FunctionExecutor}s which have this annotation coalesce bursts of invocations into one call.
+ * Only the first invocation of a burst invokes the {@link FunctionExecutor}. All following ones are skipped until the {@link Function} wasn't invoked for the given quiet period.
+ * That means that a {@link FunctionExecutor} with a debounce of 100 milliseconds which is invoked every 50 milliseconds is only invoked one time.
+ * Only invocations which actually reach the {@link FunctionExecutor} in the chain count towards a burst.
+ * Unlike {@link Limit} and {@link Delay}, the debounce uses a monotonic clock ({@link System#nanoTime()}) instead of invocation counts.
+ * This should be annotated at the actual {@link FunctionExecutor#invoke(FunctionInvocation, Object...)} method.
+ * 
+ * @see FunctionExecutor
+ */
+@Target (ElementType.METHOD)
+@Retention (RetentionPolicy.RUNTIME)
+public @interface Debounce {
+
+    /**
+     * The quiet period in the given {@link #unit()} which must pass without an invocation before a new burst starts (default is set to 0).
+     * A {@link FunctionExecutor} with a quiet period of 0 isn't debounced.
+     */
+    long value () default 0;
+
+    /**
+     * The {@link TimeUnit} of the quiet period (default is set to {@link TimeUnit#MILLISECONDS}).
+     */
+    TimeUnit unit () default TimeUnit.MILLISECONDS;
+
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * {@link FunctionExecutor}s which have this annotation don't depend on the other {@link FunctionExecutor}s which have the same {@link Prioritized} priority.
+ * If the {@link Function} has a parallel execution mode (e.g. an {@link ExecutorService} and a {@link ResultCombiner}), all independent {@link FunctionExecutor}s of one priority are invoked in parallel.
+ * Their results are merged by the {@link ResultCombiner} and the invocation chain continues with the next priority after all of them completed.
+ * Inside the parallel mode, {@link FunctionInvocation#next(Object...)} returns null for independent {@link FunctionExecutor}s because the chain is continued by the {@link Function} itself.
+ * Note that independent {@link FunctionExecutor}s must be thread-safe if they access shared state (e.g. {@link Property}s of the holder).
+ * This should be annotated at the actual {@link FunctionExecutor#invoke(FunctionInvocation, Object...)} method.
+ * 
+ * @see FunctionExecutor
+ * @see ResultCombiner
+ */
+@Target (ElementType.METHOD)
+@Retention (RetentionPolicy.RUNTIME)
+public @interface Independent {
+
+}
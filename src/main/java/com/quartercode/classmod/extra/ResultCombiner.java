@@ -0,0 +1,42 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra;
+
+import java.util.List;
+
+/**
+ * A result combiner merges the return values of {@link Independent} {@link FunctionExecutor}s which were invoked in parallel.
+ * The merged value is used as the return value of the whole priority tier.
+ * 
+ * @param <R> The type of the return values which are merged.
+ * @see Independent
+ */
+public interface ResultCombiner<R> {
+
+    /**
+     * Merges the given return values of the {@link FunctionExecutor}s of one priority tier and the return value of the rest of the invocation chain.
+     * 
+     * @param tierResults The return values of the {@link Independent} {@link FunctionExecutor}s of the tier. They are ordered by the names of the executors.
+     * @param nextResult The return value of the rest of the invocation chain (the {@link FunctionExecutor}s with a lower priority). Can be null.
+     * @return The merged return value. Can be null.
+     * @throws ExecutorInvocationException Something goes wrong while merging the return values.
+     */
+    public R combine(List<R> tierResults, R nextResult) throws ExecutorInvocationException;
+
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FunctionExecutor}s which have this annotation are only invoked a given amount of times per time window.
+ * The throttle is a token bucket which holds up to {@link #invocations()} tokens and refills them evenly over the {@link #window()}.
+ * Every invocation consumes one token. If there is no token left, the {@link FunctionExecutor} is skipped.
+ * Unlike {@link Limit} and {@link Delay}, the throttle uses a monotonic clock ({@link System#nanoTime()}) instead of invocation counts.
+ * This should be annotated at the actual {@link FunctionExecutor#invoke(FunctionInvocation, Object...)} method.
+ * 
+ * @see FunctionExecutor
+ */
+@Target (ElementType.METHOD)
+@Retention (RetentionPolicy.RUNTIME)
+public @interface Throttle {
+
+    /**
+     * The amount of invocations which are allowed per time window (default is set to {@link Integer#MAX_VALUE}).
+     * This is also the amount of invocations which can happen in a burst after a quiet period.
+     */
+    int invocations () default Integer.MAX_VALUE;
+
+    /**
+     * The length of the time window in the given {@link #unit()} (default is set to 0).
+     * A {@link FunctionExecutor} with a window of 0 isn't throttled.
+     */
+    long window () default 0;
+
+    /**
+     * The {@link TimeUnit} of the {@link #window()} (default is set to {@link TimeUnit#MILLISECONDS}).
+     */
+    TimeUnit unit () default TimeUnit.MILLISECONDS;
+
+}
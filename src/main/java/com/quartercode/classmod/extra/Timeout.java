@@ -0,0 +1,51 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FunctionExecutor}s which have this annotation abort the invocation chain if they take longer than the given deadline.
+ * The deadline only covers the time the {@link FunctionExecutor} spends itself, the time of the rest of the chain (which is invoked through {@link FunctionInvocation#next(Object...)}) isn't counted.
+ * Since a running {@link FunctionExecutor} can't be stopped, the deadline is checked when it calls {@link FunctionInvocation#next(Object...)} and when it returns.
+ * If the deadline is exceeded, an {@link ExecutorInvocationException} is thrown instead of continuing the chain or returning the value.
+ * This should be annotated at the actual {@link FunctionExecutor#invoke(FunctionInvocation, Object...)} method.
+ * 
+ * @see FunctionExecutor
+ */
+@Target (ElementType.METHOD)
+@Retention (RetentionPolicy.RUNTIME)
+public @interface Timeout {
+
+    /**
+     * The deadline in the given {@link #unit()} (default is set to 0).
+     * A {@link FunctionExecutor} with a deadline of 0 never times out.
+     */
+    long value () default 0;
+
+    /**
+     * The {@link TimeUnit} of the deadline (default is set to {@link TimeUnit#MILLISECONDS}).
+     */
+    TimeUnit unit () default TimeUnit.MILLISECONDS;
+
+}
@@ -24,7 +24,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.ChangeListener;
 import com.quartercode.classmod.base.FeatureHolder;
 import com.quartercode.classmod.base.def.AbstractFeature;
 import com.quartercode.classmod.extra.ExecutorInvocationException;
@@ -33,12 +39,20 @@ import com.quartercode.classmod.extra.FunctionDefinition;
 import com.quartercode.classmod.extra.FunctionExecutor;
 import com.quartercode.classmod.extra.FunctionExecutorContext;
 import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Independent;
 import com.quartercode.classmod.extra.LockableClass;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.extra.ResultCombiner;
+import com.quartercode.classmod.util.ChangeListeners;
+import com.quartercode.classmod.util.CollectionPropertyAccessorFactory;
+import com.quartercode.classmod.util.InvocationTracer;
 
 /**
  * An abstract function makes a method (also called a function) available.
  * Functions are executed by different {@link FunctionExecutor}s. That makes the function concept flexible.
  * The function object itself stores a set of those {@link FunctionExecutor}s.
+ * If the function was created by an {@link AbstractFunctionDefinition}, the set follows the executors which are registered at the definition.
+ * Changes are picked up lazily on the next invocation, while running invocations keep using the executors they started with.
  * 
  * @param <R> The type of the return value of the used {@link FunctionExecutor}s. The function returns a {@link List} with these values.
  * @see FunctionExecutor
@@ -47,10 +61,17 @@ import com.quartercode.classmod.extra.LockableClass;
  */
 public class AbstractFunction<R> extends AbstractFeature implements Function<R> {
 
-    private final List<Class<?>>                  parameters;
-    private final Set<FunctionExecutorContext<R>> executors;
-    private boolean                               locked;
-    private int                                   invocations;
+    private final List<Class<?>>                   parameters;
+    // Replaced as a whole when the executor table of the definition changed, so running invocations keep their executors
+    private volatile BoundExecutors<R>             executors;
+    private volatile AbstractFunctionDefinition<R> definition;
+    private boolean                                locked;
+    private int                                    invocations;
+    private ExecutorService                        parallelService;
+    private ResultCombiner<R>                      combiner;
+    private MailboxDispatcher                      mailboxDispatcher;
+    private int                                    transactionAttempts;
+    private boolean                                changeBatching;
 
     /**
      * Creates a new abstract function with the given name, parent {@link FeatureHolder}, parameters and {@link FunctionExecutor}s.
@@ -69,10 +90,11 @@ public class AbstractFunction<R> extends AbstractFeature implements Function<R>
         }
         this.parameters = parameters;
 
-        this.executors = new HashSet<FunctionExecutorContext<R>>();
+        Set<FunctionExecutorContext<R>> contexts = new HashSet<FunctionExecutorContext<R>>();
         for (Entry<String, FunctionExecutor<R>> executor : executors.entrySet()) {
-            this.executors.add(new DefaultFunctionExecutorContext<R>(executor.getKey(), executor.getValue()));
+            contexts.add(new DefaultFunctionExecutorContext<R>(executor.getKey(), executor.getValue()));
         }
+        this.executors = new BoundExecutors<R>(-1, contexts);
 
         locked = true;
     }
@@ -95,22 +117,220 @@ public class AbstractFunction<R> extends AbstractFeature implements Function<R>
         return invocations;
     }
 
+    /**
+     * Returns the {@link ExecutorService} which invokes {@link Independent} {@link FunctionExecutor}s of the same priority in parallel.
+     * If this is null, the parallel execution mode is disabled.
+     * 
+     * @return The {@link ExecutorService} for parallel {@link FunctionExecutor}s.
+     */
+    public ExecutorService getParallelService() {
+
+        return parallelService;
+    }
+
+    /**
+     * Returns the {@link ResultCombiner} which merges the return values of parallel {@link Independent} {@link FunctionExecutor}s.
+     * 
+     * @return The {@link ResultCombiner} for parallel {@link FunctionExecutor}s.
+     */
+    public ResultCombiner<R> getResultCombiner() {
+
+        return combiner;
+    }
+
+    /**
+     * Enables or disables the parallel execution mode of the abstract function.
+     * In that mode, all {@link Independent} {@link FunctionExecutor}s which have the same priority are invoked in parallel through the given {@link ExecutorService}.
+     * Their return values are merged by the given {@link ResultCombiner}. After that, the invocation chain continues with the next priority.
+     * Functions which are invoked by the independent executors may use the same {@link ExecutorService}; their tiers are invoked sequentially then,
+     * since a bounded pool could otherwise be filled with executors which wait for tasks that can't start anymore.
+     * However, other tasks which are run by the pool mustn't invoke functions that use it.
+     * 
+     * The threads of the pool don't have the context of the invoking thread, which is bound to that thread: its {@link Transaction}, its change batch and its mailbox.
+     * Therefore, the parallel mode can't be combined with the transactional, the change batching and the mailbox mode of the same function.
+     * If the invoking thread has such a context anyway (e.g. because the function is invoked by a transactional function), the tiers are invoked sequentially on that thread.
+     * 
+     * @param parallelService The {@link ExecutorService} which invokes {@link Independent} {@link FunctionExecutor}s. null disables the parallel mode.
+     * @param combiner The {@link ResultCombiner} which merges the return values of one priority. null returns the value of the rest of the chain.
+     * @throws IllegalStateException The transactional, change batching or mailbox mode is enabled.
+     */
+    public void setParallelExecution(ExecutorService parallelService, ResultCombiner<R> combiner) {
+
+        checkNotParallel(parallelService, transactionAttempts > 0 || changeBatching || mailboxDispatcher != null);
+
+        this.parallelService = parallelService;
+        this.combiner = combiner;
+    }
+
+    /**
+     * Returns the {@link MailboxDispatcher} which confines all invocations to the mailbox of the subtree the {@link FeatureHolder} of the function is part of.
+     * If this is null, the function is invoked directly by the calling thread.
+     * 
+     * @return The {@link MailboxDispatcher} for the invocations of the function.
+     */
+    public MailboxDispatcher getMailboxDispatcher() {
+
+        return mailboxDispatcher;
+    }
+
+    /**
+     * Enables or disables the mailbox execution mode of the abstract function.
+     * In that mode, every invocation is appended to the mailbox of the subtree the {@link FeatureHolder} of the function is part of (see {@link MailboxDispatcher}).
+     * Therefore, invocations on the same subtree are serialized without any locks, while different subtrees run in parallel.
+     * {@link #invoke(Object...)} waits for the result of the invocation, while {@link #invokeAsync(Object...)} returns a {@link Future}.
+     * Since a mailbox mustn't wait for another one, {@link #invoke(Object...)} throws an {@link IllegalStateException} if it's called
+     * from inside the mailbox of another subtree. Such invocations must use {@link #invokeAsync(Object...)}.
+     * 
+     * This mode can't be combined with the parallel mode (see {@link #setParallelExecution(ExecutorService, ResultCombiner)}).
+     * 
+     * @param mailboxDispatcher The {@link MailboxDispatcher} which serializes the invocations. null disables the mailbox mode.
+     * @throws IllegalStateException The parallel mode is enabled.
+     */
+    public void setMailboxDispatcher(MailboxDispatcher mailboxDispatcher) {
+
+        checkNotParallel(parallelService, mailboxDispatcher != null);
+
+        this.mailboxDispatcher = mailboxDispatcher;
+    }
+
+    /**
+     * Returns how many times an invocation is tried inside a new {@link Transaction} before it fails because of conflicts.
+     * If this is 0, the transactional mode is disabled.
+     * 
+     * @return The maximum amount of transaction attempts per invocation.
+     */
+    public int getTransactionAttempts() {
+
+        return transactionAttempts;
+    }
+
+    /**
+     * Enables or disables the transactional mode of the abstract function.
+     * In that mode, every invocation runs inside a {@link Transaction}, so all property writes of the invocation chain are buffered in a write set.
+     * If an executor throws an exception, the write set is discarded and no property is changed.
+     * Otherwise, the transaction is validated and committed. If another invocation changed a property which was accessed in the meantime, the invocation is retried.
+     * Invocations which are made while the current thread already has a transaction join that transaction.
+     * Invocations which are rolled back or retried aren't counted (e.g. by {@link #getInvocations()} and the invocation limits of the executors).
+     * Collections which are modified by the executors of {@link CollectionPropertyAccessorFactory} are buffered as well (see {@link Transaction#getWritableCollection(Property)}).
+     * 
+     * This mode can't be combined with the parallel mode (see {@link #setParallelExecution(ExecutorService, ResultCombiner)}).
+     * 
+     * @param attempts The maximum amount of transaction attempts per invocation. 0 disables the transactional mode.
+     * @throws IllegalStateException The parallel mode is enabled.
+     */
+    public void setTransactional(int attempts) {
+
+        Validate.isTrue(attempts >= 0, "Transaction attempts must be >= 0");
+        checkNotParallel(parallelService, attempts > 0);
+
+        transactionAttempts = attempts;
+    }
+
+    /**
+     * Returns whether every invocation of the abstract function is wrapped in a change batch (see {@link ChangeListeners#beginBatch()}).
+     * 
+     * @return True if the change batching mode is enabled.
+     */
+    public boolean isChangeBatching() {
+
+        return changeBatching;
+    }
+
+    /**
+     * Enables or disables the change batching mode of the abstract function.
+     * In that mode, every invocation is wrapped in a change batch, so all changes which are made by the invocation chain on the current thread are coalesced.
+     * The {@link ChangeListener}s are called once with the final state after the invocation (and its transaction commit) completed.
+     * Nested invocations join the batch of the outer invocation.
+     * 
+     * This mode can't be combined with the parallel mode (see {@link #setParallelExecution(ExecutorService, ResultCombiner)}).
+     * 
+     * @param changeBatching True if the change batching mode should be enabled, false if it should be disabled.
+     * @throws IllegalStateException The parallel mode is enabled.
+     */
+    public void setChangeBatching(boolean changeBatching) {
+
+        checkNotParallel(parallelService, changeBatching);
+
+        this.changeBatching = changeBatching;
+    }
+
+    /*
+     * The modes which bind their context to the invoking thread can't be combined with the parallel mode, whose executors run on other threads.
+     */
+    private void checkNotParallel(ExecutorService parallelService, boolean threadBound) {
+
+        if (threadBound && parallelService != null) {
+            throw new IllegalStateException("The parallel mode of function '" + getName() + "' can't be combined with modes which are bound to the invoking thread");
+        }
+    }
+
     @Override
     public List<Class<?>> getParameters() {
 
         return Collections.unmodifiableList(parameters);
     }
 
+    /*
+     * Lets the function follow the executor table of the given definition; the function was created from the given table.
+     */
+    void bindExecutorTable(AbstractFunctionDefinition<R> definition, ExecutorTable<R> table) {
+
+        synchronized (this) {
+            this.definition = definition;
+            executors = new BoundExecutors<R>(table.getVersion(), executors.contexts);
+        }
+    }
+
+    private Set<FunctionExecutorContext<R>> getCurrentExecutors() {
+
+        BoundExecutors<R> current = executors;
+        AbstractFunctionDefinition<R> currentDefinition = definition;
+        if (currentDefinition != null) {
+            ExecutorTable<R> table = currentDefinition.getExecutorTable();
+            if (table.getVersion() != current.version) {
+                current = rebind(table);
+            }
+        }
+        return current.contexts;
+    }
+
+    private BoundExecutors<R> rebind(ExecutorTable<R> table) {
+
+        // Only one thread rebuilds the contexts, so the state of the kept executors isn't lost
+        synchronized (this) {
+            BoundExecutors<R> current = executors;
+            if (current.version == table.getVersion()) {
+                return current;
+            }
+
+            Set<FunctionExecutorContext<R>> contexts = new HashSet<FunctionExecutorContext<R>>();
+            for (Entry<String, FunctionExecutor<R>> executor : table.getExecutors(getHolder().getClass()).entrySet()) {
+                FunctionExecutorContext<R> context = null;
+                for (FunctionExecutorContext<R> oldContext : current.contexts) {
+                    if (oldContext.getName().equals(executor.getKey()) && oldContext.getExecutor() == executor.getValue()) {
+                        context = oldContext;
+                        break;
+                    }
+                }
+                contexts.add(context == null ? new DefaultFunctionExecutorContext<R>(executor.getKey(), executor.getValue()) : context);
+            }
+
+            current = new BoundExecutors<R>(table.getVersion(), contexts);
+            executors = current;
+            return current;
+        }
+    }
+
     @Override
     public Set<FunctionExecutorContext<R>> getExecutors() {
 
-        return Collections.unmodifiableSet(new HashSet<FunctionExecutorContext<R>>(this.executors));
+        return getCurrentExecutors();
     }
 
     @Override
     public FunctionExecutorContext<R> getExecutor(String name) {
 
-        for (FunctionExecutorContext<R> executor : executors) {
+        for (FunctionExecutorContext<R> executor : getCurrentExecutors()) {
             if (executor.getName().equals(name)) {
                 return executor;
             }
@@ -122,9 +342,132 @@ public class AbstractFunction<R> extends AbstractFeature implements Function<R>
     @Override
     public R invoke(Object... arguments) throws ExecutorInvocationException {
 
-        invocations++;
-        FunctionInvocation<R> invocation = new DefaultFunctionInvocation<R>(this);
-        return invocation.next(arguments);
+        MailboxDispatcher dispatcher = mailboxDispatcher;
+        if (dispatcher == null || dispatcher.isConfined(getHolder())) {
+            return invokeDirectly(arguments);
+        } else if (MailboxDispatcher.isProcessingMailbox()) {
+            // Waiting for another mailbox might deadlock, e.g. if all workers are occupied by waiting mailboxes
+            throw new IllegalStateException("Can't wait for an invocation in the mailbox of another subtree while processing a mailbox; use invokeAsync() instead");
+        }
+
+        Future<R> result = invokeAsync(arguments);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    // The invocation is already in the mailbox, so the result is still awaited
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ExecutorInvocationException) {
+                        throw (ExecutorInvocationException) e.getCause();
+                    } else if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    } else if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new ExecutorInvocationException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Invokes the defined function with the given arguments and returns a {@link Future} which provides the return value of the invocation chain.
+     * If the mailbox mode is enabled (see {@link #setMailboxDispatcher(MailboxDispatcher)}), the invocation is appended to the mailbox of the holder and the method returns immediately.
+     * Otherwise, the function is invoked directly by the calling thread and the returned future is already completed.
+     * An {@link ExecutorInvocationException} is provided as the cause of the {@link ExecutionException} of the future.
+     * 
+     * @param arguments Some arguments for the {@link FunctionExecutor}s.
+     * @return A {@link Future} which provides the return value on the end of the invocation chain.
+     */
+    public Future<R> invokeAsync(final Object... arguments) {
+
+        Callable<R> invocation = new Callable<R>() {
+
+            @Override
+            public R call() throws ExecutorInvocationException {
+
+                return invokeDirectly(arguments);
+            }
+
+        };
+
+        MailboxDispatcher dispatcher = mailboxDispatcher;
+        if (dispatcher == null) {
+            FutureTask<R> result = new FutureTask<R>(invocation);
+            result.run();
+            return result;
+        }
+        return dispatcher.submit(getHolder(), invocation);
+    }
+
+    private R invokeDirectly(Object... arguments) throws ExecutorInvocationException {
+
+        if (changeBatching) {
+            ChangeListeners.beginBatch();
+            try {
+                return invokeUnbatched(arguments);
+            } finally {
+                ChangeListeners.endBatch();
+            }
+        }
+        return invokeUnbatched(arguments);
+    }
+
+    private R invokeUnbatched(Object... arguments) throws ExecutorInvocationException {
+
+        if (transactionAttempts > 0 && Transaction.getCurrent() == null) {
+            return invokeTransactional(arguments);
+        }
+
+        boolean traced = InvocationTracer.enterFunction(this);
+        try {
+            invocations++;
+            Transaction transaction = Transaction.getCurrent();
+            if (transaction != null) {
+                // Invocations which are rolled back (e.g. for being retried) aren't counted
+                transaction.addRollbackAction(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        invocations--;
+                    }
+
+                });
+            }
+            FunctionInvocation<R> invocation = new DefaultFunctionInvocation<R>(this, parallelService, combiner);
+            return invocation.next(arguments);
+        } finally {
+            if (traced) {
+                InvocationTracer.exitFunction();
+            }
+        }
+    }
+
+    private R invokeTransactional(Object... arguments) throws ExecutorInvocationException {
+
+        for (int attempt = 0; attempt < transactionAttempts; attempt++) {
+            Transaction transaction = Transaction.begin();
+            try {
+                // The transaction is active now, so this call runs the actual invocation chain
+                R result = invokeUnbatched(arguments);
+                if (transaction.commit()) {
+                    return result;
+                }
+            } finally {
+                // Discards the write set if an executor failed
+                transaction.rollback();
+            }
+        }
+
+        throw new ExecutorInvocationException("Transaction of function '" + getName() + "' still conflicted after " + transactionAttempts + " attempts");
     }
 
     @Override
@@ -133,4 +476,20 @@ public class AbstractFunction<R> extends AbstractFeature implements Function<R>
         return getClass().getName() + " [name=" + getName() + ", " + getExecutors().size() + " executors, locked=" + locked + "]";
     }
 
+    /*
+     * An immutable set of executor contexts together with the version of the executor table it was built from.
+     */
+    private static class BoundExecutors<R> {
+
+        private final long                            version;
+        private final Set<FunctionExecutorContext<R>> contexts;
+
+        private BoundExecutors(long version, Set<FunctionExecutorContext<R>> contexts) {
+
+            this.version = version;
+            this.contexts = Collections.unmodifiableSet(contexts);
+        }
+
+    }
+
 }
@@ -23,7 +23,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import org.apache.commons.lang.Validate;
 import com.quartercode.classmod.base.Feature;
 import com.quartercode.classmod.base.FeatureHolder;
@@ -37,6 +36,7 @@ import com.quartercode.classmod.extra.FunctionExecutor;
  * It's an implementation of the {@link FunctionDefinition} interface.
  * It contains the name of the {@link Function} and the {@link FunctionExecutor}s which are used.
  * You can use an abstract function definition to construct a new instance of the defined {@link Function} through {@link #create(FeatureHolder)}.
+ * The executors can be added and removed at any time, even while functions are invoked by other threads (see {@link #getExecutorTable()}).
  * 
  * @param <R> The type of the return value of the defined {@link Function}.
  * @see FunctionDefinition
@@ -44,8 +44,9 @@ import com.quartercode.classmod.extra.FunctionExecutor;
  */
 public abstract class AbstractFunctionDefinition<R> extends AbstractFeatureDefinition<Function<R>> implements FunctionDefinition<R> {
 
-    private final List<Class<?>>                                                        parameters = new ArrayList<Class<?>>();
-    private final Map<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> executors  = new HashMap<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>>();
+    private final List<Class<?>>      parameters    = new ArrayList<Class<?>>();
+    // Replaced by every change; functions which were created by this definition read it without locks
+    private volatile ExecutorTable<R> executorTable = new ExecutorTable<R>();
 
     /**
      * Creates a new abstract function definition for defining a {@link Function} with the given name and parameters.
@@ -83,25 +84,31 @@ public abstract class AbstractFunctionDefinition<R> extends AbstractFeatureDefin
         }
     }
 
+    /**
+     * Returns the current {@link ExecutorTable} which contains all {@link FunctionExecutor}s that are registered at the definition.
+     * Every change of the registered executors publishes a new table, so the returned one is never modified.
+     * {@link AbstractFunction}s which were created by the definition pick up the new table on their next invocation.
+     * 
+     * @return The current executor table.
+     */
+    public ExecutorTable<R> getExecutorTable() {
+
+        return executorTable;
+    }
+
     @Override
     public void addExecutor(Class<? extends FeatureHolder> variant, String name, FunctionExecutor<R> executor) {
 
-        if (!executors.containsKey(variant)) {
-            executors.put(variant, new HashMap<String, FunctionExecutor<R>>());
+        synchronized (this) {
+            executorTable = executorTable.withExecutor(variant, name, executor);
         }
-
-        executors.get(variant).put(name, executor);
     }
 
     @Override
     public void removeExecutor(Class<? extends FeatureHolder> variant, String name) {
 
-        if (executors.containsKey(variant)) {
-            executors.get(variant).remove(name);
-
-            if (executors.get(variant).isEmpty()) {
-                executors.remove(variant);
-            }
+        synchronized (this) {
+            executorTable = executorTable.withoutExecutor(variant, name);
         }
     }
 
@@ -112,14 +119,12 @@ public abstract class AbstractFunctionDefinition<R> extends AbstractFeatureDefin
             Validate.isTrue(parameter != null, "Null parameters are not allowed");
         }
 
-        Map<String, FunctionExecutor<R>> actualExecutors = new HashMap<String, FunctionExecutor<R>>();
-        for (Entry<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> variant : executors.entrySet()) {
-            if (variant.getKey().isAssignableFrom(holder.getClass())) {
-                actualExecutors.putAll(variant.getValue());
-            }
+        ExecutorTable<R> table = executorTable;
+        Function<R> function = create(holder, parameters, new HashMap<String, FunctionExecutor<R>>(table.getExecutors(holder.getClass())));
+        if (function instanceof AbstractFunction) {
+            ((AbstractFunction<R>) function).bindExecutorTable(this, table);
         }
-
-        return create(holder, parameters, actualExecutors);
+        return function;
     }
 
     /**
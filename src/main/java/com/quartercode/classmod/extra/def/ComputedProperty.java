@@ -0,0 +1,358 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.FeatureObserver;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.extra.Property;
+
+/**
+ * A computed property is a read-only {@link Property} whose value is derived from other properties by a {@link Computation}.
+ * While the computation runs, all properties of this package which are read by it are recorded as its dependencies.
+ * The result is cached until one of the dependencies is changed; after that, it's computed again on the next read.
+ * Therefore, repeated reads only cost a version comparison as long as nothing changes.
+ * 
+ * Computed properties can depend on other computed properties. When a computed property becomes stale, its {@link FeatureObserver}s are notified,
+ * so dependent properties and listeners are informed as well. They are only notified once until the value is read again; further changes of the
+ * dependencies can't make a value which is already stale any staler. Computed properties which depend on themselves, directly or through other
+ * computed properties, can't be computed and throw an {@link IllegalStateException} instead. Inside a {@link Transaction} or a {@link Snapshot}, the value is computed without
+ * using or filling the cache, since the dependencies might have values which aren't committed or aren't current.
+ * Note that dependencies keep references to the computed properties which depend on them.
+ * 
+ * @param <T> The type of object which is computed by the computed property.
+ * @see Computation
+ */
+public class ComputedProperty<T> extends AbstractFeature implements Property<T> {
+
+    private static final ThreadLocal<Frame>     CURRENT       = new ThreadLocal<Frame>();
+    // Reads only look up the current frame while any thread computes a property
+    private static final AtomicInteger          computing     = new AtomicInteger();
+
+    private final Computation<T>                computation;
+    private final FeatureObserver               invalidator   = new Invalidator();
+    // Guarded by the property
+    private final Map<AbstractFeature, Boolean> dependencies  = new IdentityHashMap<AbstractFeature, Boolean>();
+    private final AtomicInteger                 invalidations = new AtomicInteger();
+    private volatile Result<T>                  result;
+
+    /*
+     * Records that the given property was read by the current computation of the current thread.
+     * This must be called by every property of this package on every read.
+     */
+    static void recordRead(AbstractFeature property) {
+
+        if (computing.get() != 0) {
+            Frame frame = CURRENT.get();
+            if (frame != null) {
+                frame.read(property);
+            }
+        }
+    }
+
+    /**
+     * Returns the current value of the given {@link Property} without recording it as a dependency of the computation which currently runs on the thread.
+     * Transactional properties of this package return their committed value, ignoring the current {@link Transaction} and {@link Snapshot} of the thread.
+     * This is meant for observers which read changed properties while the change is reported, since such a read isn't part of any computation.
+     * 
+     * @param <T> The type of object which is stored inside the property.
+     * @param property The property whose value should be returned.
+     * @return The current value of the property.
+     */
+    @SuppressWarnings ("unchecked")
+    public static <T> T getUntracked(Property<T> property) {
+
+        if (property instanceof TransactionalProperty) {
+            return ((TransactionalProperty<T>) property).getCommitted();
+        }
+
+        // Other properties might still record their reads, so the computation of the thread is hidden from them
+        Frame frame = CURRENT.get();
+        if (frame == null) {
+            return property.get();
+        }
+        CURRENT.remove();
+        try {
+            return property.get();
+        } finally {
+            CURRENT.set(frame);
+        }
+    }
+
+    /**
+     * Creates a new computed property with the given name and {@link FeatureHolder} which derives its value with the given {@link Computation}.
+     * 
+     * @param name The name of the computed property.
+     * @param holder The feature holder which has and uses the new computed property.
+     * @param computation The {@link Computation} which computes the value of the new computed property.
+     */
+    public ComputedProperty(String name, FeatureHolder holder, Computation<T> computation) {
+
+        super(name, holder);
+
+        this.computation = computation;
+    }
+
+    /**
+     * Returns whether the cached value is stale, so the value must be computed again on the next read.
+     * 
+     * @return True if the value isn't cached or one of the dependencies was changed since it was computed.
+     */
+    public boolean isStale() {
+
+        Result<T> current = result;
+        return current == null || current.invalidations != invalidations.get();
+    }
+
+    /**
+     * Returns the amount of properties which were read by the last computation.
+     * 
+     * @return The amount of dependencies.
+     */
+    public int getDependencyCount() {
+
+        synchronized (this) {
+            return dependencies.size();
+        }
+    }
+
+    /**
+     * Marks the cached value as stale, so it's computed again on the next read.
+     * This is only necessary if the computation uses values which aren't stored in properties of this package.
+     * The {@link FeatureObserver}s are only notified if the value was cached until now.
+     */
+    public void invalidate() {
+
+        while (true) {
+            int current = invalidations.get();
+            Result<T> cached = result;
+            boolean fresh = cached != null && cached.invalidations == current;
+            // Only the invalidation which actually makes the value stale notifies the observers
+            if (invalidations.compareAndSet(current, current + 1)) {
+                if (fresh) {
+                    notifyObservers();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the computed value, which is only computed again if the cached value is stale.
+     * 
+     * @return The value derived by the {@link Computation}.
+     * @throws IllegalStateException The computed property depends on itself, directly or through other computed properties.
+     */
+    @Override
+    public T get() {
+
+        recordRead(this);
+
+        if (Transaction.getCurrent() != null || Snapshot.getCurrent() != null) {
+            // The reads are recorded by the computation of the caller, if there is one
+            Frame frame = enter(false);
+            try {
+                return computation.compute(getHolder());
+            } finally {
+                exit(frame);
+            }
+        }
+
+        Result<T> current = result;
+        if (current != null && current.invalidations == invalidations.get()) {
+            return current.value;
+        }
+
+        synchronized (this) {
+            current = result;
+            if (current != null && current.invalidations == invalidations.get()) {
+                return current.value;
+            }
+            return compute();
+        }
+    }
+
+    private T compute() {
+
+        // Changes which happen during the computation make the result stale right away
+        int stamp = invalidations.get();
+
+        Frame frame = enter(true);
+        T value;
+        try {
+            value = computation.compute(getHolder());
+        } finally {
+            exit(frame);
+
+            // Stop observing the properties which weren't read anymore
+            for (Iterator<AbstractFeature> iterator = dependencies.keySet().iterator(); iterator.hasNext();) {
+                AbstractFeature dependency = iterator.next();
+                if (!frame.reads.containsKey(dependency)) {
+                    dependency.removeObserver(invalidator);
+                    iterator.remove();
+                }
+            }
+        }
+
+        result = new Result<T>(value, stamp);
+        return value;
+    }
+
+    /*
+     * Starts a computation of this property on the current thread.
+     * If this property is already computed further up the current thread, it depends on itself and would never finish.
+     */
+    private Frame enter(boolean record) {
+
+        Frame parent = CURRENT.get();
+        for (Frame computed = parent; computed != null; computed = computed.parent) {
+            if (computed.owner == this) {
+                throw new IllegalStateException("Computed property '" + getName() + "' depends on itself");
+            }
+        }
+
+        Frame frame = new Frame(this, parent, record);
+        CURRENT.set(frame);
+        computing.incrementAndGet();
+        return frame;
+    }
+
+    private void exit(Frame frame) {
+
+        computing.decrementAndGet();
+        if (frame.parent == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(frame.parent);
+        }
+    }
+
+    private void addDependency(AbstractFeature property) {
+
+        // Called by the computing thread, which already holds the lock
+        if (property != this && dependencies.put(property, Boolean.TRUE) == null) {
+            property.addObserver(invalidator);
+        }
+    }
+
+    /**
+     * Computed properties can't be set, since their value is derived from other properties.
+     * 
+     * @param value Ignored.
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public void set(T value) {
+
+        throw new UnsupportedOperationException("Computed property '" + getName() + "' can't be set");
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+
+        return Collections.singleton(get()).iterator();
+    }
+
+    @Override
+    public String toString() {
+
+        return getClass().getName() + " [name=" + getName() + ", stale=" + isStale() + "]";
+    }
+
+    /**
+     * A computation derives the value of a {@link ComputedProperty} from other {@link Property}s.
+     * It must be free of side effects, since it's only called when the cached value is stale.
+     * 
+     * @param <T> The type of object which is computed.
+     * @see ComputedProperty
+     */
+    public static interface Computation<T> {
+
+        /**
+         * Computes the value of the {@link ComputedProperty} from other {@link Property}s.
+         * All properties which are read by this method are recorded as dependencies.
+         * 
+         * @param holder The {@link FeatureHolder} of the computed property.
+         * @return The computed value.
+         */
+        public T compute(FeatureHolder holder);
+
+    }
+
+    private static class Result<T> {
+
+        private final T   value;
+        private final int invalidations;
+
+        private Result(T value, int invalidations) {
+
+            this.value = value;
+            this.invalidations = invalidations;
+        }
+
+    }
+
+    /*
+     * The computation which currently runs on a thread; nested computations have their own frames.
+     * Frames which don't record their reads pass them on to the computation of the caller.
+     */
+    private static class Frame {
+
+        private final ComputedProperty<?>           owner;
+        private final Frame                         parent;
+        private final boolean                       record;
+        private final Map<AbstractFeature, Boolean> reads = new IdentityHashMap<AbstractFeature, Boolean>();
+
+        private Frame(ComputedProperty<?> owner, Frame parent, boolean record) {
+
+            this.owner = owner;
+            this.parent = parent;
+            this.record = record;
+        }
+
+        private void read(AbstractFeature property) {
+
+            if (!record) {
+                if (parent != null) {
+                    parent.read(property);
+                }
+            } else if (reads.put(property, Boolean.TRUE) == null) {
+                owner.addDependency(property);
+            }
+        }
+
+    }
+
+    private class Invalidator implements FeatureObserver {
+
+        @Override
+        public void featureChanged(Feature feature) {
+
+            invalidate();
+        }
+
+    }
+
+}
@@ -19,11 +19,14 @@
 package com.quartercode.classmod.extra.def;
 
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlTransient;
+import com.quartercode.classmod.base.ChangeTracker;
 import com.quartercode.classmod.base.Feature;
 import com.quartercode.classmod.base.FeatureDefinition;
 import com.quartercode.classmod.base.FeatureHolder;
 import com.quartercode.classmod.base.def.DefaultFeatureHolder;
 import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.util.ChangeGuards;
 
 /**
  * A child feature holder is a {@link FeatureHolder} which stores its parent {@link FeatureHolder}.
@@ -48,6 +51,7 @@ public class DefaultChildFeatureHolder<P extends FeatureHolder> extends DefaultF
     }
 
     @Override
+    @XmlTransient
     public P getParent() {
 
         return parent;
@@ -56,7 +60,28 @@ public class DefaultChildFeatureHolder<P extends FeatureHolder> extends DefaultF
     @Override
     public void setParent(P parent) {
 
+        ChangeGuards.beforeChange(this);
         this.parent = parent;
+
+        holderChanged();
+    }
+
+    /**
+     * Returns the {@link ChangeTracker} which is notified about modifications of the default child feature holder.
+     * If no tracker was set for the child holder itself, the tracker of the parent {@link FeatureHolder} is used.
+     * That way, a tracker which is attached to a root holder tracks all of its children.
+     * 
+     * @return The {@link ChangeTracker} of the default child feature holder or its parent, or null if there is none.
+     */
+    @Override
+    @XmlTransient
+    public ChangeTracker getChangeTracker() {
+
+        ChangeTracker tracker = super.getChangeTracker();
+        if (tracker == null && parent instanceof DefaultFeatureHolder) {
+            tracker = ((DefaultFeatureHolder) parent).getChangeTracker();
+        }
+        return tracker;
     }
 
     /**
@@ -21,14 +21,18 @@ package com.quartercode.classmod.extra.def;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.quartercode.classmod.extra.Debounce;
 import com.quartercode.classmod.extra.ExecutorInvocationException;
 import com.quartercode.classmod.extra.FunctionExecutor;
 import com.quartercode.classmod.extra.FunctionExecutorContext;
 import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Throttle;
 
 /**
  * The default implementation of the {@link FunctionExecutorContext} for storing data values along with a {@link FunctionExecutor}.
@@ -38,13 +42,21 @@ import com.quartercode.classmod.extra.FunctionInvocation;
  */
 public class DefaultFunctionExecutorContext<R> implements FunctionExecutorContext<R> {
 
-    private static final Logger       LOGGER           = Logger.getLogger(DefaultFunctionExecutorContext.class.getName());
+    private static final Logger                                                   LOGGER           = Logger.getLogger(DefaultFunctionExecutorContext.class.getName());
+    // Concurrent maps don't support null values
+    private static final Object                                                   NULL_VALUE       = new Object();
 
-    private final String              name;
-    private final FunctionExecutor<R> executor;
-    private final Map<Method, Object> annotationValues = new HashMap<Method, Object>();
-    private int                       invocations      = 0;
-    private boolean                   locked           = false;
+    private final String                                                          name;
+    private final FunctionExecutor<R>                                             executor;
+    // Contexts are shared by all threads which invoke the function, so the values are cached in concurrent maps
+    private final ConcurrentMap<Class<? extends Annotation>, Map<String, Object>> annotationValues = new ConcurrentHashMap<Class<? extends Annotation>, Map<String, Object>>();
+    private int                                                                   invocations      = 0;
+    private boolean                                                               locked           = false;
+
+    private double                                                                throttleTokens   = -1;
+    private long                                                                  throttleUpdate;
+    private boolean                                                               attempted;
+    private long                                                                  lastAttempt;
 
     /**
      * Creates a new default function executor context and fills in the {@link FunctionExecutor} to store and its name.
@@ -73,34 +85,38 @@ public class DefaultFunctionExecutorContext<R> implements FunctionExecutorContex
     @Override
     public <A extends Annotation> Object getValue(Class<A> type, String name) {
 
+        // Fast path: Return stored value without any reflection
+        Map<String, Object> typeValues = annotationValues.get(type);
+        if (typeValues != null) {
+            Object value = typeValues.get(name);
+            if (value != null) {
+                return value == NULL_VALUE ? null : value;
+            }
+        }
+
         try {
             Method valueMethod = type.getMethod(name);
 
-            if (!annotationValues.containsKey(valueMethod)) {
-                // Fill in annotation value
-                try {
-                    A annotation = executor.getClass().getMethod("invoke", FunctionInvocation.class, Object[].class).getAnnotation(type);
-                    if (annotation != null) {
-                        Object value = valueMethod.invoke(annotation);
-                        annotationValues.put(valueMethod, value);
-                        return value;
-                    }
-                } catch (NoSuchMethodException e) {
-                    LOGGER.log(Level.SEVERE, "Programmer's fault: Can't find invoke() method (should be defined by interface)", e);
-                } catch (IllegalAccessException e) {
-                    LOGGER.log(Level.SEVERE, "No access to annotation method because it's not public; What the ... ?", e);
-                } catch (InvocationTargetException e) {
-                    LOGGER.log(Level.SEVERE, "Can't invoke annotation method", e);
+            // Fill in annotation value
+            try {
+                A annotation = executor.getClass().getMethod("invoke", FunctionInvocation.class, Object[].class).getAnnotation(type);
+                if (annotation != null) {
+                    Object value = valueMethod.invoke(annotation);
+                    putValue(type, name, value);
+                    return value;
                 }
-
-                // Fill in default value
-                Object value = valueMethod.getDefaultValue();
-                annotationValues.put(valueMethod, value);
-                return value;
+            } catch (NoSuchMethodException e) {
+                LOGGER.log(Level.SEVERE, "Programmer's fault: Can't find invoke() method (should be defined by interface)", e);
+            } catch (IllegalAccessException e) {
+                LOGGER.log(Level.SEVERE, "No access to annotation method because it's not public; What the ... ?", e);
+            } catch (InvocationTargetException e) {
+                LOGGER.log(Level.SEVERE, "Can't invoke annotation method", e);
             }
 
-            // Return stored value
-            return annotationValues.get(valueMethod);
+            // Fill in default value
+            Object value = valueMethod.getDefaultValue();
+            putValue(type, name, value);
+            return value;
         } catch (NoSuchMethodException e) {
             LOGGER.log(Level.WARNING, "Tried to access not existing annotation method for getting annotation value", e);
             return null;
@@ -111,12 +127,26 @@ public class DefaultFunctionExecutorContext<R> implements FunctionExecutorContex
     public <A extends Annotation> void setValue(Class<A> type, String name, Object value) {
 
         try {
-            annotationValues.put(type.getMethod(name), value);
+            type.getMethod(name);
+            putValue(type, name, value);
         } catch (NoSuchMethodException e) {
             LOGGER.log(Level.WARNING, "Tried to access not existing annotation method for setting annotation value", e);
         }
     }
 
+    private void putValue(Class<? extends Annotation> type, String name, Object value) {
+
+        Map<String, Object> typeValues = annotationValues.get(type);
+        if (typeValues == null) {
+            typeValues = new ConcurrentHashMap<String, Object>();
+            Map<String, Object> existingValues = annotationValues.putIfAbsent(type, typeValues);
+            if (existingValues != null) {
+                typeValues = existingValues;
+            }
+        }
+        typeValues.put(name, value == null ? NULL_VALUE : value);
+    }
+
     @Override
     public int getInvocations() {
 
@@ -129,6 +159,93 @@ public class DefaultFunctionExecutorContext<R> implements FunctionExecutorContex
         invocations = 0;
     }
 
+    /**
+     * Checks whether the stored {@link FunctionExecutor} may be invoked now according to its time-based annotations ({@link Throttle} and {@link Debounce}).
+     * If it may, the call consumes the time slot (e.g. a {@link Throttle} token).
+     * Every call counts as an invocation attempt for the {@link Debounce} annotation.
+     * Therefore, this should only be called right before the stored {@link FunctionExecutor} would be invoked.
+     * 
+     * @return True if the stored {@link FunctionExecutor} may be invoked now, false if it's throttled or debounced.
+     */
+    public synchronized boolean acquireTimeSlot() {
+
+        long window = (Long) getValue(Throttle.class, "window");
+        long quietPeriod = (Long) getValue(Debounce.class, "value");
+        if (window <= 0 && quietPeriod <= 0) {
+            // Don't read the clock if there are no time-based annotations
+            return true;
+        }
+
+        long time = System.nanoTime();
+
+        Transaction transaction = Transaction.getCurrent();
+
+        // Debounce
+        if (quietPeriod > 0) {
+            boolean inBurst = attempted && time - lastAttempt < ((TimeUnit) getValue(Debounce.class, "unit")).toNanos(quietPeriod);
+            if (transaction != null) {
+                final boolean oldAttempted = attempted;
+                final long oldLastAttempt = lastAttempt;
+                final long attempt = time;
+                transaction.addRollbackAction(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        synchronized (DefaultFunctionExecutorContext.this) {
+                            // Only restore the old attempt if no other attempt happened in the meantime
+                            if (lastAttempt == attempt) {
+                                attempted = oldAttempted;
+                                lastAttempt = oldLastAttempt;
+                            }
+                        }
+                    }
+
+                });
+            }
+
+            attempted = true;
+            lastAttempt = time;
+            if (inBurst) {
+                return false;
+            }
+        }
+
+        // Throttle (token bucket)
+        if (window > 0) {
+            int capacity = (Integer) getValue(Throttle.class, "invocations");
+            if (throttleTokens < 0) {
+                throttleTokens = capacity;
+            } else {
+                double refill = (double) (time - throttleUpdate) * capacity / ((TimeUnit) getValue(Throttle.class, "unit")).toNanos(window);
+                throttleTokens = Math.min(capacity, throttleTokens + refill);
+            }
+            throttleUpdate = time;
+
+            if (throttleTokens < 1) {
+                return false;
+            }
+            throttleTokens--;
+
+            if (transaction != null) {
+                final int refillCapacity = capacity;
+                transaction.addRollbackAction(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        synchronized (DefaultFunctionExecutorContext.this) {
+                            throttleTokens = Math.min(refillCapacity, throttleTokens + 1);
+                        }
+                    }
+
+                });
+            }
+        }
+
+        return true;
+    }
+
     @Override
     public boolean isLocked() {
 
@@ -146,6 +263,19 @@ public class DefaultFunctionExecutorContext<R> implements FunctionExecutorContex
 
         if (!locked) {
             invocations++;
+            Transaction transaction = Transaction.getCurrent();
+            if (transaction != null) {
+                // Invocations which are rolled back (e.g. for being retried) don't count towards the invocation limit
+                transaction.addRollbackAction(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        invocations--;
+                    }
+
+                });
+            }
             return executor.invoke(invocation, arguments);
         } else {
             return null;
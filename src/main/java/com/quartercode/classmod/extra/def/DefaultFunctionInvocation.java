@@ -18,12 +18,19 @@
 
 package com.quartercode.classmod.extra.def;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.Validate;
@@ -34,9 +41,14 @@ import com.quartercode.classmod.extra.Function;
 import com.quartercode.classmod.extra.FunctionExecutor;
 import com.quartercode.classmod.extra.FunctionExecutorContext;
 import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Independent;
 import com.quartercode.classmod.extra.Limit;
 import com.quartercode.classmod.extra.Lockable;
 import com.quartercode.classmod.extra.Prioritized;
+import com.quartercode.classmod.extra.ResultCombiner;
+import com.quartercode.classmod.extra.Timeout;
+import com.quartercode.classmod.util.ChangeListeners;
+import com.quartercode.classmod.util.InvocationTracer;
 
 /**
  * A default implementation of the {@link FunctionInvocation} interface for executing a {@link Function}.
@@ -47,10 +59,19 @@ import com.quartercode.classmod.extra.Prioritized;
  */
 public class DefaultFunctionInvocation<R> implements FunctionInvocation<R> {
 
-    private static final Logger                     LOGGER = Logger.getLogger(DefaultFunctionInvocation.class.getName());
+    private static final Logger                       LOGGER       = Logger.getLogger(DefaultFunctionInvocation.class.getName());
+    // The parallel service whose tier executor currently runs on a thread of that service
+    private static final ThreadLocal<ExecutorService> TIER_SERVICE = new ThreadLocal<ExecutorService>();
 
-    private final Function<R>                       source;
-    private final Queue<FunctionExecutorContext<R>> remainingExecutors;
+    private final Function<R>                         source;
+    private final Queue<FunctionExecutorContext<R>>   remainingExecutors;
+    private final ExecutorService                     parallelService;
+    private final ResultCombiner<R>                   combiner;
+
+    // The timeout state of the executor which currently runs on the invoking thread
+    private String                                    timedExecutor;
+    private long                                      timeout;
+    private long                                      timeoutStart;
 
     /**
      * Creates a new default function invocation for the given {@link Function}.
@@ -61,7 +82,26 @@ public class DefaultFunctionInvocation<R> implements FunctionInvocation<R> {
      */
     public DefaultFunctionInvocation(Function<R> source) {
 
+        this(source, null, null);
+    }
+
+    /**
+     * Creates a new default function invocation for the given {@link Function} which invokes {@link Independent} {@link FunctionExecutor}s in parallel.
+     * All {@link Independent} {@link FunctionExecutor}s which have the same priority are invoked through the given {@link ExecutorService}.
+     * Their return values are merged by the given {@link ResultCombiner}.
+     * If such an executor invokes another function with the same {@link ExecutorService}, the tiers of that function are invoked sequentially on the current thread,
+     * so a bounded pool can't be starved by tiers which wait for their own members. Tiers are also invoked sequentially if the current thread has a {@link Transaction},
+     * a change batch or a mailbox, since that context is bound to the thread.
+     * 
+     * @param source The {@link Function} the default function invocation is used by.
+     * @param parallelService The {@link ExecutorService} which invokes {@link Independent} {@link FunctionExecutor}s. null disables the parallel mode.
+     * @param combiner The {@link ResultCombiner} which merges the return values of parallel tiers. null returns the value of the rest of the chain.
+     */
+    public DefaultFunctionInvocation(Function<R> source, ExecutorService parallelService, ResultCombiner<R> combiner) {
+
         this.source = source;
+        this.parallelService = parallelService;
+        this.combiner = combiner;
 
         // Specify the list type for using this as a queue later on
         // We need a list here for sorting the executors
@@ -77,7 +117,13 @@ public class DefaultFunctionInvocation<R> implements FunctionInvocation<R> {
             @Override
             public int compare(FunctionExecutorContext<R> o1, FunctionExecutorContext<R> o2) {
 
-                return ((Integer) o2.getValue(Prioritized.class, "value")).compareTo((Integer) o1.getValue(Prioritized.class, "value"));
+                int result = ((Integer) o2.getValue(Prioritized.class, "value")).compareTo((Integer) o1.getValue(Prioritized.class, "value"));
+                if (result == 0 && DefaultFunctionInvocation.this.parallelService != null) {
+                    // Independent executors of one priority form a single tier in front of the other ones
+                    result = Boolean.valueOf(isAnnotationPresent(o2, Independent.class)).compareTo(isAnnotationPresent(o1, Independent.class));
+                }
+                // The executors are provided in no particular order, so the names make the order reproducible
+                return result != 0 ? result : o1.getName().compareTo(o2.getName());
             }
 
         });
@@ -96,13 +142,8 @@ public class DefaultFunctionInvocation<R> implements FunctionInvocation<R> {
     protected boolean isExecutorInvocable(FunctionExecutorContext<R> executor) {
 
         // Lockable
-        try {
-            Method invokeMethod = executor.getExecutor().getClass().getMethod("invoke", FunctionInvocation.class, Object[].class);
-            if (executor.isLocked() || source.isLocked() && invokeMethod.isAnnotationPresent(Lockable.class)) {
-                return false;
-            }
-        } catch (NoSuchMethodException e) {
-            LOGGER.log(Level.SEVERE, "Programmer's fault: Can't find invoke() method (should be defined by interface)", e);
+        if (executor.isLocked() || source.isLocked() && isAnnotationPresent(executor, Lockable.class)) {
+            return false;
         }
 
         // Limit
@@ -120,9 +161,30 @@ public class DefaultFunctionInvocation<R> implements FunctionInvocation<R> {
             return false;
         }
 
+        // Throttle and Debounce are checked when the executor is about to be invoked (see acquireTimeSlot())
         return true;
     }
 
+    /*
+     * Throttle and debounce state is consumed by the check, so it must only happen right before the executor is invoked.
+     * Otherwise, executors which are never reached (e.g. because an earlier executor didn't call next()) would use up their time slots.
+     */
+    private boolean acquireTimeSlot(FunctionExecutorContext<R> executor) {
+
+        return ! (executor instanceof DefaultFunctionExecutorContext) || ((DefaultFunctionExecutorContext<R>) executor).acquireTimeSlot();
+    }
+
+    private boolean isAnnotationPresent(FunctionExecutorContext<R> executor, Class<? extends Annotation> type) {
+
+        try {
+            Method invokeMethod = executor.getExecutor().getClass().getMethod("invoke", FunctionInvocation.class, Object[].class);
+            return invokeMethod.isAnnotationPresent(type);
+        } catch (NoSuchMethodException e) {
+            LOGGER.log(Level.SEVERE, "Programmer's fault: Can't find invoke() method (should be defined by interface)", e);
+            return false;
+        }
+    }
+
     @Override
     public FeatureHolder getHolder() {
 
@@ -156,16 +218,213 @@ public class DefaultFunctionInvocation<R> implements FunctionInvocation<R> {
             throw new ExecutorInvocationException(e);
         }
 
-        if (remainingExecutors.size() == 0) {
-            // Abort because all executors were already invoked
-            return null;
-        } else {
+        if (timeout <= 0) {
+            return continueChain(arguments);
+        }
+
+        // Check the timeout of the executor which hands over to the rest of the chain
+        long elapsed = System.nanoTime() - timeoutStart;
+        checkTimeout(timedExecutor, timeout, elapsed);
+        try {
+            return continueChain(arguments);
+        } finally {
+            // The time the rest of the chain takes isn't counted
+            timeoutStart = System.nanoTime() - elapsed;
+        }
+    }
+
+    private R continueChain(Object... arguments) throws ExecutorInvocationException {
+
+        while (remainingExecutors.size() > 0) {
+            if (parallelService != null && isAnnotationPresent(remainingExecutors.peek(), Independent.class)) {
+                return invokeTier(arguments);
+            }
+
+            FunctionExecutorContext<R> executor = remainingExecutors.poll();
+            // Skip throttled or debounced executors
+            if (acquireTimeSlot(executor)) {
+                return invoke(executor, this, arguments);
+            }
+        }
+
+        // Abort because all executors were already invoked
+        return null;
+    }
+
+    private R invoke(FunctionExecutorContext<R> executor, FunctionInvocation<R> invocation, Object... arguments) throws ExecutorInvocationException {
+
+        long executorTimeout = getTimeout(executor);
+        long start = executorTimeout > 0 ? System.nanoTime() : 0;
+
+        // Only executors of the sequential chain can hand over through next(); tier executors run on other threads
+        boolean sequential = invocation == this;
+        String outerTimedExecutor = timedExecutor;
+        long outerTimeout = timeout;
+        long outerTimeoutStart = timeoutStart;
+        if (sequential) {
+            timedExecutor = executor.getName();
+            timeout = executorTimeout;
+            timeoutStart = start;
+        }
+
+        boolean traced = InvocationTracer.enterExecutor(executor);
+        try {
+            R result = executor.invoke(invocation, arguments);
+            if (executorTimeout > 0) {
+                checkTimeout(executor.getName(), executorTimeout, System.nanoTime() - (sequential ? timeoutStart : start));
+            }
+            return result;
+        } catch (RuntimeException e) {
+            throw new ExecutorInvocationException();
+        } finally {
+            if (traced) {
+                InvocationTracer.exitExecutor();
+            }
+            if (sequential) {
+                timedExecutor = outerTimedExecutor;
+                timeout = outerTimeout;
+                timeoutStart = outerTimeoutStart;
+            }
+        }
+    }
+
+    private long getTimeout(FunctionExecutorContext<R> executor) {
+
+        long value = (Long) executor.getValue(Timeout.class, "value");
+        return value <= 0 ? 0 : ((TimeUnit) executor.getValue(Timeout.class, "unit")).toNanos(value);
+    }
+
+    private void checkTimeout(String executor, long timeout, long elapsed) throws ExecutorInvocationException {
+
+        if (elapsed > timeout) {
+            throw new ExecutorInvocationException("Executor '" + executor + "' exceeded its timeout of " + timeout + " ns (took " + elapsed + " ns)");
+        }
+    }
+
+    /*
+     * Invokes all independent executors which have the priority of the next executor in parallel.
+     * After all of them completed, the chain continues with the next tier.
+     * If the current thread already runs a tier member of the parallel service, the tier is invoked sequentially since the pool might be full.
+     * The same goes for threads with a transaction, a change batch or a mailbox, since that context can't be used by other threads.
+     */
+    private R invokeTier(final Object... arguments) throws ExecutorInvocationException {
+
+        Object priority = remainingExecutors.peek().getValue(Prioritized.class, "value");
+        List<FunctionExecutorContext<R>> tier = new ArrayList<FunctionExecutorContext<R>>();
+        while (!remainingExecutors.isEmpty() && remainingExecutors.peek().getValue(Prioritized.class, "value").equals(priority) && isAnnotationPresent(remainingExecutors.peek(), Independent.class)) {
+            FunctionExecutorContext<R> executor = remainingExecutors.poll();
+            // Skip throttled or debounced executors
+            if (acquireTimeSlot(executor)) {
+                tier.add(executor);
+            }
+        }
+
+        if (tier.isEmpty()) {
+            return continueChain(arguments);
+        }
+
+        final FunctionInvocation<R> tierInvocation = new TierInvocation<R>(source.getHolder());
+        boolean onCurrentThread = TIER_SERVICE.get() == parallelService || Transaction.getCurrent() != null || ChangeListeners.isBatching() || MailboxDispatcher.isProcessingMailbox();
+
+        // Submit all executors except for the last one, which is invoked by the current thread
+        List<Future<R>> futures = new ArrayList<Future<R>>();
+        List<R> tierResults = new ArrayList<R>();
+        ExecutorInvocationException exception = null;
+        for (final FunctionExecutorContext<R> executor : tier.subList(0, tier.size() - 1)) {
+            if (onCurrentThread) {
+                if (exception == null) {
+                    try {
+                        tierResults.add(invoke(executor, tierInvocation, arguments));
+                    } catch (ExecutorInvocationException e) {
+                        exception = e;
+                    }
+                }
+                continue;
+            }
+
+            futures.add(parallelService.submit(new Callable<R>() {
+
+                @Override
+                public R call() throws ExecutorInvocationException {
+
+                    ExecutorService outerService = TIER_SERVICE.get();
+                    TIER_SERVICE.set(parallelService);
+                    try {
+                        return invoke(executor, tierInvocation, arguments);
+                    } finally {
+                        TIER_SERVICE.set(outerService);
+                    }
+                }
+
+            }));
+        }
+
+        R lastResult = null;
+        if (exception == null) {
             try {
-                return remainingExecutors.poll().invoke(this, arguments);
-            } catch (RuntimeException e) {
-                throw new ExecutorInvocationException();
+                lastResult = invoke(tier.get(tier.size() - 1), tierInvocation, arguments);
+            } catch (ExecutorInvocationException e) {
+                exception = e;
+            }
+        }
+
+        // Wait for all executors of the tier, even if one of them failed
+        boolean interrupted = false;
+        for (Future<R> future : futures) {
+            while (true) {
+                try {
+                    tierResults.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (exception == null) {
+                        exception = e.getCause() instanceof ExecutorInvocationException ? (ExecutorInvocationException) e.getCause() : new ExecutorInvocationException(e.getCause());
+                    }
+                    break;
+                }
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+        // Keep the results in the order of the tier
+        tierResults.add(lastResult);
+
+        // The arguments were already validated by the next() call which started the tier
+        R nextResult = continueChain(arguments);
+        return combiner == null ? nextResult : combiner.combine(tierResults, nextResult);
+    }
+
+    /*
+     * The invocation which is passed to independent executors inside a parallel tier.
+     * The chain is continued after the whole tier completed, so next() doesn't invoke anything.
+     */
+    private static class TierInvocation<R> implements FunctionInvocation<R> {
+
+        private final FeatureHolder holder;
+
+        private TierInvocation(FeatureHolder holder) {
+
+            this.holder = holder;
+        }
+
+        @Override
+        public FeatureHolder getHolder() {
+
+            return holder;
+        }
+
+        @Override
+        public R next(Object... arguments) {
+
+            return null;
+        }
+
     }
 
 }
@@ -0,0 +1,156 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.FunctionExecutor;
+
+/**
+ * An executor table is an immutable snapshot of the {@link FunctionExecutor}s which are registered at an {@link AbstractFunctionDefinition}.
+ * Every change of the registered executors publishes a new table with a higher version; existing tables are never modified.
+ * Therefore, tables can be read by any thread without locks. {@link AbstractFunction}s compare the version of the current table with the one they
+ * were built from and pick up a new table lazily on their next invocation.
+ * 
+ * @param <R> The type of the return value of the {@link FunctionExecutor}s.
+ * @see AbstractFunctionDefinition#getExecutorTable()
+ */
+public class ExecutorTable<R> {
+
+    private final long                                                                  version;
+    private final Map<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> variants;
+    // The merged executors are immutable as well, so they can be cached for every holder type
+    private final ConcurrentMap<Class<?>, Map<String, FunctionExecutor<R>>>             holderExecutors = new ConcurrentHashMap<Class<?>, Map<String, FunctionExecutor<R>>>();
+
+    /**
+     * Creates a new empty executor table with the version 0.
+     */
+    public ExecutorTable() {
+
+        this(0, new HashMap<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>>());
+    }
+
+    private ExecutorTable(long version, Map<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> variants) {
+
+        this.version = version;
+        this.variants = Collections.unmodifiableMap(variants);
+    }
+
+    /**
+     * Returns the version of the executor table. Every changed table has a higher version than the one it was derived from.
+     * 
+     * @return The version of the table.
+     */
+    public long getVersion() {
+
+        return version;
+    }
+
+    /**
+     * Returns the {@link FunctionExecutor}s of the table, mapped by the {@link FeatureHolder} variants they are registered for.
+     * See {@link FunctionDefinition#addExecutor(Class, String, FunctionExecutor)} for more information on variants.
+     * 
+     * @return All executors of the table.
+     */
+    public Map<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> getVariants() {
+
+        return variants;
+    }
+
+    /**
+     * Returns the {@link FunctionExecutor}s of all variants the given {@link FeatureHolder} type is assignable to.
+     * 
+     * @param holderType The type of the {@link FeatureHolder} whose executors should be returned.
+     * @return The executors which are used for holders of the given type, mapped by their names.
+     */
+    public Map<String, FunctionExecutor<R>> getExecutors(Class<?> holderType) {
+
+        Map<String, FunctionExecutor<R>> executors = holderExecutors.get(holderType);
+        if (executors == null) {
+            executors = new HashMap<String, FunctionExecutor<R>>();
+            for (Entry<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> variant : variants.entrySet()) {
+                if (variant.getKey().isAssignableFrom(holderType)) {
+                    executors.putAll(variant.getValue());
+                }
+            }
+
+            executors = Collections.unmodifiableMap(executors);
+            holderExecutors.putIfAbsent(holderType, executors);
+        }
+        return executors;
+    }
+
+    /**
+     * Returns a new executor table which additionally contains the given {@link FunctionExecutor}.
+     * An existing executor with the same variant and name is replaced.
+     * 
+     * @param variant The {@link FeatureHolder} variant the executor is registered for.
+     * @param name The name of the executor.
+     * @param executor The executor which should be added.
+     * @return The new executor table with the next version.
+     */
+    public ExecutorTable<R> withExecutor(Class<? extends FeatureHolder> variant, String name, FunctionExecutor<R> executor) {
+
+        Map<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> newVariants = new HashMap<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>>(variants);
+        Map<String, FunctionExecutor<R>> newExecutors = newVariants.containsKey(variant) ? new HashMap<String, FunctionExecutor<R>>(newVariants.get(variant)) : new HashMap<String, FunctionExecutor<R>>();
+        newExecutors.put(name, executor);
+        newVariants.put(variant, Collections.unmodifiableMap(newExecutors));
+
+        return new ExecutorTable<R>(version + 1, newVariants);
+    }
+
+    /**
+     * Returns a new executor table which doesn't contain the {@link FunctionExecutor} with the given variant and name.
+     * If there is no such executor, this table is returned.
+     * 
+     * @param variant The {@link FeatureHolder} variant the executor is registered for.
+     * @param name The name of the executor.
+     * @return The new executor table with the next version, or this table if nothing changed.
+     */
+    public ExecutorTable<R> withoutExecutor(Class<? extends FeatureHolder> variant, String name) {
+
+        if (!variants.containsKey(variant) || !variants.get(variant).containsKey(name)) {
+            return this;
+        }
+
+        Map<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>> newVariants = new HashMap<Class<? extends FeatureHolder>, Map<String, FunctionExecutor<R>>>(variants);
+        Map<String, FunctionExecutor<R>> newExecutors = new HashMap<String, FunctionExecutor<R>>(newVariants.get(variant));
+        newExecutors.remove(name);
+        if (newExecutors.isEmpty()) {
+            newVariants.remove(variant);
+        } else {
+            newVariants.put(variant, Collections.unmodifiableMap(newExecutors));
+        }
+
+        return new ExecutorTable<R>(version + 1, newVariants);
+    }
+
+    @Override
+    public String toString() {
+
+        return getClass().getName() + " [version=" + version + ", variants=" + variants + "]";
+    }
+
+}
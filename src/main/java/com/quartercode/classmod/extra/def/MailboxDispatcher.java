@@ -0,0 +1,308 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.extra.Function;
+
+/**
+ * The mailbox dispatcher confines every top-level {@link FeatureHolder} subtree to one logical thread.
+ * Each root holder (the topmost holder of a {@link ChildFeatureHolder#getParent()} chain) has a mailbox.
+ * Tasks which are submitted for a holder are appended to the mailbox of its root and are executed one after another by a worker of the given {@link Executor}.
+ * Therefore, tasks on the same subtree never run concurrently, while different subtrees are processed in parallel without any locking.
+ * 
+ * Tasks which are submitted from inside the mailbox of the same subtree are executed directly, so {@link Function}s can call each other inside one subtree.
+ * Note that a task mustn't block on the result of a task of another subtree, since that subtree might wait for the first one or all workers might be occupied by waiting tasks.
+ * Therefore, {@link AbstractFunction#invoke(Object...)} fails if it would have to wait for another mailbox (see {@link #isProcessingMailbox()}).
+ * If the worker {@link Executor} rejects the scheduling of a mailbox, the mailbox is closed and all of its remaining tasks fail with the {@link RejectedExecutionException}.
+ * 
+ * @see AbstractFunction#setMailboxDispatcher(MailboxDispatcher)
+ */
+public class MailboxDispatcher {
+
+    private static final ThreadLocal<Mailbox>       CURRENT   = new ThreadLocal<Mailbox>();
+
+    private final Executor                          workers;
+    private final int                               throughput;
+    private final ConcurrentMap<HolderKey, Mailbox> mailboxes = new ConcurrentHashMap<HolderKey, Mailbox>();
+
+    /**
+     * Creates a new mailbox dispatcher which processes the mailboxes with the given worker {@link Executor}.
+     * A worker processes at most 16 tasks of a mailbox before it reschedules the mailbox, so other mailboxes get a chance to run.
+     * 
+     * @param workers The {@link Executor} whose threads process the mailboxes.
+     */
+    public MailboxDispatcher(Executor workers) {
+
+        this(workers, 16);
+    }
+
+    /**
+     * Creates a new mailbox dispatcher which processes the mailboxes with the given worker {@link Executor}.
+     * 
+     * @param workers The {@link Executor} whose threads process the mailboxes.
+     * @param throughput The maximum amount of tasks of one mailbox a worker processes before it reschedules the mailbox.
+     */
+    public MailboxDispatcher(Executor workers, int throughput) {
+
+        Validate.notNull(workers, "Worker executor can't be null");
+        Validate.isTrue(throughput > 0, "Throughput must be > 0");
+
+        this.workers = workers;
+        this.throughput = throughput;
+    }
+
+    /**
+     * Returns the root {@link FeatureHolder} of the subtree the given holder is part of.
+     * The root is found by following the {@link ChildFeatureHolder#getParent()} chain until a holder has no parent.
+     * 
+     * @param holder The {@link FeatureHolder} whose root should be returned.
+     * @return The root of the subtree which contains the given holder. This is the holder itself if it doesn't have a parent.
+     */
+    public static FeatureHolder getRoot(FeatureHolder holder) {
+
+        FeatureHolder root = holder;
+        while (root instanceof ChildFeatureHolder && ((ChildFeatureHolder<?>) root).getParent() != null) {
+            root = ((ChildFeatureHolder<?>) root).getParent();
+        }
+        return root;
+    }
+
+    /**
+     * Returns whether the current thread is processing the mailbox of the subtree which contains the given {@link FeatureHolder}.
+     * In that case, tasks for the holder are executed directly instead of being appended to the mailbox.
+     * 
+     * @param holder The {@link FeatureHolder} to check.
+     * @return True if the current thread may access the subtree of the holder directly, false if not.
+     */
+    public boolean isConfined(FeatureHolder holder) {
+
+        Mailbox current = CURRENT.get();
+        return current != null && current.getDispatcher() == this && current.root == getRoot(holder);
+    }
+
+    /**
+     * Returns whether the current thread is processing the mailbox of any subtree.
+     * Such a thread mustn't block on the result of a task in another mailbox because that might deadlock.
+     * 
+     * @return True if the current thread is a worker which is currently processing a mailbox.
+     */
+    public static boolean isProcessingMailbox() {
+
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Appends the given task to the mailbox of the subtree which contains the given {@link FeatureHolder}.
+     * If the current thread is already processing that mailbox (see {@link #isConfined(FeatureHolder)}), the task is executed directly.
+     * 
+     * @param holder The {@link FeatureHolder} the task accesses.
+     * @param task The task which should be executed inside the mailbox of the holder.
+     * @return A {@link Future} which provides the result of the task once it was executed.
+     * @throws RejectedExecutionException The worker {@link Executor} doesn't accept any more tasks.
+     */
+    public <T> Future<T> submit(FeatureHolder holder, Callable<T> task) {
+
+        MailboxTask<T> futureTask = new MailboxTask<T>(task);
+        if (isConfined(holder)) {
+            futureTask.run();
+            return futureTask;
+        }
+
+        HolderKey key = new HolderKey(getRoot(holder));
+        while (true) {
+            Mailbox mailbox = mailboxes.get(key);
+            if (mailbox == null) {
+                Mailbox newMailbox = new Mailbox(key);
+                mailbox = mailboxes.putIfAbsent(key, newMailbox);
+                if (mailbox == null) {
+                    mailbox = newMailbox;
+                }
+            }
+
+            if (mailbox.post(futureTask)) {
+                return futureTask;
+            }
+
+            // The mailbox was closed after it ran empty; a new one is created for the task
+            mailboxes.remove(key, mailbox);
+        }
+    }
+
+    /**
+     * Returns the amount of mailboxes which currently contain tasks or are being processed.
+     * Mailboxes are removed as soon as they run empty.
+     * 
+     * @return The amount of active mailboxes.
+     */
+    public int getActiveMailboxCount() {
+
+        return mailboxes.size();
+    }
+
+    private static class HolderKey {
+
+        private final FeatureHolder root;
+
+        private HolderKey(FeatureHolder root) {
+
+            this.root = root;
+        }
+
+        @Override
+        public int hashCode() {
+
+            // The hash codes of holders are computed from all of their features, which is too expensive here
+            return System.identityHashCode(root);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            return obj instanceof HolderKey && ((HolderKey) obj).root == root;
+        }
+
+    }
+
+    private static class MailboxTask<T> extends FutureTask<T> {
+
+        private MailboxTask(Callable<T> task) {
+
+            super(task);
+        }
+
+        private void fail(Throwable cause) {
+
+            setException(cause);
+        }
+
+    }
+
+    private class Mailbox implements Runnable {
+
+        private final HolderKey             key;
+        private final FeatureHolder         root;
+        private final Queue<MailboxTask<?>> tasks = new ConcurrentLinkedQueue<MailboxTask<?>>();
+        // Both flags are guarded by the mailbox
+        private boolean                     scheduled;
+        private boolean                     closed;
+
+        private Mailbox(HolderKey key) {
+
+            this.key = key;
+            root = key.root;
+        }
+
+        private MailboxDispatcher getDispatcher() {
+
+            return MailboxDispatcher.this;
+        }
+
+        private boolean post(MailboxTask<?> task) {
+
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+
+                tasks.add(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The task of the caller fails through the exception; tasks which were posted in the meantime rely on this schedule as well
+                tasks.remove(task);
+                reject(e);
+                throw e;
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+
+            Mailbox previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                for (int count = 0; count < throughput; count++) {
+                    MailboxTask<?> task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    task.run();
+                }
+            } finally {
+                CURRENT.set(previous);
+            }
+
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    // Tasks are only added while holding the lock, so no task can get lost here
+                    scheduled = false;
+                    closed = true;
+                    mailboxes.remove(key, this);
+                    return;
+                }
+            }
+
+            // Reschedule the mailbox, so other mailboxes get a chance to run
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                reject(e);
+            }
+        }
+
+        /*
+         * Nobody would process the remaining tasks, so the mailbox is closed and they fail instead of waiting forever.
+         */
+        private void reject(RejectedExecutionException cause) {
+
+            synchronized (this) {
+                scheduled = false;
+                closed = true;
+                mailboxes.remove(key, this);
+            }
+
+            // No task can be added after the mailbox was closed
+            MailboxTask<?> task;
+            while ( (task = tasks.poll()) != null) {
+                task.fail(cause);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.Persistent;
+import com.quartercode.classmod.base.def.AbstractPersistentFeature;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.util.ObjectAdapter;
+
+/**
+ * A mvcc property is a {@link Property} which stores an object and keeps a chain of its older values.
+ * Every value is tagged with the {@link VersionClock} version of the write which stored it.
+ * While a {@link Snapshot} is open, the property returns the newest value which was written up to the version of the snapshot.
+ * Therefore, readers can read a consistent state of many holders without blocking the writers.
+ * 
+ * Old values are reclaimed by the writes as soon as no open snapshot needs them anymore.
+ * However, the chain never contains more than a maximum amount of values. If a snapshot needs a value which was already dropped because of that limit,
+ * an {@link IllegalStateException} is thrown. Snapshots should therefore be closed quickly (e.g. after a frame was drawn).
+ * Mvcc properties also take part in {@link Transaction}s; all writes of one commit get the same version.
+ * 
+ * @param <T> The type of object which can be stored inside the mvcc property.
+ * @see Snapshot
+ * @see VersionClock
+ */
+@Persistent
+public class MvccProperty<T> extends AbstractPersistentFeature implements TransactionalProperty<T> {
+
+    /**
+     * The default maximum amount of values the chain of a mvcc property contains.
+     */
+    public static final int               DEFAULT_MAX_VERSIONS = 16;
+
+    @XmlElement
+    @XmlJavaTypeAdapter (ObjectAdapter.class)
+    private T                             object;
+    // The newest value; it's created lazily because the object might be injected directly (e.g. by the persistence engines)
+    private transient volatile Version<T> head;
+    private transient int                 maxVersions          = DEFAULT_MAX_VERSIONS;
+    // Only guards the writes; the versions of the values are taken from the version clock
+    private final transient VersionLock   versionLock          = new VersionLock();
+
+    /**
+     * Creates a new empty mvcc property.
+     * This is only recommended for direct field access (e.g. for serialization).
+     */
+    protected MvccProperty() {
+
+    }
+
+    /**
+     * Creates a new mvcc property with the given name and {@link FeatureHolder}.
+     * 
+     * @param name The name of the mvcc property.
+     * @param holder The feature holder which has and uses the new mvcc property.
+     */
+    public MvccProperty(String name, FeatureHolder holder) {
+
+        super(name, holder);
+    }
+
+    /**
+     * Creates a new mvcc property with the given name and {@link FeatureHolder}, and sets the initial value.
+     * 
+     * @param name The name of the mvcc property.
+     * @param holder The feature holder which has and uses the new mvcc property.
+     * @param initialValue The value the new mvcc property has directly after creation.
+     */
+    public MvccProperty(String name, FeatureHolder holder, T initialValue) {
+
+        super(name, holder);
+
+        object = initialValue;
+    }
+
+    /**
+     * Creates a new mvcc property with the given name and {@link FeatureHolder}, sets the initial value and limits the length of the value chain.
+     * 
+     * @param name The name of the mvcc property.
+     * @param holder The feature holder which has and uses the new mvcc property.
+     * @param initialValue The value the new mvcc property has directly after creation.
+     * @param maxVersions The maximum amount of values the chain contains, including the current one.
+     */
+    public MvccProperty(String name, FeatureHolder holder, T initialValue, int maxVersions) {
+
+        this(name, holder, initialValue);
+
+        Validate.isTrue(maxVersions > 0, "Maximum amount of versions must be > 0");
+        this.maxVersions = maxVersions;
+    }
+
+    @Override
+    public T get() {
+
+        ComputedProperty.recordRead(this);
+        Transaction transaction = Transaction.getCurrent();
+        if (transaction != null) {
+            return transaction.read(this);
+        }
+
+        Snapshot snapshot = Snapshot.getCurrent();
+        return snapshot == null ? getCommitted() : get(snapshot);
+    }
+
+    /**
+     * Returns the newest value which was written up to the version of the given {@link Snapshot}.
+     * This can be called by any thread, even if the snapshot isn't the current one of it.
+     * 
+     * @param snapshot The open snapshot whose version should be read.
+     * @return The value of the property at the version of the snapshot.
+     * @throws IllegalStateException The snapshot is closed, or the value it needs was already dropped because the chain was too long.
+     */
+    public T get(Snapshot snapshot) {
+
+        if (!snapshot.isOpen()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+
+        Version<T> version = getHead();
+        while (version.version > snapshot.getVersion()) {
+            version = version.previous;
+            if (version == null) {
+                throw new IllegalStateException("Value of mvcc property '" + getName() + "' at version " + snapshot.getVersion() + " was already dropped (maximum: " + maxVersions + " versions)");
+            }
+        }
+        return version.value;
+    }
+
+    @Override
+    public void set(T value) {
+
+        Transaction transaction = Transaction.getCurrent();
+        if (transaction == null) {
+            commit(value);
+        } else {
+            transaction.write(this, value);
+        }
+    }
+
+    private Version<T> getHead() {
+
+        Version<T> current = head;
+        if (current == null) {
+            synchronized (VersionClock.LOCK) {
+                if (head == null) {
+                    head = new Version<T>(object, 0, null);
+                }
+                current = head;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Returns the amount of values which are currently stored in the chain of the property, including the current one.
+     * 
+     * @return The length of the value chain.
+     */
+    public int getVersionCount() {
+
+        int count = 0;
+        for (Version<T> version = getHead(); version != null; version = version.previous) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long getVersion() {
+
+        return getHead().version;
+    }
+
+    @Override
+    public T getCommitted() {
+
+        return getHead().value;
+    }
+
+    @Override
+    public VersionLock getVersionLock() {
+
+        return versionLock;
+    }
+
+    @Override
+    public void apply(T value) {
+
+        // The clock is shared by all mvcc properties, so the values of one commit get the same version
+        synchronized (VersionClock.LOCK) {
+            long stamp = VersionClock.beginWrite();
+            try {
+                Version<T> previous = getHead();
+                // Nested writes with the same version replace each other
+                if (previous.version == stamp) {
+                    previous = previous.previous;
+                }
+
+                Version<T> current = new Version<T>(value, stamp, previous);
+                object = value;
+                head = current;
+                reclaim(current);
+            } finally {
+                VersionClock.endWrite();
+            }
+        }
+    }
+
+    @Override
+    public void beforeApply() {
+
+        notifyChanging();
+    }
+
+    @Override
+    public void afterApply() {
+
+        notifyChanged();
+    }
+
+    @Override
+    public void commit(T value) {
+
+        beforeApply();
+
+        versionLock.lock();
+        try {
+            apply(value);
+        } finally {
+            versionLock.unlock(true);
+        }
+
+        afterApply();
+    }
+
+    private void reclaim(Version<T> current) {
+
+        long oldestSnapshot = VersionClock.getOldestSnapshot();
+
+        // Keep all values newer than the oldest snapshot and the value that snapshot reads
+        Version<T> version = current;
+        int count = 1;
+        while (version.previous != null) {
+            if (version.version <= oldestSnapshot || count == maxVersions) {
+                version.previous = null;
+                break;
+            }
+
+            version = version.previous;
+            count++;
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+
+        Set<T> set = new HashSet<T>();
+        set.add(get());
+        return set.iterator();
+    }
+
+    @Override
+    public int hashCode() {
+
+        final int prime = 31;
+        int result = super.hashCode();
+        result = prime * result + (object == null ? 0 : object.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+        if (!super.equals(obj)) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        MvccProperty<?> other = (MvccProperty<?>) obj;
+        if (object == null) {
+            if (other.object != null) {
+                return false;
+            }
+        } else if (!object.equals(other.object)) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+
+        return getClass().getName() + " [name=" + getName() + ", object=" + object + "]";
+    }
+
+    private static class Version<T> {
+
+        private final T             value;
+        private final long          version;
+        // Readers might still walk the chain while a writer cuts it off
+        private volatile Version<T> previous;
+
+        private Version(T value, long version, Version<T> previous) {
+
+            this.value = value;
+            this.version = version;
+            this.previous = previous;
+        }
+
+    }
+
+}
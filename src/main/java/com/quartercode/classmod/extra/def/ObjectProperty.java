@@ -36,9 +36,13 @@ import com.quartercode.classmod.util.ObjectAdapter;
  * @see Property
  */
 @Persistent
-public class ObjectProperty<T> extends AbstractPersistentFeature implements Property<T> {
+public class ObjectProperty<T> extends AbstractPersistentFeature implements TransactionalProperty<T> {
 
-    private T object;
+    @XmlElement
+    @XmlJavaTypeAdapter (ObjectAdapter.class)
+    private T                           object;
+    // Counts the committed writes, so transactions can detect conflicting changes
+    private final transient VersionLock versionLock = new VersionLock();
 
     /**
      * Creates a new empty object property.
@@ -74,24 +78,81 @@ public class ObjectProperty<T> extends AbstractPersistentFeature implements Prop
     }
 
     @Override
-    @XmlElement
-    @XmlJavaTypeAdapter (ObjectAdapter.class)
     public T get() {
 
-        return object;
+        ComputedProperty.recordRead(this);
+        Transaction transaction = Transaction.getCurrent();
+        return transaction == null ? getCommitted() : transaction.read(this);
     }
 
     @Override
     public void set(T value) {
 
+        Transaction transaction = Transaction.getCurrent();
+        if (transaction == null) {
+            commit(value);
+        } else {
+            transaction.write(this, value);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+
+        return versionLock.getVersion();
+    }
+
+    @Override
+    public VersionLock getVersionLock() {
+
+        return versionLock;
+    }
+
+    @Override
+    public T getCommitted() {
+
+        return object;
+    }
+
+    @Override
+    public void apply(T value) {
+
         object = value;
     }
 
+    @Override
+    public void beforeApply() {
+
+        notifyChanging();
+    }
+
+    @Override
+    public void afterApply() {
+
+        notifyChanged();
+    }
+
+    @Override
+    public void commit(T value) {
+
+        beforeApply();
+
+        // Only this property is locked, so plain writes of different properties don't wait for each other
+        versionLock.lock();
+        try {
+            apply(value);
+        } finally {
+            versionLock.unlock(true);
+        }
+
+        afterApply();
+    }
+
     @Override
     public Iterator<T> iterator() {
 
         Set<T> set = new HashSet<T>();
-        set.add(object);
+        set.add(get());
         return set.iterator();
     }
 
@@ -36,9 +36,12 @@ import com.quartercode.classmod.extra.Property;
  * @see Property
  */
 @Persistent
-public class ReferenceProperty<T> extends AbstractPersistentFeature implements Property<T> {
+public class ReferenceProperty<T> extends AbstractPersistentFeature implements TransactionalProperty<T> {
 
-    private T reference;
+    @XmlIDREF
+    private T                           reference;
+    // Counts the committed writes, so transactions can detect conflicting changes
+    private final transient VersionLock versionLock = new VersionLock();
 
     /**
      * Creates a new empty reference property.
@@ -74,33 +77,89 @@ public class ReferenceProperty<T> extends AbstractPersistentFeature implements P
     }
 
     @Override
-    @XmlIDREF
     public T get() {
 
-        return reference;
+        ComputedProperty.recordRead(this);
+        Transaction transaction = Transaction.getCurrent();
+        return transaction == null ? getCommitted() : transaction.read(this);
     }
 
     @Override
     public void set(T value) {
 
+        Transaction transaction = Transaction.getCurrent();
+        if (transaction == null) {
+            commit(value);
+        } else {
+            transaction.write(this, value);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+
+        return versionLock.getVersion();
+    }
+
+    @Override
+    public VersionLock getVersionLock() {
+
+        return versionLock;
+    }
+
+    @Override
+    public T getCommitted() {
+
+        return reference;
+    }
+
+    @Override
+    public void apply(T value) {
+
         reference = value;
     }
 
+    @Override
+    public void beforeApply() {
+
+        notifyChanging();
+    }
+
+    @Override
+    public void afterApply() {
+
+        notifyChanged();
+    }
+
+    @Override
+    public void commit(T value) {
+
+        beforeApply();
+
+        // Only this property is locked, so plain writes of different properties don't wait for each other
+        versionLock.lock();
+        try {
+            apply(value);
+        } finally {
+            versionLock.unlock(true);
+        }
+
+        afterApply();
+    }
+
     @Override
     public Iterator<T> iterator() {
 
         Set<T> set = new HashSet<T>();
-        set.add(reference);
+        set.add(get());
         return set.iterator();
     }
 
+    // Don't include the reference in hashCode() because referenced holders can reference back (that would create an endless recursion)
     @Override
     public int hashCode() {
 
-        final int prime = 31;
-        int result = super.hashCode();
-        result = prime * result + (reference == null ? 0 : reference.hashCode());
-        return result;
+        return super.hashCode();
     }
 
     @Override
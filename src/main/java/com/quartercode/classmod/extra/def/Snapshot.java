@@ -0,0 +1,122 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+/**
+ * A snapshot pins a {@link VersionClock} version, so {@link MvccProperty}s can be read as they were at that version.
+ * While a snapshot is open, the current thread reads all mvcc properties at its version, so the state of many holders is consistent.
+ * Other threads can read the snapshot through {@link MvccProperty#get(Snapshot)}.
+ * Readers never block the writers, and writes which happen after the snapshot was opened aren't visible through it.
+ * 
+ * A snapshot must always be closed, since old versions can't be reclaimed while it's open:
+ * 
+ * <pre>
+ * Snapshot snapshot = Snapshot.open();
+ * try {
+ *     // Read the properties
+ * } finally {
+ *     snapshot.close();
+ * }
+ * </pre>
+ * 
+ * @see MvccProperty
+ * @see VersionClock
+ */
+public class Snapshot {
+
+    private static final ThreadLocal<Snapshot> CURRENT = new ThreadLocal<Snapshot>();
+
+    private final long                         version;
+    private volatile boolean                   open    = true;
+
+    /**
+     * Opens a new snapshot at the current {@link VersionClock#now() version} and makes it the snapshot of the current thread.
+     * 
+     * @return The new snapshot.
+     * @throws IllegalStateException The current thread already has an open snapshot.
+     */
+    public static Snapshot open() {
+
+        if (CURRENT.get() != null) {
+            throw new IllegalStateException("The current thread already has an open snapshot");
+        }
+
+        Snapshot snapshot;
+        synchronized (VersionClock.LOCK) {
+            snapshot = new Snapshot(VersionClock.registerSnapshot());
+        }
+        CURRENT.set(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Returns the open snapshot of the current thread.
+     * 
+     * @return The current snapshot, or null if the current thread doesn't have an open one.
+     */
+    public static Snapshot getCurrent() {
+
+        return CURRENT.get();
+    }
+
+    private Snapshot(long version) {
+
+        this.version = version;
+    }
+
+    /**
+     * Returns the {@link VersionClock} version the snapshot reads at.
+     * 
+     * @return The version of the snapshot.
+     */
+    public long getVersion() {
+
+        return version;
+    }
+
+    /**
+     * Returns whether the snapshot is still open.
+     * 
+     * @return True if the snapshot is open, false if it was closed.
+     */
+    public boolean isOpen() {
+
+        return open;
+    }
+
+    /**
+     * Closes the snapshot, so the versions it needed can be reclaimed. If the snapshot is already closed, nothing happens.
+     * Note that this can be called by any thread, but the snapshot is only unbound from the current thread.
+     */
+    public void close() {
+
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+        }
+        VersionClock.unregisterSnapshot(version);
+    }
+
+}
@@ -0,0 +1,385 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.Property;
+
+/**
+ * A transaction buffers all {@link Property} writes of the current thread in a write set, so they can be discarded or applied atomically.
+ * Every read of a property inside the transaction records the version stamp of the property.
+ * On {@link #commit()}, the transaction validates that none of the accessed properties was changed in the meantime and only then applies the write set.
+ * If another transaction or a plain write changed one of the properties, the commit fails and the transaction can be retried.
+ * Therefore, transactions never block each other while they are running. Only commits and plain writes which write the same properties wait for each other
+ * during the short write phase.
+ * 
+ * The properties of this package ({@link ObjectProperty}, {@link ReferenceProperty}, {@link TransientProperty} and {@link MvccProperty}) take part in transactions.
+ * All writes of one commit get the same {@link VersionClock} version, so {@link Snapshot}s either see all of them or none.
+ * Note that only writes through {@link Property#set(Object)} are buffered. Objects which are modified directly (e.g. a stored list) aren't rolled back.
+ * Collections should be modified through {@link #getWritableCollection(Property)}, which buffers the changes on a copy.
+ * Other side effects can be undone by {@link #addRollbackAction(Runnable) rollback actions}.
+ * Also note that writes of other threads aren't part of the transaction. Therefore, the parallel tiers of {@link Function}s are invoked on the current thread inside a transaction.
+ * 
+ * @see AbstractFunction#setTransactional(int)
+ */
+public class Transaction {
+
+    private static final ThreadLocal<Transaction>       CURRENT         = new ThreadLocal<Transaction>();
+
+    private final Map<TransactionalProperty<?>, Access> accesses        = new IdentityHashMap<TransactionalProperty<?>, Access>();
+    private final List<Runnable>                        rollbackActions = new ArrayList<Runnable>();
+    private boolean                                     active          = true;
+
+    /**
+     * Starts a new transaction for the current thread.
+     * Until the transaction is committed or rolled back, all reads and writes of the current thread take part in it.
+     * 
+     * @return The new transaction.
+     * @throws IllegalStateException The current thread already has an active transaction.
+     */
+    public static Transaction begin() {
+
+        if (CURRENT.get() != null) {
+            throw new IllegalStateException("The current thread already has an active transaction");
+        }
+
+        Transaction transaction = new Transaction();
+        CURRENT.set(transaction);
+        return transaction;
+    }
+
+    /**
+     * Returns the active transaction of the current thread.
+     * 
+     * @return The current transaction, or null if the current thread doesn't have an active one.
+     */
+    public static Transaction getCurrent() {
+
+        return CURRENT.get();
+    }
+
+    private Transaction() {
+
+    }
+
+    /**
+     * Returns whether the transaction is still active. A transaction ends when it's committed or rolled back.
+     * 
+     * @return True if the transaction is active, false if it ended.
+     */
+    public boolean isActive() {
+
+        return active;
+    }
+
+    /**
+     * Returns the amount of {@link Property}s which were written inside the transaction.
+     * 
+     * @return The size of the write set.
+     */
+    public int getWriteCount() {
+
+        int writes = 0;
+        for (Access access : accesses.values()) {
+            if (access.written) {
+                writes++;
+            }
+        }
+        return writes;
+    }
+
+    @SuppressWarnings ("unchecked")
+    <T> T read(TransactionalProperty<T> property) {
+
+        Access access = getAccess(property);
+        return access.written ? (T) access.value : property.getCommitted();
+    }
+
+    <T> void write(TransactionalProperty<T> property, T value) {
+
+        Access access = getAccess(property);
+        access.written = true;
+        access.copied = false;
+        access.value = value;
+    }
+
+    /**
+     * Returns a copy of the {@link Collection} which is stored by the given {@link Property}, so the copy can be modified inside the transaction.
+     * The copy is put into the write set. Therefore, the modifications are applied on commit and discarded on rollback.
+     * Later calls return the same copy until the property is written again. The copy has the same type as the original collection.
+     * If the property doesn't take part in transactions, null is returned and the collection must be modified directly.
+     * 
+     * @param property The {@link Property} whose collection should be modified.
+     * @return The modifiable copy of the collection, or null if the property doesn't take part in transactions.
+     * @throws IllegalStateException The transaction isn't active, or the collection can't be copied (e.g. because it doesn't have a copy constructor).
+     */
+    @SuppressWarnings ("unchecked")
+    public <E> Collection<E> getWritableCollection(Property<? extends Collection<E>> property) {
+
+        if (! (property instanceof TransactionalProperty)) {
+            return null;
+        }
+
+        Access access = getAccess((TransactionalProperty<?>) property);
+        if (!access.copied) {
+            Collection<E> collection = access.written ? (Collection<E>) access.value : ((TransactionalProperty<Collection<E>>) property).getCommitted();
+            access.value = collection == null ? null : copyCollection(collection);
+            access.written = true;
+            access.copied = true;
+        }
+        return (Collection<E>) access.value;
+    }
+
+    @SuppressWarnings ("unchecked")
+    private static <E> Collection<E> copyCollection(Collection<E> collection) {
+
+        Class<?> type = collection.getClass();
+        // Prefer the copy constructors which keep the comparators of sorted collections
+        for (Class<?> parameterType : new Class<?>[] { SortedSet.class, PriorityQueue.class, Collection.class }) {
+            if (parameterType.isInstance(collection)) {
+                try {
+                    return (Collection<E>) type.getConstructor(parameterType).newInstance(collection);
+                } catch (NoSuchMethodException e) {
+                    // Try the next constructor
+                } catch (InstantiationException e) {
+                    throw new IllegalStateException("Can't copy collection of type '" + type.getName() + "'", e);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Can't copy collection of type '" + type.getName() + "'", e);
+                } catch (InvocationTargetException e) {
+                    throw new IllegalStateException("Can't copy collection of type '" + type.getName() + "'", e.getCause());
+                }
+            }
+        }
+
+        throw new IllegalStateException("Collection of type '" + type.getName() + "' can't be modified inside a transaction because it doesn't have a copy constructor");
+    }
+
+    /**
+     * Registers an action which undoes a side effect of the transaction which isn't part of the write set (e.g. a consumed invocation count).
+     * The actions are executed in reverse order if the transaction is rolled back or if its commit fails. They are dropped after a successful commit.
+     * 
+     * @param action The action which undoes a side effect on rollback.
+     * @throws IllegalStateException The transaction isn't active.
+     */
+    public void addRollbackAction(Runnable action) {
+
+        if (!active) {
+            throw new IllegalStateException("Transaction isn't active");
+        }
+
+        rollbackActions.add(action);
+    }
+
+    private Access getAccess(TransactionalProperty<?> property) {
+
+        if (!active) {
+            throw new IllegalStateException("Transaction isn't active");
+        }
+
+        Access access = accesses.get(property);
+        if (access == null) {
+            access = new Access(property.getVersion());
+            accesses.put(property, access);
+        }
+        return access;
+    }
+
+    /**
+     * Validates that none of the {@link Property}s which were accessed inside the transaction was changed by someone else and applies the write set.
+     * If the validation fails, nothing is applied and the {@link #addRollbackAction(Runnable) rollback actions} are executed. In both cases, the transaction ends.
+     * The change guards and listeners of the written properties are called outside of the validation and write phase, so the write set is either applied completely
+     * or not at all. If a listener throws an exception, the remaining listeners are still notified and the first exception is rethrown afterwards.
+     * 
+     * @return True if the write set was applied, false if there was a conflict and the transaction should be retried.
+     * @throws IllegalStateException The transaction isn't active.
+     */
+    public boolean commit() {
+
+        if (!active) {
+            throw new IllegalStateException("Transaction isn't active");
+        }
+        end();
+
+        // Concurrent commits lock their write sets in the same order, so they can't deadlock
+        List<Entry<TransactionalProperty<?>, Access>> writes = new ArrayList<Entry<TransactionalProperty<?>, Access>>();
+        for (Entry<TransactionalProperty<?>, Access> access : accesses.entrySet()) {
+            if (access.getValue().written) {
+                writes.add(access);
+            }
+        }
+        Collections.sort(writes, new Comparator<Entry<TransactionalProperty<?>, Access>>() {
+
+            @Override
+            public int compare(Entry<TransactionalProperty<?>, Access> o1, Entry<TransactionalProperty<?>, Access> o2) {
+
+                long id1 = o1.getKey().getVersionLock().getId();
+                long id2 = o2.getKey().getVersionLock().getId();
+                return id1 < id2 ? -1 : id1 == id2 ? 0 : 1;
+            }
+
+        });
+
+        // The guards must be called before the values change, but they mustn't run while the properties are locked
+        try {
+            for (Entry<TransactionalProperty<?>, Access> write : writes) {
+                write.getKey().beforeApply();
+            }
+        } catch (RuntimeException e) {
+            executeRollbackActions();
+            throw e;
+        }
+
+        boolean valid = false;
+        int locked = 0;
+        try {
+            for (Entry<TransactionalProperty<?>, Access> write : writes) {
+                write.getKey().getVersionLock().lock();
+                locked++;
+            }
+
+            valid = validate();
+            if (valid) {
+                apply(writes);
+            }
+        } finally {
+            for (int index = 0; index < locked; index++) {
+                writes.get(index).getKey().getVersionLock().unlock(valid);
+            }
+        }
+
+        if (!valid) {
+            executeRollbackActions();
+            return false;
+        }
+
+        rollbackActions.clear();
+        RuntimeException exception = null;
+        for (Entry<TransactionalProperty<?>, Access> write : writes) {
+            try {
+                write.getKey().afterApply();
+            } catch (RuntimeException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return true;
+    }
+
+    /*
+     * The properties of the write set must be locked by the current thread.
+     */
+    private boolean validate() {
+
+        for (Entry<TransactionalProperty<?>, Access> access : accesses.entrySet()) {
+            TransactionalProperty<?> property = access.getKey();
+            // A property which was only read mustn't be in the middle of another write either
+            if (property.getVersion() != access.getValue().version || !access.getValue().written && property.getVersionLock().isLocked()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings ("unchecked")
+    private void apply(List<Entry<TransactionalProperty<?>, Access>> writes) {
+
+        boolean mvcc = false;
+        for (Entry<TransactionalProperty<?>, Access> write : writes) {
+            mvcc |= write.getKey() instanceof MvccProperty;
+        }
+
+        if (!mvcc) {
+            for (Entry<TransactionalProperty<?>, Access> write : writes) {
+                ((TransactionalProperty<Object>) write.getKey()).apply(write.getValue().value);
+            }
+            return;
+        }
+
+        // All mvcc writes of one commit get the same version, so snapshots either see all of them or none
+        synchronized (VersionClock.LOCK) {
+            VersionClock.beginWrite();
+            try {
+                for (Entry<TransactionalProperty<?>, Access> write : writes) {
+                    ((TransactionalProperty<Object>) write.getKey()).apply(write.getValue().value);
+                }
+            } finally {
+                VersionClock.endWrite();
+            }
+        }
+    }
+
+    /**
+     * Discards the write set, executes the {@link #addRollbackAction(Runnable) rollback actions} and ends the transaction.
+     * If the transaction already ended, nothing happens.
+     */
+    public void rollback() {
+
+        if (active) {
+            end();
+            executeRollbackActions();
+        }
+    }
+
+    private void executeRollbackActions() {
+
+        for (int index = rollbackActions.size() - 1; index >= 0; index--) {
+            rollbackActions.get(index).run();
+        }
+        rollbackActions.clear();
+    }
+
+    private void end() {
+
+        active = false;
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    private static class Access {
+
+        private final long version;
+        private boolean    written;
+        // Whether the value is a copy which was created by getWritableCollection()
+        private boolean    copied;
+        private Object     value;
+
+        private Access(long version) {
+
+            this.version = version;
+        }
+
+    }
+
+}
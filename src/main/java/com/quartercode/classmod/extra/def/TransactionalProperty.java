@@ -0,0 +1,82 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import com.quartercode.classmod.extra.Property;
+
+/**
+ * A transactional property is a {@link Property} whose reads and writes take part in the current {@link Transaction} of the thread.
+ * It stores a version stamp which is increased by every committed write, so transactions can validate the values they read.
+ * 
+ * @param <T> The type of object which can be stored inside the transactional property.
+ * @see Transaction
+ */
+interface TransactionalProperty<T> extends Property<T> {
+
+    /**
+     * Returns the version stamp of the committed value of the property.
+     * The stamp must be increased after the value was changed, so a reader which sees the old stamp might already see the new value, but not the other way around.
+     * 
+     * @return The current version stamp.
+     */
+    long getVersion();
+
+    /**
+     * Returns the committed value of the property, ignoring the write set of the current {@link Transaction}.
+     * 
+     * @return The committed value.
+     */
+    T getCommitted();
+
+    /**
+     * Returns the {@link VersionLock} which guards the writes of the property.
+     * Plain writes and committing {@link Transaction}s hold it while they store the value, so a write can't happen between the validation
+     * and the write phase of a commit.
+     * 
+     * @return The version lock of the property.
+     */
+    VersionLock getVersionLock();
+
+    /**
+     * Stores the given value without sending any change notifications. The caller must hold the {@link #getVersionLock() version lock}.
+     * The version stamp is increased when the lock is released.
+     * 
+     * @param value The committed value.
+     */
+    void apply(T value);
+
+    /**
+     * Calls the change guards because the value is about to be {@link #apply(Object) applied}. This must be called before the version lock is acquired.
+     */
+    void beforeApply();
+
+    /**
+     * Sends the change notifications after a value was {@link #apply(Object) applied}. This must be called after the version lock was released.
+     */
+    void afterApply();
+
+    /**
+     * Writes the given value into the property and increases the version stamp. This is used by plain writes outside of {@link Transaction}s.
+     * Only the {@link #getVersionLock() version lock} of the property is held while the value is stored. All change notifications of a normal write are sent.
+     * 
+     * @param value The committed value.
+     */
+    void commit(T value);
+
+}
@@ -31,9 +31,11 @@ import com.quartercode.classmod.extra.Property;
  * @param <T> The type of object which can be stored inside the transient property.
  * @see Property
  */
-public class TransientProperty<T> extends AbstractFeature implements Property<T> {
+public class TransientProperty<T> extends AbstractFeature implements TransactionalProperty<T> {
 
-    private T object;
+    private T                           object;
+    // Counts the committed writes, so transactions can detect conflicting changes
+    private final transient VersionLock versionLock = new VersionLock();
 
     /**
      * Creates a new transient property with the given name and {@link FeatureHolder}.
@@ -63,20 +65,80 @@ public class TransientProperty<T> extends AbstractFeature implements Property<T>
     @Override
     public T get() {
 
-        return object;
+        ComputedProperty.recordRead(this);
+        Transaction transaction = Transaction.getCurrent();
+        return transaction == null ? getCommitted() : transaction.read(this);
     }
 
     @Override
     public void set(T value) {
 
+        Transaction transaction = Transaction.getCurrent();
+        if (transaction == null) {
+            commit(value);
+        } else {
+            transaction.write(this, value);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+
+        return versionLock.getVersion();
+    }
+
+    @Override
+    public VersionLock getVersionLock() {
+
+        return versionLock;
+    }
+
+    @Override
+    public T getCommitted() {
+
+        return object;
+    }
+
+    @Override
+    public void apply(T value) {
+
         object = value;
     }
 
+    @Override
+    public void beforeApply() {
+
+        // The value isn't persistent, so the change guards aren't called
+    }
+
+    @Override
+    public void afterApply() {
+
+        // The value isn't persistent, so only the observers are notified
+        notifyObservers();
+    }
+
+    @Override
+    public void commit(T value) {
+
+        beforeApply();
+
+        // Only this property is locked, so plain writes of different properties don't wait for each other
+        versionLock.lock();
+        try {
+            apply(value);
+        } finally {
+            versionLock.unlock(true);
+        }
+
+        afterApply();
+    }
+
     @Override
     public Iterator<T> iterator() {
 
         Set<T> set = new HashSet<T>();
-        set.add(object);
+        set.add(get());
         return set.iterator();
     }
 
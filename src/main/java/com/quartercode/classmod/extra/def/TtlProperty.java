@@ -0,0 +1,196 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.Collections;
+import java.util.Iterator;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.util.ChangeListeners;
+import com.quartercode.classmod.util.TimerWheel;
+import com.quartercode.classmod.util.TimerWheel.Timer;
+
+/**
+ * A ttl property is a transient {@link Property} whose value expires after a time to live (e.g. a cooldown or a cache entry).
+ * After the value expired, the property returns its default value. The time is taken from a shared {@link TimerWheel}, which also clears expired values
+ * and notifies the observers when it's advanced. Since the property itself is linked into the wheel, millions of timed values only cost one timer object each.
+ * Expirations which happen during one advance of the wheel are observed as one batch by {@link ChangeListeners}.
+ * 
+ * Like {@link TransientProperty}, the value isn't persistent. Note that ttl properties don't take part in {@link Transaction}s.
+ * 
+ * @param <T> The type of object which can be stored inside the ttl property.
+ * @see TimerWheel
+ */
+public class TtlProperty<T> extends AbstractFeature implements Property<T> {
+
+    private final TimerWheel  wheel;
+    private final long        defaultTtl;
+    private final T           defaultValue;
+    private final Timer       timer = new ExpiryTimer();
+    // The value and its deadline are replaced together; null if there is no value
+    private volatile Entry<T> entry;
+
+    /**
+     * Creates a new ttl property with the given name and {@link FeatureHolder} whose values expire after the given default time to live.
+     * Expired values are replaced with null.
+     * 
+     * @param name The name of the ttl property.
+     * @param holder The feature holder which has and uses the new ttl property.
+     * @param wheel The {@link TimerWheel} which provides the time and expires the values.
+     * @param defaultTtl The time to live of values which are set through {@link #set(Object)}, in the time unit of the wheel.
+     */
+    public TtlProperty(String name, FeatureHolder holder, TimerWheel wheel, long defaultTtl) {
+
+        this(name, holder, wheel, defaultTtl, null);
+    }
+
+    /**
+     * Creates a new ttl property with the given name and {@link FeatureHolder} whose values expire after the given default time to live.
+     * Expired values are replaced with the given default value.
+     * 
+     * @param name The name of the ttl property.
+     * @param holder The feature holder which has and uses the new ttl property.
+     * @param wheel The {@link TimerWheel} which provides the time and expires the values.
+     * @param defaultTtl The time to live of values which are set through {@link #set(Object)}, in the time unit of the wheel.
+     * @param defaultValue The value the ttl property returns while it has no value that hasn't expired.
+     */
+    public TtlProperty(String name, FeatureHolder holder, TimerWheel wheel, long defaultTtl, T defaultValue) {
+
+        super(name, holder);
+
+        Validate.notNull(wheel, "Timer wheel can't be null");
+        Validate.isTrue(defaultTtl > 0, "Default time to live must be > 0");
+
+        this.wheel = wheel;
+        this.defaultTtl = defaultTtl;
+        this.defaultValue = defaultValue;
+    }
+
+    @Override
+    public T get() {
+
+        ComputedProperty.recordRead(this);
+
+        // The value might have expired before the wheel was advanced
+        Entry<T> current = entry;
+        return current == null || wheel.getTime() >= current.deadline ? defaultValue : current.value;
+    }
+
+    /**
+     * Returns the time until the current value expires.
+     * 
+     * @return The remaining time to live, or 0 if there is no value that hasn't expired.
+     */
+    public long getRemainingTtl() {
+
+        Entry<T> current = entry;
+        return current == null ? 0 : Math.max(current.deadline - wheel.getTime(), 0);
+    }
+
+    /**
+     * Changes the value of the ttl property, so it expires after the default time to live.
+     * 
+     * @param value The new value.
+     */
+    @Override
+    public void set(T value) {
+
+        set(value, defaultTtl);
+    }
+
+    /**
+     * Changes the value of the ttl property, so it expires after the given time to live.
+     * 
+     * @param value The new value.
+     * @param ttl The time after which the new value expires, in the time unit of the {@link TimerWheel}.
+     */
+    public void set(T value, long ttl) {
+
+        Validate.isTrue(ttl > 0, "Time to live must be > 0");
+
+        synchronized (this) {
+            long deadline = wheel.getTime() + ttl;
+            entry = new Entry<T>(value, deadline);
+            wheel.schedule(timer, deadline);
+        }
+
+        // The value isn't persistent, so only the observers are notified
+        notifyObservers();
+    }
+
+    /**
+     * Removes the current value right away, so the ttl property returns its default value.
+     */
+    public void clear() {
+
+        synchronized (this) {
+            entry = null;
+            wheel.cancel(timer);
+        }
+
+        notifyObservers();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+
+        return Collections.singleton(get()).iterator();
+    }
+
+    @Override
+    public String toString() {
+
+        return getClass().getName() + " [name=" + getName() + ", object=" + get() + ", remainingTtl=" + getRemainingTtl() + "]";
+    }
+
+    private static class Entry<T> {
+
+        private final T    value;
+        private final long deadline;
+
+        private Entry(T value, long deadline) {
+
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+    }
+
+    private class ExpiryTimer extends Timer {
+
+        @Override
+        protected void expire() {
+
+            synchronized (TtlProperty.this) {
+                // The value might have been replaced since the timer was collected
+                Entry<T> current = entry;
+                if (current == null || wheel.getTime() < current.deadline) {
+                    return;
+                }
+                entry = null;
+            }
+
+            notifyObservers();
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.TreeMap;
+
+/**
+ * The version clock stamps the writes of {@link MvccProperty}s with a global, ascending version.
+ * All writes of one committing {@link Transaction} get the same version, so they become visible at once.
+ * Readers can open a {@link Snapshot} at the current version and read a consistent state of many holders without blocking the writers.
+ * The clock also tracks the oldest open snapshot, so old versions which aren't needed by any reader can be reclaimed.
+ * 
+ * @see MvccProperty
+ * @see Snapshot
+ */
+public class VersionClock {
+
+    // Guards the writes of mvcc properties and the registry of open snapshots
+    static final Object                         LOCK           = new Object();
+
+    private static volatile long                published;
+    private static long                         pending;
+    private static int                          writeDepth;
+
+    private static final TreeMap<Long, Integer> snapshots      = new TreeMap<Long, Integer>();
+    private static long                         oldestSnapshot = Long.MAX_VALUE;
+
+    /**
+     * Returns the version of the last completed write. All values which were written up to this version are visible to new {@link Snapshot}s.
+     * 
+     * @return The current version.
+     */
+    public static long now() {
+
+        return published;
+    }
+
+    /**
+     * Returns the version of the oldest {@link Snapshot} which is still open.
+     * Versions which are older than the newest value at that version aren't needed by any reader.
+     * 
+     * @return The version of the oldest open snapshot, or {@link Long#MAX_VALUE} if there is none.
+     */
+    public static long getOldestSnapshot() {
+
+        synchronized (LOCK) {
+            return oldestSnapshot;
+        }
+    }
+
+    /*
+     * Starts a write and returns its version; nested writes (e.g. of a transaction commit) share the version.
+     * The caller must hold the lock.
+     */
+    static long beginWrite() {
+
+        if (writeDepth++ == 0) {
+            pending = published + 1;
+        }
+        return pending;
+    }
+
+    /*
+     * Completes a write; the version is published once the outermost write completed.
+     * The caller must hold the lock.
+     */
+    static void endWrite() {
+
+        if (--writeDepth == 0) {
+            published = pending;
+        }
+    }
+
+    /*
+     * Must be called while holding the lock, so no write can reclaim the versions of the new snapshot in the meantime.
+     */
+    static long registerSnapshot() {
+
+        long version = published;
+        Integer count = snapshots.get(version);
+        snapshots.put(version, count == null ? 1 : count + 1);
+        oldestSnapshot = Math.min(oldestSnapshot, version);
+        return version;
+    }
+
+    static void unregisterSnapshot(long version) {
+
+        synchronized (LOCK) {
+            Integer count = snapshots.get(version);
+            if (count == null) {
+                return;
+            } else if (count == 1) {
+                snapshots.remove(version);
+            } else {
+                snapshots.put(version, count - 1);
+            }
+
+            oldestSnapshot = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+        }
+    }
+
+    private VersionClock() {
+
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.extra.def;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A version lock guards the writes of one {@link TransactionalProperty} and counts them.
+ * Plain writes only lock the property they change, and committing {@link Transaction}s lock the properties of their write set in the order of their ids.
+ * Therefore, writes of different properties never wait for each other. The lock is only held while the values are stored; listeners are called after it was released.
+ * 
+ * @see TransactionalProperty
+ */
+final class VersionLock {
+
+    private static final AtomicLong                          NEXT_ID = new AtomicLong();
+    private static final AtomicLongFieldUpdater<VersionLock> STATE   = AtomicLongFieldUpdater.newUpdater(VersionLock.class, "state");
+
+    private final long                                       id      = NEXT_ID.getAndIncrement();
+    // The version is shifted by one bit; the lowest bit is set while a writer holds the lock
+    private volatile long                                    state;
+
+    /*
+     * The unique id defines the order in which a transaction acquires multiple version locks.
+     */
+    long getId() {
+
+        return id;
+    }
+
+    /*
+     * Returns the amount of writes which were completed while holding the lock.
+     */
+    long getVersion() {
+
+        return state >>> 1;
+    }
+
+    boolean isLocked() {
+
+        return (state & 1) != 0;
+    }
+
+    /*
+     * Waits until the current writer released the lock if necessary; since writers only store values while holding it, the wait is short.
+     */
+    void lock() {
+
+        while (true) {
+            long current = state;
+            if ( (current & 1) == 0 && STATE.compareAndSet(this, current, current | 1)) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    /*
+     * Releases the lock and increases the version if a value was stored while holding it.
+     */
+    void unlock(boolean changed) {
+
+        // Removes the lock bit and carries it into the version if necessary
+        state = changed ? state + 1 : state - 1;
+    }
+
+}
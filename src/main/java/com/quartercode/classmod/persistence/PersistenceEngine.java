@@ -0,0 +1,57 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.Persistent;
+
+/**
+ * A persistence engine writes a graph of {@link FeatureHolder}s with their {@link Persistent} features into a stream and reads it back.
+ * The graph starts at a root {@link FeatureHolder} and contains all {@link FeatureHolder}s which can be reached through the values of {@link Persistent} features.
+ * Different engines use different formats (e.g. xml or a binary format), so the engine which wrote a graph must be used for reading it back.
+ * 
+ * @see FeatureHolder
+ * @see Persistent
+ */
+public interface PersistenceEngine {
+
+    /**
+     * Writes the graph which starts at the given root {@link FeatureHolder} into the given {@link OutputStream}.
+     * The stream is flushed, but not closed.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph which should be written.
+     * @param output The {@link OutputStream} the graph should be written to.
+     * @throws IOException The graph contains a value the engine can't write, or something goes wrong while writing to the stream.
+     */
+    public void write(FeatureHolder root, OutputStream output) throws IOException;
+
+    /**
+     * Reads a graph which was written by {@link #write(FeatureHolder, OutputStream)} from the given {@link InputStream} and returns its root {@link FeatureHolder}.
+     * The stream isn't closed. Note that the engine might read ahead, so the stream shouldn't be used for anything else afterwards.
+     * 
+     * @param input The {@link InputStream} the graph should be read from.
+     * @return The root {@link FeatureHolder} of the read graph.
+     * @throws IOException The data is malformed or references unknown classes, or something goes wrong while reading from the stream.
+     */
+    public FeatureHolder read(InputStream input) throws IOException;
+
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+
+/**
+ * The binary delta loader reads a snapshot and applies the deltas which were written by a {@link BinaryDeltaWriter} afterwards.
+ * The deltas must be applied in the same order they were written.
+ * Changed features are updated in place, so all references to the loaded holders and features stay valid while deltas are applied.
+ * 
+ * @see BinaryDeltaWriter
+ */
+public class BinaryDeltaLoader {
+
+    private final ClassLoader          classLoader;
+    private List<DefaultFeatureHolder> holders;
+    private FeatureHolder              root;
+
+    /**
+     * Creates a new binary delta loader which resolves the classes of read objects through the {@link ClassLoader} of the loader.
+     */
+    public BinaryDeltaLoader() {
+
+        this(BinaryDeltaLoader.class.getClassLoader());
+    }
+
+    /**
+     * Creates a new binary delta loader which resolves the classes of read objects through the given {@link ClassLoader}.
+     * 
+     * @param classLoader The {@link ClassLoader} which should be used for resolving classes.
+     */
+    public BinaryDeltaLoader(ClassLoader classLoader) {
+
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Returns the root {@link FeatureHolder} of the loaded graph.
+     * 
+     * @return The loaded root {@link FeatureHolder}, or null if no snapshot was read yet.
+     */
+    public FeatureHolder getRoot() {
+
+        return root;
+    }
+
+    /**
+     * Reads a snapshot from the given {@link InputStream}.
+     * All deltas which are applied afterwards must have been written after that snapshot.
+     * 
+     * @param input The {@link InputStream} the snapshot should be read from.
+     * @return The root {@link FeatureHolder} of the read snapshot.
+     * @throws IOException The data is malformed or something goes wrong while reading.
+     */
+    public synchronized FeatureHolder readSnapshot(InputStream input) throws IOException {
+
+        List<DefaultFeatureHolder> newHolders = new ArrayList<DefaultFeatureHolder>();
+        root = new BinaryGraphReader(new BinaryInput(input), classLoader, newHolders).readGraph();
+        holders = newHolders;
+        return root;
+    }
+
+    /**
+     * Reads a delta from the given {@link InputStream} and applies it to the loaded graph.
+     * 
+     * @param input The {@link InputStream} the delta should be read from.
+     * @throws IOException The data is malformed, the delta doesn't follow the last applied snapshot or delta, or something goes wrong while reading.
+     * @throws IllegalStateException No snapshot was read yet.
+     */
+    public synchronized void readDelta(InputStream input) throws IOException {
+
+        if (holders == null) {
+            throw new IllegalStateException("A snapshot must be read before any delta can be applied");
+        }
+
+        BinaryInput binaryInput = new BinaryInput(input);
+        BinaryGraphReader reader = new BinaryGraphReader(binaryInput, classLoader, holders);
+        reader.readHeader(BinaryFormat.DELTA_MAGIC);
+
+        int knownHolders = binaryInput.readVarInt();
+        if (knownHolders != holders.size()) {
+            throw new IOException("Delta doesn't follow the loaded state (expected " + knownHolders + " known holders, found " + holders.size() + ")");
+        }
+
+        int records = binaryInput.readLength();
+        for (int counter = 0; counter < records; counter++) {
+            reader.readHolderState(reader.getHolder(binaryInput.readVarInt()), true);
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import com.quartercode.classmod.base.ChangeTracker;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+
+/**
+ * The binary delta writer writes a {@link FeatureHolder} graph as a full snapshot, followed by deltas which only contain the changes since the last write.
+ * It uses the binary format of the {@link BinaryPersistenceEngine}. A snapshot can be read by that engine as well.
+ * Deltas are read and applied to the snapshot by the {@link BinaryDeltaLoader}.
+ * 
+ * When a snapshot is written, a {@link DirtyTracker} is attached to all written holders. Since a holder only has one tracker,
+ * the writes fail if a holder already has the tracker of someone else (e.g. of another delta writer).
+ * After that, every delta only contains the holders which were changed since the last snapshot or delta, and only their changed features.
+ * Holders which weren't written before (e.g. a holder which was added to a collection) are written completely when they are reached through a changed feature.
+ * Therefore, writing a delta costs O(changes) instead of O(graph).
+ * Holders which are removed from the graph are kept by the delta writer until the next snapshot is written, since deltas may still reference them.
+ * 
+ * Deltas reference the holders of the snapshot and the previous deltas by their ids.
+ * That's why they must be applied to exactly the snapshot they were written after, and in the same order they were written.
+ * 
+ * @see BinaryDeltaLoader
+ * @see DirtyTracker
+ */
+public class BinaryDeltaWriter {
+
+    private final FeatureHolder          root;
+    private final DirtyTracker           tracker = new DirtyTracker();
+    private Map<FeatureHolder, Integer> holders;
+
+    /**
+     * Creates a new binary delta writer for the graph which starts at the given root {@link FeatureHolder}.
+     * Changes are tracked after the first snapshot was written with {@link #writeSnapshot(OutputStream)}.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     */
+    public BinaryDeltaWriter(FeatureHolder root) {
+
+        this.root = root;
+    }
+
+    /**
+     * Returns the root {@link FeatureHolder} of the graph the delta writer writes.
+     * 
+     * @return The root {@link FeatureHolder}.
+     */
+    public FeatureHolder getRoot() {
+
+        return root;
+    }
+
+    /**
+     * Returns the {@link DirtyTracker} which collects the changes for the next delta.
+     * 
+     * @return The {@link DirtyTracker} of the delta writer.
+     */
+    public DirtyTracker getTracker() {
+
+        return tracker;
+    }
+
+    /**
+     * Writes a full snapshot of the graph into the given {@link OutputStream}.
+     * All following deltas are relative to that snapshot.
+     * The snapshot can also be read by the {@link BinaryPersistenceEngine}.
+     * 
+     * @param output The {@link OutputStream} the snapshot should be written into.
+     * @throws IOException Something goes wrong while writing the snapshot.
+     * @throws IllegalStateException One of the holders already has the {@link ChangeTracker} of someone else (e.g. of another delta writer).
+     */
+    public synchronized void writeSnapshot(OutputStream output) throws IOException {
+
+        Map<FeatureHolder, Integer> newHolders = new IdentityHashMap<FeatureHolder, Integer>();
+        BinaryGraphWriter writer = new BinaryGraphWriter(new BinaryOutput(output), newHolders);
+        writer.writeGraph(root);
+        checkTrackers(writer.getNewHolders());
+
+        // Detach the holders which were removed from the graph since the last snapshot, so they can be garbage collected
+        if (holders != null) {
+            for (FeatureHolder holder : holders.keySet()) {
+                if (!newHolders.containsKey(holder)) {
+                    detachTracker(holder);
+                }
+            }
+        }
+
+        tracker.clear();
+        holders = newHolders;
+        attachTracker(writer.getNewHolders());
+    }
+
+    /**
+     * Removes the {@link DirtyTracker} of the delta writer from all holders it was attached to, so the holders can be tracked by someone else (e.g. another delta writer).
+     * After that, a new snapshot must be written before any delta can be written.
+     */
+    public synchronized void detach() {
+
+        if (holders != null) {
+            for (FeatureHolder holder : holders.keySet()) {
+                detachTracker(holder);
+            }
+            holders = null;
+        }
+        tracker.clear();
+    }
+
+    /**
+     * Writes a delta which contains all changes since the last snapshot or delta into the given {@link OutputStream}.
+     * If something goes wrong, the changes are kept for the next delta. However, the written data is broken and must not be applied.
+     * 
+     * @param output The {@link OutputStream} the delta should be written into.
+     * @throws IOException Something goes wrong while writing the delta.
+     * @throws IllegalStateException No snapshot was written yet, or one of the new holders already has the {@link ChangeTracker} of someone else.
+     */
+    public synchronized void writeDelta(OutputStream output) throws IOException {
+
+        if (holders == null) {
+            throw new IllegalStateException("A snapshot must be written before any delta can be written");
+        }
+
+        Map<FeatureHolder, Set<String>> changes = tracker.drain();
+        int knownHolders = holders.size();
+        BinaryGraphWriter writer = null;
+        boolean written = false;
+
+        try {
+            // Holders which aren't known yet are written completely when they are reached through a changed feature
+            TreeMap<Integer, DefaultFeatureHolder> records = new TreeMap<Integer, DefaultFeatureHolder>();
+            for (FeatureHolder holder : changes.keySet()) {
+                Integer id = holders.get(holder);
+                if (id != null) {
+                    records.put(id, (DefaultFeatureHolder) holder);
+                }
+            }
+
+            BinaryOutput binaryOutput = new BinaryOutput(output);
+            writer = new BinaryGraphWriter(binaryOutput, holders);
+            writer.writeHeader(BinaryFormat.DELTA_MAGIC);
+            binaryOutput.writeVarInt(knownHolders);
+            binaryOutput.writeVarInt(records.size());
+
+            for (Entry<Integer, DefaultFeatureHolder> record : records.entrySet()) {
+                Set<String> changedFeatures = changes.get(record.getValue());
+                List<Feature> features = new ArrayList<Feature>();
+                for (Feature feature : record.getValue()) {
+                    if (changedFeatures.contains(feature.getName()) && FeatureLayout.isPersistent(feature.getClass())) {
+                        features.add(feature);
+                    }
+                }
+
+                binaryOutput.writeVarInt(record.getKey());
+                writer.writeHolderState(record.getValue(), features);
+            }
+
+            binaryOutput.flush();
+            checkTrackers(writer.getNewHolders());
+            written = true;
+        } finally {
+            if (!written) {
+                // Forget the holders which were written by the broken delta
+                if (writer != null) {
+                    for (DefaultFeatureHolder holder : writer.getNewHolders()) {
+                        holders.remove(holder);
+                    }
+                }
+                tracker.restore(changes);
+            }
+        }
+
+        attachTracker(writer.getNewHolders());
+    }
+
+    /*
+     * A holder only has one tracker, so replacing the tracker of someone else would silently stop the tracking of that one.
+     * This is checked before any tracker is attached, so a failed write doesn't leave some holders with the new tracker.
+     */
+    private void checkTrackers(List<DefaultFeatureHolder> newHolders) {
+
+        for (DefaultFeatureHolder holder : newHolders) {
+            ChangeTracker current = holder.getChangeTracker();
+            if (current != null && current != tracker) {
+                throw new IllegalStateException("Holder " + holder.getClass().getName() + " already has another change tracker (" + current + ")");
+            }
+        }
+    }
+
+    private void detachTracker(FeatureHolder holder) {
+
+        if (holder instanceof DefaultFeatureHolder && ((DefaultFeatureHolder) holder).getChangeTracker() == tracker) {
+            ((DefaultFeatureHolder) holder).setChangeTracker(null);
+        }
+    }
+
+    /*
+     * Only the holders which were added by the last write are passed, so a delta doesn't need to walk the whole holder table.
+     */
+    private void attachTracker(List<DefaultFeatureHolder> newHolders) {
+
+        for (DefaultFeatureHolder holder : newHolders) {
+            holder.setChangeTracker(tracker);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+/**
+ * The constants of the binary format which is used by the {@link BinaryPersistenceEngine}.
+ * See the documentation of the engine for a description of the format.
+ * 
+ * @see BinaryPersistenceEngine
+ */
+final class BinaryFormat {
+
+    static final byte[] MAGIC         = { 'C', 'M', 'B' };
+    static final byte[] DELTA_MAGIC   = { 'C', 'M', 'D' };
+    static final byte[] JOURNAL_MAGIC = { 'C', 'M', 'J' };
+    static final byte[] STORE_MAGIC   = { 'C', 'M', 'S' };
+    static final byte[] SEGMENT_MAGIC = { 'C', 'M', 'P' };
+    static final int    VERSION       = 1;
+
+    // Value tags
+    static final int    NULL          = 0;
+    static final int    FALSE         = 1;
+    static final int    TRUE          = 2;
+    static final int    BYTE          = 3;
+    static final int    SHORT         = 4;
+    static final int    CHAR          = 5;
+    static final int    INT           = 6;
+    static final int    LONG          = 7;
+    static final int    FLOAT         = 8;
+    static final int    DOUBLE        = 9;
+    static final int    STRING        = 10;
+    static final int    CLASS         = 11;
+    static final int    ENUM          = 12;
+    static final int    HOLDER        = 13;
+    static final int    HOLDER_REF    = 14;
+    static final int    COLLECTION    = 15;
+    static final int    MAP           = 16;
+    static final int    ARRAY         = 17;
+    static final int    BYTES         = 18;
+    static final int    SERIALIZABLE  = 19;
+    // Holder of another segment, referenced by its numeric holder id
+    static final int    EXTERNAL_REF  = 20;
+
+    // Holder flags
+    static final int    HOLDER_LOCKED = 1;
+    static final int    HOLDER_CHILD  = 2;
+    static final int    HOLDER_ID     = 4;
+
+    private BinaryFormat() {
+
+    }
+
+}
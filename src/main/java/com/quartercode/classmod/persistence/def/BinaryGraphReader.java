@@ -0,0 +1,547 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+
+/**
+ * The binary graph reader reads a {@link FeatureHolder} graph which was written by the {@link BinaryGraphWriter}.
+ * A new reader must be used for every graph because it stores the dictionaries and the holder ids of the read graph.
+ * However, the holder id table can be shared with later readers (e.g. for reading deltas which reference the holders of a snapshot).
+ * 
+ * @see BinaryPersistenceEngine
+ * @see BinaryGraphWriter
+ */
+class BinaryGraphReader {
+
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+
+    static {
+
+        for (Class<?> primitive : new Class<?>[] { boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class, void.class }) {
+            PRIMITIVES.put(primitive.getName(), primitive);
+        }
+    }
+
+    private final BinaryInput                  input;
+    private final ClassLoader                  classLoader;
+    private final List<String>                 strings      = new ArrayList<String>();
+    private final Map<String, Class<?>>        classes      = new HashMap<String, Class<?>>();
+    private final List<FeatureType>            featureTypes = new ArrayList<FeatureType>();
+    private final List<DefaultFeatureHolder>   holders;
+
+    /**
+     * Creates a new binary graph reader which reads from the given {@link BinaryInput}.
+     * 
+     * @param input The {@link BinaryInput} the reader reads from.
+     * @param classLoader The {@link ClassLoader} which is used for resolving the classes of the read objects.
+     */
+    BinaryGraphReader(BinaryInput input, ClassLoader classLoader) {
+
+        this(input, classLoader, new ArrayList<DefaultFeatureHolder>());
+    }
+
+    /**
+     * Creates a new binary graph reader which reads from the given {@link BinaryInput} and uses the given holder id table.
+     * References to holders which are already contained by the table are resolved through it. Newly read holders are added to the table.
+     * 
+     * @param input The {@link BinaryInput} the reader reads from.
+     * @param classLoader The {@link ClassLoader} which is used for resolving the classes of the read objects.
+     * @param holders The holder id table which contains the already read {@link FeatureHolder}s at the indices of their ids.
+     */
+    BinaryGraphReader(BinaryInput input, ClassLoader classLoader, List<DefaultFeatureHolder> holders) {
+
+        this.input = input;
+        this.classLoader = classLoader;
+        this.holders = holders;
+    }
+
+    /**
+     * Reads the header and the graph and returns the root {@link FeatureHolder}.
+     * 
+     * @return The root {@link FeatureHolder} of the read graph.
+     * @throws IOException The data is malformed or something goes wrong while reading.
+     */
+    FeatureHolder readGraph() throws IOException {
+
+        readHeader(BinaryFormat.MAGIC);
+
+        Object root = readValue();
+        if (! (root instanceof FeatureHolder)) {
+            throw new IOException("Root object isn't a feature holder");
+        }
+        return (FeatureHolder) root;
+    }
+
+    void readHeader(byte[] magic) throws IOException {
+
+        for (byte magicByte : magic) {
+            if (input.readByte() != magicByte) {
+                throw new IOException("Data isn't in the expected classmod binary format");
+            }
+        }
+        int version = input.readByte();
+        if (version != BinaryFormat.VERSION) {
+            throw new IOException("Unsupported binary format version " + version + " (supported: " + BinaryFormat.VERSION + ")");
+        }
+    }
+
+    Object readValue() throws IOException {
+
+        int tag = input.readByte();
+        switch (tag) {
+            case BinaryFormat.NULL:
+                return null;
+            case BinaryFormat.FALSE:
+                return false;
+            case BinaryFormat.TRUE:
+                return true;
+            case BinaryFormat.BYTE:
+                return (byte) input.readByte();
+            case BinaryFormat.SHORT:
+                return (short) input.readSignedVarInt();
+            case BinaryFormat.CHAR:
+                return (char) input.readVarInt();
+            case BinaryFormat.INT:
+                return input.readSignedVarInt();
+            case BinaryFormat.LONG:
+                return input.readSignedVarLong();
+            case BinaryFormat.FLOAT:
+                return Float.intBitsToFloat(input.readFixedInt());
+            case BinaryFormat.DOUBLE:
+                return Double.longBitsToDouble(input.readFixedLong());
+            case BinaryFormat.STRING:
+                return input.readUtf();
+            case BinaryFormat.CLASS:
+                return resolveClass(readString());
+            case BinaryFormat.ENUM:
+                return readEnum();
+            case BinaryFormat.HOLDER:
+                return readHolder();
+            case BinaryFormat.HOLDER_REF:
+                return getHolder(input.readVarInt());
+            case BinaryFormat.COLLECTION:
+                return readCollection();
+            case BinaryFormat.MAP:
+                return readMap();
+            case BinaryFormat.ARRAY:
+                return readArray();
+            case BinaryFormat.BYTES:
+                return input.readByteArray(input.readLength());
+            case BinaryFormat.SERIALIZABLE:
+                return readSerializable();
+            default:
+                return readExtensionValue(tag);
+        }
+    }
+
+    /**
+     * Reads a value with a tag which isn't part of the standard binary format.
+     * By default, such tags are rejected. Subclasses may override this for reading values of their own tags.
+     * 
+     * @param tag The unknown value tag which was read.
+     * @return The read value.
+     * @throws IOException The tag isn't supported or something goes wrong while reading.
+     */
+    Object readExtensionValue(int tag) throws IOException {
+
+        throw new IOException("Unknown value tag " + tag);
+    }
+
+    /**
+     * Returns a list which collects the read elements of the given empty {@link Collection} or {@link Map} instead of adding them directly.
+     * By default, null is returned, so the elements are added while they are read.
+     * Subclasses may override this for filling containers later on (e.g. after all holders whose hash codes they use are complete).
+     * Maps are collected as alternating keys and values.
+     * 
+     * @param container The empty collection or map whose elements are read next.
+     * @return The list which should collect the elements, or null if they should be added directly.
+     */
+    List<Object> deferFill(Object container) {
+
+        return null;
+    }
+
+    DefaultFeatureHolder getHolder(int id) throws IOException {
+
+        if (id < 0 || id >= holders.size()) {
+            throw new IOException("Reference to unknown feature holder " + id);
+        }
+        return holders.get(id);
+    }
+
+    private DefaultFeatureHolder readHolder() throws IOException {
+
+        Class<?> type = resolveClass(readString());
+        if (!DefaultFeatureHolder.class.isAssignableFrom(type)) {
+            throw new IOException("Class '" + type.getName() + "' isn't a default feature holder");
+        }
+
+        DefaultFeatureHolder holder = newHolder(type);
+        holders.add(holder);
+
+        readHolderState(holder, false);
+        return holder;
+    }
+
+    /**
+     * Returns the new instance of the given {@link DefaultFeatureHolder} type whose state is read next.
+     * By default, this creates a new instance. Subclasses may override this for returning instances which were created beforehand.
+     * 
+     * @param type The type of the read holder.
+     * @return The holder instance whose state should be read.
+     * @throws IOException The holder can't be created.
+     */
+    DefaultFeatureHolder newHolder(Class<?> type) throws IOException {
+
+        return (DefaultFeatureHolder) FeatureLayout.newInstance(type);
+    }
+
+    /**
+     * Reads the flags, the numeric id, the parent and the features of the given holder.
+     * If the features should be merged, features which already exist in the holder are updated in place instead of being replaced.
+     * That keeps all references to the existing feature objects valid.
+     * 
+     * @param holder The {@link DefaultFeatureHolder} whose state should be read.
+     * @param merge Whether the read features should be merged into the existing features of the holder.
+     * @throws IOException The data is malformed or something goes wrong while reading.
+     */
+    @SuppressWarnings ("unchecked")
+    void readHolderState(DefaultFeatureHolder holder, boolean merge) throws IOException {
+
+        Class<?> type = holder.getClass();
+        int flags = input.readByte();
+        if ( (flags & BinaryFormat.HOLDER_ID) != 0) {
+            long id = input.readVarLong();
+            if (id <= 0) {
+                throw new IOException("Invalid id " + id + " of '" + type.getName() + "'");
+            }
+            holder.restoreHolderId(id);
+        }
+        if ( (flags & BinaryFormat.HOLDER_CHILD) != 0) {
+            Object parent = readValue();
+            if (holder instanceof ChildFeatureHolder) {
+                try {
+                    ((ChildFeatureHolder<FeatureHolder>) holder).setParent((FeatureHolder) parent);
+                } catch (ClassCastException e) {
+                    throw new IOException("Parent of '" + type.getName() + "' has the wrong type", e);
+                }
+            }
+        }
+
+        holder.setPersistentFeatures(readFeatures(holder, merge));
+        holder.setLocked( (flags & BinaryFormat.HOLDER_LOCKED) != 0);
+    }
+
+    /**
+     * Reads a list of features of the given holder and returns the ones which were newly created.
+     * If the features should be merged, features which already exist in the holder are updated in place and aren't returned.
+     * 
+     * @param holder The {@link DefaultFeatureHolder} whose features should be read.
+     * @param merge Whether the read features should be merged into the existing features of the holder.
+     * @return The newly created features, which must still be added to the holder.
+     * @throws IOException The data is malformed or something goes wrong while reading.
+     */
+    Set<Object> readFeatures(DefaultFeatureHolder holder, boolean merge) throws IOException {
+
+        // Use an identity set since the hash codes of features depend on their (maybe not yet complete) values
+        int featureCount = input.readLength();
+        Set<Object> features = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (int counter = 0; counter < featureCount; counter++) {
+            readFeature(holder, merge, features);
+        }
+        return features;
+    }
+
+    /**
+     * Reads a single feature of the given holder. Features which are newly created are added to the given set of new features.
+     * 
+     * @param holder The {@link DefaultFeatureHolder} whose feature should be read.
+     * @param merge Whether the read feature should be merged into an existing feature of the holder.
+     * @param newFeatures The set the newly created feature is added to.
+     * @throws IOException The data is malformed or something goes wrong while reading.
+     */
+    void readFeature(DefaultFeatureHolder holder, boolean merge, Set<Object> newFeatures) throws IOException {
+
+        FeatureType type = readFeatureType();
+        String name = readString();
+
+        Object feature = merge ? findFeature(holder, name, type.layout.getType()) : null;
+        if (feature == null) {
+            // Check the type before the constructor of an arbitrary class is called
+            if (!Feature.class.isAssignableFrom(type.layout.getType())) {
+                throw new IOException("Class '" + type.layout.getType().getName() + "' isn't a feature");
+            }
+            feature = FeatureLayout.newInstance(type.layout.getType());
+            if (feature instanceof AbstractFeature) {
+                FeatureLayout.initialize((AbstractFeature) feature, name, holder);
+            }
+            newFeatures.add(feature);
+        }
+
+        for (Field field : type.fields) {
+            Object value = readValue();
+            // Skip the values of fields which don't exist anymore
+            if (field != null) {
+                FeatureLayout.setValue(feature, field, value);
+            }
+        }
+    }
+
+    private Feature findFeature(DefaultFeatureHolder holder, String name, Class<?> type) {
+
+        for (Feature feature : holder) {
+            if (feature.getName().equals(name) && feature.getClass() == type) {
+                return feature;
+            }
+        }
+        return null;
+    }
+
+    FeatureType readFeatureType() throws IOException {
+
+        int index = input.readVarInt();
+        if (index >= 0 && index < featureTypes.size()) {
+            return featureTypes.get(index);
+        } else if (index != featureTypes.size()) {
+            throw new IOException("Reference to unknown feature type " + index);
+        }
+
+        FeatureLayout layout = FeatureLayout.get(resolveClass(readString()));
+        int fieldCount = input.readLength();
+        List<Field> fields = new ArrayList<Field>(Math.min(fieldCount, BinaryInput.MAX_PREALLOCATION));
+        for (int fieldIndex = 0; fieldIndex < fieldCount; fieldIndex++) {
+            fields.add(layout.getField(readString()));
+        }
+
+        FeatureType type = new FeatureType(layout, fields.toArray(new Field[fieldCount]));
+        featureTypes.add(type);
+        return type;
+    }
+
+    String readString() throws IOException {
+
+        int index = input.readVarInt();
+        if (index >= 0 && index < strings.size()) {
+            return strings.get(index);
+        } else if (index != strings.size()) {
+            throw new IOException("Reference to unknown dictionary string " + index);
+        }
+
+        String value = input.readUtf();
+        strings.add(value);
+        return value;
+    }
+
+    Class<?> resolveClass(String name) throws IOException {
+
+        Class<?> type = classes.get(name);
+        if (type == null) {
+            type = PRIMITIVES.get(name);
+            if (type == null) {
+                try {
+                    type = Class.forName(name, false, classLoader);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class '" + name + "'", e);
+                }
+            }
+            classes.put(name, type);
+        }
+        return type;
+    }
+
+    @SuppressWarnings ({ "unchecked", "rawtypes" })
+    private Object readEnum() throws IOException {
+
+        Class<?> type = resolveClass(readString());
+        String name = readString();
+        if (!type.isEnum()) {
+            throw new IOException("Class '" + type.getName() + "' isn't an enum");
+        }
+
+        try {
+            return Enum.valueOf((Class<? extends Enum>) type, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown constant '" + name + "' of enum '" + type.getName() + "'", e);
+        }
+    }
+
+    @SuppressWarnings ("unchecked")
+    private Collection<Object> readCollection() throws IOException {
+
+        // Check the type before the constructor of an arbitrary class is called
+        Class<?> type = resolveClass(readString());
+        if (!Collection.class.isAssignableFrom(type)) {
+            throw new IOException("Class '" + type.getName() + "' isn't a collection");
+        }
+
+        Object collection = FeatureLayout.newInstance(type);
+        int size = input.readLength();
+        List<Object> deferredElements = deferFill(collection);
+        for (int counter = 0; counter < size; counter++) {
+            Object element = readValue();
+            if (deferredElements == null) {
+                ((Collection<Object>) collection).add(element);
+            } else {
+                deferredElements.add(element);
+            }
+        }
+        return (Collection<Object>) collection;
+    }
+
+    @SuppressWarnings ("unchecked")
+    private Map<Object, Object> readMap() throws IOException {
+
+        // Check the type before the constructor of an arbitrary class is called
+        Class<?> type = resolveClass(readString());
+        if (!Map.class.isAssignableFrom(type)) {
+            throw new IOException("Class '" + type.getName() + "' isn't a map");
+        }
+
+        Object map = FeatureLayout.newInstance(type);
+        int size = input.readLength();
+        List<Object> deferredEntries = deferFill(map);
+        for (int counter = 0; counter < size; counter++) {
+            Object key = readValue();
+            Object value = readValue();
+            if (deferredEntries == null) {
+                ((Map<Object, Object>) map).put(key, value);
+            } else {
+                deferredEntries.add(key);
+                deferredEntries.add(value);
+            }
+        }
+        return (Map<Object, Object>) map;
+    }
+
+    private Object readArray() throws IOException {
+
+        Class<?> componentType = resolveClass(readString());
+        if (componentType == void.class) {
+            throw new IOException("Invalid array component type 'void'");
+        }
+
+        // Large arrays grow while they are read (see BinaryInput.MAX_PREALLOCATION)
+        int length = input.readLength();
+        Object array = Array.newInstance(componentType, Math.min(length, BinaryInput.MAX_PREALLOCATION));
+        for (int index = 0; index < length; index++) {
+            if (index == Array.getLength(array)) {
+                Object grownArray = Array.newInstance(componentType, (int) Math.min(length, 2L * index));
+                System.arraycopy(array, 0, grownArray, 0, index);
+                array = grownArray;
+            }
+            try {
+                Array.set(array, index, readValue());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Array element has the wrong type for '" + componentType.getName() + "'", e);
+            }
+        }
+        return array;
+    }
+
+    private Object readSerializable() throws IOException {
+
+        byte[] bytes = input.readByteArray(input.readLength());
+
+        ObjectInputStream objectInput = new ClassLoaderObjectInputStream(new ByteArrayInputStream(bytes), classLoader);
+        try {
+            return objectInput.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class of serialized value", e);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed serialized value", e);
+        } finally {
+            objectInput.close();
+        }
+    }
+
+    /**
+     * A feature type describes the fields of a feature class in the order they are stored.
+     * Fields which don't exist anymore are null.
+     */
+    static class FeatureType {
+
+        private final FeatureLayout layout;
+        private final Field[]       fields;
+
+        FeatureType(FeatureLayout layout, Field[] fields) {
+
+            this.layout = layout;
+            this.fields = fields;
+        }
+
+    }
+
+    /*
+     * Only resolves the classes which are allowed by SerializableClasses, so untrusted data can't instantiate arbitrary classes.
+     */
+    private static class ClassLoaderObjectInputStream extends ObjectInputStream {
+
+        private final ClassLoader classLoader;
+
+        private ClassLoaderObjectInputStream(InputStream input, ClassLoader classLoader) throws IOException {
+
+            super(input);
+
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+
+            if (!SerializableClasses.isAllowed(description.getName())) {
+                throw new InvalidClassException(description.getName(), "Class isn't allowed for deserialization (see SerializableClasses)");
+            }
+
+            try {
+                return Class.forName(description.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(description);
+            }
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+
+            throw new InvalidClassException("Proxy classes aren't allowed for deserialization");
+        }
+
+    }
+
+}
@@ -0,0 +1,396 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+
+/**
+ * The binary graph writer writes a {@link FeatureHolder} graph in the binary format of the {@link BinaryPersistenceEngine}.
+ * A new writer must be used for every graph because it stores the dictionaries and the holder ids of the written graph.
+ * However, the holder id table can be shared with later writers (e.g. for writing deltas which reference the holders of a snapshot).
+ * 
+ * @see BinaryPersistenceEngine
+ * @see BinaryGraphReader
+ */
+class BinaryGraphWriter {
+
+    private final BinaryOutput                output;
+    private final Map<String, Integer>        strings      = new HashMap<String, Integer>();
+    private final Map<Class<?>, Integer>      featureTypes = new HashMap<Class<?>, Integer>();
+    private final Map<FeatureHolder, Integer> holders;
+    private final List<DefaultFeatureHolder>  newHolders   = new ArrayList<DefaultFeatureHolder>();
+
+    /**
+     * Creates a new binary graph writer which writes into the given {@link BinaryOutput}.
+     * 
+     * @param output The {@link BinaryOutput} the writer writes into.
+     */
+    BinaryGraphWriter(BinaryOutput output) {
+
+        this(output, new IdentityHashMap<FeatureHolder, Integer>());
+    }
+
+    /**
+     * Creates a new binary graph writer which writes into the given {@link BinaryOutput} and uses the given holder id table.
+     * Holders which are already contained by the table are written as references. Newly written holders are added to the table.
+     * 
+     * @param output The {@link BinaryOutput} the writer writes into.
+     * @param holders The holder id table which maps the already written {@link FeatureHolder}s to their ids. It must be an identity map.
+     */
+    BinaryGraphWriter(BinaryOutput output, Map<FeatureHolder, Integer> holders) {
+
+        this.output = output;
+        this.holders = holders;
+    }
+
+    /**
+     * Writes the header and the graph which starts at the given root {@link FeatureHolder}, and flushes the output afterwards.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     * @throws IOException Something goes wrong while writing the graph.
+     */
+    void writeGraph(FeatureHolder root) throws IOException {
+
+        writeHeader(BinaryFormat.MAGIC);
+        writeValue(root);
+        output.flush();
+    }
+
+    /**
+     * Returns the {@link DefaultFeatureHolder}s which were added to the holder id table by this writer, in the order of their ids.
+     * 
+     * @return The holders which were newly written by the writer.
+     */
+    List<DefaultFeatureHolder> getNewHolders() {
+
+        return newHolders;
+    }
+
+    void writeHeader(byte[] magic) throws IOException {
+
+        output.writeBytes(magic, 0, magic.length);
+        output.writeByte(BinaryFormat.VERSION);
+    }
+
+    void writeValue(Object value) throws IOException {
+
+        if (value == null) {
+            output.writeByte(BinaryFormat.NULL);
+        } else if (value instanceof FeatureHolder) {
+            writeHolderValue((FeatureHolder) value);
+        } else if (value instanceof String) {
+            output.writeByte(BinaryFormat.STRING);
+            output.writeUtf((String) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(BinaryFormat.INT);
+            output.writeSignedVarInt((Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(BinaryFormat.LONG);
+            output.writeSignedVarLong((Long) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte((Boolean) value ? BinaryFormat.TRUE : BinaryFormat.FALSE);
+        } else if (value instanceof Double) {
+            output.writeByte(BinaryFormat.DOUBLE);
+            output.writeFixedLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof Float) {
+            output.writeByte(BinaryFormat.FLOAT);
+            output.writeFixedInt(Float.floatToIntBits((Float) value));
+        } else if (value instanceof Byte) {
+            output.writeByte(BinaryFormat.BYTE);
+            output.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            output.writeByte(BinaryFormat.SHORT);
+            output.writeSignedVarInt((Short) value);
+        } else if (value instanceof Character) {
+            output.writeByte(BinaryFormat.CHAR);
+            output.writeVarInt((Character) value);
+        } else if (value instanceof Class) {
+            output.writeByte(BinaryFormat.CLASS);
+            writeString( ((Class<?>) value).getName());
+        } else if (value instanceof Enum) {
+            output.writeByte(BinaryFormat.ENUM);
+            writeString( ((Enum<?>) value).getDeclaringClass().getName());
+            writeString( ((Enum<?>) value).name());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            output.writeByte(BinaryFormat.BYTES);
+            output.writeVarInt(bytes.length);
+            output.writeBytes(bytes, 0, bytes.length);
+        } else if (value.getClass().isArray()) {
+            writeArray(value);
+        } else if (value instanceof Collection && getRestorableType(value) != null) {
+            writeCollection((Collection<?>) value);
+        } else if (value instanceof Map && getRestorableType(value) != null) {
+            writeMap((Map<?, ?>) value);
+        } else if (value instanceof Serializable) {
+            writeSerializable(value);
+        } else {
+            throw new IOException("Can't persist value of type '" + value.getClass().getName() + "'");
+        }
+    }
+
+    void writeHolderValue(FeatureHolder holder) throws IOException {
+
+        Integer id = holders.get(holder);
+        if (id != null) {
+            output.writeByte(BinaryFormat.HOLDER_REF);
+            output.writeVarInt(id);
+        } else if (holder instanceof DefaultFeatureHolder) {
+            output.writeByte(BinaryFormat.HOLDER);
+            writeHolder((DefaultFeatureHolder) holder);
+        } else {
+            throw new IOException("Can't persist feature holder of type '" + holder.getClass().getName() + "' because it doesn't extend DefaultFeatureHolder");
+        }
+    }
+
+    /*
+     * Holders get sequential ids in the order they are written; the reader assigns the same ids in the same order.
+     * The id is registered before the contents are written, so cycles are written as references.
+     */
+    private void writeHolder(DefaultFeatureHolder holder) throws IOException {
+
+        holders.put(holder, holders.size());
+        newHolders.add(holder);
+        writeString(holder.getClass().getName());
+        writeHolderContents(holder);
+    }
+
+    /**
+     * Writes the flags, the numeric id, the parent and all persistent features of the given holder.
+     * Subclasses may override this for writing another state than the current one (e.g. a copy of an older state).
+     * 
+     * @param holder The {@link DefaultFeatureHolder} whose contents should be written.
+     * @throws IOException Something goes wrong while writing the contents.
+     */
+    void writeHolderContents(DefaultFeatureHolder holder) throws IOException {
+
+        List<Feature> features = new ArrayList<Feature>();
+        for (Feature feature : holder) {
+            if (FeatureLayout.isPersistent(feature.getClass())) {
+                features.add(feature);
+            }
+        }
+
+        writeHolderState(holder, features);
+    }
+
+    /**
+     * Writes the flags, the numeric id and the parent of the given holder, followed by the given features of the holder.
+     * 
+     * @param holder The {@link DefaultFeatureHolder} whose state should be written.
+     * @param features The {@link Feature}s of the holder which should be written.
+     * @throws IOException Something goes wrong while writing the state.
+     */
+    void writeHolderState(DefaultFeatureHolder holder, List<Feature> features) throws IOException {
+
+        boolean child = holder instanceof ChildFeatureHolder;
+        output.writeByte( (holder.isLocked() ? BinaryFormat.HOLDER_LOCKED : 0) | (child ? BinaryFormat.HOLDER_CHILD : 0) | BinaryFormat.HOLDER_ID);
+        output.writeVarLong(holder.getHolderId());
+        if (child) {
+            writeValue( ((ChildFeatureHolder<?>) holder).getParent());
+        }
+
+        writeFeatures(features);
+    }
+
+    void writeFeatures(List<Feature> features) throws IOException {
+
+        output.writeVarInt(features.size());
+        for (Feature feature : features) {
+            writeFeature(feature);
+        }
+    }
+
+    /**
+     * Writes the type, the name and the field values of the given feature.
+     * 
+     * @param feature The {@link Feature} which should be written.
+     * @throws IOException Something goes wrong while writing the feature.
+     */
+    void writeFeature(Feature feature) throws IOException {
+
+        FeatureLayout layout = FeatureLayout.get(feature.getClass());
+        writeFeatureType(layout);
+
+        writeString(feature.getName());
+        for (int index = 0; index < layout.getKeys().length; index++) {
+            writeValue(layout.getValue(feature, index));
+        }
+    }
+
+    /*
+     * Feature type dictionary; a new entry also describes the written fields.
+     */
+    void writeFeatureType(FeatureLayout layout) throws IOException {
+
+        Integer type = featureTypes.get(layout.getType());
+        if (type != null) {
+            output.writeVarInt(type);
+        } else {
+            output.writeVarInt(featureTypes.size());
+            featureTypes.put(layout.getType(), featureTypes.size());
+            writeString(layout.getType().getName());
+            output.writeVarInt(layout.getKeys().length);
+            for (String key : layout.getKeys()) {
+                writeString(key);
+            }
+        }
+    }
+
+    /*
+     * Dictionary strings are written as their index; a new string is written as the next free index, followed by the string itself.
+     */
+    void writeString(String value) throws IOException {
+
+        Integer index = strings.get(value);
+        if (index != null) {
+            output.writeVarInt(index);
+        } else {
+            output.writeVarInt(strings.size());
+            strings.put(value, strings.size());
+            output.writeUtf(value);
+        }
+    }
+
+    private void writeArray(Object array) throws IOException {
+
+        int length = Array.getLength(array);
+        output.writeByte(BinaryFormat.ARRAY);
+        writeString(array.getClass().getComponentType().getName());
+        output.writeVarInt(length);
+        for (int index = 0; index < length; index++) {
+            writeValue(Array.get(array, index));
+        }
+    }
+
+    private void writeCollection(Collection<?> collection) throws IOException {
+
+        output.writeByte(BinaryFormat.COLLECTION);
+        writeString(getRestorableType(collection).getName());
+        output.writeVarInt(collection.size());
+        for (Object element : collection) {
+            writeValue(element);
+        }
+    }
+
+    private void writeMap(Map<?, ?> map) throws IOException {
+
+        output.writeByte(BinaryFormat.MAP);
+        writeString(getRestorableType(map).getName());
+        output.writeVarInt(map.size());
+        for (Entry<?, ?> entry : map.entrySet()) {
+            writeValue(entry.getKey());
+            writeValue(entry.getValue());
+        }
+    }
+
+    /*
+     * Returns the type a collection or map is restored as.
+     * Types without a no-argument constructor (e.g. unmodifiable views) are restored as the closest standard type.
+     * Sorted containers with a comparator return null since the comparator can't be restored.
+     */
+    private Class<?> getRestorableType(Object container) {
+
+        if (container instanceof SortedSet && ((SortedSet<?>) container).comparator() != null || container instanceof SortedMap && ((SortedMap<?, ?>) container).comparator() != null) {
+            return null;
+        } else if (FeatureLayout.getDefaultConstructor(container.getClass()) != null) {
+            return container.getClass();
+        } else if (container instanceof SortedSet) {
+            return TreeSet.class;
+        } else if (container instanceof Set) {
+            return LinkedHashSet.class;
+        } else if (container instanceof Collection) {
+            return ArrayList.class;
+        } else if (container instanceof SortedMap) {
+            return TreeMap.class;
+        } else {
+            return LinkedHashMap.class;
+        }
+    }
+
+    private void writeSerializable(Object value) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutput = new CheckingObjectOutputStream(bytes);
+        objectOutput.writeObject(value);
+        objectOutput.close();
+
+        output.writeByte(BinaryFormat.SERIALIZABLE);
+        output.writeVarInt(bytes.size());
+        output.writeBytes(bytes.toByteArray(), 0, bytes.size());
+    }
+
+    /*
+     * Only writes the classes which are allowed by SerializableClasses, so values which couldn't be read again are rejected while saving.
+     */
+    private static class CheckingObjectOutputStream extends ObjectOutputStream {
+
+        private boolean rejected;
+
+        private CheckingObjectOutputStream(OutputStream output) throws IOException {
+
+            super(output);
+        }
+
+        @Override
+        protected void annotateClass(Class<?> type) throws IOException {
+
+            // After a rejection, the stream only serializes the exception itself, which mustn't replace the original one
+            if (!rejected && !SerializableClasses.isAllowed(type.getName())) {
+                rejected = true;
+                throw new InvalidClassException(type.getName(), "Class isn't allowed for serialization (see SerializableClasses)");
+            }
+        }
+
+        @Override
+        protected void annotateProxyClass(Class<?> type) throws IOException {
+
+            if (!rejected) {
+                rejected = true;
+                throw new InvalidClassException(type.getName(), "Proxy classes aren't allowed for serialization");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A buffered input which reads the primitives of the binary format (e.g. varints) from an {@link InputStream} or a {@link ByteBuffer}.
+ * It is the counterpart of the {@link BinaryOutput}.
+ * Note that the binary input reads ahead, so the stream or buffer shouldn't be used for anything else afterwards.
+ */
+class BinaryInput {
+
+    /**
+     * The maximum amount of array elements which are allocated before they are read.
+     * Larger arrays grow while they are read, so a corrupt length fails with an {@link EOFException} instead of exhausting the memory.
+     */
+    static final int          MAX_PREALLOCATION = 1 << 16;
+
+    private final InputStream stream;
+    private final ByteBuffer  source;
+    private final byte[]      buffer;
+    private int               position;
+    private int               limit;
+
+    /**
+     * Creates a new binary input which reads from the given {@link InputStream}.
+     * 
+     * @param stream The {@link InputStream} the binary input reads from.
+     */
+    BinaryInput(InputStream stream) {
+
+        this.stream = stream;
+        source = null;
+        buffer = new byte[8192];
+    }
+
+    /**
+     * Creates a new binary input which reads from the given {@link ByteBuffer}, starting at its current position.
+     * Since buffers are often read in small parts (e.g. a single record of a memory-mapped file), the size of the read-ahead buffer can be chosen.
+     * 
+     * @param source The {@link ByteBuffer} the binary input reads from.
+     * @param bufferSize The size of the read-ahead buffer.
+     */
+    BinaryInput(ByteBuffer source, int bufferSize) {
+
+        stream = null;
+        this.source = source;
+        buffer = new byte[bufferSize];
+    }
+
+    int readByte() throws IOException {
+
+        if (position == limit) {
+            fill();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    void readBytes(byte[] bytes, int offset, int length) throws IOException {
+
+        while (length > 0) {
+            if (position == limit) {
+                fill();
+            }
+            int chunk = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, bytes, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    int readVarInt() throws IOException {
+
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int current = readByte();
+            value |= (current & 0x7F) << shift;
+            if ( (current & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    long readVarLong() throws IOException {
+
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int current = readByte();
+            value |= (long) (current & 0x7F) << shift;
+            if ( (current & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    int readSignedVarInt() throws IOException {
+
+        int value = readVarInt();
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    long readSignedVarLong() throws IOException {
+
+        long value = readVarLong();
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    int readFixedInt() throws IOException {
+
+        return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+    }
+
+    long readFixedLong() throws IOException {
+
+        return (long) readFixedInt() << 32 | readFixedInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reads a varint which stores a length or an element count and validates it.
+     * Since every element takes at least one byte, the length can't exceed the remaining data of a {@link ByteBuffer} source.
+     * 
+     * @return The read length.
+     * @throws IOException The length is negative or exceeds the remaining data.
+     */
+    int readLength() throws IOException {
+
+        int length = readVarInt();
+        if (length < 0 || source != null && length > limit - position + source.remaining()) {
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a byte array with the given length.
+     * Unlike a new array which is filled by {@link #readBytes(byte[], int, int)}, the array only grows as far as data is actually available.
+     * 
+     * @param length The amount of bytes to read.
+     * @return The read bytes.
+     * @throws IOException The data ends before all bytes could be read.
+     */
+    byte[] readByteArray(int length) throws IOException {
+
+        byte[] bytes = new byte[Math.min(length, MAX_PREALLOCATION)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            readBytes(bytes, read, bytes.length - read);
+            read = bytes.length;
+        }
+        return bytes;
+    }
+
+    String readUtf() throws IOException {
+
+        int length = readLength();
+        if (length <= limit - position) {
+            // Decode directly from the buffer
+            String value = new String(buffer, position, length, BinaryOutput.UTF8);
+            position += length;
+            return value;
+        }
+
+        return new String(readByteArray(length), BinaryOutput.UTF8);
+    }
+
+    private void fill() throws IOException {
+
+        int read;
+        if (stream != null) {
+            read = stream.read(buffer, 0, buffer.length);
+        } else {
+            read = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, read);
+        }
+
+        if (read <= 0) {
+            throw new EOFException("Unexpected end of binary data");
+        }
+        position = 0;
+        limit = read;
+    }
+
+}
@@ -0,0 +1,430 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.Property;
+
+/**
+ * The binary journal is a write-ahead log for {@link FeatureHolder} graphs which allows to recover recent changes after a crash.
+ * It consists of a snapshot file, which is written by {@link #checkpoint()}, and a memory-mapped, append-only log file.
+ * All changes of persistent features (e.g. {@link Property#set(Object)} or collection changes through the accessor utilities) are tracked by a {@link DirtyTracker}.
+ * Every {@link #commit()} appends one compact record to the log. It contains the current state of all features which were changed since the last commit.
+ * Commits should be done by the thread which changes the graph, e.g. at the end of every simulation tick.
+ * Since only the latest state of every feature is logged, a property which is changed a thousand times during a tick is only written once.
+ * 
+ * Commits don't wait for the storage device. Instead, a background thread forces the log to the device, and all commits which are done while it's
+ * doing that are forced together afterwards (group commit). Moreover, the log is forced at most once per sync interval.
+ * Therefore, mutation-heavy ticks never stall on I/O. If a commit must be durable, {@link #sync()} can be used for waiting until it is.
+ * 
+ * After a crash, {@link #recover(File, File)} reads the last snapshot and replays all complete records of the log on top of it.
+ * The log header stores the checksum of its snapshot, so a log which is older than the snapshot is never replayed.
+ * 
+ * @see BinaryDeltaWriter
+ * @see DirtyTracker
+ */
+public class BinaryJournal {
+
+    private static final Logger LOGGER                = Logger.getLogger(BinaryJournal.class.getName());
+
+    /**
+     * The default minimum time between two syncs of the log in milliseconds.
+     */
+    public static final long    DEFAULT_SYNC_INTERVAL = 10;
+
+    private final FeatureHolder root;
+    private final File          snapshotFile;
+    private final File          logFile;
+    private final long          syncInterval;
+
+    private BinaryDeltaWriter   deltaWriter;
+    private JournalLog          log;
+    private final RecordBuffer  recordBuffer          = new RecordBuffer();
+
+    private final Object        syncLock              = new Object();
+    private Thread              flusher;
+    private long                committed;
+    private long                durable;
+    private boolean             syncRequested;
+    private IOException         syncException;
+
+    /**
+     * Creates a new binary journal for the graph which starts at the given root {@link FeatureHolder}.
+     * The log is forced to the storage device at most every {@link #DEFAULT_SYNC_INTERVAL} milliseconds.
+     * Note that {@link #checkpoint()} must be called before any change can be committed.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     * @param snapshotFile The file the snapshots are written into.
+     * @param logFile The file the log records are written into.
+     */
+    public BinaryJournal(FeatureHolder root, File snapshotFile, File logFile) {
+
+        this(root, snapshotFile, logFile, DEFAULT_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new binary journal for the graph which starts at the given root {@link FeatureHolder}.
+     * Note that {@link #checkpoint()} must be called before any change can be committed.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     * @param snapshotFile The file the snapshots are written into.
+     * @param logFile The file the log records are written into.
+     * @param syncInterval The minimum time between two syncs of the log. Commits which are done during that time are synced together.
+     * @param unit The {@link TimeUnit} of the sync interval.
+     */
+    public BinaryJournal(FeatureHolder root, File snapshotFile, File logFile, long syncInterval, TimeUnit unit) {
+
+        Validate.isTrue(syncInterval >= 0, "Sync interval must be >= 0");
+
+        this.root = root;
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        this.syncInterval = unit.toNanos(syncInterval);
+    }
+
+    /**
+     * Returns the root {@link FeatureHolder} of the graph the journal writes.
+     * 
+     * @return The root {@link FeatureHolder}.
+     */
+    public FeatureHolder getRoot() {
+
+        return root;
+    }
+
+    /**
+     * Writes a full snapshot of the graph and removes all records from the log afterwards.
+     * The snapshot is written into a temporary file first, which replaces the old snapshot after it was forced to the storage device.
+     * The first call also opens the log and starts the background thread which syncs it.
+     * If the log couldn't be synced before, the error is cleared and the background thread is restarted, since the snapshot contains all committed changes.
+     * If the checkpoint fails, another one is required before changes can be committed.
+     * 
+     * @throws IOException Something goes wrong while writing the snapshot or resetting the log.
+     */
+    public synchronized void checkpoint() throws IOException {
+
+        // The holders can only be tracked by one delta writer
+        detachDeltaWriter();
+
+        BinaryDeltaWriter newDeltaWriter = new BinaryDeltaWriter(root);
+        boolean written = false;
+        try {
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            newDeltaWriter.writeSnapshot(snapshot);
+            byte[] snapshotData = snapshot.toByteArray();
+
+            File temporaryFile = getTemporaryFile(snapshotFile);
+            FileOutputStream output = new FileOutputStream(temporaryFile);
+            try {
+                output.write(snapshotData);
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            if (snapshotFile.exists() && !snapshotFile.delete() || !temporaryFile.renameTo(snapshotFile)) {
+                throw new IOException("Can't replace snapshot file '" + snapshotFile + "' with '" + temporaryFile + "'");
+            }
+
+            if (log == null) {
+                log = new JournalLog(logFile);
+            }
+            log.reset(getChecksum(snapshotData));
+            written = true;
+        } finally {
+            if (!written) {
+                // Otherwise, the tracker of the failed checkpoint would block the next one
+                newDeltaWriter.detach();
+            }
+        }
+        deltaWriter = newDeltaWriter;
+
+        synchronized (syncLock) {
+            durable = committed;
+            syncException = null;
+            if (flusher == null) {
+                flusher = new Thread(new Flusher(), "Classmod Journal Flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        }
+    }
+
+    /**
+     * Appends a record with all changes since the last commit or checkpoint to the log.
+     * The record is synced to the storage device asynchronously. {@link #sync()} can be used for waiting until it is durable.
+     * This must be called by the thread which changes the graph, or while the graph isn't changed.
+     * 
+     * @return True if a record was appended, false if there were no changes.
+     * @throws IOException Something goes wrong while appending the record, or the log couldn't be synced before. After that, a new checkpoint is required.
+     * @throws IllegalStateException No checkpoint was written yet, or a previous commit failed.
+     */
+    public synchronized boolean commit() throws IOException {
+
+        if (deltaWriter == null) {
+            throw new IllegalStateException("A checkpoint is required before changes can be committed");
+        }
+        synchronized (syncLock) {
+            if (syncException != null) {
+                // Committed records wouldn't become durable anymore
+                throw new IOException("Journal log couldn't be synced; a new checkpoint is required", syncException);
+            }
+        }
+        if (!deltaWriter.getTracker().isDirty()) {
+            return false;
+        }
+
+        recordBuffer.reset();
+        deltaWriter.writeDelta(recordBuffer);
+        try {
+            log.append(recordBuffer.getData(), recordBuffer.size());
+        } catch (IOException e) {
+            // The delta writer assumes that the record was written, so the following records would be incomplete
+            detachDeltaWriter();
+            throw e;
+        }
+
+        synchronized (syncLock) {
+            committed++;
+            syncLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Waits until all records which were committed before the call are forced to the storage device.
+     * The sync is done immediately, without waiting for the sync interval.
+     * 
+     * @throws IOException Something went wrong while syncing the log.
+     * @throws InterruptedException The current thread was interrupted while waiting.
+     */
+    public void sync() throws IOException, InterruptedException {
+
+        synchronized (syncLock) {
+            long target = committed;
+            syncRequested = true;
+            syncLock.notifyAll();
+
+            while (durable < target && flusher != null && syncException == null) {
+                syncLock.wait();
+            }
+            if (syncException != null) {
+                throw syncException;
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of bytes which are currently used by the log file.
+     * 
+     * @return The used size of the log, or 0 if no checkpoint was written yet.
+     */
+    public synchronized int getLogSize() {
+
+        return log == null ? 0 : log.getSize();
+    }
+
+    /**
+     * Syncs all committed records, stops the background thread and closes the log.
+     * Changes which weren't committed are lost. The journal can be reopened by writing a new checkpoint.
+     * 
+     * @throws IOException Something goes wrong while closing the log.
+     */
+    public synchronized void close() throws IOException {
+
+        Thread oldFlusher;
+        synchronized (syncLock) {
+            oldFlusher = flusher;
+            flusher = null;
+            syncLock.notifyAll();
+        }
+
+        if (oldFlusher != null) {
+            try {
+                oldFlusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        detachDeltaWriter();
+    }
+
+    private void detachDeltaWriter() {
+
+        if (deltaWriter != null) {
+            deltaWriter.detach();
+            deltaWriter = null;
+        }
+    }
+
+    /**
+     * Reads the last snapshot which was written by a binary journal and replays all complete records of the log on top of it.
+     * Records which are incomplete (e.g. because of a crash while writing them) are ignored.
+     * After the recovery, a new journal should be created for the recovered graph and a checkpoint should be written.
+     * 
+     * @param snapshotFile The file the snapshots were written into.
+     * @param logFile The file the log records were written into.
+     * @return The root {@link FeatureHolder} of the recovered graph.
+     * @throws IOException The files are malformed or something goes wrong while reading them.
+     */
+    public static FeatureHolder recover(File snapshotFile, File logFile) throws IOException {
+
+        return recover(snapshotFile, logFile, BinaryJournal.class.getClassLoader());
+    }
+
+    /**
+     * Reads the last snapshot which was written by a binary journal and replays all complete records of the log on top of it.
+     * Records which are incomplete (e.g. because of a crash while writing them) are ignored.
+     * After the recovery, a new journal should be created for the recovered graph and a checkpoint should be written.
+     * 
+     * @param snapshotFile The file the snapshots were written into.
+     * @param logFile The file the log records were written into.
+     * @param classLoader The {@link ClassLoader} which should be used for resolving the classes of read objects.
+     * @return The root {@link FeatureHolder} of the recovered graph.
+     * @throws IOException The files are malformed or something goes wrong while reading them.
+     */
+    public static FeatureHolder recover(File snapshotFile, File logFile, ClassLoader classLoader) throws IOException {
+
+        // If the journal crashed while replacing the snapshot, the temporary file is the latest complete one
+        File file = snapshotFile;
+        if (!file.exists()) {
+            file = getTemporaryFile(snapshotFile);
+        }
+
+        byte[] snapshotData = new byte[(int) file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(snapshotData);
+        } finally {
+            input.close();
+        }
+
+        BinaryDeltaLoader loader = new BinaryDeltaLoader(classLoader);
+        FeatureHolder recovered = loader.readSnapshot(new ByteArrayInputStream(snapshotData));
+
+        List<byte[]> records = JournalLog.readRecords(logFile, getChecksum(snapshotData));
+        if (records == null) {
+            LOGGER.log(Level.INFO, "Journal log ''{0}'' doesn''t belong to snapshot ''{1}''; only the snapshot is recovered", new Object[] { logFile, file });
+        } else {
+            for (byte[] record : records) {
+                loader.readDelta(new ByteArrayInputStream(record));
+            }
+        }
+
+        return recovered;
+    }
+
+    private static File getTemporaryFile(File snapshotFile) {
+
+        return new File(snapshotFile.getPath() + ".tmp");
+    }
+
+    private static long getChecksum(byte[] data) {
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data);
+        return checksum.getValue();
+    }
+
+    /*
+     * Allows to access the internal array, so records don't need to be copied.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+
+        private byte[] getData() {
+
+            return buf;
+        }
+
+    }
+
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+
+            long lastSync = System.nanoTime() - syncInterval;
+            while (true) {
+                long target;
+                synchronized (syncLock) {
+                    try {
+                        // Wait for new commits and for the end of the sync interval, unless a sync was requested
+                        while (flusher == Thread.currentThread() && (committed == durable || !syncRequested && System.nanoTime() - lastSync < syncInterval)) {
+                            if (committed == durable) {
+                                syncLock.wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(syncLock, syncInterval - (System.nanoTime() - lastSync));
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (flusher != Thread.currentThread()) {
+                        syncLock.notifyAll();
+                        return;
+                    }
+                    target = committed;
+                    syncRequested = false;
+                }
+
+                try {
+                    log.force();
+                } catch (RuntimeException e) {
+                    // MappedByteBuffer.force() reports I/O errors as unchecked exceptions
+                    synchronized (syncLock) {
+                        syncException = new IOException("Can't sync journal log '" + logFile + "'", e);
+                        // The next checkpoint starts a new flusher
+                        if (flusher == Thread.currentThread()) {
+                            flusher = null;
+                        }
+                        syncLock.notifyAll();
+                    }
+                    LOGGER.log(Level.SEVERE, "Can't sync journal log", e);
+                    return;
+                }
+
+                lastSync = System.nanoTime();
+                synchronized (syncLock) {
+                    durable = Math.max(durable, target);
+                    syncLock.notifyAll();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A buffered output which writes the primitives of the binary format (e.g. varints) into an {@link OutputStream}.
+ * Unlike a {@link java.io.BufferedOutputStream}, the binary output isn't synchronized.
+ */
+class BinaryOutput {
+
+    static final Charset       UTF8   = Charset.forName("UTF-8");
+
+    private final OutputStream stream;
+    private final byte[]       buffer = new byte[8192];
+    private int                position;
+    private long               flushed;
+
+    /**
+     * Creates a new binary output which writes into the given {@link OutputStream}.
+     * 
+     * @param stream The {@link OutputStream} the binary output writes into.
+     */
+    BinaryOutput(OutputStream stream) {
+
+        this.stream = stream;
+    }
+
+    void writeByte(int value) throws IOException {
+
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+
+        if (length > buffer.length - position) {
+            flushBuffer();
+            if (length > buffer.length) {
+                stream.write(bytes, offset, length);
+                flushed += length;
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    /*
+     * Unsigned varints store 7 bits per byte; the highest bit marks that another byte follows.
+     */
+    void writeVarInt(int value) throws IOException {
+
+        while ( (value & ~0x7F) != 0) {
+            writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    void writeVarLong(long value) throws IOException {
+
+        while ( (value & ~0x7FL) != 0) {
+            writeByte((int) value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /*
+     * Signed values are zigzag encoded, so small negative values also use few bytes.
+     */
+    void writeSignedVarInt(int value) throws IOException {
+
+        writeVarInt(value << 1 ^ value >> 31);
+    }
+
+    void writeSignedVarLong(long value) throws IOException {
+
+        writeVarLong(value << 1 ^ value >> 63);
+    }
+
+    void writeFixedInt(int value) throws IOException {
+
+        writeByte(value >>> 24);
+        writeByte(value >>> 16);
+        writeByte(value >>> 8);
+        writeByte(value);
+    }
+
+    void writeFixedLong(long value) throws IOException {
+
+        writeFixedInt((int) (value >>> 32));
+        writeFixedInt((int) value);
+    }
+
+    void writeUtf(String value) throws IOException {
+
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarInt(bytes.length);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the amount of bytes which were written into the binary output so far, including the ones which are still buffered.
+     * 
+     * @return The current position of the binary output.
+     */
+    long getPosition() {
+
+        return flushed + position;
+    }
+
+    void flush() throws IOException {
+
+        flushBuffer();
+        stream.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+
+        if (position > 0) {
+            stream.write(buffer, 0, position);
+            flushed += position;
+            position = 0;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.Persistent;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.extra.def.ReferenceProperty;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+
+/**
+ * The binary persistence engine writes {@link FeatureHolder} graphs in a compact binary format.
+ * Compared to xml, the format is a lot smaller and faster to write and read. The main differences are:
+ * 
+ * <ul>
+ * <li>Numbers and lengths are stored as varints (7 bits per byte). Signed numbers are zigzag encoded.</li>
+ * <li>Feature names and class names are stored in a dictionary. Every string is only written once; later occurrences just write its index.</li>
+ * <li>The fields of every {@link Persistent} feature class are described once per stream. After that, features only contain their field values.</li>
+ * <li>Every {@link DefaultFeatureHolder} is written once when it's reached first. Later occurrences (e.g. through a {@link ReferenceProperty}) only write its id.
+ * That also allows reference cycles.</li>
+ * <li>The {@link DefaultFeatureHolder#getHolderId() numeric ids} of the holders are stored along with them and restored when they are read
+ * (see {@link DefaultFeatureHolder#restoreHolderId(long)}).</li>
+ * </ul>
+ * 
+ * All {@link Persistent} features are written by reflection: All non-static and non-transient fields which aren't annotated with
+ * {@link javax.xml.bind.annotation.XmlTransient} are stored. The parents of {@link ChildFeatureHolder}s are also stored.
+ * Supported field values are null, primitives, strings, classes, enums, {@link DefaultFeatureHolder}s, arrays, collections and maps of supported values,
+ * and {@link Serializable} objects. Feature holders and features need a no-argument constructor (which may be protected or private).
+ * Serializable objects are only written and read if all of their classes are allowed by {@link SerializableClasses}.
+ * 
+ * @see PersistenceEngine
+ */
+public class BinaryPersistenceEngine implements PersistenceEngine {
+
+    private final ClassLoader classLoader;
+
+    /**
+     * Creates a new binary persistence engine which resolves the classes of read objects through the {@link ClassLoader} of the engine.
+     */
+    public BinaryPersistenceEngine() {
+
+        this(BinaryPersistenceEngine.class.getClassLoader());
+    }
+
+    /**
+     * Creates a new binary persistence engine which resolves the classes of read objects through the given {@link ClassLoader}.
+     * 
+     * @param classLoader The {@link ClassLoader} which should be used for resolving classes.
+     */
+    public BinaryPersistenceEngine(ClassLoader classLoader) {
+
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public void write(FeatureHolder root, OutputStream output) throws IOException {
+
+        new BinaryGraphWriter(new BinaryOutput(output)).writeGraph(root);
+    }
+
+    @Override
+    public FeatureHolder read(InputStream input) throws IOException {
+
+        return new BinaryGraphReader(new BinaryInput(input), classLoader).readGraph();
+    }
+
+}
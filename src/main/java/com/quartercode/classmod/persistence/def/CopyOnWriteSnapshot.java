@@ -0,0 +1,336 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import com.quartercode.classmod.base.ChangeGuard;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.FeatureLoader;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.util.ChangeGuards;
+
+/**
+ * A copy-on-write snapshot allows to write a consistent point-in-time view of a {@link FeatureHolder} graph while the graph is changed by other threads.
+ * Taking a snapshot with {@link #take(FeatureHolder)} doesn't copy anything. Instead, it registers a {@link ChangeGuard}.
+ * When a holder is about to be changed for the first time after that (e.g. through {@link Property#set(Object)}), the guard copies its old state.
+ * The snapshot can then be written by a background thread with {@link #write(OutputStream)}. It uses the copied state of every changed holder and
+ * the current state of all other ones, so the written graph is exactly the graph at the time the snapshot was taken.
+ * A holder is only copied if it's changed before it was written, so the overhead is proportional to the amount of changed holders.
+ * 
+ * The snapshot must be taken while the graph isn't changed (e.g. between two simulation ticks).
+ * Lazily loaded holders (see {@link DefaultFeatureHolder#setFeatureLoader(FeatureLoader)}) add their features on the first access,
+ * which would happen on the writer thread while other threads access the graph. Therefore, all features of the graph are loaded when the snapshot is taken.
+ * Changes must go through methods which call the {@link ChangeGuards} (e.g. {@link Property#set(Object)}, the collection accessor utilities,
+ * {@link DefaultFeatureHolder#setLocked(boolean)} or {@link ChildFeatureHolder#setParent(FeatureHolder)}).
+ * Collections, maps and arrays which are stored in features are copied as well, but their elements aren't. Feature holders which are elements are copied on their own.
+ * 
+ * The written data uses the format of the {@link BinaryPersistenceEngine} and can be read by it.
+ * 
+ * @see BinaryPersistenceEngine
+ * @see ChangeGuard
+ */
+public class CopyOnWriteSnapshot implements ChangeGuard {
+
+    /**
+     * Takes a new copy-on-write snapshot of the graph which starts at the given root {@link FeatureHolder}.
+     * This doesn't copy anything. However, it walks the graph once for loading all lazily loaded features,
+     * so the writer thread never adds features to holders while other threads access them.
+     * The snapshot must be written or released afterwards, since it preserves the old state of changed holders until then.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     * @return The new snapshot.
+     */
+    public static CopyOnWriteSnapshot take(FeatureHolder root) {
+
+        loadFeatures(root);
+
+        CopyOnWriteSnapshot snapshot = new CopyOnWriteSnapshot(root);
+        ChangeGuards.register(snapshot);
+        return snapshot;
+    }
+
+    /*
+     * Loads the features of all holders of the graph by iterating over them. Holders are found through the persistent feature values and the parents.
+     */
+    private static void loadFeatures(FeatureHolder root) {
+
+        Set<FeatureHolder> visited = Collections.newSetFromMap(new IdentityHashMap<FeatureHolder, Boolean>());
+        Deque<Object> values = new ArrayDeque<Object>();
+        values.push(root);
+        while (!values.isEmpty()) {
+            Object value = values.pop();
+            if (value instanceof FeatureHolder) {
+                FeatureHolder holder = (FeatureHolder) value;
+                if (!visited.add(holder)) {
+                    continue;
+                }
+
+                if (holder instanceof ChildFeatureHolder) {
+                    pushValue(values, ((ChildFeatureHolder<?>) holder).getParent());
+                }
+                for (Feature feature : holder) {
+                    if (FeatureLayout.isPersistent(feature.getClass())) {
+                        FeatureLayout layout = FeatureLayout.get(feature.getClass());
+                        for (int index = 0; index < layout.getKeys().length; index++) {
+                            pushValue(values, layout.getValue(feature, index));
+                        }
+                    }
+                }
+            } else if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    pushValue(values, element);
+                }
+            } else if (value instanceof Map) {
+                for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    pushValue(values, entry.getKey());
+                    pushValue(values, entry.getValue());
+                }
+            } else if (value instanceof Object[]) {
+                for (Object element : (Object[]) value) {
+                    pushValue(values, element);
+                }
+            }
+        }
+    }
+
+    private static void pushValue(Deque<Object> values, Object value) {
+
+        // Only containers can contain holders
+        if (value instanceof FeatureHolder || value instanceof Collection || value instanceof Map || value instanceof Object[]) {
+            values.push(value);
+        }
+    }
+
+    private final FeatureHolder                          root;
+    private final Map<DefaultFeatureHolder, HolderState> preserved = new IdentityHashMap<DefaultFeatureHolder, HolderState>();
+    private final Set<FeatureHolder>                     written   = Collections.newSetFromMap(new IdentityHashMap<FeatureHolder, Boolean>());
+    private boolean                                      released;
+
+    private CopyOnWriteSnapshot(FeatureHolder root) {
+
+        this.root = root;
+    }
+
+    /**
+     * Returns the root {@link FeatureHolder} of the graph the snapshot was taken of.
+     * 
+     * @return The root {@link FeatureHolder}.
+     */
+    public FeatureHolder getRoot() {
+
+        return root;
+    }
+
+    /**
+     * Returns the amount of holders whose old state is currently preserved because they were changed before they were written.
+     * 
+     * @return The amount of preserved holders.
+     */
+    public synchronized int getPreservedCount() {
+
+        return preserved.size();
+    }
+
+    @Override
+    public synchronized void beforeChange(FeatureHolder holder) {
+
+        if (!released && holder instanceof DefaultFeatureHolder && !written.contains(holder) && !preserved.containsKey(holder)) {
+            preserved.put((DefaultFeatureHolder) holder, new HolderState((DefaultFeatureHolder) holder));
+        }
+    }
+
+    /**
+     * Writes the graph as it was when the snapshot was taken into the given {@link OutputStream}.
+     * This may be called by any thread while the graph is changed. The snapshot is released afterwards.
+     * 
+     * @param output The {@link OutputStream} the snapshot should be written into.
+     * @throws IOException Something goes wrong while writing the snapshot.
+     * @throws IllegalStateException The snapshot was already written or released.
+     */
+    public void write(OutputStream output) throws IOException {
+
+        synchronized (this) {
+            if (released) {
+                throw new IllegalStateException("Snapshot was already written or released");
+            }
+        }
+
+        try {
+            new SnapshotWriter(new BinaryOutput(output)).writeGraph(root);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases the snapshot without writing it, so the old states of changed holders are no longer preserved.
+     * If the snapshot was already released, nothing happens.
+     */
+    public void release() {
+
+        ChangeGuards.unregister(this);
+
+        synchronized (this) {
+            released = true;
+            preserved.clear();
+            written.clear();
+        }
+    }
+
+    /*
+     * Returns the state of the given holder at the time the snapshot was taken.
+     * The holder is marked as written atomically, so it isn't copied by later changes anymore.
+     */
+    private synchronized HolderState acquireState(DefaultFeatureHolder holder) {
+
+        written.add(holder);
+        HolderState state = preserved.remove(holder);
+        return state != null ? state : new HolderState(holder);
+    }
+
+    private static class HolderState {
+
+        private final boolean             locked;
+        private final FeatureHolder       parent;
+        private final List<FeatureLayout> layouts = new ArrayList<FeatureLayout>();
+        private final List<String>        names   = new ArrayList<String>();
+        private final List<Object[]>      values  = new ArrayList<Object[]>();
+
+        private HolderState(DefaultFeatureHolder holder) {
+
+            locked = holder.isLocked();
+            parent = holder instanceof ChildFeatureHolder ? ((ChildFeatureHolder<?>) holder).getParent() : null;
+
+            for (Feature feature : holder) {
+                if (FeatureLayout.isPersistent(feature.getClass())) {
+                    FeatureLayout layout = FeatureLayout.get(feature.getClass());
+                    Object[] featureValues = new Object[layout.getKeys().length];
+                    for (int index = 0; index < featureValues.length; index++) {
+                        featureValues[index] = copyContainer(layout.getValue(feature, index));
+                    }
+
+                    layouts.add(layout);
+                    names.add(feature.getName());
+                    values.add(featureValues);
+                }
+            }
+        }
+
+        /*
+         * Collections, maps and arrays are mutable, so they are copied shallowly.
+         * The copies keep the types (and comparators) which are relevant for the binary format.
+         */
+        @SuppressWarnings ({ "unchecked", "rawtypes" })
+        private static Object copyContainer(Object value) {
+
+            if (value == null) {
+                return null;
+            } else if (value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+                System.arraycopy(value, 0, copy, 0, length);
+                return copy;
+            } else if (value instanceof SortedSet) {
+                return new TreeSet((SortedSet) value);
+            } else if (value instanceof SortedMap) {
+                return new TreeMap((SortedMap) value);
+            } else if (value instanceof Collection || value instanceof Map) {
+                Object copy = null;
+                if (FeatureLayout.getDefaultConstructor(value.getClass()) != null) {
+                    try {
+                        copy = FeatureLayout.newInstance(value.getClass());
+                    } catch (IOException e) {
+                        // Use a standard type instead
+                    }
+                }
+
+                if (value instanceof Collection) {
+                    Collection copiedCollection = copy instanceof Collection ? (Collection) copy : value instanceof Set ? new LinkedHashSet() : new ArrayList();
+                    copiedCollection.addAll((Collection) value);
+                    return copiedCollection;
+                } else {
+                    Map copiedMap = copy instanceof Map ? (Map) copy : new LinkedHashMap();
+                    copiedMap.putAll((Map) value);
+                    return copiedMap;
+                }
+            } else {
+                return value;
+            }
+        }
+
+    }
+
+    private class SnapshotWriter extends BinaryGraphWriter {
+
+        private final BinaryOutput output;
+
+        private SnapshotWriter(BinaryOutput output) {
+
+            super(output);
+
+            this.output = output;
+        }
+
+        @Override
+        void writeHolderContents(DefaultFeatureHolder holder) throws IOException {
+
+            HolderState state = acquireState(holder);
+
+            boolean child = holder instanceof ChildFeatureHolder;
+            output.writeByte( (state.locked ? BinaryFormat.HOLDER_LOCKED : 0) | (child ? BinaryFormat.HOLDER_CHILD : 0) | BinaryFormat.HOLDER_ID);
+            output.writeVarLong(holder.getHolderId());
+            if (child) {
+                writeValue(state.parent);
+            }
+
+            output.writeVarInt(state.layouts.size());
+            for (int feature = 0; feature < state.layouts.size(); feature++) {
+                FeatureLayout layout = state.layouts.get(feature);
+                writeFeatureType(layout);
+                writeString(state.names.get(feature));
+                for (Object value : state.values.get(feature)) {
+                    writeValue(value);
+                }
+            }
+        }
+
+    }
+
+}
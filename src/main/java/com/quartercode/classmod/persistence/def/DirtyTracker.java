@@ -0,0 +1,154 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import com.quartercode.classmod.base.ChangeTracker;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+
+/**
+ * The dirty tracker is a {@link ChangeTracker} which collects the {@link FeatureHolder}s and {@link Feature}s that were changed since it was cleared last.
+ * It is attached to {@link DefaultFeatureHolder}s using {@link DefaultFeatureHolder#setChangeTracker(ChangeTracker)}.
+ * Child holders of a tracked holder use the tracker of their parent, so attaching the tracker to the root of a graph is mostly enough.
+ * The dirty set is an identity map, so marking a holder only costs one hash lookup, and marking it again doesn't allocate anything.
+ * All methods are synchronized.
+ * 
+ * @see BinaryDeltaWriter
+ */
+public class DirtyTracker implements ChangeTracker {
+
+    private final Map<FeatureHolder, Set<String>> dirty = new IdentityHashMap<FeatureHolder, Set<String>>();
+
+    /**
+     * Creates a new dirty tracker without any dirty holders.
+     */
+    public DirtyTracker() {
+
+    }
+
+    @Override
+    public synchronized void featureChanged(Feature feature) {
+
+        getDirtyFeatureSet(feature.getHolder()).add(feature.getName());
+    }
+
+    @Override
+    public synchronized void holderChanged(FeatureHolder holder) {
+
+        getDirtyFeatureSet(holder);
+    }
+
+    private Set<String> getDirtyFeatureSet(FeatureHolder holder) {
+
+        Set<String> features = dirty.get(holder);
+        if (features == null) {
+            features = new HashSet<String>();
+            dirty.put(holder, features);
+        }
+        return features;
+    }
+
+    /**
+     * Returns whether any {@link FeatureHolder} was changed since the tracker was cleared last.
+     * 
+     * @return True if there are dirty holders, false if not.
+     */
+    public synchronized boolean isDirty() {
+
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * Returns whether the given {@link FeatureHolder} was changed since the tracker was cleared last.
+     * 
+     * @param holder The {@link FeatureHolder} to check.
+     * @return True if the given holder is dirty, false if not.
+     */
+    public synchronized boolean isDirty(FeatureHolder holder) {
+
+        return dirty.containsKey(holder);
+    }
+
+    /**
+     * Returns all {@link FeatureHolder}s which were changed since the tracker was cleared last.
+     * 
+     * @return A copy of the set of dirty holders.
+     */
+    public synchronized Set<FeatureHolder> getDirtyHolders() {
+
+        Set<FeatureHolder> holders = Collections.newSetFromMap(new IdentityHashMap<FeatureHolder, Boolean>());
+        holders.addAll(dirty.keySet());
+        return holders;
+    }
+
+    /**
+     * Returns the names of all {@link Feature}s of the given {@link FeatureHolder} which were changed since the tracker was cleared last.
+     * The set is empty if only the holder itself (e.g. its parent) was changed.
+     * 
+     * @param holder The {@link FeatureHolder} whose dirty {@link Feature}s should be returned.
+     * @return A copy of the set of the names of the dirty {@link Feature}s.
+     */
+    public synchronized Set<String> getDirtyFeatures(FeatureHolder holder) {
+
+        Set<String> features = dirty.get(holder);
+        return features == null ? new HashSet<String>() : new HashSet<String>(features);
+    }
+
+    /**
+     * Removes all dirty holders and returns them along with the names of their dirty {@link Feature}s.
+     * This is an atomic operation, so changes which are done during the call are either contained by the result or stay in the tracker.
+     * 
+     * @return An identity map which maps the dirty holders to the names of their dirty {@link Feature}s.
+     */
+    public synchronized Map<FeatureHolder, Set<String>> drain() {
+
+        Map<FeatureHolder, Set<String>> drained = new IdentityHashMap<FeatureHolder, Set<String>>(dirty);
+        dirty.clear();
+        return drained;
+    }
+
+    /**
+     * Marks the given holders and features as dirty again.
+     * That can be used for reverting a {@link #drain()} call if the drained changes couldn't be processed.
+     * 
+     * @param changes An identity map which maps the dirty holders to the names of their dirty {@link Feature}s.
+     */
+    public synchronized void restore(Map<FeatureHolder, Set<String>> changes) {
+
+        for (Entry<FeatureHolder, Set<String>> change : changes.entrySet()) {
+            getDirtyFeatureSet(change.getKey()).addAll(change.getValue());
+        }
+    }
+
+    /**
+     * Removes all dirty holders from the tracker.
+     */
+    public synchronized void clear() {
+
+        dirty.clear();
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.bind.annotation.XmlTransient;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.Persistent;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.util.PersistentClasses;
+
+/**
+ * The feature layout describes the fields of a {@link Persistent} {@link Feature} class which are written by the binary persistence.
+ * All non-static and non-transient fields of the class hierarchy are written, except for the ones which are annotated with {@link XmlTransient}.
+ * The name and the holder of {@link AbstractFeature}s are stored separately.
+ * Layouts are cached, so the reflective lookup is only done once per class.
+ */
+final class FeatureLayout {
+
+    private static final ConcurrentMap<Class<?>, FeatureLayout>  LAYOUTS      = new ConcurrentHashMap<Class<?>, FeatureLayout>();
+    private static final ConcurrentMap<Class<?>, Constructor<?>> CONSTRUCTORS = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    private static final Field                                   NAME_FIELD;
+    private static final Field                                   HOLDER_FIELD;
+
+    static {
+
+        try {
+            NAME_FIELD = AbstractFeature.class.getDeclaredField("name");
+            NAME_FIELD.setAccessible(true);
+            HOLDER_FIELD = AbstractFeature.class.getDeclaredField("holder");
+            HOLDER_FIELD.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Returns the cached feature layout of the given {@link Feature} class.
+     * 
+     * @param type The {@link Feature} class whose layout should be returned.
+     * @return The feature layout of the given class.
+     */
+    static FeatureLayout get(Class<?> type) {
+
+        FeatureLayout layout = LAYOUTS.get(type);
+        if (layout == null) {
+            layout = new FeatureLayout(type);
+            LAYOUTS.putIfAbsent(type, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * Returns whether the given {@link Feature} class is annotated with {@link Persistent}.
+     * The result is cached by {@link PersistentClasses}, so the annotation isn't reflected again for every feature.
+     * 
+     * @param type The {@link Feature} class to check.
+     * @return True if the given class is {@link Persistent}, false if not.
+     */
+    static boolean isPersistent(Class<?> type) {
+
+        return PersistentClasses.isPersistent(type);
+    }
+
+    /**
+     * Returns the cached no-argument constructor of the given class, or null if there is none.
+     * The constructor is made accessible, so it can also be a protected or private one (like the ones JAXB uses).
+     * 
+     * @param type The class whose no-argument constructor should be returned.
+     * @return The no-argument constructor of the given class, or null.
+     */
+    static Constructor<?> getDefaultConstructor(Class<?> type) {
+
+        Constructor<?> constructor = CONSTRUCTORS.get(type);
+        if (constructor == null) {
+            try {
+                if (Modifier.isAbstract(type.getModifiers()) || type.isInterface() || type.getEnclosingClass() != null && !Modifier.isStatic(type.getModifiers())) {
+                    return null;
+                }
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                CONSTRUCTORS.put(type, constructor);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+        return constructor;
+    }
+
+    /**
+     * Creates a new instance of the given class using its no-argument constructor.
+     * 
+     * @param type The class which should be instantiated.
+     * @return The new instance.
+     * @throws IOException The class has no no-argument constructor or the constructor failed.
+     */
+    static Object newInstance(Class<?> type) throws IOException {
+
+        Constructor<?> constructor = getDefaultConstructor(type);
+        if (constructor == null) {
+            throw new IOException("Can't instantiate '" + type.getName() + "' because it has no no-argument constructor");
+        }
+
+        try {
+            return constructor.newInstance();
+        } catch (InstantiationException e) {
+            throw new IOException("Can't instantiate '" + type.getName() + "'", e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Can't instantiate '" + type.getName() + "'", e);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Constructor of '" + type.getName() + "' failed", e.getCause());
+        }
+    }
+
+    /**
+     * Sets the name and the holder of the given {@link AbstractFeature}, which was created by its no-argument constructor.
+     * 
+     * @param feature The {@link AbstractFeature} whose name and holder should be set.
+     * @param name The name of the feature.
+     * @param holder The {@link FeatureHolder} which holds the feature.
+     */
+    static void initialize(AbstractFeature feature, String name, FeatureHolder holder) {
+
+        try {
+            NAME_FIELD.set(feature, name);
+            HOLDER_FIELD.set(feature, holder);
+        } catch (IllegalAccessException e) {
+            // Can't happen because the fields are accessible
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Class<?>                                       type;
+    private final String[]                                       keys;
+    private final Field[]                                        fields;
+    private final Map<String, Field>                             fieldsByKey  = new HashMap<String, Field>();
+
+    private FeatureLayout(Class<?> type) {
+
+        this.type = type;
+
+        List<String> keyList = new ArrayList<String>();
+        List<Field> fieldList = new ArrayList<Field>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic() || field.isAnnotationPresent(XmlTransient.class)) {
+                    continue;
+                } else if (field.equals(NAME_FIELD) || field.equals(HOLDER_FIELD)) {
+                    continue;
+                }
+
+                // Shadowed fields of superclasses are qualified with the name of their class
+                String key = fieldsByKey.containsKey(field.getName()) ? current.getName() + "." + field.getName() : field.getName();
+                field.setAccessible(true);
+                keyList.add(key);
+                fieldList.add(field);
+                fieldsByKey.put(key, field);
+            }
+        }
+
+        keys = keyList.toArray(new String[keyList.size()]);
+        fields = fieldList.toArray(new Field[fieldList.size()]);
+    }
+
+    /**
+     * Returns the class whose layout is described.
+     * 
+     * @return The described class.
+     */
+    Class<?> getType() {
+
+        return type;
+    }
+
+    /**
+     * Returns the keys which identify the written fields in the binary format.
+     * The key of a field is its name, or its qualified name if it is shadowed by a subclass field.
+     * 
+     * @return The keys of all written fields.
+     */
+    String[] getKeys() {
+
+        return keys;
+    }
+
+    /**
+     * Returns the field which is identified by the given key, or null if the class doesn't have such a field (anymore).
+     * 
+     * @param key The key of the field.
+     * @return The field with the given key, or null.
+     */
+    Field getField(String key) {
+
+        return fieldsByKey.get(key);
+    }
+
+    /**
+     * Returns the value of the field with the given index (see {@link #getKeys()}) in the given object.
+     * 
+     * @param object The object whose field value should be returned.
+     * @param index The index of the field.
+     * @return The value of the field.
+     */
+    Object getValue(Object object, int index) {
+
+        try {
+            return fields[index].get(object);
+        } catch (IllegalAccessException e) {
+            // Can't happen because the fields are accessible
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets the given field in the given object to the given value.
+     * 
+     * @param object The object whose field value should be set.
+     * @param field The field to set. It must be returned by {@link #getField(String)}.
+     * @param value The new value of the field.
+     * @throws IOException The value has the wrong type for the field.
+     */
+    static void setValue(Object object, Field field, Object value) throws IOException {
+
+        try {
+            field.set(object, value);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Can't set field '" + field.getName() + "' of '" + field.getDeclaringClass().getName() + "' to a value of type '" + (value == null ? null : value.getClass().getName()) + "'", e);
+        } catch (IllegalAccessException e) {
+            // Can't happen because the fields are accessible
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+
+/**
+ * A map which stores {@link DefaultFeatureHolder}s by their positive numeric holder ids.
+ * It uses open addressing with primitive keys, so resolving references doesn't box ids or create entry objects.
+ * 
+ * @see DefaultFeatureHolder#getHolderId()
+ */
+class HolderIdMap {
+
+    private long[]                 keys   = new long[64];
+    private DefaultFeatureHolder[] values = new DefaultFeatureHolder[64];
+    private int                    size;
+
+    /**
+     * Stores the given {@link DefaultFeatureHolder} under the given holder id.
+     * Since references are resolved through the ids, a second holder with the same id means that the data is malformed.
+     * 
+     * @param id The positive holder id the holder should be stored under.
+     * @param holder The {@link DefaultFeatureHolder} to store.
+     * @throws IOException Another holder is already stored under the given id.
+     */
+    void put(long id, DefaultFeatureHolder holder) throws IOException {
+
+        if ( (size + 1) * 2 > keys.length) {
+            grow();
+        }
+
+        int index = indexOf(keys, id);
+        if (keys[index] != 0) {
+            throw new IOException("Duplicate holder id " + id);
+        }
+
+        keys[index] = id;
+        values[index] = holder;
+        size++;
+    }
+
+    /**
+     * Returns the {@link DefaultFeatureHolder} which is stored under the given holder id.
+     * 
+     * @param id The holder id of the requested holder.
+     * @return The holder with the given id, or null if there is none.
+     */
+    DefaultFeatureHolder get(long id) {
+
+        if (id <= 0) {
+            return null;
+        }
+        return values[indexOf(keys, id)];
+    }
+
+    /*
+     * Returns the index of the given id, or the index of the first free slot if the id isn't stored.
+     */
+    private static int indexOf(long[] keys, long id) {
+
+        int mask = keys.length - 1;
+        // Ids are dense, so mixing the bits spreads consecutive ids over the table
+        int index = (int) (id * 0x9E3779B97F4A7C15L >>> 32) & mask;
+        while (keys[index] != 0 && keys[index] != id) {
+            index = index + 1 & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+
+        long[] oldKeys = keys;
+        DefaultFeatureHolder[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new DefaultFeatureHolder[oldKeys.length * 2];
+
+        for (int oldIndex = 0; oldIndex < oldKeys.length; oldIndex++) {
+            if (oldKeys[oldIndex] != 0) {
+                int index = indexOf(keys, oldKeys[oldIndex]);
+                keys[index] = oldKeys[oldIndex];
+                values[index] = oldValues[oldIndex];
+            }
+        }
+    }
+
+}
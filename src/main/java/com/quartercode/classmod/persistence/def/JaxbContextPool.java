@@ -0,0 +1,152 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import com.quartercode.classmod.extra.def.MvccProperty;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.ReferenceProperty;
+import com.quartercode.classmod.util.ObjectAdapter.ClassElement;
+import com.quartercode.classmod.util.PersistentClasses;
+
+/**
+ * The jaxb context pool stores a shared {@link JAXBContext} along with pooled {@link Marshaller}s and {@link Unmarshaller}s.
+ * Creating a context is one of the slowest parts of the startup, so contexts are cached by {@link #get(Class...)} for every set of classes.
+ * Every context knows the default classes (e.g. {@link ObjectProperty}) and all classes which were registered at {@link PersistentClasses} until it was created.
+ * 
+ * Marshallers and unmarshallers aren't thread-safe. Therefore, they are taken from the pool with {@link #acquireMarshaller()} and must be returned
+ * with {@link #releaseMarshaller(Marshaller)} after they were used by one thread. Properties and listeners which were set on them must be reset before.
+ * The pool itself is thread-safe.
+ * 
+ * @see JaxbPersistenceEngine
+ * @see PersistentClasses
+ */
+public class JaxbContextPool {
+
+    private static final Map<Set<Class<?>>, JaxbContextPool> POOLS         = new HashMap<Set<Class<?>>, JaxbContextPool>();
+
+    /**
+     * Returns the shared jaxb context pool for the given classes, the default classes and all classes registered at {@link PersistentClasses}.
+     * The {@link JAXBContext} is only created if there is no cached pool for the same set of classes yet.
+     * 
+     * @param classes The classes the context should know in addition to the default ones (e.g. custom feature holders).
+     * @return The shared pool for the given classes.
+     * @throws JAXBException The JAXB context can't be created (e.g. because of an invalid annotation).
+     */
+    public static JaxbContextPool get(Class<?>... classes) throws JAXBException {
+
+        Set<Class<?>> contextClasses = new LinkedHashSet<Class<?>>(Arrays.asList(classes));
+        contextClasses.add(ObjectProperty.class);
+        contextClasses.add(ReferenceProperty.class);
+        contextClasses.add(MvccProperty.class);
+        contextClasses.add(ClassElement.class);
+        contextClasses.addAll(PersistentClasses.getClasses());
+
+        synchronized (POOLS) {
+            JaxbContextPool pool = POOLS.get(contextClasses);
+            if (pool == null) {
+                pool = new JaxbContextPool(JAXBContext.newInstance(contextClasses.toArray(new Class<?>[contextClasses.size()])));
+                POOLS.put(contextClasses, pool);
+            }
+            return pool;
+        }
+    }
+
+    private final JAXBContext                                context;
+    private final Queue<Marshaller>                          marshallers   = new ConcurrentLinkedQueue<Marshaller>();
+    private final Queue<Unmarshaller>                        unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+
+    /**
+     * Creates a new jaxb context pool which pools the {@link Marshaller}s and {@link Unmarshaller}s of the given {@link JAXBContext}.
+     * Note that this pool isn't shared. Use {@link #get(Class...)} for retrieving shared pools.
+     * 
+     * @param context The {@link JAXBContext} whose marshallers and unmarshallers should be pooled.
+     */
+    public JaxbContextPool(JAXBContext context) {
+
+        this.context = context;
+    }
+
+    /**
+     * Returns the {@link JAXBContext} of the pool. Contexts are thread-safe, so it can be used by multiple threads.
+     * 
+     * @return The pooled {@link JAXBContext}.
+     */
+    public JAXBContext getContext() {
+
+        return context;
+    }
+
+    /**
+     * Takes a {@link Marshaller} from the pool, or creates a new one if the pool is empty.
+     * The marshaller must be returned with {@link #releaseMarshaller(Marshaller)} after it was used.
+     * 
+     * @return A {@link Marshaller} of the pooled context.
+     * @throws JAXBException A new marshaller can't be created.
+     */
+    public Marshaller acquireMarshaller() throws JAXBException {
+
+        Marshaller marshaller = marshallers.poll();
+        return marshaller != null ? marshaller : context.createMarshaller();
+    }
+
+    /**
+     * Returns the given {@link Marshaller}, which was acquired with {@link #acquireMarshaller()}, to the pool.
+     * 
+     * @param marshaller The {@link Marshaller} which is no longer used.
+     */
+    public void releaseMarshaller(Marshaller marshaller) {
+
+        marshallers.offer(marshaller);
+    }
+
+    /**
+     * Takes an {@link Unmarshaller} from the pool, or creates a new one if the pool is empty.
+     * The unmarshaller must be returned with {@link #releaseUnmarshaller(Unmarshaller)} after it was used.
+     * 
+     * @return An {@link Unmarshaller} of the pooled context.
+     * @throws JAXBException A new unmarshaller can't be created.
+     */
+    public Unmarshaller acquireUnmarshaller() throws JAXBException {
+
+        Unmarshaller unmarshaller = unmarshallers.poll();
+        return unmarshaller != null ? unmarshaller : context.createUnmarshaller();
+    }
+
+    /**
+     * Returns the given {@link Unmarshaller}, which was acquired with {@link #acquireUnmarshaller()}, to the pool.
+     * 
+     * @param unmarshaller The {@link Unmarshaller} which is no longer used.
+     */
+    public void releaseUnmarshaller(Unmarshaller unmarshaller) {
+
+        unmarshallers.offer(unmarshaller);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+import com.quartercode.classmod.util.PersistentClasses;
+
+/**
+ * The jaxb persistence engine writes {@link FeatureHolder} graphs as xml using JAXB.
+ * The root holder is stored in a "root" element which declares the type of the holder.
+ * All holder classes of the graph must be passed to the constructor; the default classes (e.g. {@link ObjectProperty}) and the classes which are registered
+ * at {@link PersistentClasses} are added automatically. The {@link JAXBContext} is shared with all other engines which use the same classes (see {@link JaxbContextPool}).
+ * 
+ * @see PersistenceEngine
+ */
+public class JaxbPersistenceEngine implements PersistenceEngine {
+
+    private static final QName    ROOT_NAME = new QName("root");
+
+    private final JaxbContextPool contextPool;
+
+    /**
+     * Creates a new jaxb persistence engine which knows the given classes in addition to the default ones.
+     * 
+     * @param classes The classes of the graph (e.g. custom feature holders).
+     * @throws JAXBException The JAXB context can't be created (e.g. because of an invalid annotation).
+     */
+    public JaxbPersistenceEngine(Class<?>... classes) throws JAXBException {
+
+        contextPool = JaxbContextPool.get(classes);
+    }
+
+    /**
+     * Returns the {@link JaxbContextPool} which provides the {@link JAXBContext} and the pooled marshallers for writing and reading.
+     * 
+     * @return The used {@link JaxbContextPool}.
+     */
+    public JaxbContextPool getContextPool() {
+
+        return contextPool;
+    }
+
+    /**
+     * Returns the {@link JAXBContext} which is used for writing and reading.
+     * 
+     * @return The used {@link JAXBContext}.
+     */
+    public JAXBContext getContext() {
+
+        return contextPool.getContext();
+    }
+
+    @Override
+    public void write(FeatureHolder root, OutputStream output) throws IOException {
+
+        try {
+            Marshaller marshaller = contextPool.acquireMarshaller();
+            try {
+                marshaller.marshal(new JAXBElement<Object>(ROOT_NAME, Object.class, root), output);
+            } finally {
+                contextPool.releaseMarshaller(marshaller);
+            }
+            output.flush();
+        } catch (JAXBException e) {
+            throw new IOException("Can't marshal feature holder graph", e);
+        }
+    }
+
+    @Override
+    public FeatureHolder read(InputStream input) throws IOException {
+
+        Object root;
+        try {
+            Unmarshaller unmarshaller = contextPool.acquireUnmarshaller();
+            try {
+                root = unmarshaller.unmarshal(new StreamSource(input), Object.class).getValue();
+            } finally {
+                contextPool.releaseUnmarshaller(unmarshaller);
+            }
+        } catch (JAXBException e) {
+            throw new IOException("Can't unmarshal feature holder graph", e);
+        }
+
+        if (! (root instanceof FeatureHolder)) {
+            throw new IOException("Root object isn't a feature holder");
+        }
+        return (FeatureHolder) root;
+    }
+
+}
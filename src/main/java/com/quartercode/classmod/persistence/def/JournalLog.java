@@ -0,0 +1,236 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The journal log is the memory-mapped, append-only file the {@link BinaryJournal} writes its records into.
+ * The file starts with a header which contains the checksum of the snapshot the log belongs to.
+ * Every record is stored as its length, the CRC32 checksum of its data, and the data itself.
+ * The mapped region is always larger than the written data, and the rest of it is filled with zeros, so the end of the log is marked by a zero length.
+ * Records which were only written partially (e.g. because of a crash) are detected through their checksums.
+ * 
+ * @see BinaryJournal
+ */
+class JournalLog {
+
+    private static final int          HEADER_SIZE        = BinaryFormat.JOURNAL_MAGIC.length + 1 + 8;
+    private static final int          RECORD_HEADER_SIZE = 8;
+    private static final int          REGION_SIZE        = 1 << 20;
+
+    private final RandomAccessFile    file;
+    private final FileChannel         channel;
+    // Guards the mapping against being replaced or truncated while it's forced
+    private final Object              mappingLock        = new Object();
+    private volatile MappedByteBuffer buffer;
+    private int                       position;
+
+    /**
+     * Opens the journal log in the given file. The file is created if it doesn't exist.
+     * Note that {@link #reset(long)} must be called before any record can be appended.
+     * 
+     * @param file The file which stores the journal log.
+     * @throws IOException The file can't be opened.
+     */
+    JournalLog(File file) throws IOException {
+
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+    }
+
+    /**
+     * Removes all records from the log and writes a new header which belongs to the snapshot with the given checksum.
+     * The new header is forced to the storage device.
+     * 
+     * @param snapshotChecksum The CRC32 checksum of the snapshot all following records belong to.
+     * @throws IOException Something goes wrong while resetting the file.
+     */
+    void reset(long snapshotChecksum) throws IOException {
+
+        synchronized (mappingLock) {
+            // Truncating the file fills the regions which are mapped again with zeros
+            buffer = null;
+            channel.truncate(0);
+            map(REGION_SIZE);
+        }
+
+        buffer.put(BinaryFormat.JOURNAL_MAGIC);
+        buffer.put((byte) BinaryFormat.VERSION);
+        buffer.putLong(snapshotChecksum);
+        position = HEADER_SIZE;
+        buffer.force();
+    }
+
+    /**
+     * Appends a record with the given data to the log.
+     * The record isn't durable until {@link #force()} was called afterwards.
+     * 
+     * @param data An array which contains the record data.
+     * @param length The length of the record data inside the array.
+     * @throws IOException Something goes wrong while growing the mapped region, or the log reached the maximum size of a mapped region.
+     */
+    void append(byte[] data, int length) throws IOException {
+
+        // Keep at least one empty record header behind the record as the end mark
+        long required = (long) position + RECORD_HEADER_SIZE * 2 + length;
+        if (required > buffer.capacity()) {
+            if (required > Integer.MAX_VALUE) {
+                throw new IOException("Journal log would exceed the maximum size of " + Integer.MAX_VALUE + " bytes; a checkpoint is required");
+            }
+
+            synchronized (mappingLock) {
+                map((int) Math.min(Math.max(buffer.capacity() * 2L, required + REGION_SIZE), Integer.MAX_VALUE));
+            }
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, length);
+
+        // Write the data before the length, so a partially written record is never followed by a valid length
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(data, 0, length);
+        buffer.putInt(position + 4, (int) checksum.getValue());
+        buffer.putInt(position, length);
+        position = (int) required - RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     * This method may be called by another thread than the one which appends the records.
+     */
+    void force() {
+
+        synchronized (mappingLock) {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of bytes which are currently used by the header and the records of the log.
+     * 
+     * @return The used size of the log.
+     */
+    int getSize() {
+
+        return position;
+    }
+
+    /**
+     * Forces all appended records to the storage device and closes the file.
+     * 
+     * @throws IOException Something goes wrong while closing the file.
+     */
+    void close() throws IOException {
+
+        synchronized (mappingLock) {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            file.close();
+        }
+    }
+
+    private void map(int size) throws IOException {
+
+        // Buffers which are replaced are unmapped by the garbage collector; the new region contains their data as well
+        MappedByteBuffer newBuffer = channel.map(MapMode.READ_WRITE, 0, size);
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = newBuffer;
+    }
+
+    /**
+     * Reads all complete records of the given log file if the log belongs to the snapshot with the given checksum.
+     * Reading stops at the end mark or at the first record which is incomplete or corrupted.
+     * 
+     * @param file The file which stores the journal log.
+     * @param snapshotChecksum The CRC32 checksum of the snapshot the log must belong to.
+     * @return The data of all read records, or null if the log doesn't exist or belongs to another snapshot.
+     * @throws IOException Something goes wrong while reading the file.
+     */
+    static List<byte[]> readRecords(File file, long snapshotChecksum) throws IOException {
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[BinaryFormat.JOURNAL_MAGIC.length];
+            input.readFully(magic);
+            for (int index = 0; index < magic.length; index++) {
+                if (magic[index] != BinaryFormat.JOURNAL_MAGIC[index]) {
+                    throw new IOException("Data isn't in the classmod journal format");
+                }
+            }
+            int version = input.readByte();
+            if (version != BinaryFormat.VERSION) {
+                throw new IOException("Unsupported journal format version " + version + " (supported: " + BinaryFormat.VERSION + ")");
+            }
+            if (input.readLong() != snapshotChecksum) {
+                return null;
+            }
+
+            List<byte[]> records = new ArrayList<byte[]>();
+            long remaining = file.length() - HEADER_SIZE;
+            while (remaining >= RECORD_HEADER_SIZE) {
+                int length = input.readInt();
+                int expectedChecksum = input.readInt();
+                remaining -= RECORD_HEADER_SIZE;
+                if (length <= 0 || length > remaining) {
+                    break;
+                }
+
+                byte[] data = new byte[length];
+                input.readFully(data);
+                remaining -= length;
+
+                CRC32 checksum = new CRC32();
+                checksum.update(data);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    break;
+                }
+                records.add(data);
+            }
+            return records;
+        } catch (EOFException e) {
+            // An empty or truncated header means that no record was written
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+}
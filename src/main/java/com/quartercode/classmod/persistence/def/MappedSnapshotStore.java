@@ -0,0 +1,626 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.LazyFeatureLoader;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.persistence.def.BinaryGraphReader.FeatureType;
+
+/**
+ * The mapped snapshot store reads {@link FeatureHolder} graphs lazily from a memory-mapped snapshot file.
+ * Opening a store only reads the dictionary of the file, so the startup time is nearly independent of the size of the graph.
+ * Holders are created the first time they are reached (e.g. through the property of another holder).
+ * Each of their {@link Feature}s is only read from the file the first time it's requested (e.g. through {@link FeatureHolder#get(FeatureDefinition)}).
+ * All remaining features of a holder are only read when all of them are accessed (e.g. by iterating over the holder).
+ * Therefore, only the parts of the graph which are actually used need to be in memory.
+ * 
+ * The file uses the value encoding of the {@link BinaryPersistenceEngine}, with the following differences:
+ * 
+ * <ul>
+ * <li>Every holder is stored as its own record, which only contains its features. Holders are always referenced by their ids.</li>
+ * <li>Every record starts with a table of the names and offsets of its features, so single features can be read on their own.</li>
+ * <li>The dictionaries are stored once for the whole file, so every record can be read on its own.</li>
+ * <li>An index with a fixed-size entry per holder id stores the class, the flags, the parent id, the record offset and the numeric holder id of each holder.</li>
+ * </ul>
+ * 
+ * Files are written with {@link #write(FeatureHolder, File)} and opened with {@link #open(File)}.
+ * The loading of holders is synchronized on the store; the holders themselves aren't synchronized, like all {@link DefaultFeatureHolder}s.
+ * 
+ * @see BinaryPersistenceEngine
+ */
+public class MappedSnapshotStore {
+
+    private static final int                         TRAILER_SIZE       = 8 + 8 + 4;
+    private static final int                         INDEX_ENTRY_SIZE   = 4 + 1 + 4 + 8 + 8;
+    private static final int                         RECORD_BUFFER_SIZE = 512;
+
+    /**
+     * Writes the graph which starts at the given root {@link FeatureHolder} into the given file in the format of the mapped snapshot store.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     * @param file The file the graph should be written into.
+     * @throws IOException Something goes wrong while writing the graph.
+     */
+    public static void write(FeatureHolder root, File file) throws IOException {
+
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(root, output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Writes the graph which starts at the given root {@link FeatureHolder} into the given {@link OutputStream} in the format of the mapped snapshot store.
+     * The written data can only be opened as a store after it was saved as a file.
+     * 
+     * @param root The root {@link FeatureHolder} of the graph.
+     * @param output The {@link OutputStream} the graph should be written into.
+     * @throws IOException Something goes wrong while writing the graph.
+     */
+    public static void write(FeatureHolder root, OutputStream output) throws IOException {
+
+        new StoreWriter(new BinaryOutput(output)).writeStore(root);
+    }
+
+    /**
+     * Opens the mapped snapshot store which is stored in the given file.
+     * The classes of read objects are resolved through the {@link ClassLoader} of the store.
+     * 
+     * @param file The file which stores the snapshot.
+     * @return The opened store.
+     * @throws IOException The file is malformed or something goes wrong while mapping it.
+     */
+    public static MappedSnapshotStore open(File file) throws IOException {
+
+        return open(file, MappedSnapshotStore.class.getClassLoader());
+    }
+
+    /**
+     * Opens the mapped snapshot store which is stored in the given file.
+     * 
+     * @param file The file which stores the snapshot.
+     * @param classLoader The {@link ClassLoader} which should be used for resolving classes.
+     * @return The opened store.
+     * @throws IOException The file is malformed or something goes wrong while mapping it.
+     */
+    public static MappedSnapshotStore open(File file, ClassLoader classLoader) throws IOException {
+
+        // The mapping stays valid after the file was closed
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot stores which are larger than 2 GB aren't supported");
+            }
+            return new MappedSnapshotStore(channel.map(MapMode.READ_ONLY, 0, channel.size()), classLoader);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private final ByteBuffer                         buffer;
+    private final ClassLoader                        classLoader;
+    private final List<String>                       strings            = new ArrayList<String>();
+    private final List<FeatureType>                  featureTypes       = new ArrayList<FeatureType>();
+    private final Map<String, Class<?>>              classes            = new HashMap<String, Class<?>>();
+    private final StoreReader                        classResolver;
+    private final int                                indexOffset;
+    private final int                                holderCount;
+    private final Map<Integer, DefaultFeatureHolder> holders            = new HashMap<Integer, DefaultFeatureHolder>();
+    private int                                      loadedCount;
+    private int                                      decodedCount;
+
+    private MappedSnapshotStore(ByteBuffer buffer, ClassLoader classLoader) throws IOException {
+
+        this.buffer = buffer;
+        this.classLoader = classLoader;
+
+        if (buffer.capacity() < BinaryFormat.STORE_MAGIC.length + 1 + TRAILER_SIZE) {
+            throw new IOException("Data is too short for the classmod snapshot store format");
+        }
+        classResolver = new StoreReader(buffer.duplicate());
+        classResolver.readHeader(BinaryFormat.STORE_MAGIC);
+
+        int trailerOffset = buffer.capacity() - TRAILER_SIZE;
+        long dictionaryOffset = buffer.getLong(trailerOffset);
+        indexOffset = (int) buffer.getLong(trailerOffset + 8);
+        holderCount = buffer.getInt(trailerOffset + 16);
+        if (dictionaryOffset < 0 || dictionaryOffset > indexOffset || holderCount < 1 || indexOffset + (long) holderCount * INDEX_ENTRY_SIZE != trailerOffset) {
+            throw new IOException("Malformed snapshot store trailer");
+        }
+
+        ByteBuffer dictionary = buffer.duplicate();
+        dictionary.position((int) dictionaryOffset);
+        readDictionary(new BinaryInput(dictionary, 8192));
+    }
+
+    private void readDictionary(BinaryInput input) throws IOException {
+
+        int stringCount = input.readLength();
+        for (int index = 0; index < stringCount; index++) {
+            strings.add(input.readUtf());
+        }
+
+        StoreReader reader = new StoreReader(input);
+        int typeCount = input.readLength();
+        for (int index = 0; index < typeCount; index++) {
+            FeatureLayout layout = FeatureLayout.get(reader.resolveClass(reader.readString()));
+            Field[] fields = new Field[input.readLength()];
+            for (int fieldIndex = 0; fieldIndex < fields.length; fieldIndex++) {
+                fields[fieldIndex] = layout.getField(reader.readString());
+            }
+            featureTypes.add(new FeatureType(layout, fields));
+        }
+    }
+
+    /**
+     * Returns the root {@link FeatureHolder} of the stored graph.
+     * Its {@link Feature}s are loaded the first time they are accessed.
+     * 
+     * @return The root {@link FeatureHolder}.
+     * @throws IOException The index entry of the root holder is malformed.
+     */
+    public FeatureHolder getRoot() throws IOException {
+
+        return getHolder(0);
+    }
+
+    /**
+     * Returns the amount of holders which are stored in the snapshot.
+     * 
+     * @return The total amount of stored holders.
+     */
+    public int getHolderCount() {
+
+        return holderCount;
+    }
+
+    /**
+     * Returns the amount of holders whose {@link Feature}s were already started to be loaded.
+     * Since the features are loaded one by one, some features of a counted holder might not be loaded yet.
+     * 
+     * @return The amount of loaded holders.
+     */
+    public synchronized int getLoadedCount() {
+
+        return loadedCount;
+    }
+
+    /**
+     * Returns the amount of single {@link Feature}s which were already decoded from the file.
+     * Features which were requested, but aren't stored, aren't counted.
+     * 
+     * @return The amount of decoded features.
+     */
+    public synchronized int getDecodedFeatureCount() {
+
+        return decodedCount;
+    }
+
+    /**
+     * Returns the holder with the given id and creates it if it doesn't exist yet.
+     * Creating a holder also creates its parents, but it doesn't load any features.
+     * 
+     * @param id The id of the requested holder.
+     * @return The holder with the given id.
+     * @throws IOException The index entry of the holder is malformed.
+     */
+    @SuppressWarnings ("unchecked")
+    synchronized DefaultFeatureHolder getHolder(int id) throws IOException {
+
+        if (id < 0 || id >= holderCount) {
+            throw new IOException("Reference to unknown feature holder " + id);
+        }
+
+        DefaultFeatureHolder holder = holders.get(id);
+        if (holder == null) {
+            int entryOffset = indexOffset + id * INDEX_ENTRY_SIZE;
+            Class<?> type = classResolver.resolveClass(getString(buffer.getInt(entryOffset)));
+            if (!DefaultFeatureHolder.class.isAssignableFrom(type)) {
+                throw new IOException("Class '" + type.getName() + "' isn't a default feature holder");
+            }
+
+            holder = (DefaultFeatureHolder) FeatureLayout.newInstance(type);
+            holders.put(id, holder);
+
+            int flags = buffer.get(entryOffset + 4);
+            holder.setLocked( (flags & BinaryFormat.HOLDER_LOCKED) != 0);
+            if ( (flags & BinaryFormat.HOLDER_ID) != 0) {
+                long holderId = buffer.getLong(entryOffset + 17);
+                if (holderId <= 0) {
+                    throw new IOException("Invalid id " + holderId + " of '" + type.getName() + "'");
+                }
+                holder.restoreHolderId(holderId);
+            }
+            int parentId = buffer.getInt(entryOffset + 5);
+            if (parentId >= 0 && holder instanceof ChildFeatureHolder) {
+                try {
+                    ((ChildFeatureHolder<FeatureHolder>) holder).setParent(getHolder(parentId));
+                } catch (ClassCastException e) {
+                    throw new IOException("Parent of '" + type.getName() + "' has the wrong type", e);
+                }
+            }
+
+            holder.setFeatureLoader(new StoreFeatureLoader(id));
+        }
+        return holder;
+    }
+
+    /*
+     * Reads the feature table at the start of the record of the given holder and returns the absolute offsets of the features by their names.
+     */
+    private synchronized Map<String, Integer> readFeatureTable(int id) throws IOException {
+
+        int recordOffset = (int) buffer.getLong(indexOffset + id * INDEX_ENTRY_SIZE + 9);
+        int featureCount = buffer.getInt(recordOffset);
+        int payloadOffset = recordOffset + 4 + featureCount * 8;
+        if (featureCount < 0 || payloadOffset > indexOffset) {
+            throw new IOException("Malformed feature table of holder " + id);
+        }
+
+        Map<String, Integer> features = new LinkedHashMap<String, Integer>();
+        for (int index = 0; index < featureCount; index++) {
+            int entryOffset = recordOffset + 4 + index * 8;
+            features.put(getString(buffer.getInt(entryOffset)), payloadOffset + buffer.getInt(entryOffset + 4));
+        }
+        loadedCount++;
+        return features;
+    }
+
+    private synchronized Feature loadFeature(DefaultFeatureHolder holder, int offset) throws IOException {
+
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+
+        Set<Object> features = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        new StoreReader(record).readFeature(holder, false, features);
+        decodedCount++;
+        return (Feature) features.iterator().next();
+    }
+
+    private String getString(int index) throws IOException {
+
+        if (index < 0 || index >= strings.size()) {
+            throw new IOException("Reference to unknown dictionary string " + index);
+        }
+        return strings.get(index);
+    }
+
+    private class StoreFeatureLoader implements LazyFeatureLoader {
+
+        private final int            id;
+        // Features which weren't loaded yet; the table is only read when the first feature is requested
+        private Map<String, Integer> pending;
+
+        private StoreFeatureLoader(int id) {
+
+            this.id = id;
+        }
+
+        @Override
+        public Feature loadFeature(FeatureHolder holder, String name) {
+
+            try {
+                synchronized (MappedSnapshotStore.this) {
+                    if (pending == null) {
+                        pending = readFeatureTable(id);
+                    }
+
+                    Integer offset = pending.remove(name);
+                    return offset == null ? null : MappedSnapshotStore.this.loadFeature((DefaultFeatureHolder) holder, offset);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't load feature '" + name + "' of holder " + id + " from the snapshot store", e);
+            }
+        }
+
+        @Override
+        public void loadFeatures(FeatureHolder holder) {
+
+            try {
+                // Identity set, since the hash codes of the features would load the whole graph
+                Set<Object> features = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                synchronized (MappedSnapshotStore.this) {
+                    if (pending == null) {
+                        pending = readFeatureTable(id);
+                    }
+
+                    for (int offset : pending.values()) {
+                        features.add(MappedSnapshotStore.this.loadFeature((DefaultFeatureHolder) holder, offset));
+                    }
+                    pending.clear();
+                }
+
+                // The holder applies its lock state to the loaded features
+                ((DefaultFeatureHolder) holder).setPersistentFeatures(features);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't load the features of holder " + id + " from the snapshot store", e);
+            }
+        }
+
+    }
+
+    /*
+     * Reads the records of the store; dictionary entries and holders are resolved through the store.
+     */
+    private class StoreReader extends BinaryGraphReader {
+
+        private final BinaryInput input;
+
+        private StoreReader(ByteBuffer source) {
+
+            this(new BinaryInput(source, RECORD_BUFFER_SIZE));
+        }
+
+        private StoreReader(BinaryInput input) {
+
+            super(input, classLoader, new ArrayList<DefaultFeatureHolder>());
+
+            this.input = input;
+        }
+
+        @Override
+        String readString() throws IOException {
+
+            return getString(input.readVarInt());
+        }
+
+        @Override
+        FeatureType readFeatureType() throws IOException {
+
+            int index = input.readVarInt();
+            if (index < 0 || index >= featureTypes.size()) {
+                throw new IOException("Reference to unknown feature type " + index);
+            }
+            return featureTypes.get(index);
+        }
+
+        @Override
+        Class<?> resolveClass(String name) throws IOException {
+
+            synchronized (MappedSnapshotStore.this) {
+                Class<?> type = classes.get(name);
+                if (type == null) {
+                    type = super.resolveClass(name);
+                    classes.put(name, type);
+                }
+                return type;
+            }
+        }
+
+        @Override
+        DefaultFeatureHolder getHolder(int id) throws IOException {
+
+            return MappedSnapshotStore.this.getHolder(id);
+        }
+
+    }
+
+    /*
+     * Writes every holder as its own record and collects the dictionaries and the index, which are written after all records.
+     */
+    private static class StoreWriter extends BinaryGraphWriter {
+
+        private final BinaryOutput                output;
+        private final Map<FeatureHolder, Integer> ids           = new IdentityHashMap<FeatureHolder, Integer>();
+        private final List<DefaultFeatureHolder>  holders       = new ArrayList<DefaultFeatureHolder>();
+        private final Map<String, Integer>        strings       = new HashMap<String, Integer>();
+        private final List<String>                stringList    = new ArrayList<String>();
+        private final Map<Class<?>, Integer>      featureTypes  = new HashMap<Class<?>, Integer>();
+        private final List<int[]>                 typeList      = new ArrayList<int[]>();
+        private final ByteArrayOutputStream       featureBuffer = new ByteArrayOutputStream();
+        private final BinaryOutput                featureOutput = new BinaryOutput(featureBuffer);
+        private final FeatureWriter               featureWriter = new FeatureWriter();
+
+        private StoreWriter(BinaryOutput output) {
+
+            super(output);
+
+            this.output = output;
+        }
+
+        private void writeStore(FeatureHolder root) throws IOException {
+
+            writeHeader(BinaryFormat.STORE_MAGIC);
+            register(root);
+
+            // Holders which are reached while writing a record are appended to the list
+            long[] offsets = new long[16];
+            int[] parents = new int[16];
+            for (int id = 0; id < holders.size(); id++) {
+                if (id == offsets.length) {
+                    long[] newOffsets = new long[id * 2];
+                    System.arraycopy(offsets, 0, newOffsets, 0, id);
+                    offsets = newOffsets;
+                    int[] newParents = new int[id * 2];
+                    System.arraycopy(parents, 0, newParents, 0, id);
+                    parents = newParents;
+                }
+
+                DefaultFeatureHolder holder = holders.get(id);
+                offsets[id] = output.getPosition();
+                parents[id] = -1;
+                if (holder instanceof ChildFeatureHolder && ((ChildFeatureHolder<?>) holder).getParent() != null) {
+                    parents[id] = register( ((ChildFeatureHolder<?>) holder).getParent());
+                }
+
+                writeRecord(holder);
+            }
+
+            // Dictionaries
+            long dictionaryOffset = output.getPosition();
+            output.writeVarInt(stringList.size());
+            for (String string : stringList) {
+                output.writeUtf(string);
+            }
+            output.writeVarInt(typeList.size());
+            for (int[] type : typeList) {
+                output.writeVarInt(type[0]);
+                output.writeVarInt(type.length - 1);
+                for (int index = 1; index < type.length; index++) {
+                    output.writeVarInt(type[index]);
+                }
+            }
+
+            // Index
+            long indexOffset = output.getPosition();
+            for (int id = 0; id < holders.size(); id++) {
+                DefaultFeatureHolder holder = holders.get(id);
+                output.writeFixedInt(getStringIndex(holder.getClass().getName()));
+                output.writeByte( (holder.isLocked() ? BinaryFormat.HOLDER_LOCKED : 0) | (holder instanceof ChildFeatureHolder ? BinaryFormat.HOLDER_CHILD : 0) | BinaryFormat.HOLDER_ID);
+                output.writeFixedInt(parents[id]);
+                output.writeFixedLong(offsets[id]);
+                output.writeFixedLong(holder.getHolderId());
+            }
+
+            // Trailer
+            output.writeFixedLong(dictionaryOffset);
+            output.writeFixedLong(indexOffset);
+            output.writeFixedInt(holders.size());
+            output.flush();
+        }
+
+        /*
+         * The features are written into the feature buffer first, so their offsets are known when the feature table is written.
+         */
+        private void writeRecord(DefaultFeatureHolder holder) throws IOException {
+
+            List<Feature> features = new ArrayList<Feature>();
+            for (Feature feature : holder) {
+                if (FeatureLayout.isPersistent(feature.getClass())) {
+                    features.add(feature);
+                }
+            }
+
+            long payloadStart = featureOutput.getPosition();
+            int[] payloadOffsets = new int[features.size()];
+            for (int index = 0; index < features.size(); index++) {
+                payloadOffsets[index] = (int) (featureOutput.getPosition() - payloadStart);
+                featureWriter.writeFeature(features.get(index));
+            }
+            featureOutput.flush();
+
+            output.writeFixedInt(features.size());
+            for (int index = 0; index < features.size(); index++) {
+                output.writeFixedInt(getStringIndex(features.get(index).getName()));
+                output.writeFixedInt(payloadOffsets[index]);
+            }
+            output.writeBytes(featureBuffer.toByteArray(), 0, featureBuffer.size());
+            featureBuffer.reset();
+        }
+
+        private int register(FeatureHolder holder) throws IOException {
+
+            Integer id = ids.get(holder);
+            if (id == null) {
+                if (! (holder instanceof DefaultFeatureHolder)) {
+                    throw new IOException("Can't persist feature holder of type '" + holder.getClass().getName() + "' because it doesn't extend DefaultFeatureHolder");
+                }
+
+                id = holders.size();
+                ids.put(holder, id);
+                holders.add((DefaultFeatureHolder) holder);
+                // Register the class name now, so the dictionary is complete when it's written
+                getStringIndex(holder.getClass().getName());
+            }
+            return id;
+        }
+
+        private int getStringIndex(String value) {
+
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = stringList.size();
+                strings.put(value, index);
+                stringList.add(value);
+            }
+            return index;
+        }
+
+        /*
+         * Writes single features into the feature buffer; holders and dictionary entries are referenced through the store writer.
+         */
+        private class FeatureWriter extends BinaryGraphWriter {
+
+            private FeatureWriter() {
+
+                super(featureOutput);
+            }
+
+            @Override
+            void writeHolderValue(FeatureHolder holder) throws IOException {
+
+                featureOutput.writeByte(BinaryFormat.HOLDER_REF);
+                featureOutput.writeVarInt(register(holder));
+            }
+
+            @Override
+            void writeString(String value) throws IOException {
+
+                featureOutput.writeVarInt(getStringIndex(value));
+            }
+
+            @Override
+            void writeFeatureType(FeatureLayout layout) throws IOException {
+
+                Integer index = featureTypes.get(layout.getType());
+                if (index == null) {
+                    int[] type = new int[layout.getKeys().length + 1];
+                    type[0] = getStringIndex(layout.getType().getName());
+                    for (int keyIndex = 0; keyIndex < layout.getKeys().length; keyIndex++) {
+                        type[keyIndex + 1] = getStringIndex(layout.getKeys()[keyIndex]);
+                    }
+
+                    index = typeList.size();
+                    featureTypes.put(layout.getType(), index);
+                    typeList.add(type);
+                }
+                featureOutput.writeVarInt(index);
+            }
+
+        }
+
+    }
+
+}
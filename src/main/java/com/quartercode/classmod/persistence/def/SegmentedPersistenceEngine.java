@@ -0,0 +1,545 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.extra.def.ReferenceProperty;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+
+/**
+ * The segmented persistence engine writes and reads {@link FeatureHolder} graphs in parallel.
+ * It partitions the graph into segments: The root holder and every holder which is directly stored in a feature of the root start their own segment.
+ * A holder belongs to the segment of its nearest {@link ChildFeatureHolder} ancestor which starts a segment. Holders without such an ancestor
+ * belong to the segment which reaches them first. For example, a world whose root stores all computers results in one segment per computer.
+ * 
+ * Each segment is written into its own buffer by a task of the given {@link ExecutorService}, using the format of the {@link BinaryPersistenceEngine}.
+ * Holders of other segments (e.g. the targets of {@link ReferenceProperty}s which point into another computer) are only written as their
+ * {@link DefaultFeatureHolder#getHolderId() numeric holder ids}. Each segment starts with an index of the ids and classes of its holders.
+ * While reading, all holders of all indices are created first. After that, the segments are read in parallel and resolve foreign holders by their ids.
+ * Holders which are only referenced by other segments, but don't belong to any written segment, are written into an additional segment at the end.
+ * 
+ * The executor isn't shut down by the engine. The graph must not be changed while it's written.
+ * 
+ * @see BinaryPersistenceEngine
+ */
+public class SegmentedPersistenceEngine implements PersistenceEngine {
+
+    private static <T> List<T> await(List<Future<T>> futures) throws IOException {
+
+        // Wait for all tasks, even if one of them failed
+        List<T> results = new ArrayList<T>();
+        IOException exception = null;
+        boolean interrupted = false;
+        for (Future<T> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (exception == null) {
+                        exception = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Segment task failed", e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+        return results;
+    }
+
+    private final ExecutorService executor;
+    private final ClassLoader     classLoader;
+
+    /**
+     * Creates a new segmented persistence engine which uses the given {@link ExecutorService} for processing the segments.
+     * It resolves the classes of read objects through the {@link ClassLoader} of the engine.
+     * 
+     * @param executor The {@link ExecutorService} which writes and reads the segments.
+     */
+    public SegmentedPersistenceEngine(ExecutorService executor) {
+
+        this(executor, SegmentedPersistenceEngine.class.getClassLoader());
+    }
+
+    /**
+     * Creates a new segmented persistence engine which uses the given {@link ExecutorService} for processing the segments.
+     * It resolves the classes of read objects through the given {@link ClassLoader}.
+     * 
+     * @param executor The {@link ExecutorService} which writes and reads the segments.
+     * @param classLoader The {@link ClassLoader} which should be used for resolving classes.
+     */
+    public SegmentedPersistenceEngine(ExecutorService executor, ClassLoader classLoader) {
+
+        this.executor = executor;
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public void write(FeatureHolder root, OutputStream output) throws IOException {
+
+        final Partition partition = new Partition(root);
+
+        List<Future<Segment>> futures = new ArrayList<Future<Segment>>();
+        for (int index = 0; index < partition.roots.size(); index++) {
+            final int segment = index;
+            futures.add(executor.submit(new Callable<Segment>() {
+
+                @Override
+                public Segment call() throws IOException {
+
+                    SegmentWriter writer = SegmentWriter.create(partition, segment, null);
+                    writer.writeGraph(partition.roots.get(segment));
+                    return writer.toSegment();
+                }
+
+            }));
+        }
+        List<Segment> segments = await(futures);
+
+        // Write the holders which weren't reached by the segments they belong to
+        Set<FeatureHolder> written = Collections.newSetFromMap(new IdentityHashMap<FeatureHolder, Boolean>());
+        for (Segment segment : segments) {
+            written.addAll(segment.holders);
+        }
+        List<FeatureHolder> orphans = new ArrayList<FeatureHolder>();
+        for (Segment segment : segments) {
+            for (FeatureHolder external : segment.externals) {
+                if (written.add(external)) {
+                    orphans.add(external);
+                }
+            }
+        }
+        if (!orphans.isEmpty()) {
+            written.removeAll(orphans);
+            SegmentWriter writer = SegmentWriter.create(partition, -1, written);
+            writer.writeHeader(BinaryFormat.MAGIC);
+            writer.writeValue(orphans);
+            segments.add(writer.toSegment());
+        }
+
+        BinaryOutput binaryOutput = new BinaryOutput(output);
+        binaryOutput.writeBytes(BinaryFormat.SEGMENT_MAGIC, 0, BinaryFormat.SEGMENT_MAGIC.length);
+        binaryOutput.writeByte(BinaryFormat.VERSION);
+        binaryOutput.writeVarInt(segments.size());
+        for (Segment segment : segments) {
+            binaryOutput.writeVarInt(segment.index.length);
+            binaryOutput.writeBytes(segment.index, 0, segment.index.length);
+            binaryOutput.writeVarInt(segment.body.length);
+            binaryOutput.writeBytes(segment.body, 0, segment.body.length);
+        }
+        binaryOutput.flush();
+    }
+
+    @Override
+    public FeatureHolder read(InputStream input) throws IOException {
+
+        BinaryInput binaryInput = new BinaryInput(input);
+        for (byte magicByte : BinaryFormat.SEGMENT_MAGIC) {
+            if (binaryInput.readByte() != magicByte) {
+                throw new IOException("Data isn't in the expected classmod segmented format");
+            }
+        }
+        int version = binaryInput.readByte();
+        if (version != BinaryFormat.VERSION) {
+            throw new IOException("Unsupported segmented format version " + version + " (supported: " + BinaryFormat.VERSION + ")");
+        }
+
+        int segmentCount = binaryInput.readLength();
+        if (segmentCount < 1) {
+            throw new IOException("Segmented data doesn't contain any segment");
+        }
+
+        // Create all holders, so every segment can resolve the holders of the other ones
+        final HolderIdMap holders = new HolderIdMap();
+        List<List<DefaultFeatureHolder>> segmentHolders = new ArrayList<List<DefaultFeatureHolder>>();
+        List<byte[]> bodies = new ArrayList<byte[]>();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            segmentHolders.add(readIndex(readBlock(binaryInput), holders));
+            bodies.add(readBlock(binaryInput));
+        }
+
+        List<SegmentReader> readers = new ArrayList<SegmentReader>();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            final List<DefaultFeatureHolder> ownHolders = segmentHolders.get(segment);
+            final SegmentReader reader = new SegmentReader(new BinaryInput(ByteBuffer.wrap(bodies.get(segment)), 8192), ownHolders, holders);
+            readers.add(reader);
+            futures.add(executor.submit(new Callable<Object>() {
+
+                @Override
+                public Object call() throws IOException {
+
+                    reader.readHeader(BinaryFormat.MAGIC);
+                    Object segmentRoot = reader.readValue();
+                    if (reader.nextHolder != ownHolders.size()) {
+                        throw new IOException("Segment doesn't contain all holders of its index");
+                    }
+                    return segmentRoot;
+                }
+
+            }));
+        }
+
+        Object root = await(futures).get(0);
+
+        /*
+         * The hash codes of holders depend on their features, so hash-based containers are filled after all segments are complete.
+         * The first pass completes the contents of all containers (which may contain each other), so all hash codes are final in the second one.
+         */
+        for (int pass = 0; pass < 2; pass++) {
+            for (SegmentReader reader : readers) {
+                for (DeferredFill fill : reader.deferredFills) {
+                    fill.fill();
+                }
+            }
+        }
+
+        if (! (root instanceof FeatureHolder)) {
+            throw new IOException("Root object isn't a feature holder");
+        }
+        return (FeatureHolder) root;
+    }
+
+    private byte[] readBlock(BinaryInput input) throws IOException {
+
+        return input.readByteArray(input.readLength());
+    }
+
+    private List<DefaultFeatureHolder> readIndex(byte[] index, HolderIdMap holders) throws IOException {
+
+        BinaryInput input = new BinaryInput(ByteBuffer.wrap(index), Math.max(index.length, 1));
+
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        int classCount = input.readLength();
+        for (int counter = 0; counter < classCount; counter++) {
+            String name = input.readUtf();
+            try {
+                Class<?> type = Class.forName(name, false, classLoader);
+                if (!DefaultFeatureHolder.class.isAssignableFrom(type)) {
+                    throw new IOException("Class '" + name + "' isn't a default feature holder");
+                }
+                classes.add(type);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Can't find class '" + name + "'", e);
+            }
+        }
+
+        int holderCount = input.readLength();
+        List<DefaultFeatureHolder> segmentHolders = new ArrayList<DefaultFeatureHolder>(holderCount);
+        for (int counter = 0; counter < holderCount; counter++) {
+            int classIndex = input.readVarInt();
+            long id = input.readVarLong();
+            if (classIndex < 0 || classIndex >= classes.size() || id <= 0) {
+                throw new IOException("Malformed segment index entry (class " + classIndex + ", id " + id + ")");
+            }
+
+            DefaultFeatureHolder holder = (DefaultFeatureHolder) FeatureLayout.newInstance(classes.get(classIndex));
+            holders.put(id, holder);
+            holder.restoreHolderId(id);
+            segmentHolders.add(holder);
+        }
+        return segmentHolders;
+    }
+
+    /*
+     * Stores the segment roots and the owners of holders which don't have a segment root as an ancestor.
+     */
+    private static class Partition {
+
+        private final List<FeatureHolder>         roots    = new ArrayList<FeatureHolder>();
+        private final Map<FeatureHolder, Integer> segments = new IdentityHashMap<FeatureHolder, Integer>();
+        private final Map<FeatureHolder, Integer> claims   = new IdentityHashMap<FeatureHolder, Integer>();
+
+        private Partition(FeatureHolder root) {
+
+            addSegment(root);
+            for (Feature feature : root) {
+                if (FeatureLayout.isPersistent(feature.getClass())) {
+                    FeatureLayout layout = FeatureLayout.get(feature.getClass());
+                    for (int index = 0; index < layout.getKeys().length; index++) {
+                        addSegments(layout.getValue(feature, index));
+                    }
+                }
+            }
+        }
+
+        private void addSegments(Object value) {
+
+            if (value instanceof DefaultFeatureHolder) {
+                addSegment((FeatureHolder) value);
+            } else if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    addSegments(element);
+                }
+            } else if (value instanceof Map) {
+                for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    addSegments(entry.getKey());
+                    addSegments(entry.getValue());
+                }
+            } else if (value instanceof Object[]) {
+                for (Object element : (Object[]) value) {
+                    addSegments(element);
+                }
+            }
+        }
+
+        private void addSegment(FeatureHolder segmentRoot) {
+
+            if (!segments.containsKey(segmentRoot)) {
+                segments.put(segmentRoot, roots.size());
+                roots.add(segmentRoot);
+            }
+        }
+
+        private int getOwner(FeatureHolder holder, int claimant) {
+
+            FeatureHolder current = holder;
+            while (current != null) {
+                Integer segment = segments.get(current);
+                if (segment != null) {
+                    return segment;
+                }
+                current = current instanceof ChildFeatureHolder ? ((ChildFeatureHolder<?>) current).getParent() : null;
+            }
+
+            synchronized (claims) {
+                Integer owner = claims.get(holder);
+                if (owner == null) {
+                    owner = claimant;
+                    claims.put(holder, owner);
+                }
+                return owner;
+            }
+        }
+
+    }
+
+    private static class Segment {
+
+        private final List<DefaultFeatureHolder> holders;
+        private final Set<FeatureHolder>         externals;
+        private final byte[]                     index;
+        private final byte[]                     body;
+
+        private Segment(List<DefaultFeatureHolder> holders, Set<FeatureHolder> externals, byte[] index, byte[] body) {
+
+            this.holders = holders;
+            this.externals = externals;
+            this.index = index;
+            this.body = body;
+        }
+
+    }
+
+    /*
+     * If the set of holders which are written by other segments is given, the writer writes all holders which aren't contained by that set.
+     */
+    private static class SegmentWriter extends BinaryGraphWriter {
+
+        private final Partition                   partition;
+        private final int                         segment;
+        private final Set<FeatureHolder>          writtenElsewhere;
+        private final ByteArrayOutputStream       buffer;
+        private final BinaryOutput                output;
+        private final Map<FeatureHolder, Integer> written;
+        private final List<DefaultFeatureHolder>  holders   = new ArrayList<DefaultFeatureHolder>();
+        private final Set<FeatureHolder>          externals = Collections.newSetFromMap(new IdentityHashMap<FeatureHolder, Boolean>());
+
+        private static SegmentWriter create(Partition partition, int segment, Set<FeatureHolder> writtenElsewhere) {
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            return new SegmentWriter(partition, segment, writtenElsewhere, buffer, new BinaryOutput(buffer), new IdentityHashMap<FeatureHolder, Integer>());
+        }
+
+        private SegmentWriter(Partition partition, int segment, Set<FeatureHolder> writtenElsewhere, ByteArrayOutputStream buffer, BinaryOutput output, Map<FeatureHolder, Integer> written) {
+
+            super(output, written);
+
+            this.partition = partition;
+            this.segment = segment;
+            this.writtenElsewhere = writtenElsewhere;
+            this.buffer = buffer;
+            this.output = output;
+            this.written = written;
+        }
+
+        @Override
+        void writeHolderValue(FeatureHolder holder) throws IOException {
+
+            if (holder instanceof DefaultFeatureHolder && !written.containsKey(holder)) {
+                boolean own = writtenElsewhere == null ? partition.getOwner(holder, segment) == segment : !writtenElsewhere.contains(holder);
+                if (!own) {
+                    externals.add(holder);
+                    output.writeByte(BinaryFormat.EXTERNAL_REF);
+                    output.writeVarLong( ((DefaultFeatureHolder) holder).getHolderId());
+                    return;
+                }
+
+                // The reader creates the holders in the order they are written
+                holders.add((DefaultFeatureHolder) holder);
+            }
+
+            super.writeHolderValue(holder);
+        }
+
+        private Segment toSegment() throws IOException {
+
+            output.flush();
+
+            ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+            BinaryOutput indexOutput = new BinaryOutput(indexBuffer);
+            Map<Class<?>, Integer> classes = new LinkedHashMap<Class<?>, Integer>();
+            for (DefaultFeatureHolder holder : holders) {
+                if (!classes.containsKey(holder.getClass())) {
+                    classes.put(holder.getClass(), classes.size());
+                }
+            }
+            indexOutput.writeVarInt(classes.size());
+            for (Class<?> type : classes.keySet()) {
+                indexOutput.writeUtf(type.getName());
+            }
+            indexOutput.writeVarInt(holders.size());
+            for (DefaultFeatureHolder holder : holders) {
+                indexOutput.writeVarInt(classes.get(holder.getClass()));
+                indexOutput.writeVarLong(holder.getHolderId());
+            }
+            indexOutput.flush();
+
+            return new Segment(holders, externals, indexBuffer.toByteArray(), buffer.toByteArray());
+        }
+
+    }
+
+    private class SegmentReader extends BinaryGraphReader {
+
+        private final BinaryInput                input;
+        private final List<DefaultFeatureHolder> ownHolders;
+        private final HolderIdMap                holders;
+        private final List<DeferredFill>         deferredFills = new ArrayList<DeferredFill>();
+        private int                              nextHolder;
+
+        private SegmentReader(BinaryInput input, List<DefaultFeatureHolder> ownHolders, HolderIdMap holders) {
+
+            super(input, classLoader);
+
+            this.input = input;
+            this.ownHolders = ownHolders;
+            this.holders = holders;
+        }
+
+        @Override
+        DefaultFeatureHolder newHolder(Class<?> type) throws IOException {
+
+            if (nextHolder >= ownHolders.size() || ownHolders.get(nextHolder).getClass() != type) {
+                throw new IOException("Segment holder of type '" + type.getName() + "' doesn't match the index of the segment");
+            }
+            return ownHolders.get(nextHolder++);
+        }
+
+        @Override
+        List<Object> deferFill(Object container) {
+
+            // Lists don't use the hash codes of their elements, so they can be filled while other segments are still read
+            if (container instanceof List) {
+                return null;
+            }
+
+            DeferredFill fill = new DeferredFill(container);
+            deferredFills.add(fill);
+            return fill.values;
+        }
+
+        @Override
+        Object readExtensionValue(int tag) throws IOException {
+
+            if (tag != BinaryFormat.EXTERNAL_REF) {
+                return super.readExtensionValue(tag);
+            }
+
+            long id = input.readVarLong();
+            DefaultFeatureHolder holder = holders.get(id);
+            if (holder == null) {
+                throw new IOException("Reference to unknown feature holder with id " + id);
+            }
+            return holder;
+        }
+
+    }
+
+    /*
+     * Stores the values of a collection or a map which is filled after all segments are complete. The values of maps are alternating keys and values.
+     */
+    private static class DeferredFill {
+
+        private final Object       container;
+        private final List<Object> values = new ArrayList<Object>();
+
+        private DeferredFill(Object container) {
+
+            this.container = container;
+        }
+
+        @SuppressWarnings ("unchecked")
+        private void fill() {
+
+            if (container instanceof Map) {
+                Map<Object, Object> map = (Map<Object, Object>) container;
+                map.clear();
+                for (int index = 0; index < values.size(); index += 2) {
+                    map.put(values.get(index), values.get(index + 1));
+                }
+            } else {
+                Collection<Object> collection = (Collection<Object>) container;
+                collection.clear();
+                collection.addAll(values);
+            }
+        }
+
+    }
+
+}
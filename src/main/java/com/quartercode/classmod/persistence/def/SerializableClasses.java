@@ -0,0 +1,110 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang.Validate;
+
+/**
+ * A utility class which stores the {@link Serializable} classes the binary persistence engines may deserialize.
+ * Field values which aren't supported by the binary format itself are stored through java serialization.
+ * Since deserializing arbitrary classes from untrusted data can execute code, only the classes which are explicitly allowed here are resolved while reading such values.
+ * That includes the classes of all fields of the serialized objects.
+ * Values with other classes are already rejected while they are written, so a saved graph can always be read again.
+ * By default, only the classes of the {@code java.lang} package (e.g. strings and number wrappers), primitive arrays and arrays of allowed classes are allowed.
+ * 
+ * @see BinaryPersistenceEngine
+ */
+public class SerializableClasses {
+
+    private static final String      DEFAULT_PACKAGE = "java.lang.";
+
+    private static volatile String[] patterns        = new String[0];
+
+    /**
+     * Allows the deserialization of the classes which match the given pattern.
+     * A pattern is either a fully qualified class name or a package name followed by {@code .*}, which matches all classes of the package and its subpackages.
+     * 
+     * @param pattern The pattern of the classes which should be allowed.
+     */
+    public static synchronized void allow(String pattern) {
+
+        Validate.notEmpty(pattern, "Class pattern can't be empty");
+
+        List<String> newPatterns = new ArrayList<String>(Arrays.asList(patterns));
+        newPatterns.add(pattern);
+        patterns = newPatterns.toArray(new String[newPatterns.size()]);
+    }
+
+    /**
+     * Revokes a pattern which was added through {@link #allow(String)} before.
+     * 
+     * @param pattern The pattern which should no longer be allowed.
+     */
+    public static synchronized void disallow(String pattern) {
+
+        List<String> newPatterns = new ArrayList<String>(Arrays.asList(patterns));
+        newPatterns.remove(pattern);
+        patterns = newPatterns.toArray(new String[newPatterns.size()]);
+    }
+
+    /**
+     * Returns whether the class with the given name may be deserialized.
+     * 
+     * @param name The binary name of the class (see {@link Class#getName()}).
+     * @return Whether the class is allowed.
+     */
+    public static boolean isAllowed(String name) {
+
+        // Arrays are allowed if their component type is
+        int dimensions = 0;
+        while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+        if (dimensions > 0) {
+            if (name.length() == dimensions + 1) {
+                // Primitive array
+                return true;
+            } else if (name.charAt(dimensions) != 'L' || !name.endsWith(";")) {
+                return false;
+            }
+            name = name.substring(dimensions + 1, name.length() - 1);
+        }
+
+        if (name.startsWith(DEFAULT_PACKAGE) && name.indexOf('.', DEFAULT_PACKAGE.length()) < 0) {
+            return true;
+        }
+
+        String[] currentPatterns = patterns;
+        for (String pattern : currentPatterns) {
+            if (pattern.endsWith(".*") ? name.startsWith(pattern.substring(0, pattern.length() - 1)) : name.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SerializableClasses() {
+
+    }
+
+}
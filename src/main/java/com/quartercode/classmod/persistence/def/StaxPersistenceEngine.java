@@ -0,0 +1,503 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.persistence.def;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.ReferenceProperty;
+import com.quartercode.classmod.util.HolderIds;
+import com.quartercode.classmod.util.ObjectAdapter;
+
+/**
+ * The stax persistence engine writes and reads the same xml as the {@link JaxbPersistenceEngine}, but streams the holder graph through StAX.
+ * JAXB builds up state for the whole graph while marshalling, and it reads the persistent features of every holder into a new hash set.
+ * This engine instead visits holders and their persistent features one by one, so the memory usage only depends on the depth of the graph.
+ * 
+ * The structure of the graph (holders, {@link ObjectProperty}s and {@link ReferenceProperty}s) is written and read by the engine itself.
+ * Leaf values (e.g. strings or numbers) and other feature types are still converted by JAXB, one element at a time.
+ * The xml type names of holder classes follow the JAXB default naming (e.g. "myHolder" for a class "MyHolder"), or the name of an {@link XmlType} annotation.
+ * Holders whose classes weren't passed to the constructor are converted by JAXB as well.
+ * 
+ * @see JaxbPersistenceEngine
+ */
+public class StaxPersistenceEngine extends JaxbPersistenceEngine {
+
+    private static final String                XSI_PREFIX     = "xsi";
+    private static final String                ROOT_ELEMENT   = "root";
+    private static final String                FEATURES       = "features";
+    private static final String                OBJECT         = "object";
+    private static final String                REFERENCE      = "reference";
+    private static final String                LOCKED         = "locked";
+    private static final String                ID             = "id";
+    private static final String                NAME           = "name";
+
+    private static final String                XS_PREFIX      = "xs";
+
+    private static final String                OBJECT_TYPE    = getTypeName(ObjectProperty.class);
+    private static final String                REFERENCE_TYPE = getTypeName(ReferenceProperty.class);
+
+    // Values of these types are converted directly instead of through JAXB (the xml schema type names are the values)
+    private static final Map<Class<?>, String> SIMPLE_TYPES   = new HashMap<Class<?>, String>();
+
+    static {
+
+        SIMPLE_TYPES.put(String.class, "string");
+        SIMPLE_TYPES.put(Integer.class, "int");
+        SIMPLE_TYPES.put(Long.class, "long");
+        SIMPLE_TYPES.put(Boolean.class, "boolean");
+        SIMPLE_TYPES.put(Double.class, "double");
+        SIMPLE_TYPES.put(Float.class, "float");
+        SIMPLE_TYPES.put(Short.class, "short");
+        SIMPLE_TYPES.put(Byte.class, "byte");
+    }
+
+    private final XMLOutputFactory             outputFactory  = XMLOutputFactory.newInstance();
+    private final XMLInputFactory              inputFactory   = XMLInputFactory.newInstance();
+    private final Map<Class<?>, String>        typeNames      = new HashMap<Class<?>, String>();
+    private final Map<String, Class<?>>        holderTypes    = new HashMap<String, Class<?>>();
+
+    /**
+     * Creates a new stax persistence engine which knows the given classes in addition to the default ones.
+     * The holder classes of the graph must be passed here, otherwise they are converted by JAXB.
+     * 
+     * @param classes The classes of the graph (e.g. custom feature holders).
+     * @throws JAXBException The JAXB context can't be created (e.g. because of an invalid annotation).
+     */
+    public StaxPersistenceEngine(Class<?>... classes) throws JAXBException {
+
+        super(classes);
+
+        for (Class<?> type : classes) {
+            if (DefaultFeatureHolder.class.isAssignableFrom(type)) {
+                typeNames.put(type, getTypeName(type));
+                holderTypes.put(getTypeName(type), type);
+            }
+        }
+    }
+
+    /*
+     * Follows the default naming of JAXB: The first word of the simple class name is written in lower case ("URLHolder" -> "urlHolder").
+     */
+    private static String getTypeName(Class<?> type) {
+
+        XmlType annotation = type.getAnnotation(XmlType.class);
+        if (annotation != null && !annotation.name().equals("##default")) {
+            return annotation.name();
+        }
+
+        String name = type.getSimpleName();
+        int upperCaseRun = 0;
+        while (upperCaseRun < name.length() && Character.isUpperCase(name.charAt(upperCaseRun))) {
+            upperCaseRun++;
+        }
+
+        // If more than one upper case letter is followed by lower case letters, the last upper case letter belongs to the next word
+        int firstWordEnd = upperCaseRun > 1 && upperCaseRun < name.length() ? upperCaseRun - 1 : Math.max(upperCaseRun, 1);
+        return name.substring(0, firstWordEnd).toLowerCase() + name.substring(firstWordEnd);
+    }
+
+    @Override
+    public void write(FeatureHolder root, OutputStream output) throws IOException {
+
+        try {
+            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(output, "UTF-8");
+            Marshaller marshaller = getContextPool().acquireMarshaller();
+            try {
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+
+                writer.writeStartDocument("UTF-8", "1.0");
+                if (root instanceof DefaultFeatureHolder && typeNames.containsKey(root.getClass())) {
+                    writeHolder(writer, marshaller, ROOT_ELEMENT, (DefaultFeatureHolder) root, true);
+                } else {
+                    marshaller.marshal(new JAXBElement<Object>(new QName(ROOT_ELEMENT), Object.class, root), writer);
+                }
+                writer.writeEndDocument();
+            } finally {
+                // Reset the property before the marshaller is reused by other engines
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, false);
+                getContextPool().releaseMarshaller(marshaller);
+            }
+            writer.flush();
+            output.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException("Can't write feature holder graph", e);
+        } catch (JAXBException e) {
+            throw new IOException("Can't marshal value of feature holder graph", e);
+        }
+    }
+
+    private void writeHolder(XMLStreamWriter writer, Marshaller marshaller, String element, DefaultFeatureHolder holder, boolean root) throws XMLStreamException, JAXBException, IOException {
+
+        writer.writeStartElement(element);
+        if (root) {
+            writer.writeNamespace(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+        }
+        writer.writeAttribute(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", typeNames.get(holder.getClass()));
+        writer.writeAttribute(ID, holder.getId());
+
+        for (Feature feature : holder) {
+            if (FeatureLayout.isPersistent(feature.getClass())) {
+                writeFeature(writer, marshaller, feature);
+            }
+        }
+
+        writer.writeStartElement(LOCKED);
+        writer.writeCharacters(String.valueOf(holder.isLocked()));
+        writer.writeEndElement();
+
+        writer.writeEndElement();
+    }
+
+    private void writeFeature(XMLStreamWriter writer, Marshaller marshaller, Feature feature) throws XMLStreamException, JAXBException, IOException {
+
+        if (feature.getClass() == ObjectProperty.class) {
+            writeFeatureStart(writer, OBJECT_TYPE, feature);
+            Object value = ((ObjectProperty<?>) feature).get();
+            if (value instanceof DefaultFeatureHolder && typeNames.containsKey(value.getClass())) {
+                writeHolder(writer, marshaller, OBJECT, (DefaultFeatureHolder) value, false);
+            } else if (value != null && SIMPLE_TYPES.containsKey(value.getClass())) {
+                writer.writeStartElement(OBJECT);
+                writer.writeNamespace(XS_PREFIX, XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                writer.writeAttribute(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", XS_PREFIX + ":" + SIMPLE_TYPES.get(value.getClass()));
+                writer.writeCharacters(printSimpleValue(value));
+                writer.writeEndElement();
+            } else if (value != null) {
+                marshaller.marshal(new JAXBElement<Object>(new QName(OBJECT), Object.class, new ObjectAdapter().marshal(value)), writer);
+            }
+            writer.writeEndElement();
+        } else if (feature.getClass() == ReferenceProperty.class) {
+            writeFeatureStart(writer, REFERENCE_TYPE, feature);
+            Object reference = ((ReferenceProperty<?>) feature).get();
+            if (reference instanceof DefaultFeatureHolder) {
+                writer.writeStartElement(REFERENCE);
+                writer.writeCharacters( ((DefaultFeatureHolder) reference).getId());
+                writer.writeEndElement();
+            } else if (reference != null) {
+                throw new IOException("Can't write reference to object of type '" + reference.getClass().getName() + "' which has no id");
+            }
+            writer.writeEndElement();
+        } else {
+            marshaller.marshal(new JAXBElement<Object>(new QName(FEATURES), Object.class, feature), writer);
+        }
+    }
+
+    private String printSimpleValue(Object value) {
+
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Integer) {
+            return DatatypeConverter.printInt((Integer) value);
+        } else if (value instanceof Long) {
+            return DatatypeConverter.printLong((Long) value);
+        } else if (value instanceof Boolean) {
+            return DatatypeConverter.printBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            return DatatypeConverter.printDouble((Double) value);
+        } else if (value instanceof Float) {
+            return DatatypeConverter.printFloat((Float) value);
+        } else if (value instanceof Short) {
+            return DatatypeConverter.printShort((Short) value);
+        } else {
+            return DatatypeConverter.printByte((Byte) value);
+        }
+    }
+
+    private void writeFeatureStart(XMLStreamWriter writer, String type, Feature feature) throws XMLStreamException {
+
+        writer.writeStartElement(FEATURES);
+        writer.writeAttribute(XSI_PREFIX, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", type);
+        writer.writeAttribute(NAME, feature.getName());
+    }
+
+    @Override
+    public FeatureHolder read(InputStream input) throws IOException {
+
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+            Unmarshaller unmarshaller = getContextPool().acquireUnmarshaller();
+            Object root;
+            try {
+                GraphReader graphReader = new GraphReader(reader, unmarshaller);
+                reader.nextTag();
+                root = graphReader.readValue(null);
+                graphReader.resolveReferences();
+            } finally {
+                getContextPool().releaseUnmarshaller(unmarshaller);
+            }
+
+            if (! (root instanceof FeatureHolder)) {
+                throw new IOException("Root object isn't a feature holder");
+            }
+            return (FeatureHolder) root;
+        } catch (XMLStreamException e) {
+            throw new IOException("Can't read feature holder graph", e);
+        } catch (JAXBException e) {
+            throw new IOException("Can't unmarshal value of feature holder graph", e);
+        }
+    }
+
+    /*
+     * Stores the state of one read operation: the read holders by their numeric ids and the references which are resolved after the whole graph was read.
+     */
+    private class GraphReader {
+
+        private final XMLStreamReader                   reader;
+        private final Unmarshaller                      unmarshaller;
+        private final HolderIdMap                     holders      = new HolderIdMap();
+        private final List<ReferenceProperty<Object>> references   = new ArrayList<ReferenceProperty<Object>>();
+        private long[]                                referenceIds = new long[16];
+
+        // True if JAXB already moved the reader to the next tag
+        private boolean                               positioned;
+
+        private GraphReader(XMLStreamReader reader, Unmarshaller unmarshaller) {
+
+            this.reader = reader;
+            this.unmarshaller = unmarshaller;
+        }
+
+        /*
+         * Reads the value element the reader currently points at.
+         */
+        private Object readValue(FeatureHolder owner) throws XMLStreamException, JAXBException, IOException {
+
+            Class<?> holderType = holderTypes.get(getXsiType());
+            if (holderType != null) {
+                return readHolder(holderType, owner);
+            }
+
+            String simpleType = getSimpleType();
+            if (simpleType != null) {
+                return parseSimpleValue(simpleType, reader.getElementText());
+            }
+
+            return new ObjectAdapter().unmarshal(unmarshal());
+        }
+
+        /*
+         * Unmarshals the current element through JAXB, which moves the reader behind the end element.
+         */
+        private Object unmarshal() throws XMLStreamException, JAXBException {
+
+            Object value = unmarshaller.unmarshal(reader, Object.class).getValue();
+            while (!reader.isEndElement() && !reader.isStartElement()) {
+                reader.next();
+            }
+            positioned = true;
+            return value;
+        }
+
+        private int nextTag() throws XMLStreamException {
+
+            if (positioned) {
+                positioned = false;
+                return reader.getEventType();
+            }
+            return reader.nextTag();
+        }
+
+        private String getXsiType() {
+
+            String type = reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type");
+            if (type == null) {
+                return null;
+            }
+            // Holder types don't have a namespace
+            return type.indexOf(':') >= 0 ? null : type;
+        }
+
+        /*
+         * Returns the xml schema type name if the current element has a simple type which is converted directly, or null.
+         */
+        private String getSimpleType() {
+
+            String type = reader.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type");
+            int separator = type == null ? -1 : type.indexOf(':');
+            if (separator < 0 || !XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(reader.getNamespaceURI(type.substring(0, separator)))) {
+                return null;
+            }
+
+            String localType = type.substring(separator + 1);
+            return SIMPLE_TYPES.containsValue(localType) ? localType : null;
+        }
+
+        private Object parseSimpleValue(String type, String text) throws IOException {
+
+            try {
+                if (type.equals("string")) {
+                    return text;
+                } else if (type.equals("int")) {
+                    return DatatypeConverter.parseInt(text);
+                } else if (type.equals("long")) {
+                    return DatatypeConverter.parseLong(text);
+                } else if (type.equals("boolean")) {
+                    return DatatypeConverter.parseBoolean(text);
+                } else if (type.equals("double")) {
+                    return DatatypeConverter.parseDouble(text);
+                } else if (type.equals("float")) {
+                    return DatatypeConverter.parseFloat(text);
+                } else if (type.equals("short")) {
+                    return DatatypeConverter.parseShort(text);
+                } else {
+                    return DatatypeConverter.parseByte(text);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed value '" + text + "' of type 'xs:" + type + "'", e);
+            }
+        }
+
+        @SuppressWarnings ("unchecked")
+        private DefaultFeatureHolder readHolder(Class<?> type, FeatureHolder owner) throws XMLStreamException, JAXBException, IOException {
+
+            DefaultFeatureHolder holder = (DefaultFeatureHolder) FeatureLayout.newInstance(type);
+            // Like JAXB, the parent of a child holder is the holder of the feature which contains it
+            if (owner != null && holder instanceof ChildFeatureHolder) {
+                try {
+                    ((ChildFeatureHolder<FeatureHolder>) holder).setParent(owner);
+                } catch (ClassCastException e) {
+                    throw new IOException("Parent of '" + type.getName() + "' has the wrong type", e);
+                }
+            }
+
+            long id = HolderIds.parse(reader.getAttributeValue(null, ID));
+            if (id > 0) {
+                holders.put(id, holder);
+                holder.restoreHolderId(id);
+            }
+
+            // Use an identity set since the hash codes of features depend on their (maybe not yet complete) values
+            Set<Object> features = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            boolean locked = holder.isLocked();
+            while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String element = reader.getLocalName();
+                if (element.equals(FEATURES)) {
+                    features.add(readFeature(holder));
+                } else if (element.equals(LOCKED)) {
+                    locked = Boolean.parseBoolean(reader.getElementText());
+                } else {
+                    skipElement();
+                }
+            }
+
+            holder.setPersistentFeatures(features);
+            holder.setLocked(locked);
+            return holder;
+        }
+
+        @SuppressWarnings ("unchecked")
+        private Feature readFeature(DefaultFeatureHolder holder) throws XMLStreamException, JAXBException, IOException {
+
+            String type = getXsiType();
+            String name = reader.getAttributeValue(null, NAME);
+
+            if (OBJECT_TYPE.equals(type)) {
+                ObjectProperty<Object> property = (ObjectProperty<Object>) FeatureLayout.newInstance(ObjectProperty.class);
+                FeatureLayout.initialize(property, name, holder);
+                while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (reader.getLocalName().equals(OBJECT)) {
+                        property.set(readValue(holder));
+                    } else {
+                        skipElement();
+                    }
+                }
+                return property;
+            } else if (REFERENCE_TYPE.equals(type)) {
+                ReferenceProperty<Object> property = (ReferenceProperty<Object>) FeatureLayout.newInstance(ReferenceProperty.class);
+                FeatureLayout.initialize(property, name, holder);
+                while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (reader.getLocalName().equals(REFERENCE)) {
+                        if (references.size() == referenceIds.length) {
+                            long[] newReferenceIds = new long[referenceIds.length * 2];
+                            System.arraycopy(referenceIds, 0, newReferenceIds, 0, referenceIds.length);
+                            referenceIds = newReferenceIds;
+                        }
+                        referenceIds[references.size()] = HolderIds.parse(reader.getElementText().trim());
+                        references.add(property);
+                    } else {
+                        skipElement();
+                    }
+                }
+                return property;
+            } else {
+                Object feature = unmarshal();
+                if (! (feature instanceof Feature)) {
+                    throw new IOException("Element '" + FEATURES + "' of type '" + type + "' doesn't contain a feature");
+                }
+                if (feature instanceof AbstractFeature) {
+                    FeatureLayout.initialize((AbstractFeature) feature, ((Feature) feature).getName(), holder);
+                }
+                return (Feature) feature;
+            }
+        }
+
+        private void skipElement() throws XMLStreamException {
+
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        }
+
+        /*
+         * References can point to holders which are read later, so they are resolved after the whole graph was read.
+         * Like with JAXB, references to unknown ids stay null.
+         */
+        private void resolveReferences() {
+
+            for (int index = 0; index < references.size(); index++) {
+                references.get(index).set(holders.get(referenceIds[index]));
+            }
+        }
+
+    }
+
+}
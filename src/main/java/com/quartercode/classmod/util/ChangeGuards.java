@@ -0,0 +1,80 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import com.quartercode.classmod.base.ChangeGuard;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+
+/**
+ * A utility class which stores the globally registered {@link ChangeGuard}s and calls them before {@link FeatureHolder}s are changed.
+ * {@link Feature} and {@link FeatureHolder} implementations should call {@link #beforeChange(FeatureHolder)} before they change any persistent state.
+ * While no guard is registered, that only costs one volatile read.
+ * 
+ * @see ChangeGuard
+ */
+public class ChangeGuards {
+
+    private static volatile ChangeGuard[] guards = new ChangeGuard[0];
+
+    /**
+     * Registers the given {@link ChangeGuard}, so it's called before any {@link FeatureHolder} is changed.
+     * 
+     * @param guard The {@link ChangeGuard} to register.
+     */
+    public static synchronized void register(ChangeGuard guard) {
+
+        List<ChangeGuard> newGuards = new ArrayList<ChangeGuard>(Arrays.asList(guards));
+        newGuards.add(guard);
+        guards = newGuards.toArray(new ChangeGuard[newGuards.size()]);
+    }
+
+    /**
+     * Unregisters the given {@link ChangeGuard}, so it's no longer called before {@link FeatureHolder}s are changed.
+     * 
+     * @param guard The {@link ChangeGuard} to unregister.
+     */
+    public static synchronized void unregister(ChangeGuard guard) {
+
+        List<ChangeGuard> newGuards = new ArrayList<ChangeGuard>(Arrays.asList(guards));
+        newGuards.remove(guard);
+        guards = newGuards.toArray(new ChangeGuard[newGuards.size()]);
+    }
+
+    /**
+     * Calls all registered {@link ChangeGuard}s because the persistent state of the given {@link FeatureHolder} or one of its {@link Feature}s is about to be changed.
+     * 
+     * @param holder The {@link FeatureHolder} which is about to be changed.
+     */
+    public static void beforeChange(FeatureHolder holder) {
+
+        ChangeGuard[] currentGuards = guards;
+        for (ChangeGuard guard : currentGuards) {
+            guard.beforeChange(holder);
+        }
+    }
+
+    private ChangeGuards() {
+
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.quartercode.classmod.base.ChangeListener;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+
+/**
+ * A utility class which dispatches the changes of {@link Feature}s to the {@link ChangeListener}s which are registered for them.
+ * While the current thread has an open batch, changes are only collected and coalesced; every listener is called once per {@link FeatureHolder}
+ * with the list of dirty features when the batch is {@link #flush() flushed} or {@link #endBatch() ends}.
+ * Batches can be nested; only the end of the outermost batch flushes the changes.
+ * For example, {@link AbstractFunction#setChangeBatching(boolean)} wraps each invocation in a batch.
+ * Features without listeners never reach this class, so they don't pay anything for it.
+ * 
+ * @see ChangeListener
+ */
+public class ChangeListeners {
+
+    private static final Logger             LOGGER = Logger.getLogger(ChangeListeners.class.getName());
+
+    private static final ThreadLocal<Batch> BATCH  = new ThreadLocal<Batch>();
+
+    /**
+     * Opens a new batch for the current thread, or nests into the already open one.
+     * Every call must be followed by a call of {@link #endBatch()}, usually in a finally block.
+     */
+    public static void beginBatch() {
+
+        Batch batch = BATCH.get();
+        if (batch == null) {
+            batch = new Batch();
+            BATCH.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * Closes the innermost batch of the current thread. If it was the outermost one, all collected changes are dispatched.
+     * 
+     * @throws IllegalStateException The current thread has no open batch.
+     */
+    public static void endBatch() {
+
+        Batch batch = BATCH.get();
+        if (batch == null) {
+            throw new IllegalStateException("The current thread has no open batch");
+        }
+
+        if (batch.depth == 1) {
+            try {
+                flush();
+            } finally {
+                BATCH.remove();
+            }
+        } else {
+            batch.depth--;
+        }
+    }
+
+    /**
+     * Returns whether the current thread has an open batch, so changes are collected instead of being dispatched directly.
+     * 
+     * @return True if there's an open batch.
+     */
+    public static boolean isBatching() {
+
+        return BATCH.get() != null;
+    }
+
+    /**
+     * Dispatches all changes which were collected by the open batch of the current thread, while the batch stays open.
+     * Changes which are made by the called listeners are dispatched as well before this method returns.
+     * If there's no open batch, nothing happens.
+     */
+    public static void flush() {
+
+        Batch batch = BATCH.get();
+        if (batch == null) {
+            return;
+        }
+
+        while (!batch.pending.isEmpty()) {
+            List<Pending> pending = new ArrayList<Pending>(batch.pending.values());
+            batch.pending.clear();
+
+            for (Pending entry : pending) {
+                dispatch(entry.key.listener, entry.key.holder, Collections.unmodifiableList(entry.features));
+            }
+        }
+    }
+
+    /**
+     * Notifies the given {@link ChangeListener} that the given {@link Feature} of the given {@link FeatureHolder} was changed.
+     * If the current thread has an open batch, the change is collected. Otherwise, the listener is called directly.
+     * This should be called by {@link Feature} and {@link FeatureHolder} implementations after every change of a feature with listeners.
+     * 
+     * @param listener The {@link ChangeListener} which should be notified.
+     * @param holder The {@link FeatureHolder} of the changed feature.
+     * @param feature The changed {@link Feature}.
+     */
+    public static void featureChanged(ChangeListener listener, FeatureHolder holder, Feature feature) {
+
+        Batch batch = BATCH.get();
+        if (batch == null) {
+            dispatch(listener, holder, Collections.singletonList(feature));
+            return;
+        }
+
+        PendingKey key = new PendingKey(listener, holder);
+        Pending pending = batch.pending.get(key);
+        if (pending == null) {
+            pending = new Pending(key);
+            batch.pending.put(key, pending);
+        }
+        if (pending.contained.put(feature, Boolean.TRUE) == null) {
+            pending.features.add(feature);
+        }
+    }
+
+    private static void dispatch(ChangeListener listener, FeatureHolder holder, List<Feature> features) {
+
+        try {
+            listener.featuresChanged(holder, features);
+        } catch (RuntimeException e) {
+            // One failing listener mustn't prevent the others from being notified
+            LOGGER.log(Level.WARNING, "Change listener " + listener + " threw an exception", e);
+        }
+    }
+
+    private ChangeListeners() {
+
+    }
+
+    private static class Batch {
+
+        private int                            depth;
+        // Ordered by the first change of every listener and holder
+        private final Map<PendingKey, Pending> pending = new LinkedHashMap<PendingKey, Pending>();
+
+    }
+
+    /*
+     * Compares the listener and the holder by identity, since the hash codes of holders depend on their (changing) features.
+     */
+    private static class PendingKey {
+
+        private final ChangeListener listener;
+        private final FeatureHolder  holder;
+
+        private PendingKey(ChangeListener listener, FeatureHolder holder) {
+
+            this.listener = listener;
+            this.holder = holder;
+        }
+
+        @Override
+        public int hashCode() {
+
+            return 31 * System.identityHashCode(listener) + System.identityHashCode(holder);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (! (obj instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) obj;
+            return listener == other.listener && holder == other.holder;
+        }
+
+    }
+
+    private static class Pending {
+
+        private final PendingKey            key;
+        private final List<Feature>         features  = new ArrayList<Feature>();
+        private final Map<Feature, Boolean> contained = new IdentityHashMap<Feature, Boolean>();
+
+        private Pending(PendingKey key) {
+
+            this.key = key;
+        }
+
+    }
+
+}
@@ -27,13 +27,17 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import com.quartercode.classmod.base.Feature;
 import com.quartercode.classmod.base.FeatureDefinition;
 import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
 import com.quartercode.classmod.extra.ChildFeatureHolder;
 import com.quartercode.classmod.extra.ExecutorInvocationException;
 import com.quartercode.classmod.extra.FunctionExecutor;
 import com.quartercode.classmod.extra.FunctionInvocation;
 import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.extra.def.Transaction;
 
 /**
  * A utility class for creating {@link FunctionExecutor}s which can access simple {@link Collection} {@link Property}s.
@@ -148,14 +152,23 @@ public class CollectionPropertyAccessorFactory {
             @Override
             public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
 
+                Property<? extends Collection<E>> property = invocation.getHolder().get(propertyDefinition);
+                Collection<E> buffered = getBufferedCollection(property);
+                Collection<E> collection = buffered != null ? buffered : getCollection(invocation.getHolder(), property);
                 for (Object element : arguments) {
                     // Hope that the using FunctionDefinition has the correct parameters
-                    boolean changed = invocation.getHolder().get(propertyDefinition).get().add((E) element);
-
-                    // Set the parent of the added element the new holder
-                    if (changed && element instanceof ChildFeatureHolder) {
-                        // Is always true because of <P extends FeatureHolder> in ChildFeatureHolder
-                        ((ChildFeatureHolder<FeatureHolder>) element).setParent(invocation.getHolder());
+                    boolean changed = collection.add((E) element);
+
+                    if (changed) {
+                        if (buffered == null) {
+                            notifyChanged(property);
+                        }
+
+                        // Set the parent of the added element the new holder
+                        if (element instanceof ChildFeatureHolder) {
+                            // Is always true because of <P extends FeatureHolder> in ChildFeatureHolder
+                            setParent((ChildFeatureHolder<FeatureHolder>) element, invocation.getHolder());
+                        }
                     }
                 }
 
@@ -179,12 +192,21 @@ public class CollectionPropertyAccessorFactory {
             @Override
             public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
 
+                Property<? extends Collection<E>> property = invocation.getHolder().get(propertyDefinition);
+                Collection<E> buffered = getBufferedCollection(property);
+                Collection<E> collection = buffered != null ? buffered : getCollection(invocation.getHolder(), property);
                 for (Object element : arguments) {
-                    boolean changed = invocation.getHolder().get(propertyDefinition).get().remove(element);
+                    boolean changed = collection.remove(element);
+
+                    if (changed) {
+                        if (buffered == null) {
+                            notifyChanged(property);
+                        }
 
-                    // Set the parent of the removed element to null
-                    if (changed && element instanceof ChildFeatureHolder) {
-                        ((ChildFeatureHolder<?>) element).setParent(null);
+                        // Set the parent of the removed element to null
+                        if (element instanceof ChildFeatureHolder) {
+                            setParent((ChildFeatureHolder<?>) element, null);
+                        }
                     }
                 }
 
@@ -231,11 +253,19 @@ public class CollectionPropertyAccessorFactory {
 
                 invocation.next(arguments);
 
-                E element = invocation.getHolder().get(propertyDefinition).get().poll();
+                Property<? extends Queue<E>> property = invocation.getHolder().get(propertyDefinition);
+                Queue<E> buffered = (Queue<E>) getBufferedCollection(property);
+                E element = (buffered != null ? buffered : (Queue<E>) getCollection(invocation.getHolder(), property)).poll();
+
+                if (element != null) {
+                    if (buffered == null) {
+                        notifyChanged(property);
+                    }
 
-                // Set the parent of the removed (polled) element to null
-                if (element != null && element instanceof ChildFeatureHolder) {
-                    ((ChildFeatureHolder<?>) element).setParent(null);
+                    // Set the parent of the removed (polled) element to null
+                    if (element instanceof ChildFeatureHolder) {
+                        setParent((ChildFeatureHolder<?>) element, null);
+                    }
                 }
 
                 return element;
@@ -244,6 +274,58 @@ public class CollectionPropertyAccessorFactory {
         };
     }
 
+    /*
+     * Inside a transaction, the changes are made to a copy which is part of the write set, so they are only applied on commit.
+     * The property notifies about the changes itself when the copy is committed.
+     * Returns null if the collection isn't buffered and must be modified directly.
+     */
+    private static <E> Collection<E> getBufferedCollection(Property<? extends Collection<E>> property) {
+
+        Transaction transaction = Transaction.getCurrent();
+        return transaction == null ? null : transaction.getWritableCollection(property);
+    }
+
+    private static <E> Collection<E> getCollection(FeatureHolder holder, Property<? extends Collection<E>> property) {
+
+        ChangeGuards.beforeChange(holder);
+        return property.get();
+    }
+
+    /*
+     * Parents aren't part of the write set, so they are restored if the transaction is rolled back.
+     */
+    private static <P extends FeatureHolder> void setParent(final ChildFeatureHolder<P> element, P parent) {
+
+        Transaction transaction = Transaction.getCurrent();
+        if (transaction != null) {
+            final P oldParent = element.getParent();
+            transaction.addRollbackAction(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    element.setParent(oldParent);
+                }
+
+            });
+        }
+
+        element.setParent(parent);
+    }
+
+    /*
+     * The collection is modified directly, so the property can't notice the change itself.
+     */
+    private static void notifyChanged(Feature property) {
+
+        if (property.getHolder() instanceof DefaultFeatureHolder) {
+            ((DefaultFeatureHolder) property.getHolder()).featureChanged(property);
+        }
+        if (property instanceof AbstractFeature) {
+            ((AbstractFeature) property).notifyObservers();
+        }
+    }
+
     /**
      * Criterium matchers are used for limiting the output of {@link FunctionExecutor}s created by the getter utilities.
      * 
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+/**
+ * A utility class which contains the interfaces of the reactive streams protocol.
+ * They mirror the interfaces of {@code java.util.concurrent.Flow}, so publishers can be adapted to the standard ones (or other reactive libraries) with trivial wrappers.
+ * A {@link Subscriber} is only pushed as many items as it requested through its {@link Subscription} (backpressure).
+ * 
+ * @see PropertyPublisher
+ */
+public class Flow {
+
+    /**
+     * A publisher produces items which are received by its {@link Subscriber}s.
+     * 
+     * @param <T> The type of the published items.
+     */
+    public static interface Publisher<T> {
+
+        /**
+         * Adds the given {@link Subscriber}. {@link Subscriber#onSubscribe(Subscription)} is called with a new {@link Subscription} before any other method.
+         * 
+         * @param subscriber The {@link Subscriber} which should receive the items of the publisher.
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+
+    }
+
+    /**
+     * A subscriber receives the items of a {@link Publisher}.
+     * The methods of one subscriber are never called concurrently.
+     * 
+     * @param <T> The type of the received items.
+     */
+    public static interface Subscriber<T> {
+
+        /**
+         * Is called before any other method with the {@link Subscription} which must be used for requesting items.
+         * 
+         * @param subscription The new {@link Subscription}.
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Is called with the next item. This only happens if there's an unfulfilled request.
+         * 
+         * @param item The next item.
+         */
+        public void onNext(T item);
+
+        /**
+         * Is called when the subscription failed. No other method is called after this one.
+         * 
+         * @param throwable The error.
+         */
+        public void onError(Throwable throwable);
+
+        /**
+         * Is called when the publisher won't publish any more items. No other method is called after this one.
+         */
+        public void onComplete();
+
+    }
+
+    /**
+     * A subscription links a {@link Publisher} and a {@link Subscriber}.
+     */
+    public static interface Subscription {
+
+        /**
+         * Allows the publisher to push the given amount of additional items to the {@link Subscriber}.
+         * 
+         * @param n The amount of requested items. It must be > 0.
+         */
+        public void request(long n);
+
+        /**
+         * Cancels the subscription, so the {@link Subscriber} won't receive any more items.
+         * Items which are already being delivered might still arrive.
+         */
+        public void cancel();
+
+    }
+
+    private Flow() {
+
+    }
+
+}
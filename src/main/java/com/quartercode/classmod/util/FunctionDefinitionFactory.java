@@ -20,12 +20,16 @@ package com.quartercode.classmod.util;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import com.quartercode.classmod.base.FeatureHolder;
 import com.quartercode.classmod.extra.Function;
 import com.quartercode.classmod.extra.FunctionDefinition;
 import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.Independent;
+import com.quartercode.classmod.extra.ResultCombiner;
 import com.quartercode.classmod.extra.def.AbstractFunction;
 import com.quartercode.classmod.extra.def.AbstractFunctionDefinition;
+import com.quartercode.classmod.extra.def.MailboxDispatcher;
 
 /**
  * A utility class for creating very basic {@link FunctionDefinition}s.
@@ -82,6 +86,58 @@ public class FunctionDefinitionFactory {
         return definition;
     }
 
+    /**
+     * Creates a new {@link FunctionDefinition} with the given parameters whose {@link Function}s invoke {@link Independent} {@link FunctionExecutor}s in parallel.
+     * All {@link Independent} {@link FunctionExecutor}s which have the same priority are invoked through the given {@link ExecutorService}.
+     * Their return values are merged by the given {@link ResultCombiner}.
+     * Of course, the parameters can be changed later on using {@link FunctionDefinition#setParameter(int, Class)}.
+     * 
+     * @param name The name of the new {@link FunctionDefinition}.
+     * @param parallelService The {@link ExecutorService} which invokes {@link Independent} {@link FunctionExecutor}s.
+     * @param combiner The {@link ResultCombiner} which merges the return values of one priority. null returns the value of the rest of the chain.
+     * @param parameters The parameters for the defined function. See {@link FunctionDefinition#setParameter(int, Class)} for further explanation.
+     * @return The new {@link FunctionDefinition}.
+     */
+    public static <R> FunctionDefinition<R> createParallel(String name, final ExecutorService parallelService, final ResultCombiner<R> combiner, Class<?>... parameters) {
+
+        return new AbstractFunctionDefinition<R>(name, parameters) {
+
+            @Override
+            protected Function<R> create(FeatureHolder holder, List<Class<?>> parameters, Map<String, FunctionExecutor<R>> executors) {
+
+                AbstractFunction<R> function = new AbstractFunction<R>(getName(), holder, parameters, executors);
+                function.setParallelExecution(parallelService, combiner);
+                return function;
+            }
+
+        };
+    }
+
+    /**
+     * Creates a new {@link FunctionDefinition} with the given parameters whose {@link Function}s are invoked inside the mailboxes of their holders.
+     * All invocations on the same holder subtree are serialized by the given {@link MailboxDispatcher}, while different subtrees run in parallel.
+     * Of course, the parameters can be changed later on using {@link FunctionDefinition#setParameter(int, Class)}.
+     * 
+     * @param name The name of the new {@link FunctionDefinition}.
+     * @param mailboxDispatcher The {@link MailboxDispatcher} which serializes the invocations of the created functions.
+     * @param parameters The parameters for the defined function. See {@link FunctionDefinition#setParameter(int, Class)} for further explanation.
+     * @return The new {@link FunctionDefinition}.
+     */
+    public static <R> FunctionDefinition<R> createConfined(String name, final MailboxDispatcher mailboxDispatcher, Class<?>... parameters) {
+
+        return new AbstractFunctionDefinition<R>(name, parameters) {
+
+            @Override
+            protected Function<R> create(FeatureHolder holder, List<Class<?>> parameters, Map<String, FunctionExecutor<R>> executors) {
+
+                AbstractFunction<R> function = new AbstractFunction<R>(getName(), holder, parameters, executors);
+                function.setMailboxDispatcher(mailboxDispatcher);
+                return function;
+            }
+
+        };
+    }
+
     private FunctionDefinitionFactory() {
 
     }
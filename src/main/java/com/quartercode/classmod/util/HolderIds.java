@@ -0,0 +1,124 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+
+/**
+ * A utility class which allocates the unique ids of {@link FeatureHolder}s.
+ * The ids are positive longs which are allocated in ascending order, so they are dense and can be used as array indices or primitive map keys.
+ * Ids which are read from persisted graphs can be claimed with {@link #claim(long)}, so newly allocated ids never collide with them.
+ * An id can only be claimed if it wasn't allocated or claimed before. Loaders assign a fresh id to a holder whose stored id is already taken
+ * (e.g. because holders were created before the graph was loaded, or because the same graph is loaded twice).
+ * 
+ * @see FeatureHolder
+ */
+public class HolderIds {
+
+    private static final AtomicLong          NEXT_ID = new AtomicLong(1);
+    // Maps the first id of each range of skipped ids to the first id after it
+    private static final TreeMap<Long, Long> GAPS    = new TreeMap<Long, Long>();
+
+    /**
+     * Allocates a new unique holder id which is greater than all ids which were allocated or claimed before.
+     * 
+     * @return The new holder id.
+     */
+    public static long allocate() {
+
+        return NEXT_ID.getAndIncrement();
+    }
+
+    /**
+     * Claims the given holder id, so it's never returned by {@link #allocate()} or claimed again.
+     * Ids which are skipped by claiming an id above all allocated ones stay free, so they can still be claimed later on.
+     * 
+     * @param id The holder id which should be claimed. It must be positive.
+     * @return Whether the id was free and is now claimed. If false is returned, the id has already been allocated or claimed before.
+     */
+    public static boolean claim(long id) {
+
+        Validate.isTrue(id > 0, "Holder ids must be > 0");
+
+        synchronized (GAPS) {
+            long next = NEXT_ID.get();
+            while (next <= id) {
+                if (NEXT_ID.compareAndSet(next, id + 1)) {
+                    if (next < id) {
+                        GAPS.put(next, id);
+                    }
+                    return true;
+                }
+                next = NEXT_ID.get();
+            }
+
+            // The id is below all allocated ids, so it's only free if it was skipped by an earlier claim
+            Entry<Long, Long> gap = GAPS.floorEntry(id);
+            if (gap == null || gap.getValue() <= id) {
+                return false;
+            }
+
+            GAPS.remove(gap.getKey());
+            if (gap.getKey() < id) {
+                GAPS.put(gap.getKey(), id);
+            }
+            if (id + 1 < gap.getValue()) {
+                GAPS.put(id + 1, gap.getValue());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the string representation of the given holder id, which is used by text formats (e.g. as an xml id).
+     * 
+     * @param id The holder id which should be converted.
+     * @return The string representation of the id.
+     */
+    public static String toString(long id) {
+
+        return Long.toHexString(id);
+    }
+
+    /**
+     * Parses the given string representation of a holder id which was created by {@link #toString(long)}.
+     * If the string isn't a valid holder id, 0 is returned.
+     * 
+     * @param id The string representation which should be parsed.
+     * @return The holder id, or 0 if the string doesn't represent a valid one.
+     */
+    public static long parse(String id) {
+
+        try {
+            long value = Long.parseLong(id, 16);
+            return value > 0 ? value : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private HolderIds() {
+
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.ChildFeatureHolder;
+import com.quartercode.classmod.extra.LockableClass;
+import com.quartercode.classmod.extra.Property;
+
+/**
+ * The holder traversal visits all {@link FeatureHolder}s of a tree in parallel.
+ * The children of a holder are all {@link ChildFeatureHolder}s which are stored in its {@link Property}s (directly or inside collections, maps and arrays) and whose parent is the holder.
+ * Holders which are only referenced (e.g. through a reference property) are therefore not visited, since their parent is another holder.
+ * Because every child is only reached through its single parent and the root is never entered again, the traversal can't run into cycles.
+ * 
+ * Subtrees are split off as separate tasks for the given {@link ExecutorService} while other subtrees are walked by the current task.
+ * The thread which starts the traversal also takes part in it. The methods return after all holders were visited.
+ * Note that {@link Visitor}s are called by multiple threads concurrently, but every holder is only accessed by one thread at a time.
+ * 
+ * @see Visitor
+ * @see ChildFeatureHolder
+ */
+public class HolderTraversal {
+
+    private final ExecutorService workers;
+    private final int             maxTasks;
+
+    /**
+     * Creates a new holder traversal which splits the tree over the given {@link ExecutorService}.
+     * 
+     * @param workers The {@link ExecutorService} which walks split off subtrees.
+     * @param parallelism The amount of threads of the given service. At most four times as many tasks are split off at the same time.
+     */
+    public HolderTraversal(ExecutorService workers, int parallelism) {
+
+        Validate.notNull(workers, "Worker service can't be null");
+        Validate.isTrue(parallelism > 0, "Parallelism must be > 0");
+
+        this.workers = workers;
+        maxTasks = parallelism * 4;
+    }
+
+    /**
+     * Returns the children of the given {@link FeatureHolder}.
+     * Those are all {@link ChildFeatureHolder}s which are stored in its {@link Property}s (directly or inside collections, maps and arrays) and whose parent is the given holder.
+     * Every child is only returned once.
+     * 
+     * @param holder The {@link FeatureHolder} whose children should be returned.
+     * @return The children of the given holder.
+     */
+    public static List<FeatureHolder> getChildren(FeatureHolder holder) {
+
+        Set<FeatureHolder> children = Collections.newSetFromMap(new IdentityHashMap<FeatureHolder, Boolean>());
+        for (Feature feature : holder) {
+            if (feature instanceof Property) {
+                addChildren(holder, ((Property<?>) feature).get(), children);
+            }
+        }
+        return new ArrayList<FeatureHolder>(children);
+    }
+
+    private static void addChildren(FeatureHolder parent, Object value, Set<FeatureHolder> children) {
+
+        if (value instanceof ChildFeatureHolder) {
+            if ( ((ChildFeatureHolder<?>) value).getParent() == parent) {
+                children.add((FeatureHolder) value);
+            }
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                addChildren(parent, element, children);
+            }
+        } else if (value instanceof Map) {
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                addChildren(parent, entry.getKey(), children);
+                addChildren(parent, entry.getValue(), children);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                addChildren(parent, element, children);
+            }
+        }
+    }
+
+    /**
+     * Visits all {@link FeatureHolder}s of the tree which starts at the given root with the given {@link Visitor}.
+     * A holder is always visited before its children. If the visitor skips a holder, its children aren't visited.
+     * If the visitor throws an exception, no new holders are visited and the exception is rethrown after all running tasks completed.
+     * 
+     * @param root The root {@link FeatureHolder} of the tree which should be visited.
+     * @param visitor The {@link Visitor} which is called for every holder. It must be thread-safe.
+     * @return The amount of visited holders.
+     * @throws RejectedExecutionException The {@link ExecutorService} doesn't accept any more tasks.
+     */
+    public int traverse(FeatureHolder root, Visitor visitor) {
+
+        Walk walk = new Walk(root, visitor);
+        walk.new Task(root).run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                walk.done.await();
+                break;
+            } catch (InterruptedException e) {
+                // The running tasks can't be cancelled, so they are still awaited
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable failure = walk.failure.get();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return walk.visited.get();
+    }
+
+    /**
+     * Returns the amount of {@link FeatureHolder}s of the tree which starts at the given root, including the root itself.
+     * 
+     * @param root The root {@link FeatureHolder} of the tree.
+     * @return The amount of holders in the tree.
+     */
+    public int count(FeatureHolder root) {
+
+        return traverse(root, new Visitor() {
+
+            @Override
+            public boolean visit(FeatureHolder holder) {
+
+                return true;
+            }
+
+        });
+    }
+
+    /**
+     * Locks or unlocks all {@link FeatureHolder}s of the tree which starts at the given root (see {@link LockableClass#setLocked(boolean)}).
+     * Holders which aren't {@link LockableClass}es are skipped, but their children are still locked or unlocked.
+     * 
+     * @param root The root {@link FeatureHolder} of the tree.
+     * @param locked True if the holders should be locked, false if they should be unlocked.
+     * @return The amount of holders in the tree.
+     */
+    public int setLocked(FeatureHolder root, final boolean locked) {
+
+        return traverse(root, new Visitor() {
+
+            @Override
+            public boolean visit(FeatureHolder holder) {
+
+                if (holder instanceof LockableClass) {
+                    ((LockableClass) holder).setLocked(locked);
+                }
+                return true;
+            }
+
+        });
+    }
+
+    /**
+     * Returns all {@link FeatureHolder}s of the tree which starts at the given root and are accepted by the given {@link Filter}.
+     * For example, this can be used for validating a tree by collecting all invalid holders.
+     * The order of the returned holders is undefined.
+     * 
+     * @param root The root {@link FeatureHolder} of the tree.
+     * @param filter The {@link Filter} which decides which holders are returned. It must be thread-safe.
+     * @return All accepted holders of the tree.
+     */
+    public List<FeatureHolder> collect(FeatureHolder root, final Filter filter) {
+
+        final Queue<FeatureHolder> accepted = new ConcurrentLinkedQueue<FeatureHolder>();
+        traverse(root, new Visitor() {
+
+            @Override
+            public boolean visit(FeatureHolder holder) {
+
+                if (filter.accept(holder)) {
+                    accepted.add(holder);
+                }
+                return true;
+            }
+
+        });
+        return new ArrayList<FeatureHolder>(accepted);
+    }
+
+    /**
+     * A visitor is called for every {@link FeatureHolder} a {@link HolderTraversal} reaches.
+     * Since the traversal runs in parallel, the visitor is called by multiple threads concurrently and must be thread-safe.
+     * 
+     * @see HolderTraversal#traverse(FeatureHolder, Visitor)
+     */
+    public static interface Visitor {
+
+        /**
+         * Visits the given {@link FeatureHolder}. This is called before the children of the holder are visited.
+         * 
+         * @param holder The {@link FeatureHolder} which is visited.
+         * @return True if the children of the holder should be visited, false if the whole subtree should be skipped.
+         */
+        public boolean visit(FeatureHolder holder);
+
+    }
+
+    /**
+     * A filter decides which {@link FeatureHolder}s are returned by {@link HolderTraversal#collect(FeatureHolder, Filter)}.
+     * Since the traversal runs in parallel, the filter is called by multiple threads concurrently and must be thread-safe.
+     * 
+     * @see HolderTraversal#collect(FeatureHolder, Filter)
+     */
+    public static interface Filter {
+
+        /**
+         * Returns whether the given {@link FeatureHolder} should be collected.
+         * 
+         * @param holder The {@link FeatureHolder} to check.
+         * @return True if the holder should be collected, false if not.
+         */
+        public boolean accept(FeatureHolder holder);
+
+    }
+
+    /*
+     * The state of one traversal; it completes when the last task finished.
+     */
+    private class Walk {
+
+        private final FeatureHolder              root;
+        private final Visitor                    visitor;
+        // The initial task is run by the thread which started the traversal
+        private final AtomicInteger              pending = new AtomicInteger(1);
+        private final CountDownLatch             done    = new CountDownLatch(1);
+        private final AtomicInteger              visited = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private Walk(FeatureHolder root, Visitor visitor) {
+
+            this.root = root;
+            this.visitor = visitor;
+        }
+
+        private void fork(FeatureHolder holder) {
+
+            pending.incrementAndGet();
+            try {
+                workers.execute(new Task(holder));
+            } catch (RejectedExecutionException e) {
+                complete();
+                throw e;
+            }
+        }
+
+        private void complete() {
+
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        private class Task implements Runnable {
+
+            private final FeatureHolder start;
+
+            private Task(FeatureHolder start) {
+
+                this.start = start;
+            }
+
+            @Override
+            public void run() {
+
+                try {
+                    walk();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    complete();
+                }
+            }
+
+            private void walk() {
+
+                Deque<FeatureHolder> stack = new ArrayDeque<FeatureHolder>();
+                stack.push(start);
+                while (!stack.isEmpty() && failure.get() == null) {
+                    FeatureHolder holder = stack.pop();
+                    visited.incrementAndGet();
+                    if (!visitor.visit(holder)) {
+                        continue;
+                    }
+
+                    for (FeatureHolder child : getChildren(holder)) {
+                        if (child == root) {
+                            continue;
+                        }
+
+                        // Keep one subtree for this task and split off the others while there are free workers
+                        if (!stack.isEmpty() && pending.get() < maxTasks) {
+                            fork(child);
+                        } else {
+                            stack.push(child);
+                        }
+                    }
+                }
+            }
+
+        }
+
+    }
+
+}
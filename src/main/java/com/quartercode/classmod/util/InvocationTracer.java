@@ -0,0 +1,451 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ * 
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionExecutorContext;
+import com.quartercode.classmod.extra.FunctionInvocation;
+
+/**
+ * The invocation tracer records the logical call stacks of {@link Function} invocations.
+ * Normal profilers only see a deep recursion of {@link FunctionInvocation#next(Object...)} calls.
+ * The tracer instead records stacks like "holder function; executor; nested holder function; nested executor".
+ * {@link FunctionExecutor}s of the same invocation chain are recorded as siblings, so the time an executor spends in the rest of the chain is not attributed to it.
+ * The recorded stacks can be exported in the collapsed stack format which is used by flame graph tools.
+ * 
+ * There are two modes:
+ * 
+ * <ul>
+ * <li><b>Tracing</b> ({@link #startTracing()}): Every invocation is measured and the self time of every stack is recorded in nanoseconds.</li>
+ * <li><b>Sampling</b> ({@link #startSampling(long, TimeUnit)}): A background thread periodically counts the stacks the traced threads are currently in.</li>
+ * </ul>
+ * 
+ * While the tracer is inactive, the hooks only cost one volatile read.
+ * 
+ * @see Function
+ * @see FunctionInvocation
+ */
+public class InvocationTracer {
+
+    private static final ThreadLocal<ThreadTrace> TRACES  = new ThreadLocal<ThreadTrace>() {
+
+                                                              @Override
+                                                              protected ThreadTrace initialValue() {
+
+                                                                  // Registering a new thread is rare, so that's a good time for removing the finished ones
+                                                                  pruneThreads();
+                                                                  ThreadTrace trace = new ThreadTrace();
+                                                                  THREADS.add(trace);
+                                                                  return trace;
+                                                              }
+
+                                                          };
+    private static final List<ThreadTrace>        THREADS = new CopyOnWriteArrayList<ThreadTrace>();
+    // Contains the merged data of all threads which finished
+    private static final Node                     RETIRED = new Node(null, null);
+
+    private static volatile boolean               active;
+    private static volatile boolean               sampling;
+    private static Thread                         sampler;
+
+    /**
+     * Starts the tracing mode, which measures the self time of every logical stack in nanoseconds.
+     * If the tracer is already active, it is stopped and restarted in the tracing mode.
+     * Note that already recorded data isn't removed. Use {@link #reset()} for doing that.
+     */
+    public static synchronized void startTracing() {
+
+        stop();
+
+        sampling = false;
+        active = true;
+    }
+
+    /**
+     * Starts the sampling mode, which counts the logical stacks the traced threads are in every given interval.
+     * If the tracer is already active, it is stopped and restarted in the sampling mode.
+     * Note that already recorded data isn't removed. Use {@link #reset()} for doing that.
+     * 
+     * @param interval The interval between two samples.
+     * @param unit The {@link TimeUnit} of the interval.
+     */
+    public static synchronized void startSampling(long interval, TimeUnit unit) {
+
+        Validate.isTrue(interval > 0, "Sampling interval must be > 0");
+
+        stop();
+
+        sampling = true;
+        active = true;
+
+        sampler = new Thread(new Sampler(unit.toNanos(interval)), "Classmod Invocation Sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Stops the tracer. The recorded data stays available until {@link #reset()} is called.
+     * Invocations which are running while the tracer is stopped are still recorded until they return.
+     * The data of threads which finished is merged, so the tracer doesn't keep a trace for every thread which was ever traced.
+     */
+    public static synchronized void stop() {
+
+        active = false;
+
+        if (sampler != null) {
+            sampler.interrupt();
+            sampler = null;
+        }
+
+        pruneThreads();
+    }
+
+    /*
+     * Merges the traces of all threads which finished into the retired data and removes them.
+     */
+    private static synchronized void pruneThreads() {
+
+        for (ThreadTrace trace : THREADS) {
+            Thread thread = trace.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                merge(trace.root, RETIRED);
+                THREADS.remove(trace);
+            }
+        }
+    }
+
+    private static void merge(Node from, Node to) {
+
+        to.value += from.value;
+        for (Entry<String, Node> child : from.children.entrySet()) {
+            merge(child.getValue(), to.getChild(child.getKey()));
+        }
+    }
+
+    /**
+     * Returns whether the tracer is currently recording new invocations.
+     * 
+     * @return True if the tracer is active, false if not.
+     */
+    public static boolean isActive() {
+
+        return active;
+    }
+
+    /**
+     * Removes all recorded data from all threads.
+     */
+    public static synchronized void reset() {
+
+        pruneThreads();
+        reset(RETIRED);
+        RETIRED.children.clear();
+        for (ThreadTrace trace : THREADS) {
+            reset(trace.root);
+        }
+    }
+
+    private static void reset(Node node) {
+
+        node.value = 0;
+        for (Node child : node.children.values()) {
+            reset(child);
+        }
+    }
+
+    /**
+     * Returns all recorded logical stacks in the collapsed format along with their values.
+     * The frames of a stack are separated by semicolons (e.g. "Computer.boot;default;OperatingSystem.start;default").
+     * The value is the self time in nanoseconds for the tracing mode and the amount of samples for the sampling mode.
+     * Stacks which are recorded by multiple threads are merged.
+     * 
+     * @return All recorded stacks (keys) and their values (values) in alphabetical order.
+     */
+    public static Map<String, Long> getCollapsedStacks() {
+
+        Map<String, Long> stacks = new TreeMap<String, Long>();
+        for (Node child : RETIRED.children.values()) {
+            collect(child, child.name, stacks);
+        }
+        for (ThreadTrace trace : THREADS) {
+            for (Node child : trace.root.children.values()) {
+                collect(child, child.name, stacks);
+            }
+        }
+        return stacks;
+    }
+
+    private static void collect(Node node, String path, Map<String, Long> stacks) {
+
+        long value = node.value;
+        if (value > 0) {
+            Long oldValue = stacks.get(path);
+            stacks.put(path, oldValue == null ? value : oldValue + value);
+        }
+
+        for (Node child : node.children.values()) {
+            collect(child, path + ";" + child.name, stacks);
+        }
+    }
+
+    /**
+     * Writes all recorded logical stacks in the collapsed format to the given {@link Writer}.
+     * Every line contains a stack, followed by a space and its value (see {@link #getCollapsedStacks()}).
+     * The output can be directly used by flame graph tools like "flamegraph.pl".
+     * 
+     * @param writer The {@link Writer} the collapsed stacks should be written to.
+     * @throws IOException Something goes wrong while writing to the given {@link Writer}.
+     */
+    public static void writeCollapsedStacks(Writer writer) throws IOException {
+
+        for (Entry<String, Long> stack : getCollapsedStacks().entrySet()) {
+            writer.write(stack.getKey());
+            writer.write(' ');
+            writer.write(String.valueOf(stack.getValue()));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Records that the given {@link Function} is being invoked by the current thread.
+     * This should be called by {@link Function} implementations at the beginning of {@link Function#invoke(Object...)}.
+     * If the method returns true, {@link #exitFunction()} must be called after the invocation returned.
+     * 
+     * @param function The {@link Function} which is being invoked.
+     * @return Whether the invocation is recorded and {@link #exitFunction()} must be called.
+     */
+    public static boolean enterFunction(Function<?> function) {
+
+        if (!active) {
+            return false;
+        }
+
+        ThreadTrace trace = TRACES.get();
+        trace.enter(trace.current.getChild(getFrameName(function)), false);
+        return true;
+    }
+
+    /**
+     * Records that the {@link Function} which was passed to the last {@link #enterFunction(Function)} call returned.
+     */
+    public static void exitFunction() {
+
+        TRACES.get().exit();
+    }
+
+    /**
+     * Records that the given {@link FunctionExecutorContext} is being invoked by the current thread.
+     * This should be called by {@link FunctionInvocation} implementations before an executor of the chain is invoked.
+     * If the method returns true, {@link #exitExecutor()} must be called after the executor returned.
+     * 
+     * @param executor The {@link FunctionExecutorContext} which is being invoked.
+     * @return Whether the invocation is recorded and {@link #exitExecutor()} must be called.
+     */
+    public static boolean enterExecutor(FunctionExecutorContext<?> executor) {
+
+        if (!active) {
+            return false;
+        }
+
+        ThreadTrace trace = TRACES.get();
+        if (trace.depth == 0) {
+            // The executor wasn't invoked by a traced function
+            return false;
+        }
+
+        // Executors of the same chain are siblings, so the parent of the invoking executor is used
+        Node parent = trace.isExecutorFrame() ? trace.current.parent : trace.current;
+        trace.enter(parent.getChild(executor.getName()), true);
+        return true;
+    }
+
+    /**
+     * Records that the {@link FunctionExecutorContext} which was passed to the last {@link #enterExecutor(FunctionExecutorContext)} call returned.
+     */
+    public static void exitExecutor() {
+
+        TRACES.get().exit();
+    }
+
+    private static String getFrameName(Function<?> function) {
+
+        FeatureHolder holder = function.getHolder();
+        String holderName = "?";
+        if (holder != null) {
+            holderName = holder.getClass().getSimpleName();
+            if (holderName.isEmpty()) {
+                holderName = holder.getClass().getName();
+                holderName = holderName.substring(holderName.lastIndexOf('.') + 1);
+            }
+        }
+
+        return holderName + "." + function.getName();
+    }
+
+    private InvocationTracer() {
+
+    }
+
+    private static class Node {
+
+        private final String                      name;
+        private final Node                        parent;
+        private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+        private volatile long                     value;
+
+        private Node(String name, Node parent) {
+
+            this.name = name;
+            this.parent = parent;
+        }
+
+        private Node getChild(String name) {
+
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node(name.replace(';', '_').replace(' ', '_'), this);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+    }
+
+    private static class ThreadTrace {
+
+        // Segments which were started while sampling don't have a start time
+        private static final long           NO_START       = Long.MIN_VALUE;
+
+        // Created by the traced thread; weak, so finished threads can be collected
+        private final WeakReference<Thread> thread         = new WeakReference<Thread>(Thread.currentThread());
+        private final Node                  root           = new Node(null, null);
+        private volatile Node               current        = root;
+
+        private int                         depth;
+        private Node[]                      nodes          = new Node[16];
+        private boolean[]                   executorFrames = new boolean[16];
+        private long[]                      segmentStarts  = new long[16];
+
+        private boolean isExecutorFrame() {
+
+            return depth > 0 && executorFrames[depth - 1];
+        }
+
+        private void enter(Node node, boolean executor) {
+
+            long time = sampling ? NO_START : System.nanoTime();
+            pause(time);
+
+            if (depth == nodes.length) {
+                grow();
+            }
+
+            nodes[depth] = node;
+            executorFrames[depth] = executor;
+            segmentStarts[depth] = time;
+            depth++;
+            current = node;
+        }
+
+        private void exit() {
+
+            long time = sampling ? NO_START : System.nanoTime();
+            pause(time);
+
+            depth--;
+            nodes[depth] = null;
+            if (depth == 0) {
+                current = root;
+            } else {
+                current = nodes[depth - 1];
+                segmentStarts[depth - 1] = time;
+            }
+        }
+
+        private void pause(long time) {
+
+            // Segments which were started in the sampling mode are ignored when the tracing mode was started in between
+            if (depth > 0 && time != NO_START && segmentStarts[depth - 1] != NO_START) {
+                current.value += time - segmentStarts[depth - 1];
+            }
+        }
+
+        private void grow() {
+
+            Node[] newNodes = new Node[depth * 2];
+            System.arraycopy(nodes, 0, newNodes, 0, depth);
+            nodes = newNodes;
+
+            boolean[] newExecutorFrames = new boolean[depth * 2];
+            System.arraycopy(executorFrames, 0, newExecutorFrames, 0, depth);
+            executorFrames = newExecutorFrames;
+
+            long[] newSegmentStarts = new long[depth * 2];
+            System.arraycopy(segmentStarts, 0, newSegmentStarts, 0, depth);
+            segmentStarts = newSegmentStarts;
+        }
+
+    }
+
+    private static class Sampler implements Runnable {
+
+        private final long interval;
+
+        private Sampler(long interval) {
+
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    TimeUnit.NANOSECONDS.sleep(interval);
+
+                    for (ThreadTrace trace : THREADS) {
+                        Node current = trace.current;
+                        if (current != trace.root) {
+                            current.value++;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stop sampling
+            }
+        }
+
+    }
+
+}
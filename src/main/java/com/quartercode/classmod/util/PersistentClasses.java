@@ -0,0 +1,111 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.Persistent;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+
+/**
+ * A utility class which stores whether {@link Feature} classes are {@link Persistent} and which classes must be known for persisting graphs.
+ * The {@link Persistent} annotation of a class is only reflected once; after that, the cached result is used.
+ * Classes (e.g. custom feature holders) and the persistent feature classes of {@link FeatureDefinition}s can be registered,
+ * so they don't have to be passed to every JAXB context by hand. Classes aren't registered automatically when they are found to be persistent
+ * since not every persistent class can be handled by JAXB (e.g. ones which are only written by the binary engines).
+ * All methods are thread-safe.
+ * 
+ * @see Persistent
+ */
+public class PersistentClasses {
+
+    private static final ConcurrentMap<Class<?>, Boolean> PERSISTENT = new ConcurrentHashMap<Class<?>, Boolean>();
+    private static final Set<Class<?>>                    CLASSES    = new LinkedHashSet<Class<?>>();
+
+    /**
+     * Returns whether the given {@link Feature} class is annotated with {@link Persistent}.
+     * The result is cached, so the annotation isn't reflected again for every feature.
+     * 
+     * @param type The {@link Feature} class to check.
+     * @return True if the given class is {@link Persistent}, false if not.
+     */
+    public static boolean isPersistent(Class<?> type) {
+
+        Boolean persistent = PERSISTENT.get(type);
+        if (persistent == null) {
+            persistent = type.isAnnotationPresent(Persistent.class);
+            PERSISTENT.putIfAbsent(type, persistent);
+        }
+        return persistent;
+    }
+
+    /**
+     * Registers the given classes, so they are returned by {@link #getClasses()}.
+     * That's useful for classes which aren't features, like custom feature holders.
+     * 
+     * @param types The classes which should be registered.
+     */
+    public static void register(Class<?>... types) {
+
+        synchronized (CLASSES) {
+            Collections.addAll(CLASSES, types);
+        }
+    }
+
+    /**
+     * Registers the {@link Feature} class which is created by the given {@link FeatureDefinition} if it's {@link Persistent}.
+     * For finding the class, a feature is created for a temporary {@link FeatureHolder}.
+     * 
+     * @param definition The {@link FeatureDefinition} whose feature class should be registered.
+     * @return True if the feature class is {@link Persistent} and was registered, false if not.
+     */
+    public static boolean register(FeatureDefinition<?> definition) {
+
+        Feature feature = definition.create(new DefaultFeatureHolder());
+        if (feature != null && isPersistent(feature.getClass())) {
+            register(feature.getClass());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns all classes which were registered so far.
+     * The returned set is a copy which is ordered by the time of registration.
+     * 
+     * @return All registered classes.
+     */
+    public static Set<Class<?>> getClasses() {
+
+        synchronized (CLASSES) {
+            return new LinkedHashSet<Class<?>>(CLASSES);
+        }
+    }
+
+    private PersistentClasses() {
+
+    }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureObserver;
+import com.quartercode.classmod.base.def.AbstractFeature;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.extra.def.ComputedProperty;
+import com.quartercode.classmod.util.Flow.Publisher;
+import com.quartercode.classmod.util.Flow.Subscriber;
+import com.quartercode.classmod.util.Flow.Subscription;
+
+/**
+ * A property publisher pushes the changes of watched {@link Property}s to its {@link Subscriber}s, so they don't need to poll the properties.
+ * Every item is a batch of {@link Change}s which contain the changed properties and their latest values, in the order the properties were first changed.
+ * All property implementations which are derived from {@link AbstractFeature} can be watched (including transient and collection properties).
+ * 
+ * Changes are collected per subscriber until it requested another item (backpressure).
+ * If a property changes multiple times in the meantime, only its latest value is delivered (conflation).
+ * A batch contains at most a configured amount of properties; further changes are delivered with the following items.
+ * The items are delivered by the given {@link Executor}, while the methods of one subscriber are never called concurrently.
+ * Note that the values are delivered as they are, so stored collections should only be read by subscribers.
+ * 
+ * @see Flow
+ */
+public class PropertyPublisher implements Publisher<List<PropertyPublisher.Change>> {
+
+    private static final Logger                 LOGGER        = Logger.getLogger(PropertyPublisher.class.getName());
+
+    private final Executor                      executor;
+    private final int                           maxBatchSize;
+    private final FeatureObserver               observer      = new PublishingObserver();
+    // Identity, because the hash codes of properties depend on their values
+    private final Map<AbstractFeature, Boolean> properties    = new IdentityHashMap<AbstractFeature, Boolean>();
+    private final List<PropertySubscription>    subscriptions = new CopyOnWriteArrayList<PropertySubscription>();
+    private volatile boolean                    closed;
+
+    /**
+     * Creates a new property publisher which delivers its items through the given {@link Executor}.
+     * 
+     * @param executor The {@link Executor} which calls the {@link Subscriber}s.
+     * @param maxBatchSize The maximum amount of changed properties one item contains.
+     */
+    public PropertyPublisher(Executor executor, int maxBatchSize) {
+
+        Validate.notNull(executor, "Delivery executor can't be null");
+        Validate.isTrue(maxBatchSize > 0, "Maximum batch size must be > 0");
+
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Starts watching the given {@link Property}, so its changes are published.
+     * 
+     * @param property The {@link Property} to watch. It must be an {@link AbstractFeature}.
+     */
+    public void watch(Property<?> property) {
+
+        Validate.isTrue(property instanceof AbstractFeature, "Only abstract features can be watched");
+        Validate.isTrue(!closed, "Property publisher is closed");
+
+        synchronized (properties) {
+            if (properties.put((AbstractFeature) property, Boolean.TRUE) == null) {
+                ((AbstractFeature) property).addObserver(observer);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the given {@link Property}. Changes which were already collected are still delivered.
+     * 
+     * @param property The {@link Property} which shouldn't be watched any longer.
+     */
+    public void unwatch(Property<?> property) {
+
+        synchronized (properties) {
+            if (properties.remove(property) != null) {
+                ((AbstractFeature) property).removeObserver(observer);
+            }
+        }
+    }
+
+    /**
+     * Returns the amount of {@link Subscriber}s whose subscriptions are still running.
+     * 
+     * @return The amount of current subscribers.
+     */
+    public int getSubscriberCount() {
+
+        return subscriptions.size();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super List<Change>> subscriber) {
+
+        Validate.notNull(subscriber, "Subscriber can't be null");
+
+        PropertySubscription subscription = new PropertySubscription(subscriber);
+        subscriptions.add(subscription);
+        if (closed) {
+            subscription.complete();
+        }
+        // Calls onSubscribe() on the delivery executor
+        subscription.schedule();
+    }
+
+    /**
+     * Stops watching all {@link Property}s and completes all subscriptions after their collected changes were delivered.
+     */
+    public void close() {
+
+        closed = true;
+
+        synchronized (properties) {
+            for (AbstractFeature property : properties.keySet()) {
+                property.removeObserver(observer);
+            }
+            properties.clear();
+        }
+
+        for (PropertySubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * A change is an element of the batches a {@link PropertyPublisher} publishes.
+     * It contains a changed {@link Property} and the latest value of it at the time the batch was collected.
+     */
+    public static class Change {
+
+        private final Property<?> property;
+        private final Object      value;
+
+        private Change(Property<?> property, Object value) {
+
+            this.property = property;
+            this.value = value;
+        }
+
+        /**
+         * Returns the {@link Property} which was changed.
+         * 
+         * @return The changed property.
+         */
+        public Property<?> getProperty() {
+
+            return property;
+        }
+
+        /**
+         * Returns the latest value of the changed {@link Property}. Intermediate values are skipped.
+         * 
+         * @return The latest value.
+         */
+        public Object getValue() {
+
+            return value;
+        }
+
+        @Override
+        public String toString() {
+
+            return getClass().getName() + " [property=" + property.getName() + ", value=" + value + "]";
+        }
+
+    }
+
+    private class PublishingObserver implements FeatureObserver {
+
+        @Override
+        public void featureChanged(Feature feature) {
+
+            Property<?> property = (Property<?>) feature;
+            // The notification might be sent while a computation or transaction runs on this thread, which mustn't see this read
+            Object value = ComputedProperty.getUntracked(property);
+            for (PropertySubscription subscription : subscriptions) {
+                subscription.offer(property, value);
+            }
+        }
+
+    }
+
+    private class PropertySubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super List<Change>> subscriber;
+        // Guarded by the subscription; the order queue keeps the properties in the order of their first change
+        private final Map<Property<?>, Object>         pending = new IdentityHashMap<Property<?>, Object>();
+        private final Queue<Property<?>>               order   = new ArrayDeque<Property<?>>();
+        private long                                   demand;
+        private boolean                                scheduled;
+        private boolean                                completed;
+        private boolean                                terminated;
+        private Throwable                              error;
+        // Only accessed by the delivering thread
+        private boolean                                started;
+
+        private PropertySubscription(Subscriber<? super List<Change>> subscriber) {
+
+            this.subscriber = subscriber;
+        }
+
+        private void offer(Property<?> property, Object value) {
+
+            synchronized (this) {
+                if (terminated) {
+                    return;
+                }
+
+                // Replacing the value keeps the position of the property
+                if (!pending.containsKey(property)) {
+                    order.add(property);
+                }
+                pending.put(property, value);
+                if (demand == 0) {
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        private void complete() {
+
+            synchronized (this) {
+                completed = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+
+            synchronized (this) {
+                if (n <= 0) {
+                    error = new IllegalArgumentException("Amount of requested items must be > 0");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+
+            synchronized (this) {
+                terminated = true;
+                pending.clear();
+                order.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        private void schedule() {
+
+            synchronized (this) {
+                if (scheduled || terminated) {
+                    return;
+                }
+                scheduled = true;
+            }
+
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                deliver();
+            } catch (RuntimeException e) {
+                // The subscriber violated the protocol, so it doesn't receive anything else
+                LOGGER.log(Level.WARNING, "Subscriber " + subscriber + " threw an exception; cancelling its subscription", e);
+                cancel();
+            }
+        }
+
+        private void deliver() {
+
+            if (!started) {
+                started = true;
+                subscriber.onSubscribe(this);
+            }
+
+            while (true) {
+                List<Change> batch = null;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (terminated) {
+                        scheduled = false;
+                        return;
+                    } else if (error != null) {
+                        failure = error;
+                        terminated = true;
+                    } else if (demand > 0 && !pending.isEmpty()) {
+                        batch = takeBatch();
+                        if (demand != Long.MAX_VALUE) {
+                            demand--;
+                        }
+                    } else if (completed && pending.isEmpty()) {
+                        terminated = true;
+                    } else {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                if (batch != null) {
+                    subscriber.onNext(batch);
+                } else {
+                    subscriptions.remove(this);
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private List<Change> takeBatch() {
+
+            List<Change> batch = new ArrayList<Change>();
+            while (!order.isEmpty() && batch.size() < maxBatchSize) {
+                Property<?> property = order.poll();
+                batch.add(new Change(property, pending.remove(property)));
+            }
+            return Collections.unmodifiableList(batch);
+        }
+
+    }
+
+}
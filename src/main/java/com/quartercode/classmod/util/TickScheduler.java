@@ -0,0 +1,462 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.Delay;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionDefinition;
+
+/**
+ * The tick scheduler invokes "tick" {@link FunctionDefinition}s on a population of registered {@link FeatureHolder}s.
+ * A tick consists of {@link Phase}s which are run one after another. Each phase invokes its definitions on all holders of the matching classes.
+ * The holders are distributed over a fixed amount of shards by their stable ids (see {@link DefaultFeatureHolder#getHolderId()}).
+ * The shards of a phase are processed in parallel, and the next phase only starts after all shards of the previous one completed.
+ * Therefore, a holder is always ticked by the same shard, and all holders finished one phase before any holder enters the next one.
+ * 
+ * Like {@link Delay}ed executors, a phase can have a cadence. A phase with a delay of one is only run every second tick.
+ * Phases which aren't due are skipped completely, so their holders aren't touched at all.
+ * 
+ * Holders can be registered and unregistered at any time, even by functions which are invoked by the scheduler.
+ * However, the changes only take effect at the start of the next tick.
+ * The timings of every phase are recorded and can be retrieved through the {@link Phase} objects.
+ * 
+ * @see FunctionDefinition
+ */
+public class TickScheduler {
+
+    private final ExecutorService     workers;
+    private final Shard[]             shards;
+    private final List<Phase>         phases        = new ArrayList<Phase>();
+    private final Queue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+    private long                      ticks;
+
+    /**
+     * Creates a new tick scheduler which distributes the holders over the given amount of shards.
+     * The shards of a phase are processed by the given {@link ExecutorService} and the thread which calls {@link #tick()}.
+     * 
+     * @param workers The {@link ExecutorService} which processes the shards in parallel.
+     * @param shardCount The amount of shards the holders are distributed over. This should be about the amount of available cores.
+     */
+    public TickScheduler(ExecutorService workers, int shardCount) {
+
+        Validate.notNull(workers, "Worker service can't be null");
+        Validate.isTrue(shardCount > 0, "Shard count must be > 0");
+
+        this.workers = workers;
+        shards = new Shard[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new Shard();
+        }
+    }
+
+    /**
+     * Adds a new {@link Phase} which is run every tick.
+     * Phases are run in the order they were added.
+     * 
+     * @param name The name of the new phase, which is used for reporting the timings.
+     * @return The new phase. Tick definitions can be added to it using {@link Phase#addTick(Class, FunctionDefinition, Object...)}.
+     */
+    public Phase addPhase(String name) {
+
+        return addPhase(name, 0, 0);
+    }
+
+    /**
+     * Adds a new {@link Phase} which is only run at the given cadence. The cadence works like the {@link Delay} annotation, but it counts ticks.
+     * For example, a phase with a first delay of two and a delay of one is run on the third, fifth, seventh etc. tick.
+     * Phases are run in the order they were added.
+     * 
+     * @param name The name of the new phase, which is used for reporting the timings.
+     * @param firstDelay The amount of ticks the phase waits until it's run for the first time.
+     * @param delay The amount of ticks the phase waits until it's run again.
+     * @return The new phase. Tick definitions can be added to it using {@link Phase#addTick(Class, FunctionDefinition, Object...)}.
+     */
+    public synchronized Phase addPhase(String name, int firstDelay, int delay) {
+
+        Validate.isTrue(firstDelay >= 0, "First delay must be >= 0");
+        Validate.isTrue(delay >= 0, "Delay must be >= 0");
+
+        Phase phase = new Phase(name, firstDelay, delay);
+        phases.add(phase);
+        return phase;
+    }
+
+    /**
+     * Returns all {@link Phase}s of the tick scheduler in the order they are run.
+     * 
+     * @return All phases of the scheduler.
+     */
+    public synchronized List<Phase> getPhases() {
+
+        return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+    }
+
+    /**
+     * Registers the given {@link FeatureHolder}, so it's ticked by all phases which have tick definitions for its class.
+     * The registration takes effect at the start of the next tick.
+     * 
+     * @param holder The {@link FeatureHolder} which should be ticked.
+     */
+    public void register(FeatureHolder holder) {
+
+        registrations.add(new Registration(holder, true));
+    }
+
+    /**
+     * Unregisters the given {@link FeatureHolder}, so it's no longer ticked.
+     * The change takes effect at the start of the next tick.
+     * 
+     * @param holder The {@link FeatureHolder} which should no longer be ticked.
+     */
+    public void unregister(FeatureHolder holder) {
+
+        registrations.add(new Registration(holder, false));
+    }
+
+    /**
+     * Returns the amount of registered {@link FeatureHolder}s, without the changes which take effect at the next tick.
+     * 
+     * @return The amount of ticked holders.
+     */
+    public synchronized int getHolderCount() {
+
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.holders.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the amount of ticks which were run by {@link #tick()}.
+     * 
+     * @return The amount of completed ticks.
+     */
+    public synchronized long getTicks() {
+
+        return ticks;
+    }
+
+    /**
+     * Runs one tick. All phases which are due are run one after another.
+     * If a {@link Function} of a phase throws an {@link ExecutorInvocationException}, its shard stops and the other shards still complete, but all following phases are skipped.
+     * 
+     * @throws ExecutorInvocationException A ticked {@link Function} threw an exception. The first exception of the phase is thrown.
+     */
+    public synchronized void tick() throws ExecutorInvocationException {
+
+        applyRegistrations();
+
+        long tick = ticks++;
+        for (Phase phase : phases) {
+            if (phase.isDue(tick)) {
+                runPhase(phase);
+            }
+        }
+    }
+
+    private void applyRegistrations() {
+
+        Registration registration;
+        while ( (registration = registrations.poll()) != null) {
+            Shard shard = shards[getShard(registration.holder)];
+            if (registration.add) {
+                shard.add(registration.holder);
+            } else {
+                shard.remove(registration.holder);
+            }
+        }
+    }
+
+    private int getShard(FeatureHolder holder) {
+
+        long id = holder instanceof DefaultFeatureHolder ? ((DefaultFeatureHolder) holder).getHolderId() : System.identityHashCode(holder);
+        // Mix the id, so consecutive ids are spread evenly
+        long mixed = id * 0x9E3779B97F4A7C15L;
+        return (int) ( (mixed >>> 33) % shards.length);
+    }
+
+    private void runPhase(final Phase phase) throws ExecutorInvocationException {
+
+        long start = System.nanoTime();
+
+        // Submit all non-empty shards except for the last one, which is processed by the current thread
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        List<FeatureHolder> ownShard = null;
+        for (Shard shard : shards) {
+            if (shard.holders.isEmpty()) {
+                continue;
+            }
+            if (ownShard != null) {
+                final List<FeatureHolder> submittedShard = ownShard;
+                futures.add(workers.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws ExecutorInvocationException {
+
+                        return phase.run(submittedShard);
+                    }
+
+                }));
+            }
+            ownShard = shard.holders;
+        }
+
+        int invocations = 0;
+        ExecutorInvocationException exception = null;
+        if (ownShard != null) {
+            try {
+                invocations += phase.run(ownShard);
+            } catch (ExecutorInvocationException e) {
+                exception = e;
+            }
+        }
+
+        // Barrier: Wait for all shards, even if one of them failed
+        boolean interrupted = false;
+        for (Future<Integer> future : futures) {
+            while (true) {
+                try {
+                    invocations += future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (exception == null) {
+                        exception = e.getCause() instanceof ExecutorInvocationException ? (ExecutorInvocationException) e.getCause() : new ExecutorInvocationException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        phase.record(System.nanoTime() - start, invocations);
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * A phase of a {@link TickScheduler} invokes tick {@link FunctionDefinition}s on all registered holders of the matching classes.
+     * All holders finish a phase before the next phase is started.
+     * The phase also records its timings, so the expensive parts of a tick can be found.
+     * 
+     * @see TickScheduler
+     */
+    public static class Phase {
+
+        private final String     name;
+        private final int        firstDelay;
+        private final int        delay;
+        private final List<Tick> ticks = new ArrayList<Tick>();
+
+        private volatile int     runs;
+        private volatile long    lastTime;
+        private volatile long    totalTime;
+        private volatile int     lastInvocations;
+
+        private Phase(String name, int firstDelay, int delay) {
+
+            this.name = name;
+            this.firstDelay = firstDelay;
+            this.delay = delay;
+        }
+
+        /**
+         * Returns the name of the phase, which is used for reporting the timings.
+         * 
+         * @return The name of the phase.
+         */
+        public String getName() {
+
+            return name;
+        }
+
+        /**
+         * Adds the given tick {@link FunctionDefinition}, which is invoked on all registered holders which are instances of the given variant class.
+         * Multiple definitions of one phase are invoked on a holder in the order they were added.
+         * Note that the phase shouldn't be changed while the scheduler is ticking.
+         * 
+         * @param variant The class the ticked holders must be instances of.
+         * @param definition The {@link FunctionDefinition} whose {@link Function}s are invoked.
+         * @param arguments The arguments which are passed to every invocation.
+         * @return This phase, so calls can be chained.
+         */
+        public Phase addTick(Class<? extends FeatureHolder> variant, FunctionDefinition<?> definition, Object... arguments) {
+
+            ticks.add(new Tick(variant, definition, arguments));
+            return this;
+        }
+
+        /**
+         * Returns how many times the phase was run.
+         * 
+         * @return The amount of runs.
+         */
+        public int getRuns() {
+
+            return runs;
+        }
+
+        /**
+         * Returns the time the last run of the phase took, from the start of the first shard to the end of the barrier.
+         * 
+         * @return The duration of the last run in nanoseconds.
+         */
+        public long getLastTime() {
+
+            return lastTime;
+        }
+
+        /**
+         * Returns the time all runs of the phase took together.
+         * 
+         * @return The total duration of all runs in nanoseconds.
+         */
+        public long getTotalTime() {
+
+            return totalTime;
+        }
+
+        /**
+         * Returns the amount of {@link Function}s which were invoked by the last run of the phase.
+         * 
+         * @return The amount of invocations of the last run.
+         */
+        public int getLastInvocations() {
+
+            return lastInvocations;
+        }
+
+        private boolean isDue(long tick) {
+
+            if (tick < firstDelay) {
+                return false;
+            }
+            return delay == 0 || (tick - firstDelay) % (delay + 1) == 0;
+        }
+
+        private int run(List<FeatureHolder> shard) throws ExecutorInvocationException {
+
+            int invocations = 0;
+            for (FeatureHolder holder : shard) {
+                for (Tick tick : ticks) {
+                    if (tick.variant.isInstance(holder)) {
+                        holder.get(tick.definition).invoke(tick.arguments);
+                        invocations++;
+                    }
+                }
+            }
+            return invocations;
+        }
+
+        // Only called by the ticking thread after the barrier
+        private void record(long time, int invocations) {
+
+            runs++;
+            lastTime = time;
+            totalTime += time;
+            lastInvocations = invocations;
+        }
+
+        @Override
+        public String toString() {
+
+            return getClass().getName() + " [name=" + name + ", runs=" + runs + ", lastTime=" + lastTime + ", totalTime=" + totalTime + "]";
+        }
+
+    }
+
+    private static class Shard {
+
+        private final List<FeatureHolder>         holders = new ArrayList<FeatureHolder>();
+        // The holders are compared by identity, since the equality of holders is expensive
+        private final Map<FeatureHolder, Integer> indices = new IdentityHashMap<FeatureHolder, Integer>();
+
+        private void add(FeatureHolder holder) {
+
+            if (!indices.containsKey(holder)) {
+                indices.put(holder, holders.size());
+                holders.add(holder);
+            }
+        }
+
+        private void remove(FeatureHolder holder) {
+
+            Integer index = indices.remove(holder);
+            if (index != null) {
+                // The order inside a shard doesn't matter, so the last holder fills the gap
+                FeatureHolder last = holders.remove(holders.size() - 1);
+                if (last != holder) {
+                    holders.set(index, last);
+                    indices.put(last, index);
+                }
+            }
+        }
+
+    }
+
+    private static class Tick {
+
+        private final Class<? extends FeatureHolder> variant;
+        private final FunctionDefinition<?>          definition;
+        private final Object[]                       arguments;
+
+        private Tick(Class<? extends FeatureHolder> variant, FunctionDefinition<?> definition, Object[] arguments) {
+
+            this.variant = variant;
+            this.definition = definition;
+            this.arguments = arguments;
+        }
+
+    }
+
+    private static class Registration {
+
+        private final FeatureHolder holder;
+        private final boolean       add;
+
+        private Registration(FeatureHolder holder, boolean add) {
+
+            this.holder = holder;
+            this.add = add;
+        }
+
+    }
+
+}
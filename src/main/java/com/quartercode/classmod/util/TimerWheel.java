@@ -0,0 +1,302 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang.Validate;
+import com.quartercode.classmod.base.ChangeListener;
+
+/**
+ * A timer wheel expires large amounts of {@link Timer}s with constant costs per timer, no matter how far their deadlines are in the future.
+ * Time is divided into ticks of a fixed resolution. The wheel has four levels of 64 slots each; the first level has one slot per tick, and every slot of the
+ * next level covers a whole turn of the previous one. A timer is put into the slot of the lowest level which can represent its deadline and moves to the lower
+ * levels while its deadline comes closer. Timers which are farther away than the highest level can represent wait in an overflow list.
+ * 
+ * The wheel doesn't use its own thread. Instead, its time is moved forward through {@link #advance(long)} (e.g. by a tick phase or a scheduled task),
+ * which expires all due timers. Expirations happen inside one change batch (see {@link ChangeListeners}), so {@link ChangeListener}s observe them coalesced.
+ * Timers expire at the first advance which reaches their deadline, never earlier.
+ * 
+ * @see Timer
+ */
+public class TimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS     = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS    = 4;
+
+    private final long       resolution;
+    // Guarded by the wheel
+    private final Timer[][]  slots     = new Timer[LEVELS][SLOTS];
+    private Timer            overflow;
+    private long             currentTick;
+    private int              size;
+    private volatile long    time;
+
+    /**
+     * Creates a new timer wheel with the given resolution whose time starts at the given value.
+     * The unit of all times is defined by the user (e.g. milliseconds or simulation ticks).
+     * 
+     * @param resolution The length of one tick. Timers expire at the end of the tick their deadline is in.
+     * @param startTime The initial time of the wheel.
+     */
+    public TimerWheel(long resolution, long startTime) {
+
+        Validate.isTrue(resolution > 0, "Resolution must be > 0");
+
+        this.resolution = resolution;
+        time = startTime;
+        currentTick = Math.max(startTime, 0) / resolution;
+    }
+
+    /**
+     * Returns the current time of the wheel, which is the time of the last {@link #advance(long)} call.
+     * 
+     * @return The current time.
+     */
+    public long getTime() {
+
+        return time;
+    }
+
+    /**
+     * Returns the amount of {@link Timer}s which are currently scheduled.
+     * 
+     * @return The amount of pending timers.
+     */
+    public synchronized int getSize() {
+
+        return size;
+    }
+
+    /**
+     * Schedules the given {@link Timer} so it expires at the given deadline. If the timer is already scheduled, it's moved to the new deadline.
+     * 
+     * @param timer The {@link Timer} to schedule.
+     * @param deadline The time at which the timer should expire.
+     */
+    public synchronized void schedule(Timer timer, long deadline) {
+
+        if (timer.level != Timer.UNSCHEDULED) {
+            unlink(timer);
+            size--;
+        }
+
+        timer.deadline = deadline;
+        // Round up, so the timer never expires before its deadline
+        timer.deadlineTick = deadline <= 0 ? 0 : (deadline - 1) / resolution + 1;
+        size++;
+        place(timer);
+    }
+
+    /**
+     * Cancels the given {@link Timer}, so it doesn't expire. If the timer isn't scheduled, nothing happens.
+     * 
+     * @param timer The {@link Timer} to cancel.
+     */
+    public synchronized void cancel(Timer timer) {
+
+        if (timer.level != Timer.UNSCHEDULED) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Moves the time of the wheel forward to the given time and expires all {@link Timer}s whose deadlines were reached.
+     * The timers are expired by the calling thread after the wheel was updated, inside one change batch.
+     * If the given time isn't after the current one, only the timers which were scheduled with past deadlines are expired.
+     * 
+     * @param newTime The new time of the wheel.
+     * @return The amount of expired timers.
+     */
+    public int advance(long newTime) {
+
+        List<Timer> expired = new ArrayList<Timer>();
+        synchronized (this) {
+            if (newTime > time) {
+                time = newTime;
+            }
+
+            collect(slots[0][(int) (currentTick & SLOT_MASK)], expired);
+            long targetTick = Math.max(time, 0) / resolution;
+            if (size == expired.size()) {
+                // Nothing else is scheduled, so the ticks in between don't need to be visited
+                currentTick = Math.max(currentTick, targetTick);
+            }
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade();
+                collect(slots[0][(int) (currentTick & SLOT_MASK)], expired);
+            }
+            size -= expired.size();
+        }
+
+        if (!expired.isEmpty()) {
+            ChangeListeners.beginBatch();
+            try {
+                for (Timer timer : expired) {
+                    timer.expire();
+                }
+            } finally {
+                ChangeListeners.endBatch();
+            }
+        }
+        return expired.size();
+    }
+
+    private void cascade() {
+
+        // Higher levels are moved first, so their timers can fall through multiple levels at once
+        if ( (currentTick & (1L << SLOT_BITS * LEVELS) - 1) == 0) {
+            Timer timers = overflow;
+            overflow = null;
+            replace(timers);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ( (currentTick & (1L << SLOT_BITS * level) - 1) == 0) {
+                int slot = (int) (currentTick >>> SLOT_BITS * level & SLOT_MASK);
+                Timer timers = slots[level][slot];
+                slots[level][slot] = null;
+                replace(timers);
+            }
+        }
+    }
+
+    private void replace(Timer timers) {
+
+        Timer timer = timers;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.previous = null;
+            timer.next = null;
+            place(timer);
+            timer = next;
+        }
+    }
+
+    private void place(Timer timer) {
+
+        long delta = timer.deadlineTick - currentTick;
+        if (delta <= 0) {
+            // Already due; it's expired by the next advance
+            link(timer, 0, (int) (currentTick & SLOT_MASK));
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << SLOT_BITS * (level + 1)) {
+                link(timer, level, (int) (timer.deadlineTick >>> SLOT_BITS * level & SLOT_MASK));
+                return;
+            }
+        }
+        link(timer, LEVELS, 0);
+    }
+
+    private void collect(Timer timers, List<Timer> expired) {
+
+        Timer timer = timers;
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.deadlineTick <= currentTick) {
+                unlink(timer);
+                expired.add(timer);
+            }
+            timer = next;
+        }
+    }
+
+    private void link(Timer timer, int level, int slot) {
+
+        Timer head = level == LEVELS ? overflow : slots[level][slot];
+        timer.level = level;
+        timer.slot = slot;
+        timer.previous = null;
+        timer.next = head;
+        if (head != null) {
+            head.previous = timer;
+        }
+        setHead(level, slot, timer);
+    }
+
+    private void unlink(Timer timer) {
+
+        if (timer.previous == null) {
+            setHead(timer.level, timer.slot, timer.next);
+        } else {
+            timer.previous.next = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+
+        timer.level = Timer.UNSCHEDULED;
+        timer.previous = null;
+        timer.next = null;
+    }
+
+    private void setHead(int level, int slot, Timer head) {
+
+        if (level == LEVELS) {
+            overflow = head;
+        } else {
+            slots[level][slot] = head;
+        }
+    }
+
+    /**
+     * A timer is an entry of a {@link TimerWheel}. Implementations are notified through {@link #expire()} when their deadline was reached.
+     * Since the timer itself is the node which is linked into the wheel, one timer object can be scheduled again and again without allocating anything.
+     * A timer can only be scheduled at one wheel at a time.
+     * 
+     * @see TimerWheel#schedule(Timer, long)
+     */
+    public static abstract class Timer {
+
+        private static final int UNSCHEDULED = -1;
+
+        // Guarded by the wheel the timer is scheduled at; the position allows to unlink the timer in constant time
+        private int              level       = UNSCHEDULED;
+        private int              slot;
+        private Timer            previous;
+        private Timer            next;
+        private long             deadline;
+        private long             deadlineTick;
+
+        /**
+         * Returns the deadline the timer was scheduled with last.
+         * 
+         * @return The last deadline of the timer.
+         */
+        public long getDeadline() {
+
+            return deadline;
+        }
+
+        /**
+         * Is called by the thread which advanced the {@link TimerWheel} after the deadline of the timer was reached.
+         * The timer isn't scheduled anymore at that point, but it can be scheduled again.
+         * Note that the timer might have been rescheduled concurrently, so implementations should check whether their state actually expired.
+         */
+        protected abstract void expire();
+
+    }
+
+}
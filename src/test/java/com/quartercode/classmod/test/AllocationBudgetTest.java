@@ -0,0 +1,264 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Property;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.util.FunctionDefinitionFactory;
+import com.quartercode.classmod.util.PropertyAccessorFactory;
+
+/**
+ * Asserts that the hot paths don't allocate more bytes per operation than their recorded budgets.
+ * The allocated bytes are measured with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} around warmed-up calls.
+ * If a change legitimately needs more memory, the budget must be raised consciously.
+ * If a change reduces the allocations, the budget should be lowered so the improvement can't regress.
+ */
+@RunWith (Parameterized.class)
+public class AllocationBudgetTest {
+
+    private static final int                                 WARMUP_OPERATIONS  = 50000;
+    private static final int                                 MEASURE_OPERATIONS = 20000;
+    private static final int                                 MEASURE_ROUNDS     = 5;
+
+    private static final FeatureDefinition<ObjectProperty<Integer>> VALUE;
+    private static final FunctionDefinition<Integer>         GET_VALUE;
+    private static final FunctionDefinition<Void>            SET_VALUE;
+    private static final FunctionDefinition<Void>            CHAIN_1;
+    private static final FunctionDefinition<Void>            CHAIN_5;
+
+    static {
+
+        VALUE = new AbstractFeatureDefinition<ObjectProperty<Integer>>("value") {
+
+            @Override
+            public ObjectProperty<Integer> create(FeatureHolder holder) {
+
+                return new ObjectProperty<Integer>(getName(), holder, 0);
+            }
+
+        };
+
+        GET_VALUE = FunctionDefinitionFactory.create("getValue", DefaultFeatureHolder.class, PropertyAccessorFactory.createGet(VALUE));
+        SET_VALUE = FunctionDefinitionFactory.create("setValue", DefaultFeatureHolder.class, PropertyAccessorFactory.createSet(VALUE), Integer.class);
+
+        CHAIN_1 = createChain("chain1", 1);
+        CHAIN_5 = createChain("chain5", 5);
+
+    }
+
+    private static FunctionDefinition<Void> createChain(String name, int executors) {
+
+        FunctionDefinition<Void> definition = FunctionDefinitionFactory.create(name);
+        for (int counter = 0; counter < executors; counter++) {
+            definition.addExecutor(DefaultFeatureHolder.class, "executor" + counter, new FunctionExecutor<Void>() {
+
+                @Override
+                public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return invocation.next(arguments);
+                }
+
+            });
+        }
+        return definition;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    @BeforeClass
+    public static void setUpBeforeClass() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    // The budgets were recorded on a 64-bit HotSpot VM with compressed oops and contain a headroom of about 25%
+    @Parameters (name = "{0}")
+    public static Collection<Object[]> data() {
+
+        List<Object[]> data = new ArrayList<Object[]>();
+
+        // Feature lookup
+        data.add(new Object[] { "DefaultFeatureHolder.get", 64, new Operation() {
+
+            private final DefaultFeatureHolder holder = createHolder();
+
+            @Override
+            public Object run() {
+
+                return holder.get(VALUE);
+            }
+
+        } });
+
+        // Property access
+        data.add(new Object[] { "Property.get", 0, new Operation() {
+
+            private final Property<Integer> property = createHolder().get(VALUE);
+
+            @Override
+            public Object run() {
+
+                return property.get();
+            }
+
+        } });
+        data.add(new Object[] { "Property.set", 0, new Operation() {
+
+            private final Property<Integer> property = createHolder().get(VALUE);
+            private final Integer           value    = 42;
+
+            @Override
+            public Object run() {
+
+                property.set(value);
+                return null;
+            }
+
+        } });
+
+        // Function invocation
+        data.add(new Object[] { "AbstractFunction.invoke (1 executor)", 2304, new Operation() {
+
+            private final Function<Void> function = createHolder().get(CHAIN_1);
+
+            @Override
+            public Object run() throws ExecutorInvocationException {
+
+                return function.invoke();
+            }
+
+        } });
+        data.add(new Object[] { "AbstractFunction.invoke (5 executors)", 8448, new Operation() {
+
+            private final Function<Void> function = createHolder().get(CHAIN_5);
+
+            @Override
+            public Object run() throws ExecutorInvocationException {
+
+                return function.invoke();
+            }
+
+        } });
+
+        // Property accessor executors
+        data.add(new Object[] { "PropertyAccessorFactory.createGet", 2304, new Operation() {
+
+            private final Function<Integer> function = createHolder().get(GET_VALUE);
+
+            @Override
+            public Object run() throws ExecutorInvocationException {
+
+                return function.invoke();
+            }
+
+        } });
+        data.add(new Object[] { "PropertyAccessorFactory.createSet", 2816, new Operation() {
+
+            private final Function<Void> function = createHolder().get(SET_VALUE);
+            private final Integer        value    = 42;
+
+            @Override
+            public Object run() throws ExecutorInvocationException {
+
+                return function.invoke(value);
+            }
+
+        } });
+
+        return data;
+    }
+
+    private static DefaultFeatureHolder createHolder() {
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        holder.setLocked(false);
+        // Create some features for a realistic lookup
+        holder.get(VALUE);
+        holder.get(GET_VALUE);
+        holder.get(SET_VALUE);
+        return holder;
+    }
+
+    private final String    name;
+    private final long      budget;
+    private final Operation operation;
+
+    public AllocationBudgetTest(String name, long budget, Operation operation) {
+
+        this.name = name;
+        this.budget = budget;
+        this.operation = operation;
+    }
+
+    @Test
+    public void testAllocationBudget() throws ExecutorInvocationException {
+
+        long threadId = Thread.currentThread().getId();
+
+        for (int counter = 0; counter < WARMUP_OPERATIONS; counter++) {
+            operation.run();
+        }
+
+        // Use the best round since a round can be disturbed by the jit compiler (e.g. while escape analysis isn't applied yet)
+        long bytesPerOperation = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURE_ROUNDS; round++) {
+            long start = threadBean.getThreadAllocatedBytes(threadId);
+            for (int counter = 0; counter < MEASURE_OPERATIONS; counter++) {
+                operation.run();
+            }
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - start;
+
+            bytesPerOperation = Math.min(bytesPerOperation, allocated / MEASURE_OPERATIONS);
+        }
+
+        Assert.assertTrue("Allocation budget of " + name + " exceeded: " + bytesPerOperation + " B/op > " + budget + " B/op", bytesPerOperation <= budget);
+    }
+
+    private static interface Operation {
+
+        public Object run() throws ExecutorInvocationException;
+
+    }
+
+}
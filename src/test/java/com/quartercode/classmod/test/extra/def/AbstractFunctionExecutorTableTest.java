@@ -0,0 +1,176 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.Function;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.AbstractFunctionDefinition;
+
+public class AbstractFunctionExecutorTableTest {
+
+    private AbstractFunctionDefinition<Void> functionDefinition;
+
+    @Before
+    public void setUp() {
+
+        functionDefinition = new AbstractFunctionDefinition<Void>("testFunctionDefinition") {
+
+            @Override
+            protected Function<Void> create(FeatureHolder holder, List<Class<?>> parameters, Map<String, FunctionExecutor<Void>> executors) {
+
+                return new AbstractFunction<Void>(getName(), holder, parameters, executors);
+            }
+
+        };
+    }
+
+    private FunctionExecutor<Void> createCounter(final AtomicInteger counter) {
+
+        return new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                counter.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        };
+    }
+
+    @Test
+    public void testAddAndRemove() throws ExecutorInvocationException {
+
+        AtomicInteger counter1 = new AtomicInteger();
+        AtomicInteger counter2 = new AtomicInteger();
+        functionDefinition.addExecutor(FeatureHolder.class, "executor1", createCounter(counter1));
+        Function<Void> function = functionDefinition.create(new DefaultFeatureHolder());
+        long version = functionDefinition.getExecutorTable().getVersion();
+
+        functionDefinition.addExecutor(FeatureHolder.class, "executor2", createCounter(counter2));
+        Assert.assertTrue("Table version didn't increase", functionDefinition.getExecutorTable().getVersion() > version);
+        function.invoke();
+        Assert.assertEquals("Invocations of the old executor", 1, counter1.get());
+        Assert.assertEquals("Invocations of the added executor", 1, counter2.get());
+
+        functionDefinition.removeExecutor(FeatureHolder.class, "executor1");
+        function.invoke();
+        Assert.assertEquals("Invocations of the removed executor", 1, counter1.get());
+        Assert.assertEquals("Invocations of the remaining executor", 2, counter2.get());
+        Assert.assertNull("Removed executor is still available", function.getExecutor("executor1"));
+    }
+
+    @Test
+    public void testKeepExecutorState() throws ExecutorInvocationException {
+
+        functionDefinition.addExecutor(FeatureHolder.class, "executor1", createCounter(new AtomicInteger()));
+        Function<Void> function = functionDefinition.create(new DefaultFeatureHolder());
+        function.invoke();
+        function.getExecutor("executor1").setLocked(true);
+
+        functionDefinition.addExecutor(FeatureHolder.class, "executor2", createCounter(new AtomicInteger()));
+        Assert.assertEquals("Invocations of the kept executor", 1, function.getExecutor("executor1").getInvocations());
+        Assert.assertTrue("Lock state of the kept executor", function.getExecutor("executor1").isLocked());
+    }
+
+    @Test
+    public void testRunningInvocation() throws ExecutorInvocationException {
+
+        final AtomicInteger counter = new AtomicInteger();
+        final FunctionExecutor<Void> addedExecutor = createCounter(counter);
+        functionDefinition.addExecutor(FeatureHolder.class, "adding", new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                functionDefinition.addExecutor(FeatureHolder.class, "added", addedExecutor);
+                return invocation.next(arguments);
+            }
+
+        });
+        Function<Void> function = functionDefinition.create(new DefaultFeatureHolder());
+
+        function.invoke();
+        Assert.assertEquals("Invocations of the executor added by the running invocation", 0, counter.get());
+        function.invoke();
+        Assert.assertEquals("Invocations of the added executor in the next invocation", 1, counter.get());
+    }
+
+    @Test
+    public void testConcurrentSwap() throws Exception {
+
+        final AtomicInteger counter = new AtomicInteger();
+        final FunctionExecutor<Void> executor = createCounter(counter);
+        functionDefinition.addExecutor(FeatureHolder.class, "permanent", executor);
+        final Function<Void> function = functionDefinition.create(new DefaultFeatureHolder());
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int thread = 0; thread < 3; thread++) {
+                futures.add(threads.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws ExecutorInvocationException {
+
+                        do {
+                            function.invoke();
+                        } while (running.get());
+                        return null;
+                    }
+
+                }));
+            }
+
+            for (int swap = 0; swap < 1000; swap++) {
+                functionDefinition.addExecutor(FeatureHolder.class, "swapped" + swap % 5, createCounter(new AtomicInteger()));
+                functionDefinition.removeExecutor(FeatureHolder.class, "swapped" + (swap + 2) % 5);
+            }
+            running.set(false);
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        Assert.assertEquals("Executors after swapping", functionDefinition.getExecutorTable().getExecutors(DefaultFeatureHolder.class).size(), function.getExecutors().size());
+        Assert.assertTrue("Permanent executor wasn't invoked", counter.get() > 0);
+    }
+
+}
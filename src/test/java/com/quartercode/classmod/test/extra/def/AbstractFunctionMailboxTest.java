@@ -0,0 +1,325 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.DefaultChildFeatureHolder;
+import com.quartercode.classmod.extra.def.MailboxDispatcher;
+
+public class AbstractFunctionMailboxTest {
+
+    private ExecutorService   workers;
+    private MailboxDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+
+        workers = Executors.newFixedThreadPool(4);
+        dispatcher = new MailboxDispatcher(workers, 2);
+    }
+
+    @After
+    public void tearDown() {
+
+        workers.shutdownNow();
+    }
+
+    private AbstractFunction<Integer> createFunction(FeatureHolder holder, FunctionExecutor<Integer> executor) {
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        executors.put("default", executor);
+
+        AbstractFunction<Integer> function = new AbstractFunction<Integer>("testFunction", holder, new ArrayList<Class<?>>(), executors);
+        function.setMailboxDispatcher(dispatcher);
+        return function;
+    }
+
+    @Test
+    public void testSerializeSubtree() throws InterruptedException, ExecutionException {
+
+        DefaultFeatureHolder root = new DefaultFeatureHolder();
+        DefaultChildFeatureHolder<FeatureHolder> child = new DefaultChildFeatureHolder<FeatureHolder>();
+        child.setParent(root);
+
+        final AtomicInteger running = new AtomicInteger();
+        final int[] counter = new int[1];
+        FunctionExecutor<Integer> executor = new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                Assert.assertEquals("Concurrently running invocations on one subtree", 1, running.incrementAndGet());
+                // Not atomic; only correct if the invocations are serialized
+                int value = counter[0];
+                Thread.yield();
+                counter[0] = value + 1;
+                running.decrementAndGet();
+                return value;
+            }
+
+        };
+        AbstractFunction<Integer> rootFunction = createFunction(root, executor);
+        AbstractFunction<Integer> childFunction = createFunction(child, executor);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int invocation = 0; invocation < 200; invocation++) {
+            results.add( (invocation % 2 == 0 ? rootFunction : childFunction).invokeAsync());
+        }
+        for (Future<Integer> result : results) {
+            result.get();
+        }
+
+        Assert.assertEquals("Amount of serialized invocations", 200, counter[0]);
+    }
+
+    @Test
+    public void testParallelSubtrees() throws ExecutorInvocationException, InterruptedException, ExecutionException {
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        FunctionExecutor<Integer> executor = new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                // Both invocations wait for each other, so this only succeeds if different subtrees run in parallel
+                latch.countDown();
+                try {
+                    if (!latch.await(5, TimeUnit.SECONDS)) {
+                        throw new ExecutorInvocationException("Different subtrees weren't invoked in parallel");
+                    }
+                } catch (InterruptedException e) {
+                    throw new ExecutorInvocationException(e);
+                }
+                return 1;
+            }
+
+        };
+
+        Future<Integer> result1 = createFunction(new DefaultFeatureHolder(), executor).invokeAsync();
+        Future<Integer> result2 = createFunction(new DefaultFeatureHolder(), executor).invokeAsync();
+        Assert.assertEquals("Result of the first subtree", (Integer) 1, result1.get());
+        Assert.assertEquals("Result of the second subtree", (Integer) 1, result2.get());
+    }
+
+    @Test
+    public void testNestedInvocation() throws ExecutorInvocationException {
+
+        final DefaultFeatureHolder root = new DefaultFeatureHolder();
+        DefaultChildFeatureHolder<FeatureHolder> child = new DefaultChildFeatureHolder<FeatureHolder>();
+        child.setParent(root);
+
+        final AbstractFunction<Integer> rootFunction = createFunction(root, new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                Assert.assertTrue("Root invocation isn't confined to the mailbox", dispatcher.isConfined(root));
+                return 10;
+            }
+
+        });
+        AbstractFunction<Integer> childFunction = createFunction(child, new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                // Would wait forever if the nested invocation was appended to the mailbox which is currently processed
+                return rootFunction.invoke() + 1;
+            }
+
+        });
+
+        Assert.assertFalse("Calling thread is confined to the mailbox", dispatcher.isConfined(child));
+        Assert.assertEquals("Result of the nested invocation", (Integer) 11, childFunction.invoke());
+    }
+
+    @Test
+    public void testBlockingInvocationOfOtherSubtree() throws InterruptedException, ExecutionException {
+
+        final AbstractFunction<Integer> otherFunction = createFunction(new DefaultFeatureHolder(), new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                return 10;
+            }
+
+        });
+        final AtomicReference<Throwable> exception = new AtomicReference<Throwable>();
+        Future<Integer> result = createFunction(new DefaultFeatureHolder(), new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                try {
+                    return otherFunction.invoke();
+                } catch (Throwable e) {
+                    exception.set(e);
+                    return 0;
+                }
+            }
+
+        }).invokeAsync();
+
+        Assert.assertEquals("Result of the invocation", (Integer) 0, result.get());
+        Assert.assertTrue("Blocking invocation of another subtree didn't fail fast", exception.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testRejectedReschedule() throws InterruptedException {
+
+        // Accepts the first mailbox and rejects everything afterwards
+        final List<Runnable> accepted = new ArrayList<Runnable>();
+        MailboxDispatcher rejectingDispatcher = new MailboxDispatcher(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+
+                if (!accepted.isEmpty()) {
+                    throw new RejectedExecutionException();
+                }
+                accepted.add(command);
+            }
+
+        }, 1);
+
+        FeatureHolder holder = new DefaultFeatureHolder();
+        Future<Integer> first = rejectingDispatcher.submit(holder, new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+
+                return 1;
+            }
+
+        });
+        Future<Integer> second = rejectingDispatcher.submit(holder, new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+
+                return 2;
+            }
+
+        });
+
+        // Processes the first task and tries to reschedule the mailbox for the second one
+        accepted.get(0).run();
+
+        Assert.assertTrue("First task wasn't executed", first.isDone());
+        Assert.assertTrue("Remaining task doesn't fail after the rescheduling was rejected", second.isDone());
+        try {
+            second.get();
+            Assert.fail("Remaining task completed after the rescheduling was rejected");
+        } catch (ExecutionException e) {
+            Assert.assertTrue("Cause of the failed task", e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals("Active mailboxes after the rejection", 0, rejectingDispatcher.getActiveMailboxCount());
+    }
+
+    @Test
+    public void testRejectedSchedule() throws InterruptedException {
+
+        final FeatureHolder holder = new DefaultFeatureHolder();
+        final List<Future<Integer>> posted = new ArrayList<Future<Integer>>();
+        final MailboxDispatcher[] rejectingDispatcher = new MailboxDispatcher[1];
+        rejectingDispatcher[0] = new MailboxDispatcher(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+
+                // Another task is posted while the mailbox is already marked as scheduled
+                posted.add(rejectingDispatcher[0].submit(holder, new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() {
+
+                        return 2;
+                    }
+
+                }));
+                throw new RejectedExecutionException();
+            }
+
+        });
+
+        try {
+            rejectingDispatcher[0].submit(holder, new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+
+                    return 1;
+                }
+
+            });
+            Assert.fail("Rejected task was submitted");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        Assert.assertTrue("Task which was posted in the meantime doesn't fail", posted.get(0).isDone());
+        try {
+            posted.get(0).get();
+            Assert.fail("Task which was posted in the meantime completed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue("Cause of the failed task", e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals("Active mailboxes after the rejection", 0, rejectingDispatcher[0].getActiveMailboxCount());
+    }
+
+    @Test (expected = ExecutorInvocationException.class)
+    public void testException() throws ExecutorInvocationException {
+
+        createFunction(new DefaultFeatureHolder(), new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                throw new ExecutorInvocationException("Test exception");
+            }
+
+        }).invoke();
+    }
+
+}
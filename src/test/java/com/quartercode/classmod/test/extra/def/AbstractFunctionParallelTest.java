@@ -0,0 +1,307 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Independent;
+import com.quartercode.classmod.extra.Prioritized;
+import com.quartercode.classmod.extra.ResultCombiner;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.Transaction;
+
+public class AbstractFunctionParallelTest {
+
+    private static final ResultCombiner<Integer> SUM_COMBINER = new ResultCombiner<Integer>() {
+
+                                                                  @Override
+                                                                  public Integer combine(List<Integer> tierResults, Integer nextResult) {
+
+                                                                      int sum = nextResult == null ? 0 : nextResult;
+                                                                      for (Integer result : tierResults) {
+                                                                          sum += result;
+                                                                      }
+                                                                      return sum;
+                                                                  }
+
+                                                              };
+
+    private ExecutorService                      parallelService;
+
+    @Before
+    public void setUp() {
+
+        parallelService = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+
+        parallelService.shutdownNow();
+    }
+
+    private FunctionExecutor<Integer> createIndependentExecutor(final CountDownLatch latch, final int result) {
+
+        return new FunctionExecutor<Integer>() {
+
+            @Override
+            @Independent
+            @Prioritized (Prioritized.LEVEL_6)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                // Every executor waits for all other ones, so this only succeeds if they run in parallel
+                latch.countDown();
+                try {
+                    if (!latch.await(5, TimeUnit.SECONDS)) {
+                        throw new ExecutorInvocationException("Independent executors weren't invoked in parallel");
+                    }
+                } catch (InterruptedException e) {
+                    throw new ExecutorInvocationException(e);
+                }
+
+                Assert.assertNull("Tier invocation continued the chain", invocation.next(arguments));
+                return result;
+            }
+
+        };
+    }
+
+    @Test
+    public void testInvokeParallel() throws ExecutorInvocationException {
+
+        final CountDownLatch latch = new CountDownLatch(3);
+        final List<String> order = new ArrayList<String>();
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        executors.put("independent1", createIndependentExecutor(latch, 1));
+        executors.put("independent2", createIndependentExecutor(latch, 10));
+        executors.put("independent3", createIndependentExecutor(latch, 100));
+        executors.put("first", new FunctionExecutor<Integer>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_9)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                order.add("first");
+                return invocation.next(arguments);
+            }
+
+        });
+        executors.put("last", new FunctionExecutor<Integer>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_2)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                Assert.assertEquals("Latch count when the next tier is invoked", 0, latch.getCount());
+                order.add("last");
+                invocation.next(arguments);
+                return 1000;
+            }
+
+        });
+
+        AbstractFunction<Integer> function = new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), executors);
+        function.setParallelExecution(parallelService, SUM_COMBINER);
+
+        Assert.assertEquals("Combined return value", (Integer) 1111, function.invoke());
+        Assert.assertEquals("Invocation order of the sequential executors", "[first, last]", order.toString());
+    }
+
+    @Test
+    public void testTierOrder() throws ExecutorInvocationException {
+
+        final List<List<Integer>> tiers = new ArrayList<List<Integer>>();
+        final AtomicInteger invoked = new AtomicInteger();
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        for (int counter = 5; counter > 0; counter--) {
+            final int result = counter;
+            executors.put("independent" + counter, new FunctionExecutor<Integer>() {
+
+                @Override
+                @Independent
+                public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    invoked.incrementAndGet();
+                    return result;
+                }
+
+            });
+        }
+        // Has the same priority as the independent executors and is sorted in front of them by name
+        executors.put("dependent", new FunctionExecutor<Integer>() {
+
+            @Override
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                Assert.assertEquals("Invoked independent executors when the dependent executor is invoked", 5, invoked.get());
+                return 100;
+            }
+
+        });
+
+        AbstractFunction<Integer> function = new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), executors);
+        function.setParallelExecution(parallelService, new ResultCombiner<Integer>() {
+
+            @Override
+            public Integer combine(List<Integer> tierResults, Integer nextResult) throws ExecutorInvocationException {
+
+                tiers.add(tierResults);
+                return SUM_COMBINER.combine(tierResults, nextResult);
+            }
+
+        });
+
+        Assert.assertEquals("Combined return value", (Integer) 115, function.invoke());
+        Assert.assertEquals("Tier results", "[[1, 2, 3, 4, 5]]", tiers.toString());
+    }
+
+    @Test (timeout = 5000)
+    public void testNestedInvocationOnBoundedService() throws ExecutorInvocationException {
+
+        ExecutorService boundedService = Executors.newFixedThreadPool(1);
+        try {
+            final AbstractFunction<Integer> inner = createSumFunction(null);
+            inner.setParallelExecution(boundedService, SUM_COMBINER);
+            AbstractFunction<Integer> outer = createSumFunction(inner);
+            outer.setParallelExecution(boundedService, SUM_COMBINER);
+
+            // Each of the two outer executors invokes the inner function, whose two executors return 1 each
+            Assert.assertEquals("Combined return value", (Integer) 4, outer.invoke());
+        } finally {
+            boundedService.shutdownNow();
+        }
+    }
+
+    private AbstractFunction<Integer> createSumFunction(final AbstractFunction<Integer> nested) {
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        for (int counter = 0; counter < 2; counter++) {
+            executors.put("independent" + counter, new FunctionExecutor<Integer>() {
+
+                @Override
+                @Independent
+                public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    return nested == null ? 1 : nested.invoke();
+                }
+
+            });
+        }
+
+        return new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), executors);
+    }
+
+    @Test (expected = ExecutorInvocationException.class)
+    public void testInvokeParallelException() throws ExecutorInvocationException {
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        for (int counter = 0; counter < 3; counter++) {
+            final boolean fail = counter == 0;
+            executors.put("independent" + counter, new FunctionExecutor<Integer>() {
+
+                @Override
+                @Independent
+                public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    if (fail) {
+                        throw new ExecutorInvocationException("Test exception");
+                    }
+                    return 1;
+                }
+
+            });
+        }
+
+        AbstractFunction<Integer> function = new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), executors);
+        function.setParallelExecution(parallelService, SUM_COMBINER);
+        function.invoke();
+    }
+
+    @Test
+    public void testRejectThreadBoundModes() {
+
+        AbstractFunction<Integer> parallel = new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), new HashMap<String, FunctionExecutor<Integer>>());
+        parallel.setParallelExecution(parallelService, SUM_COMBINER);
+        try {
+            parallel.setTransactional(1);
+            Assert.fail("Transactional mode was combined with the parallel mode");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        AbstractFunction<Integer> batching = new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), new HashMap<String, FunctionExecutor<Integer>>());
+        batching.setChangeBatching(true);
+        try {
+            batching.setParallelExecution(parallelService, SUM_COMBINER);
+            Assert.fail("Parallel mode was combined with the change batching mode");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testInvokeInsideTransaction() throws ExecutorInvocationException {
+
+        final List<Transaction> transactions = Collections.synchronizedList(new ArrayList<Transaction>());
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        for (int counter = 0; counter < 3; counter++) {
+            executors.put("independent" + counter, new FunctionExecutor<Integer>() {
+
+                @Override
+                @Independent
+                public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                    transactions.add(Transaction.getCurrent());
+                    return 1;
+                }
+
+            });
+        }
+
+        AbstractFunction<Integer> function = new AbstractFunction<Integer>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), executors);
+        function.setParallelExecution(parallelService, SUM_COMBINER);
+
+        Transaction transaction = Transaction.begin();
+        try {
+            Assert.assertEquals("Combined return value", (Integer) 3, function.invoke());
+        } finally {
+            transaction.rollback();
+        }
+        Assert.assertEquals("Transactions of the executors", Arrays.asList(transaction, transaction, transaction), transactions);
+    }
+
+}
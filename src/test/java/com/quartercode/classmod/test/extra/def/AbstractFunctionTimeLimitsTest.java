@@ -0,0 +1,294 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.Debounce;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Prioritized;
+import com.quartercode.classmod.extra.Throttle;
+import com.quartercode.classmod.extra.Timeout;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+
+public class AbstractFunctionTimeLimitsTest {
+
+    private AbstractFunction<Void> createFunction(String name, FunctionExecutor<Void> executor) {
+
+        Map<String, FunctionExecutor<Void>> executors = new HashMap<String, FunctionExecutor<Void>>();
+        executors.put(name, executor);
+        return createFunction(executors);
+    }
+
+    private AbstractFunction<Void> createFunction(Map<String, FunctionExecutor<Void>> executors) {
+
+        return new AbstractFunction<Void>("testFunction", new DefaultFeatureHolder(), new ArrayList<Class<?>>(), executors);
+    }
+
+    @Test
+    public void testThrottle() throws ExecutorInvocationException {
+
+        final AtomicInteger invocations = new AtomicInteger();
+        AbstractFunction<Void> function = createFunction("throttled", new FunctionExecutor<Void>() {
+
+            @Override
+            @Throttle (invocations = 2, window = 1, unit = TimeUnit.HOURS)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                invocations.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        for (int counter = 0; counter < 5; counter++) {
+            function.invoke();
+        }
+
+        Assert.assertEquals("Invocations of the throttled executor", 2, invocations.get());
+    }
+
+    @Test
+    public void testThrottleRefill() throws ExecutorInvocationException, InterruptedException {
+
+        final AtomicInteger invocations = new AtomicInteger();
+        AbstractFunction<Void> function = createFunction("throttled", new FunctionExecutor<Void>() {
+
+            @Override
+            @Throttle (invocations = 1, window = 50)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                invocations.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        function.invoke();
+        function.invoke();
+        Assert.assertEquals("Invocations of the throttled executor before the window passed", 1, invocations.get());
+
+        Thread.sleep(100);
+        function.invoke();
+        Assert.assertEquals("Invocations of the throttled executor after the window passed", 2, invocations.get());
+    }
+
+    @Test
+    public void testThrottleUnreachedExecutor() throws ExecutorInvocationException {
+
+        final AtomicBoolean handOver = new AtomicBoolean();
+        final AtomicInteger invocations = new AtomicInteger();
+        Map<String, FunctionExecutor<Void>> executors = new HashMap<String, FunctionExecutor<Void>>();
+        executors.put("blocking", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_5)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                return handOver.get() ? invocation.next(arguments) : null;
+            }
+
+        });
+        executors.put("throttled", new FunctionExecutor<Void>() {
+
+            @Override
+            @Throttle (invocations = 2, window = 1, unit = TimeUnit.HOURS)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                invocations.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+        AbstractFunction<Void> function = createFunction(executors);
+
+        // The throttled executor isn't reached, so it mustn't use up its tokens
+        for (int counter = 0; counter < 3; counter++) {
+            function.invoke();
+        }
+
+        handOver.set(true);
+        for (int counter = 0; counter < 3; counter++) {
+            function.invoke();
+        }
+
+        Assert.assertEquals("Invocations of the throttled executor", 2, invocations.get());
+    }
+
+    @Test
+    public void testDebounce() throws ExecutorInvocationException, InterruptedException {
+
+        final AtomicInteger invocations = new AtomicInteger();
+        AbstractFunction<Void> function = createFunction("debounced", new FunctionExecutor<Void>() {
+
+            @Override
+            @Debounce (50)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                invocations.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        for (int counter = 0; counter < 5; counter++) {
+            function.invoke();
+        }
+        Assert.assertEquals("Invocations of the debounced executor during a burst", 1, invocations.get());
+
+        Thread.sleep(100);
+        function.invoke();
+        Assert.assertEquals("Invocations of the debounced executor after the quiet period", 2, invocations.get());
+    }
+
+    @Test
+    public void testSetThrottleValue() throws ExecutorInvocationException {
+
+        final AtomicInteger invocations = new AtomicInteger();
+        AbstractFunction<Void> function = createFunction("throttled", new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                invocations.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+        function.getExecutor("throttled").setValue(Throttle.class, "window", 1L);
+        function.getExecutor("throttled").setValue(Throttle.class, "unit", TimeUnit.HOURS);
+        function.getExecutor("throttled").setValue(Throttle.class, "invocations", 3);
+
+        for (int counter = 0; counter < 5; counter++) {
+            function.invoke();
+        }
+
+        Assert.assertEquals("Invocations of the executor with a runtime throttle", 3, invocations.get());
+    }
+
+    @Test
+    public void testTimeoutOnReturn() {
+
+        AbstractFunction<Void> function = createFunction("slow", new FunctionExecutor<Void>() {
+
+            @Override
+            @Timeout (10)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                sleep(50);
+                return null;
+            }
+
+        });
+
+        try {
+            function.invoke();
+            Assert.fail("Slow executor didn't time out");
+        } catch (ExecutorInvocationException e) {
+            Assert.assertTrue("Timeout message doesn't name the executor: " + e.getMessage(), e.getMessage().contains("'slow'"));
+        }
+    }
+
+    @Test
+    public void testTimeoutAbortsChain() {
+
+        final AtomicInteger lowerInvocations = new AtomicInteger();
+        Map<String, FunctionExecutor<Void>> executors = new HashMap<String, FunctionExecutor<Void>>();
+        executors.put("slow", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_6)
+            @Timeout (10)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                sleep(50);
+                return invocation.next(arguments);
+            }
+
+        });
+        executors.put("lower", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_4)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                lowerInvocations.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        try {
+            createFunction(executors).invoke();
+            Assert.fail("Slow executor didn't time out");
+        } catch (ExecutorInvocationException e) {
+            Assert.assertEquals("Invocations of the executor after the timed out one", 0, lowerInvocations.get());
+        }
+    }
+
+    @Test
+    public void testTimeoutExcludesRestOfChain() throws ExecutorInvocationException {
+
+        Map<String, FunctionExecutor<Void>> executors = new HashMap<String, FunctionExecutor<Void>>();
+        executors.put("fast", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_6)
+            @Timeout (40)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                return invocation.next(arguments);
+            }
+
+        });
+        executors.put("slowLower", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_4)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                sleep(80);
+                return invocation.next(arguments);
+            }
+
+        });
+
+        // Mustn't throw an exception because the slow executor runs inside the rest of the chain
+        createFunction(executors).invoke();
+    }
+
+    private static void sleep(long millis) {
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
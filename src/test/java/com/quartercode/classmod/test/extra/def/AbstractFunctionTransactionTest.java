@@ -0,0 +1,388 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.FeatureObserver;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Prioritized;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.Transaction;
+import com.quartercode.classmod.util.CollectionPropertyAccessorFactory;
+
+public class AbstractFunctionTransactionTest {
+
+    private static final FeatureDefinition<ObjectProperty<Integer>>      VALUE = new AbstractFeatureDefinition<ObjectProperty<Integer>>("value") {
+
+                                                                                   @Override
+                                                                                   public ObjectProperty<Integer> create(FeatureHolder holder) {
+
+                                                                                       return new ObjectProperty<Integer>(getName(), holder, 0);
+                                                                                   }
+
+                                                                               };
+
+    private static final FeatureDefinition<ObjectProperty<List<String>>> ELEMENTS = new AbstractFeatureDefinition<ObjectProperty<List<String>>>("elements") {
+
+                                                                                      @Override
+                                                                                      public ObjectProperty<List<String>> create(FeatureHolder holder) {
+
+                                                                                          return new ObjectProperty<List<String>>(getName(), holder, new ArrayList<String>());
+                                                                                      }
+
+                                                                                  };
+
+    private DefaultFeatureHolder                                         holder;
+
+    @Before
+    public void setUp() {
+
+        holder = new DefaultFeatureHolder();
+        // Create the property before it's accessed concurrently
+        holder.get(VALUE);
+    }
+
+    private AbstractFunction<Integer> createFunction(Map<String, FunctionExecutor<Integer>> executors) {
+
+        AbstractFunction<Integer> function = new AbstractFunction<Integer>("testFunction", holder, new ArrayList<Class<?>>(), executors);
+        function.setTransactional(100);
+        return function;
+    }
+
+    private FunctionExecutor<Integer> createIncrementExecutor() {
+
+        return new FunctionExecutor<Integer>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_7)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                ObjectProperty<Integer> value = invocation.getHolder().get(VALUE);
+                value.set(value.get() + 1);
+                return invocation.next(arguments);
+            }
+
+        };
+    }
+
+    @Test
+    public void testCommit() throws ExecutorInvocationException {
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        executors.put("increment", createIncrementExecutor());
+        executors.put("check", new FunctionExecutor<Integer>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_3)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                ObjectProperty<Integer> value = invocation.getHolder().get(VALUE);
+                Assert.assertEquals("Committed value inside the transaction", (Integer) 0, value.getCommitted());
+                Assert.assertEquals("Buffered writes of the transaction", 1, Transaction.getCurrent().getWriteCount());
+                return value.get();
+            }
+
+        });
+
+        Assert.assertEquals("Value read inside the transaction", (Integer) 1, createFunction(executors).invoke());
+        Assert.assertEquals("Value after the commit", (Integer) 1, holder.get(VALUE).get());
+        Assert.assertNull("Transaction after the invocation", Transaction.getCurrent());
+    }
+
+    @Test
+    public void testRollback() {
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        executors.put("increment", createIncrementExecutor());
+        executors.put("fail", new FunctionExecutor<Integer>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_3)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                throw new ExecutorInvocationException("Test exception");
+            }
+
+        });
+
+        try {
+            createFunction(executors).invoke();
+            Assert.fail("Exception of the executor wasn't thrown");
+        } catch (ExecutorInvocationException e) {
+            // Expected
+        }
+
+        Assert.assertEquals("Value after the failed invocation", (Integer) 0, holder.get(VALUE).get());
+        Assert.assertNull("Transaction after the failed invocation", Transaction.getCurrent());
+    }
+
+    @Test
+    public void testConflictRetry() throws ExecutorInvocationException {
+
+        final AtomicInteger attempts = new AtomicInteger();
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        executors.put("increment", createIncrementExecutor());
+        executors.put("interfere", new FunctionExecutor<Integer>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_3)
+            public Integer invoke(FunctionInvocation<Integer> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                if (attempts.incrementAndGet() == 1) {
+                    // Simulate a concurrent change by writing the value from another thread
+                    final ObjectProperty<Integer> value = invocation.getHolder().get(VALUE);
+                    Thread other = new Thread() {
+
+                        @Override
+                        public void run() {
+
+                            value.set(10);
+                        }
+
+                    };
+                    other.start();
+                    try {
+                        other.join();
+                    } catch (InterruptedException e) {
+                        throw new ExecutorInvocationException(e);
+                    }
+                }
+                return invocation.next(arguments);
+            }
+
+        });
+
+        createFunction(executors).invoke();
+        Assert.assertEquals("Attempts", 2, attempts.get());
+        Assert.assertEquals("Value after the retried invocation", (Integer) 11, holder.get(VALUE).get());
+    }
+
+    private AbstractFunction<Void> createAddFunction(FunctionExecutor<Void> after) {
+
+        Map<String, FunctionExecutor<Void>> executors = new HashMap<String, FunctionExecutor<Void>>();
+        executors.put("add", CollectionPropertyAccessorFactory.createAdd(ELEMENTS));
+        executors.put("after", after);
+
+        AbstractFunction<Void> function = new AbstractFunction<Void>("addElements", holder, new ArrayList<Class<?>>(), executors);
+        function.setTransactional(100);
+        return function;
+    }
+
+    @Test
+    public void testCollectionRollback() {
+
+        List<String> elements = holder.get(ELEMENTS).get();
+        AbstractFunction<Void> function = createAddFunction(new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_3)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                Assert.assertEquals("Elements inside the transaction", Arrays.asList("a"), invocation.getHolder().get(ELEMENTS).get());
+                throw new ExecutorInvocationException("Test exception");
+            }
+
+        });
+
+        try {
+            function.invoke("a");
+            Assert.fail("Exception of the executor wasn't thrown");
+        } catch (ExecutorInvocationException e) {
+            // Expected
+        }
+
+        Assert.assertSame("Collection after the failed invocation", elements, holder.get(ELEMENTS).get());
+        Assert.assertTrue("Collection wasn't rolled back", elements.isEmpty());
+        Assert.assertEquals("Counted function invocations", 0, function.getInvocations());
+        Assert.assertEquals("Counted executor invocations", 0, function.getExecutor("add").getInvocations());
+    }
+
+    @Test
+    public void testCollectionRetry() throws ExecutorInvocationException {
+
+        final AtomicInteger attempts = new AtomicInteger();
+        AbstractFunction<Void> function = createAddFunction(new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_3)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                if (attempts.incrementAndGet() == 1) {
+                    // Simulate a concurrent change by adding an element from another thread
+                    final DefaultFeatureHolder holder = (DefaultFeatureHolder) invocation.getHolder();
+                    Thread other = new Thread() {
+
+                        @Override
+                        public void run() {
+
+                            holder.get(ELEMENTS).set(new ArrayList<String>(Arrays.asList("x")));
+                        }
+
+                    };
+                    other.start();
+                    try {
+                        other.join();
+                    } catch (InterruptedException e) {
+                        throw new ExecutorInvocationException(e);
+                    }
+                }
+                return invocation.next(arguments);
+            }
+
+        });
+
+        function.invoke("a");
+        Assert.assertEquals("Attempts", 2, attempts.get());
+        Assert.assertEquals("Elements after the retried invocation", Arrays.asList("x", "a"), holder.get(ELEMENTS).get());
+        Assert.assertEquals("Counted function invocations", 1, function.getInvocations());
+        Assert.assertEquals("Counted executor invocations", 1, function.getExecutor("add").getInvocations());
+    }
+
+    @Test
+    public void testConcurrentInvocations() throws Exception {
+
+        Map<String, FunctionExecutor<Integer>> executors = new HashMap<String, FunctionExecutor<Integer>>();
+        executors.put("increment", createIncrementExecutor());
+        final AbstractFunction<Integer> function = createFunction(executors);
+        function.setTransactional(Integer.MAX_VALUE);
+
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(threads.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws ExecutorInvocationException {
+
+                        for (int invocation = 0; invocation < 250; invocation++) {
+                            function.invoke();
+                        }
+                        return null;
+                    }
+
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        Assert.assertEquals("Value after concurrent increments", (Integer) 1000, holder.get(VALUE).get());
+    }
+
+    @Test (timeout = 5000)
+    public void testCommitNotifiesWithoutLocks() throws Exception {
+
+        final ObjectProperty<Integer> value = holder.get(VALUE);
+        final List<Integer> observed = new ArrayList<Integer>();
+        value.addObserver(new FeatureObserver() {
+
+            @Override
+            public void featureChanged(Feature feature) {
+
+                // Another thread writes the same property while the observer waits for it
+                if (observed.isEmpty()) {
+                    observed.add(value.get());
+                    ExecutorService thread = Executors.newSingleThreadExecutor();
+                    try {
+                        thread.submit(new Runnable() {
+
+                            @Override
+                            public void run() {
+
+                                value.set(2);
+                            }
+
+                        }).get();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        thread.shutdownNow();
+                    }
+                }
+            }
+
+        });
+
+        Transaction transaction = Transaction.begin();
+        value.set(1);
+        Assert.assertTrue("Commit failed", transaction.commit());
+
+        Assert.assertEquals("Value seen by the observer", Arrays.asList(1), observed);
+        Assert.assertEquals("Value after the write of the other thread", (Integer) 2, value.get());
+    }
+
+    @Test
+    public void testCommitWithFailingListener() {
+
+        ObjectProperty<Integer> value = holder.get(VALUE);
+        ObjectProperty<List<String>> elements = holder.get(ELEMENTS);
+        final AtomicInteger notifications = new AtomicInteger();
+        FeatureObserver observer = new FeatureObserver() {
+
+            @Override
+            public void featureChanged(Feature feature) {
+
+                notifications.incrementAndGet();
+                throw new IllegalStateException("Test exception");
+            }
+
+        };
+        value.addObserver(observer);
+        elements.addObserver(observer);
+
+        Transaction transaction = Transaction.begin();
+        value.set(5);
+        elements.set(Arrays.asList("a"));
+        try {
+            transaction.commit();
+            Assert.fail("Exception of the listener wasn't rethrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        Assert.assertEquals("Notified listeners", 2, notifications.get());
+        Assert.assertEquals("Committed value", (Integer) 5, value.get());
+        Assert.assertEquals("Committed elements", Arrays.asList("a"), elements.get());
+    }
+
+}
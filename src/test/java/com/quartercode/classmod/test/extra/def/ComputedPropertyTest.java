@@ -0,0 +1,212 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.FeatureObserver;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.def.ComputedProperty;
+import com.quartercode.classmod.extra.def.ComputedProperty.Computation;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.Transaction;
+
+public class ComputedPropertyTest {
+
+    private DefaultFeatureHolder    holder;
+    private ObjectProperty<Integer> value1;
+    private ObjectProperty<Integer> value2;
+    private ObjectProperty<Boolean> flag;
+    private AtomicInteger           computations;
+
+    @Before
+    public void setUp() {
+
+        holder = new DefaultFeatureHolder();
+        value1 = new ObjectProperty<Integer>("value1", holder, 1);
+        value2 = new ObjectProperty<Integer>("value2", holder, 2);
+        flag = new ObjectProperty<Boolean>("flag", holder, false);
+        computations = new AtomicInteger();
+    }
+
+    private ComputedProperty<Integer> createSum() {
+
+        return new ComputedProperty<Integer>("sum", holder, new Computation<Integer>() {
+
+            @Override
+            public Integer compute(FeatureHolder holder) {
+
+                computations.incrementAndGet();
+                return value1.get() + value2.get();
+            }
+
+        });
+    }
+
+    @Test
+    public void testCaching() {
+
+        ComputedProperty<Integer> sum = createSum();
+        Assert.assertEquals("Computed value", (Integer) 3, sum.get());
+        Assert.assertEquals("Cached value", (Integer) 3, sum.get());
+        Assert.assertEquals("Computations of the cached value", 1, computations.get());
+        Assert.assertEquals("Dependencies", 2, sum.getDependencyCount());
+
+        value1.set(10);
+        Assert.assertTrue("Value isn't stale after a dependency changed", sum.isStale());
+        Assert.assertEquals("Recomputed value", (Integer) 12, sum.get());
+        Assert.assertEquals("Computations after the change", 2, computations.get());
+    }
+
+    @Test
+    public void testDynamicDependencies() {
+
+        ComputedProperty<Integer> choice = new ComputedProperty<Integer>("choice", holder, new Computation<Integer>() {
+
+            @Override
+            public Integer compute(FeatureHolder holder) {
+
+                return flag.get() ? value1.get() : value2.get();
+            }
+
+        });
+
+        Assert.assertEquals("Value of the second branch", (Integer) 2, choice.get());
+        value1.set(5);
+        Assert.assertFalse("Value is stale after a property of the other branch changed", choice.isStale());
+
+        flag.set(true);
+        Assert.assertEquals("Value of the first branch", (Integer) 5, choice.get());
+        value2.set(7);
+        Assert.assertFalse("Value is stale after a property which isn't read anymore changed", choice.isStale());
+        Assert.assertEquals("Dependencies of the first branch", 2, choice.getDependencyCount());
+    }
+
+    @Test
+    public void testNestedComputation() {
+
+        final ComputedProperty<Integer> sum = createSum();
+        ComputedProperty<Integer> doubled = new ComputedProperty<Integer>("doubled", holder, new Computation<Integer>() {
+
+            @Override
+            public Integer compute(FeatureHolder holder) {
+
+                return sum.get() * 2;
+            }
+
+        });
+
+        Assert.assertEquals("Nested value", (Integer) 6, doubled.get());
+        Assert.assertEquals("Dependencies of the outer property", 1, doubled.getDependencyCount());
+
+        value2.set(4);
+        Assert.assertTrue("Outer value isn't stale after an indirect dependency changed", doubled.isStale());
+        Assert.assertEquals("Recomputed nested value", (Integer) 10, doubled.get());
+    }
+
+    @Test
+    public void testNotifyOnlyWhenBecomingStale() {
+
+        ComputedProperty<Integer> sum = createSum();
+        final AtomicInteger notifications = new AtomicInteger();
+        sum.addObserver(new FeatureObserver() {
+
+            @Override
+            public void featureChanged(Feature feature) {
+
+                notifications.incrementAndGet();
+            }
+
+        });
+
+        sum.get();
+        value1.set(10);
+        value2.set(20);
+        sum.invalidate();
+        Assert.assertEquals("Notifications after several changes of a fresh value", 1, notifications.get());
+
+        sum.get();
+        value1.set(5);
+        Assert.assertEquals("Notifications after the value was read again", 2, notifications.get());
+    }
+
+    @Test
+    public void testCycle() {
+
+        final ComputedProperty<?>[] properties = new ComputedProperty<?>[2];
+        for (int index = 0; index < properties.length; index++) {
+            final int other = (index + 1) % properties.length;
+            properties[index] = new ComputedProperty<Object>("cycle" + index, holder, new Computation<Object>() {
+
+                @Override
+                public Object compute(FeatureHolder holder) {
+
+                    return properties[other].get();
+                }
+
+            });
+        }
+
+        try {
+            properties[0].get();
+            Assert.fail("Computed property which depends on itself was computed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        Transaction transaction = Transaction.begin();
+        try {
+            properties[0].get();
+            Assert.fail("Computed property which depends on itself was computed inside a transaction");
+        } catch (IllegalStateException e) {
+            // Expected
+        } finally {
+            transaction.rollback();
+        }
+    }
+
+    @Test
+    public void testTransaction() {
+
+        ComputedProperty<Integer> sum = createSum();
+        sum.get();
+
+        Transaction transaction = Transaction.begin();
+        try {
+            value1.set(10);
+            Assert.assertEquals("Value inside the transaction", (Integer) 12, sum.get());
+        } finally {
+            transaction.rollback();
+        }
+
+        Assert.assertFalse("Value is stale after the rollback", sum.isStale());
+        Assert.assertEquals("Value after the rollback", (Integer) 3, sum.get());
+    }
+
+    @Test (expected = UnsupportedOperationException.class)
+    public void testSet() {
+
+        createSum().set(5);
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.def.MvccProperty;
+import com.quartercode.classmod.extra.def.Snapshot;
+import com.quartercode.classmod.extra.def.Transaction;
+
+public class MvccPropertyTest {
+
+    private MvccProperty<Integer> property1;
+    private MvccProperty<Integer> property2;
+
+    @Before
+    public void setUp() {
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        property1 = new MvccProperty<Integer>("property1", holder, 0);
+        property2 = new MvccProperty<Integer>("property2", holder, 0, 4);
+    }
+
+    private void writeBoth(int value) {
+
+        Transaction transaction = Transaction.begin();
+        try {
+            property1.set(value);
+            property2.set(value);
+            Assert.assertTrue("Commit without conflicts failed", transaction.commit());
+        } finally {
+            transaction.rollback();
+        }
+    }
+
+    @Test
+    public void testSnapshotRead() {
+
+        property1.set(1);
+
+        Snapshot snapshot = Snapshot.open();
+        try {
+            property1.set(2);
+            Assert.assertEquals("Value read through the snapshot", (Integer) 1, property1.get());
+            Assert.assertEquals("Committed value while the snapshot is open", (Integer) 2, property1.getCommitted());
+        } finally {
+            snapshot.close();
+        }
+
+        Assert.assertEquals("Value after the snapshot was closed", (Integer) 2, property1.get());
+    }
+
+    @Test
+    public void testTransactionVersion() {
+
+        Snapshot snapshot = Snapshot.open();
+        try {
+            writeBoth(1);
+            Assert.assertEquals("First value read through the old snapshot", (Integer) 0, property1.get());
+            Assert.assertEquals("Second value read through the old snapshot", (Integer) 0, property2.get());
+        } finally {
+            snapshot.close();
+        }
+
+        snapshot = Snapshot.open();
+        try {
+            Assert.assertEquals("Both writes of one commit have the same version", property1.getVersion(), property2.getVersion());
+            Assert.assertEquals("First value read through the new snapshot", (Integer) 1, property1.get());
+            Assert.assertEquals("Second value read through the new snapshot", (Integer) 1, property2.get());
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testReclaim() {
+
+        for (int value = 1; value <= 10; value++) {
+            property1.set(value);
+        }
+        Assert.assertEquals("Versions without open snapshots", 1, property1.getVersionCount());
+
+        Snapshot snapshot = Snapshot.open();
+        try {
+            for (int value = 11; value <= 15; value++) {
+                property1.set(value);
+            }
+            Assert.assertEquals("Versions while a snapshot is open", 6, property1.getVersionCount());
+        } finally {
+            snapshot.close();
+        }
+
+        property1.set(16);
+        Assert.assertEquals("Versions after the snapshot was closed", 1, property1.getVersionCount());
+    }
+
+    @Test
+    public void testMaxVersions() {
+
+        Snapshot snapshot = Snapshot.open();
+        try {
+            for (int value = 1; value <= 5; value++) {
+                property2.set(value);
+            }
+            Assert.assertEquals("Versions of the limited chain", 4, property2.getVersionCount());
+
+            try {
+                property2.get();
+                Assert.fail("Dropped value could be read through the snapshot");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+
+        // Slow readers shouldn't run into the limit of the chain
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        property1 = new MvccProperty<Integer>("property1", holder, 0, Integer.MAX_VALUE);
+        property2 = new MvccProperty<Integer>("property2", holder, 0, Integer.MAX_VALUE);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread[] readers = new Thread[3];
+        for (int index = 0; index < readers.length; index++) {
+            readers[index] = new Thread() {
+
+                @Override
+                public void run() {
+
+                    while (running.get()) {
+                        Snapshot snapshot = Snapshot.open();
+                        try {
+                            Integer value1 = property1.get();
+                            Thread.yield();
+                            Integer value2 = property2.get(snapshot);
+                            if (!value1.equals(value2)) {
+                                failure.compareAndSet(null, "Inconsistent snapshot: " + value1 + " != " + value2);
+                            }
+                            reads.incrementAndGet();
+                        } catch (IllegalStateException e) {
+                            failure.compareAndSet(null, e.getMessage());
+                        } finally {
+                            snapshot.close();
+                        }
+                    }
+                }
+
+            };
+            readers[index].start();
+        }
+
+        for (int value = 1; value <= 2000; value++) {
+            writeBoth(value);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        Assert.assertNull("Failure of a reader", failure.get());
+        Assert.assertTrue("Readers didn't read anything", reads.get() > 0);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.extra.def;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.ChangeListener;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.def.TtlProperty;
+import com.quartercode.classmod.util.TimerWheel;
+
+public class TtlPropertyTest {
+
+    private TimerWheel           wheel;
+    private DefaultFeatureHolder holder;
+
+    @Before
+    public void setUp() {
+
+        wheel = new TimerWheel(1, 0);
+        holder = new DefaultFeatureHolder();
+    }
+
+    @Test
+    public void testExpiration() {
+
+        TtlProperty<String> property = new TtlProperty<String>("property", holder, wheel, 100);
+        property.set("value");
+        Assert.assertEquals("Remaining time to live", 100, property.getRemainingTtl());
+
+        wheel.advance(99);
+        Assert.assertEquals("Value before the expiration", "value", property.get());
+        wheel.advance(100);
+        Assert.assertNull("Value after the expiration", property.get());
+        Assert.assertEquals("Scheduled timers after the expiration", 0, wheel.getSize());
+    }
+
+    @Test
+    public void testDefaultValue() {
+
+        TtlProperty<Integer> property = new TtlProperty<Integer>("property", holder, wheel, 100, 0);
+        Assert.assertEquals("Value without a set value", (Integer) 0, property.get());
+
+        property.set(5, 10);
+        wheel.advance(10);
+        Assert.assertEquals("Value after the expiration", (Integer) 0, property.get());
+    }
+
+    @Test
+    public void testRenewAndClear() {
+
+        TtlProperty<String> property = new TtlProperty<String>("property", holder, wheel, 100);
+        property.set("value1");
+        wheel.advance(50);
+        property.set("value2");
+        wheel.advance(100);
+        Assert.assertEquals("Renewed value after the first deadline", "value2", property.get());
+
+        property.clear();
+        Assert.assertNull("Value after clearing", property.get());
+        Assert.assertEquals("Scheduled timers after clearing", 0, wheel.getSize());
+    }
+
+    @Test
+    public void testBatchedExpirations() {
+
+        final List<List<Feature>> batches = new ArrayList<List<Feature>>();
+        List<TtlProperty<Integer>> properties = new ArrayList<TtlProperty<Integer>>();
+        for (int index = 0; index < 100; index++) {
+            TtlProperty<Integer> property = new TtlProperty<Integer>("property" + index, holder, wheel, 10 + index % 3);
+            property.set(index);
+            properties.add(property);
+        }
+
+        holder.addChangeListener(new ChangeListener() {
+
+            @Override
+            public void featuresChanged(FeatureHolder holder, List<Feature> features) {
+
+                batches.add(new ArrayList<Feature>(features));
+            }
+
+        });
+
+        Assert.assertEquals("Expired values", 100, wheel.advance(20));
+        Assert.assertEquals("Listener calls for one advance", 1, batches.size());
+        Assert.assertEquals("Expired features of the batch", 100, batches.get(0).size());
+        for (TtlProperty<Integer> property : properties) {
+            Assert.assertNull("Value after the expiration", property.get());
+        }
+    }
+
+}
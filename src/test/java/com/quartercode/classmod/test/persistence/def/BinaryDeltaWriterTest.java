@@ -0,0 +1,260 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.persistence.def.BinaryDeltaLoader;
+import com.quartercode.classmod.persistence.def.BinaryDeltaWriter;
+import com.quartercode.classmod.persistence.def.BinaryPersistenceEngine;
+import com.quartercode.classmod.persistence.def.DirtyTracker;
+import com.quartercode.classmod.util.CollectionPropertyAccessorFactory;
+
+public class BinaryDeltaWriterTest {
+
+    private static final FeatureDefinition<ObjectProperty<List<String>>> ELEMENTS;
+
+    static {
+
+        ELEMENTS = new AbstractFeatureDefinition<ObjectProperty<List<String>>>("elements") {
+
+            @Override
+            public ObjectProperty<List<String>> create(FeatureHolder holder) {
+
+                return new ObjectProperty<List<String>>(getName(), holder, new ArrayList<String>());
+            }
+
+        };
+
+    }
+
+    private static byte[] writeSnapshot(BinaryDeltaWriter writer) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.writeSnapshot(output);
+        return output.toByteArray();
+    }
+
+    private static byte[] writeDelta(BinaryDeltaWriter writer) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.writeDelta(output);
+        return output.toByteArray();
+    }
+
+    private static TestNode getNode(TestNode root, String path) {
+
+        TestNode node = root;
+        for (char direction : path.toCharArray()) {
+            node = node.get(direction == 'l' ? TestNode.LEFT : TestNode.RIGHT).get();
+        }
+        return node;
+    }
+
+    @Test
+    public void testTrackChanges() throws IOException {
+
+        TestNode root = TestNode.createTree(4, 0);
+        BinaryDeltaWriter writer = new BinaryDeltaWriter(root);
+        DirtyTracker tracker = writer.getTracker();
+
+        root.get(TestNode.VALUE).set(1);
+        Assert.assertFalse("Tracker is dirty before the first snapshot", tracker.isDirty());
+
+        writeSnapshot(writer);
+        TestNode node = getNode(root, "lr");
+        node.get(TestNode.VALUE).set(100);
+        node.get(TestNode.LINK).set(root);
+        node.get(TestNode.VALUE).set(101);
+
+        Assert.assertEquals("Dirty holders", 1, tracker.getDirtyHolders().size());
+        Assert.assertTrue("Changed node is dirty", tracker.isDirty(node));
+        Assert.assertEquals("Dirty features of the changed node", 2, tracker.getDirtyFeatures(node).size());
+        Assert.assertTrue("Value is dirty", tracker.getDirtyFeatures(node).contains("value"));
+        Assert.assertTrue("Link is dirty", tracker.getDirtyFeatures(node).contains("link"));
+
+        writeDelta(writer);
+        Assert.assertFalse("Tracker is dirty after writing a delta", tracker.isDirty());
+    }
+
+    @Test
+    public void testTrackCollectionChanges() throws ExecutorInvocationException {
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        DirtyTracker tracker = new DirtyTracker();
+        holder.setChangeTracker(tracker);
+
+        Map<String, FunctionExecutor<Void>> addExecutors = new HashMap<String, FunctionExecutor<Void>>();
+        addExecutors.put("add", CollectionPropertyAccessorFactory.createAdd(ELEMENTS));
+        AbstractFunction<Void> add = new AbstractFunction<Void>("add", holder, Arrays.<Class<?>> asList(String.class), addExecutors);
+        Map<String, FunctionExecutor<Void>> removeExecutors = new HashMap<String, FunctionExecutor<Void>>();
+        removeExecutors.put("remove", CollectionPropertyAccessorFactory.createRemove(ELEMENTS));
+        AbstractFunction<Void> remove = new AbstractFunction<Void>("remove", holder, Arrays.<Class<?>> asList(String.class), removeExecutors);
+
+        remove.invoke("element");
+        Assert.assertFalse("Holder is dirty after removing a non-existent element", tracker.isDirty(holder));
+
+        add.invoke("element");
+        Assert.assertTrue("Elements are dirty after adding an element", tracker.getDirtyFeatures(holder).contains("elements"));
+
+        tracker.clear();
+        remove.invoke("element");
+        Assert.assertTrue("Elements are dirty after removing an element", tracker.getDirtyFeatures(holder).contains("elements"));
+    }
+
+    @Test
+    public void testApplyDelta() throws IOException {
+
+        TestNode root = TestNode.createTree(6, 0);
+        BinaryDeltaWriter writer = new BinaryDeltaWriter(root);
+        byte[] snapshot = writeSnapshot(writer);
+
+        getNode(root, "lrl").get(TestNode.NAME).set("changed");
+        getNode(root, "rr").get(TestNode.LINK).set(getNode(root, "l"));
+        byte[] delta = writeDelta(writer);
+
+        Assert.assertTrue("Delta (" + delta.length + " bytes) isn't much smaller than the snapshot (" + snapshot.length + " bytes)", delta.length * 5 < snapshot.length);
+
+        BinaryDeltaLoader loader = new BinaryDeltaLoader();
+        TestNode read = (TestNode) loader.readSnapshot(new ByteArrayInputStream(snapshot));
+        ObjectProperty<String> readName = getNode(read, "lrl").get(TestNode.NAME);
+        loader.readDelta(new ByteArrayInputStream(delta));
+
+        Assert.assertEquals("Changed name", "changed", readName.get());
+        Assert.assertSame("Name property after applying the delta", readName, getNode(read, "lrl").get(TestNode.NAME));
+        Assert.assertSame("Changed link", getNode(read, "l"), getNode(read, "rr").get(TestNode.LINK).get());
+        Assert.assertEquals("Unchanged name", "node1", getNode(read, "l").get(TestNode.NAME).get());
+    }
+
+    @Test
+    public void testApplyDeltasWithNewHolders() throws IOException {
+
+        TestNode root = TestNode.createTree(3, 0);
+        BinaryDeltaWriter writer = new BinaryDeltaWriter(root);
+        byte[] snapshot = writeSnapshot(writer);
+
+        // New holders are written completely
+        TestNode leaf = getNode(root, "ll");
+        TestNode newNode = new TestNode();
+        newNode.get(TestNode.NAME).set("new");
+        newNode.setParent(leaf);
+        leaf.get(TestNode.LEFT).set(newNode);
+        byte[] delta1 = writeDelta(writer);
+
+        // The new holders are tracked afterwards
+        newNode.get(TestNode.VALUE).set(42);
+        byte[] delta2 = writeDelta(writer);
+
+        BinaryDeltaLoader loader = new BinaryDeltaLoader();
+        TestNode read = (TestNode) loader.readSnapshot(new ByteArrayInputStream(snapshot));
+        try {
+            loader.readDelta(new ByteArrayInputStream(delta2));
+            Assert.fail("Delta which was written after another delta could be applied directly after the snapshot");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        loader.readDelta(new ByteArrayInputStream(delta1));
+        loader.readDelta(new ByteArrayInputStream(delta2));
+
+        TestNode readNewNode = getNode(read, "lll");
+        Assert.assertEquals("Name of the new node", "new", readNewNode.get(TestNode.NAME).get());
+        Assert.assertEquals("Value of the new node", 42, readNewNode.get(TestNode.VALUE).get());
+        Assert.assertSame("Parent of the new node", getNode(read, "ll"), readNewNode.getParent());
+    }
+
+    @Test
+    public void testDetachRemovedHolders() throws IOException {
+
+        TestNode root = TestNode.createTree(3, 0);
+        BinaryDeltaWriter writer = new BinaryDeltaWriter(root);
+        writeSnapshot(writer);
+
+        TestNode removed = getNode(root, "l");
+        root.get(TestNode.LEFT).set(null);
+        root.get(TestNode.RIGHT).get().get(TestNode.LINK).set(null);
+        removed.setParent(null);
+        writeDelta(writer);
+        Assert.assertSame("Tracker of a removed holder before the next snapshot", writer.getTracker(), removed.getChangeTracker());
+
+        writeSnapshot(writer);
+        Assert.assertNull("Tracker of a removed holder after the next snapshot", removed.getChangeTracker());
+        Assert.assertNull("Tracker of a child of a removed holder after the next snapshot", getNode(removed, "l").getChangeTracker());
+        Assert.assertSame("Tracker of a remaining holder", writer.getTracker(), getNode(root, "r").getChangeTracker());
+    }
+
+    @Test
+    public void testForeignTracker() throws IOException {
+
+        TestNode root = TestNode.createTree(3, 0);
+        BinaryDeltaWriter writer = new BinaryDeltaWriter(root);
+        writeSnapshot(writer);
+
+        BinaryDeltaWriter otherWriter = new BinaryDeltaWriter(root);
+        try {
+            writeSnapshot(otherWriter);
+            Assert.fail("Snapshot replaced the tracker of another delta writer");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Assert.assertSame("Tracker of the first delta writer after the failed snapshot", writer.getTracker(), getNode(root, "rl").getChangeTracker());
+
+        writer.detach();
+        writeSnapshot(otherWriter);
+        Assert.assertSame("Tracker of the second delta writer", otherWriter.getTracker(), getNode(root, "rl").getChangeTracker());
+
+        TestNode foreign = new TestNode();
+        foreign.setChangeTracker(new DirtyTracker());
+        root.get(TestNode.LINK).set(foreign);
+        try {
+            writeDelta(otherWriter);
+            Assert.fail("Delta replaced the tracker of a new holder");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Assert.assertTrue("Changes were dropped by the failed delta", otherWriter.getTracker().isDirty(root));
+    }
+
+    @Test
+    public void testSnapshotCompatibility() throws IOException {
+
+        TestNode root = TestNode.createTree(3, 0);
+        byte[] snapshot = writeSnapshot(new BinaryDeltaWriter(root));
+
+        TestNode read = (TestNode) new BinaryPersistenceEngine().read(new ByteArrayInputStream(snapshot));
+        Assert.assertEquals("Name of a node", "node6", getNode(read, "rr").get(TestNode.NAME).get());
+    }
+
+}
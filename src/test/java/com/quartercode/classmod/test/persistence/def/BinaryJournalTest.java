@@ -0,0 +1,177 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.quartercode.classmod.persistence.def.BinaryJournal;
+
+public class BinaryJournalTest {
+
+    @Rule
+    public TemporaryFolder  temporaryFolder = new TemporaryFolder();
+
+    private File            snapshotFile;
+    private File            logFile;
+    private TestNode        root;
+    private BinaryJournal   journal;
+
+    @Before
+    public void setUp() throws IOException {
+
+        snapshotFile = new File(temporaryFolder.getRoot(), "world.snapshot");
+        logFile = new File(temporaryFolder.getRoot(), "world.log");
+        root = TestNode.createTree(4, 0);
+        journal = new BinaryJournal(root, snapshotFile, logFile);
+        journal.checkpoint();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        journal.close();
+    }
+
+    private static void copy(File from, File to) throws IOException {
+
+        FileInputStream input = new FileInputStream(from);
+        FileOutputStream output = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ( (read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+
+    @Test
+    public void testRecover() throws IOException, InterruptedException {
+
+        root.get(TestNode.LEFT).get().get(TestNode.NAME).set("changed1");
+        Assert.assertTrue("Commit with changes appended a record", journal.commit());
+
+        TestNode newNode = new TestNode();
+        newNode.get(TestNode.NAME).set("new");
+        root.get(TestNode.RIGHT).get().get(TestNode.LINK).set(newNode);
+        root.get(TestNode.VALUE).set(-1);
+        Assert.assertTrue("Commit with changes appended a record", journal.commit());
+        Assert.assertFalse("Commit without changes appended a record", journal.commit());
+
+        // Uncommitted changes are lost
+        root.get(TestNode.VALUE).set(-2);
+        journal.sync();
+
+        // Recover without closing the journal (like after a crash)
+        TestNode recovered = (TestNode) BinaryJournal.recover(snapshotFile, logFile);
+        Assert.assertEquals("Recovered name", "changed1", recovered.get(TestNode.LEFT).get().get(TestNode.NAME).get());
+        Assert.assertEquals("Recovered value", -1, recovered.get(TestNode.VALUE).get());
+        Assert.assertEquals("Name of the recovered new node", "new", recovered.get(TestNode.RIGHT).get().get(TestNode.LINK).get().get(TestNode.NAME).get());
+    }
+
+    @Test
+    public void testRecoverIgnoresCorruptedRecord() throws IOException {
+
+        root.get(TestNode.VALUE).set(1);
+        journal.commit();
+        int firstRecordEnd = journal.getLogSize();
+        root.get(TestNode.VALUE).set(2);
+        journal.commit();
+        journal.close();
+
+        // Corrupt the data of the second record
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.seek(firstRecordEnd + 12);
+            int value = file.read();
+            file.seek(firstRecordEnd + 12);
+            file.write(value ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        TestNode recovered = (TestNode) BinaryJournal.recover(snapshotFile, logFile);
+        Assert.assertEquals("Value of the last intact record", 1, recovered.get(TestNode.VALUE).get());
+    }
+
+    @Test
+    public void testRecoverIgnoresOldLog() throws IOException {
+
+        root.get(TestNode.NAME).set("old");
+        journal.commit();
+        journal.close();
+        File oldLogFile = new File(temporaryFolder.getRoot(), "old.log");
+        copy(logFile, oldLogFile);
+
+        // The new snapshot contains the change, so the old log must not be replayed on top of it
+        root.get(TestNode.NAME).set("checkpoint");
+        journal.checkpoint();
+        journal.close();
+        copy(oldLogFile, logFile);
+
+        TestNode recovered = (TestNode) BinaryJournal.recover(snapshotFile, logFile);
+        Assert.assertEquals("Recovered name", "checkpoint", recovered.get(TestNode.NAME).get());
+    }
+
+    @Test
+    public void testCheckpointResetsLog() throws IOException {
+
+        for (int counter = 0; counter < 100; counter++) {
+            root.get(TestNode.VALUE).set(counter);
+            journal.commit();
+        }
+        int logSize = journal.getLogSize();
+
+        journal.checkpoint();
+        Assert.assertTrue("Log size after checkpoint (" + journal.getLogSize() + ") isn't smaller than before (" + logSize + ")", journal.getLogSize() < logSize);
+        Assert.assertEquals("Recovered value", 99, ((TestNode) BinaryJournal.recover(snapshotFile, logFile)).get(TestNode.VALUE).get());
+    }
+
+    @Test (timeout = 5000)
+    public void testSyncIgnoresInterval() throws IOException, InterruptedException {
+
+        journal.close();
+        journal = new BinaryJournal(root, snapshotFile, logFile, 1, TimeUnit.HOURS);
+        journal.checkpoint();
+
+        // The first sync isn't delayed by the interval
+        root.get(TestNode.VALUE).set(1);
+        journal.commit();
+        journal.sync();
+
+        // The second one would be delayed by the interval if the sync wasn't requested explicitly
+        root.get(TestNode.VALUE).set(2);
+        journal.commit();
+        journal.sync();
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.annotation.ElementType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBException;
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+import com.quartercode.classmod.persistence.def.BinaryPersistenceEngine;
+import com.quartercode.classmod.persistence.def.JaxbPersistenceEngine;
+import com.quartercode.classmod.persistence.def.SerializableClasses;
+
+public class BinaryPersistenceEngineTest {
+
+    private static FeatureHolder roundTrip(PersistenceEngine engine, FeatureHolder root) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        engine.write(root, output);
+        return engine.read(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static int getSize(PersistenceEngine engine, FeatureHolder root) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        engine.write(root, output);
+        return output.size();
+    }
+
+    // Creates the binary data of a graph whose root value starts with the given tag and length
+    private static byte[] createData(int tag, String className, int length) {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write('C');
+        output.write('M');
+        output.write('B');
+        output.write(1);
+        output.write(tag);
+        if (className != null) {
+            // New dictionary string
+            output.write(0);
+            output.write(className.length());
+            for (char character : className.toCharArray()) {
+                output.write(character);
+            }
+        }
+        // Varint
+        for (int rest = length; true; rest >>>= 7) {
+            if ( (rest & ~0x7F) == 0) {
+                output.write(rest);
+                break;
+            }
+            output.write(rest & 0x7F | 0x80);
+        }
+        return output.toByteArray();
+    }
+
+    @Test
+    public void testRoundTripTree() throws IOException {
+
+        TestNode root = TestNode.createTree(4, 0);
+        root.setLocked(false);
+
+        TestNode read = (TestNode) roundTrip(new BinaryPersistenceEngine(), root);
+
+        Assert.assertFalse("Read root is locked", read.isLocked());
+        assertTreeEquals(root, read, null);
+
+        // References point into the read graph
+        TestNode left = read.get(TestNode.LEFT).get();
+        TestNode right = read.get(TestNode.RIGHT).get();
+        Assert.assertSame("Reference of the right node", left, right.get(TestNode.LINK).get());
+    }
+
+    private void assertTreeEquals(TestNode expected, TestNode actual, TestNode actualParent) {
+
+        Assert.assertEquals("Node name", expected.get(TestNode.NAME).get(), actual.get(TestNode.NAME).get());
+        Assert.assertSame("Parent of node " + actual.get(TestNode.NAME).get(), actualParent, actual.getParent());
+        // The written nodes still use their holder ids, so the read nodes must get new ones
+        Assert.assertTrue("Holder id of node " + actual.get(TestNode.NAME).get() + " is taken twice", actual.getHolderId() > expected.getHolderId());
+        Assert.assertSame("Holder of the name property", actual, actual.get(TestNode.NAME).getHolder());
+
+        TestNode expectedLeft = expected.get(TestNode.LEFT).get();
+        if (expectedLeft == null) {
+            Assert.assertNull("Left node of leaf", actual.get(TestNode.LEFT).get());
+        } else {
+            assertTreeEquals(expectedLeft, actual.get(TestNode.LEFT).get(), actual);
+            assertTreeEquals(expected.get(TestNode.RIGHT).get(), actual.get(TestNode.RIGHT).get(), actual);
+        }
+    }
+
+    @Test
+    public void testReadTakenIds() throws IOException {
+
+        TestNode root = TestNode.createTree(4, 0);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BinaryPersistenceEngine().write(root, output);
+
+        // Holders which are created before loading take the next ids
+        List<TestNode> created = Arrays.asList(new TestNode(), new TestNode());
+        for (TestNode holder : created) {
+            holder.getHolderId();
+        }
+
+        TestNode first = (TestNode) new BinaryPersistenceEngine().read(new ByteArrayInputStream(output.toByteArray()));
+        TestNode second = (TestNode) new BinaryPersistenceEngine().read(new ByteArrayInputStream(output.toByteArray()));
+
+        Set<Long> ids = new HashSet<Long>();
+        for (TestNode holder : created) {
+            ids.add(holder.getHolderId());
+        }
+        for (TestNode tree : Arrays.asList(root, first, second)) {
+            addHolderIds(tree, ids);
+        }
+        Assert.assertEquals("Amount of unique holder ids", 2 + 3 * 15, ids.size());
+
+        // References are still resolved through the written ids
+        Assert.assertSame("Reference of the right node", first.get(TestNode.LEFT).get(), first.get(TestNode.RIGHT).get().get(TestNode.LINK).get());
+    }
+
+    private void addHolderIds(TestNode node, Set<Long> ids) {
+
+        ids.add(node.getHolderId());
+        if (node.get(TestNode.LEFT).get() != null) {
+            addHolderIds(node.get(TestNode.LEFT).get(), ids);
+            addHolderIds(node.get(TestNode.RIGHT).get(), ids);
+        }
+    }
+
+    @Test
+    public void testRoundTripValues() throws IOException {
+
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        map.put("one", 1);
+        map.put("two", 2);
+
+        List<Object> values = new ArrayList<Object>();
+        values.add(-5);
+        values.add(Long.MIN_VALUE);
+        values.add(3.5D);
+        values.add(-1.25F);
+        values.add((byte) -7);
+        values.add((short) 300);
+        values.add('x');
+        values.add(true);
+        values.add("Unicode äöü €");
+        values.add(String.class);
+        values.add(int.class);
+        values.add(TimeUnit.SECONDS);
+        values.add(map);
+        values.add(Collections.unmodifiableList(Arrays.asList("a", "b")));
+        values.add(new int[] { 1, 2, 3 });
+        values.add(new byte[] { 4, 5 });
+        values.add(new String[] { "c", null });
+        values.add(ElementType.METHOD);
+        values.add(null);
+
+        TestNode root = new TestNode();
+        root.get(TestNode.VALUE).set(values);
+
+        @SuppressWarnings ("unchecked")
+        List<Object> readValues = (List<Object>) ((TestNode) roundTrip(new BinaryPersistenceEngine(), root)).get(TestNode.VALUE).get();
+
+        Assert.assertEquals("Amount of read values", values.size(), readValues.size());
+        for (int index = 0; index < values.size(); index++) {
+            Object expected = values.get(index);
+            Object actual = readValues.get(index);
+            if (expected instanceof int[]) {
+                Assert.assertArrayEquals("Value " + index, (int[]) expected, (int[]) actual);
+            } else if (expected instanceof byte[]) {
+                Assert.assertArrayEquals("Value " + index, (byte[]) expected, (byte[]) actual);
+            } else if (expected instanceof Object[]) {
+                Assert.assertArrayEquals("Value " + index, (Object[]) expected, (Object[]) actual);
+            } else {
+                Assert.assertEquals("Value " + index, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripReferenceCycle() throws IOException {
+
+        TestNode root = new TestNode();
+        TestNode first = new TestNode();
+        TestNode second = new TestNode();
+        root.get(TestNode.LEFT).set(first);
+        first.setParent(root);
+        first.get(TestNode.LINK).set(second);
+        second.get(TestNode.LINK).set(first);
+        second.get(TestNode.NAME).set("second");
+
+        TestNode read = (TestNode) roundTrip(new BinaryPersistenceEngine(), root);
+
+        TestNode readFirst = read.get(TestNode.LEFT).get();
+        TestNode readSecond = readFirst.get(TestNode.LINK).get();
+        Assert.assertEquals("Name of the referenced node", "second", readSecond.get(TestNode.NAME).get());
+        Assert.assertSame("Reference back to the first node", readFirst, readSecond.get(TestNode.LINK).get());
+        Assert.assertSame("Parent of the first node", read, readFirst.getParent());
+    }
+
+    @Test
+    public void testRoundTripChildRoot() throws IOException {
+
+        TestNode parent = TestNode.createTree(2, 0);
+        TestNode child = parent.get(TestNode.LEFT).get();
+
+        TestNode read = (TestNode) roundTrip(new BinaryPersistenceEngine(), child);
+
+        Assert.assertNotNull("Parent of the read child root", read.getParent());
+        Assert.assertSame("Child of the read parent", read, read.getParent().get(TestNode.LEFT).get());
+    }
+
+    @Test (expected = IOException.class)
+    public void testReadMalformed() throws IOException {
+
+        new BinaryPersistenceEngine().read(new ByteArrayInputStream(new byte[] { 'x', 'm', 'l' }));
+    }
+
+    @Test (expected = IOException.class)
+    public void testReadNegativeLength() throws IOException {
+
+        // Tag 18 = byte array
+        new BinaryPersistenceEngine().read(new ByteArrayInputStream(createData(18, null, -1)));
+    }
+
+    @Test (expected = IOException.class)
+    public void testReadHugeLength() throws IOException {
+
+        // Tag 17 = array
+        new BinaryPersistenceEngine().read(new ByteArrayInputStream(createData(17, "int", Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testReadNonCollection() throws IOException {
+
+        Probe.created = false;
+        try {
+            // Tag 15 = collection
+            new BinaryPersistenceEngine().read(new ByteArrayInputStream(createData(15, Probe.class.getName(), 0)));
+            Assert.fail("Non-collection class was read as a collection");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        Assert.assertFalse("Non-collection class was instantiated", Probe.created);
+    }
+
+    @Test
+    public void testReadSerializable() throws IOException {
+
+        TestNode root = new TestNode();
+        root.get(TestNode.VALUE).set(new Date(1000));
+
+        try {
+            new BinaryPersistenceEngine().write(root, new ByteArrayOutputStream());
+            Assert.fail("Serializable class which isn't allowed was written");
+        } catch (IOException e) {
+            Assert.assertTrue("Exception doesn't name the class: " + e.getMessage(), e.getMessage().contains("java.util.Date"));
+        }
+
+        SerializableClasses.allow("java.util.Date");
+        try {
+            TestNode read = (TestNode) roundTrip(new BinaryPersistenceEngine(), root);
+            Assert.assertEquals("Read serializable value", new Date(1000), read.get(TestNode.VALUE).get());
+        } finally {
+            SerializableClasses.disallow("java.util.Date");
+        }
+    }
+
+    @Test
+    public void testWriteNestedSerializable() throws IOException {
+
+        TestNode root = new TestNode();
+        root.get(TestNode.VALUE).set(new Wrapper(new Date(1000)));
+
+        SerializableClasses.allow(Wrapper.class.getName());
+        try {
+            new BinaryPersistenceEngine().write(root, new ByteArrayOutputStream());
+            Assert.fail("Serializable object with a field whose class isn't allowed was written");
+        } catch (IOException e) {
+            Assert.assertTrue("Exception doesn't name the class of the field: " + e.getMessage(), e.getMessage().contains("java.util.Date"));
+        } finally {
+            SerializableClasses.disallow(Wrapper.class.getName());
+        }
+    }
+
+    @Test
+    public void testSmallerThanXml() throws IOException, JAXBException {
+
+        // The JAXB engine can't handle cycles, but the tree only references siblings
+        TestNode root = TestNode.createTree(8, 0);
+
+        int binarySize = getSize(new BinaryPersistenceEngine(), root);
+        int xmlSize = getSize(new JaxbPersistenceEngine(TestNode.class), root);
+
+        Assert.assertTrue("Binary size (" + binarySize + ") isn't an order of magnitude smaller than xml size (" + xmlSize + ")", binarySize * 10 <= xmlSize);
+
+        TestNode read = (TestNode) roundTrip(new JaxbPersistenceEngine(TestNode.class), root);
+        Assert.assertEquals("Name of the root read by JAXB", "node0", read.get(TestNode.NAME).get());
+    }
+
+    private static class Probe {
+
+        private static boolean created;
+
+        @SuppressWarnings ("unused")
+        private Probe() {
+
+            created = true;
+        }
+
+    }
+
+    private static class Wrapper implements Serializable {
+
+        private static final long serialVersionUID = 2491958234108340962L;
+
+        @SuppressWarnings ("unused")
+        private final Object      value;
+
+        private Wrapper(Object value) {
+
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.persistence.def.BinaryPersistenceEngine;
+import com.quartercode.classmod.persistence.def.CopyOnWriteSnapshot;
+import com.quartercode.classmod.persistence.def.MappedSnapshotStore;
+import com.quartercode.classmod.util.CollectionPropertyAccessorFactory;
+
+public class CopyOnWriteSnapshotTest {
+
+    private static final FeatureDefinition<ObjectProperty<List<String>>> ELEMENTS;
+
+    static {
+
+        ELEMENTS = new AbstractFeatureDefinition<ObjectProperty<List<String>>>("elements") {
+
+            @Override
+            public ObjectProperty<List<String>> create(FeatureHolder holder) {
+
+                return new ObjectProperty<List<String>>(getName(), holder, new ArrayList<String>());
+            }
+
+        };
+
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static FeatureHolder write(CopyOnWriteSnapshot snapshot) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        snapshot.write(output);
+        return new BinaryPersistenceEngine().read(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static TestNode getNode(TestNode root, String path) {
+
+        TestNode node = root;
+        for (char direction : path.toCharArray()) {
+            node = node.get(direction == 'l' ? TestNode.LEFT : TestNode.RIGHT).get();
+        }
+        return node;
+    }
+
+    @Test
+    public void testWriteOldState() throws IOException {
+
+        TestNode root = TestNode.createTree(4, 0);
+        TestNode newNode = new TestNode();
+        newNode.get(TestNode.NAME).set("new");
+        CopyOnWriteSnapshot snapshot = CopyOnWriteSnapshot.take(root);
+
+        getNode(root, "lr").get(TestNode.NAME).set("changed");
+        getNode(root, "lr").get(TestNode.NAME).set("changed again");
+        getNode(root, "rl").get(TestNode.LINK).set(root);
+        getNode(root, "lll").get(TestNode.LEFT).set(newNode);
+        root.setLocked(false);
+
+        Assert.assertEquals("Preserved holders", 4, snapshot.getPreservedCount());
+
+        TestNode read = (TestNode) write(snapshot);
+        Assert.assertEquals("Name of the changed node", "node4", getNode(read, "lr").get(TestNode.NAME).get());
+        Assert.assertNull("Link of the changed node", getNode(read, "rl").get(TestNode.LINK).get());
+        Assert.assertNull("Left child of the changed leaf", getNode(read, "lll").get(TestNode.LEFT).get());
+        Assert.assertTrue("Changed root isn't locked", read.isLocked());
+        Assert.assertEquals("Name of an unchanged node", "node6", getNode(read, "rr").get(TestNode.NAME).get());
+        Assert.assertSame("Link of an unchanged node", getNode(read, "l"), getNode(read, "r").get(TestNode.LINK).get());
+
+        Assert.assertEquals("Current name of the changed node", "changed again", getNode(root, "lr").get(TestNode.NAME).get());
+        Assert.assertEquals("Preserved holders after writing", 0, snapshot.getPreservedCount());
+    }
+
+    @Test
+    public void testCopyCollections() throws IOException, ExecutorInvocationException {
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        holder.get(ELEMENTS).get().add("old");
+
+        Map<String, FunctionExecutor<Void>> addExecutors = new HashMap<String, FunctionExecutor<Void>>();
+        addExecutors.put("add", CollectionPropertyAccessorFactory.createAdd(ELEMENTS));
+        AbstractFunction<Void> add = new AbstractFunction<Void>("add", holder, Arrays.<Class<?>> asList(String.class), addExecutors);
+
+        CopyOnWriteSnapshot snapshot = CopyOnWriteSnapshot.take(holder);
+        add.invoke("new");
+
+        FeatureHolder read = write(snapshot);
+        Assert.assertEquals("Elements of the written holder", Arrays.asList("old"), read.get(ELEMENTS).get());
+        Assert.assertEquals("Current elements", Arrays.asList("old", "new"), holder.get(ELEMENTS).get());
+    }
+
+    @Test
+    public void testLoadLazyHolders() throws IOException {
+
+        File file = temporaryFolder.newFile("world.store");
+        MappedSnapshotStore.write(TestNode.createTree(4, 0), file);
+        MappedSnapshotStore store = MappedSnapshotStore.open(file);
+        TestNode root = (TestNode) store.getRoot();
+
+        // The writer thread mustn't load any features while the graph is accessed by other threads
+        CopyOnWriteSnapshot snapshot = CopyOnWriteSnapshot.take(root);
+        Assert.assertEquals("Loaded holders after taking the snapshot", store.getHolderCount(), store.getLoadedCount());
+
+        root.get(TestNode.NAME).set("changed");
+        TestNode read = (TestNode) write(snapshot);
+        Assert.assertEquals("Name of the changed root", "node0", read.get(TestNode.NAME).get());
+        Assert.assertEquals("Name of an unchanged node", "node6", getNode(read, "rr").get(TestNode.NAME).get());
+    }
+
+    @Test
+    public void testRelease() throws IOException {
+
+        TestNode root = TestNode.createTree(2, 0);
+        CopyOnWriteSnapshot snapshot = CopyOnWriteSnapshot.take(root);
+        snapshot.release();
+
+        root.get(TestNode.NAME).set("changed");
+        Assert.assertEquals("Preserved holders after releasing", 0, snapshot.getPreservedCount());
+
+        try {
+            write(snapshot);
+            Assert.fail("Released snapshot could be written");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+}
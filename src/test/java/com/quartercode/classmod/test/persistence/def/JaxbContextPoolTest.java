@@ -0,0 +1,55 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.persistence.def.JaxbContextPool;
+import com.quartercode.classmod.persistence.def.JaxbPersistenceEngine;
+import com.quartercode.classmod.persistence.def.StaxPersistenceEngine;
+
+public class JaxbContextPoolTest {
+
+    @Test
+    public void testSharedContext() throws JAXBException {
+
+        JaxbContextPool pool = JaxbContextPool.get(TestNode.class);
+        Assert.assertSame("Pool for the same classes", pool, JaxbContextPool.get(TestNode.class));
+        Assert.assertSame("Context of a jaxb engine", pool.getContext(), new JaxbPersistenceEngine(TestNode.class).getContext());
+        Assert.assertSame("Context of a stax engine", pool.getContext(), new StaxPersistenceEngine(TestNode.class).getContext());
+        Assert.assertNotSame("Pool for other classes", pool, JaxbContextPool.get());
+    }
+
+    @Test
+    public void testPooledMarshallers() throws JAXBException {
+
+        JaxbContextPool pool = JaxbContextPool.get(TestNode.class);
+        Marshaller first = pool.acquireMarshaller();
+        Marshaller second = pool.acquireMarshaller();
+        Assert.assertNotSame("Marshallers which are used at the same time", first, second);
+
+        pool.releaseMarshaller(first);
+        Assert.assertSame("Marshaller after releasing it", first, pool.acquireMarshaller());
+        pool.releaseMarshaller(first);
+        pool.releaseMarshaller(second);
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.persistence.def.MappedSnapshotStore;
+
+public class MappedSnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MappedSnapshotStore writeAndOpen(TestNode root) throws IOException {
+
+        File file = temporaryFolder.newFile("world.store");
+        MappedSnapshotStore.write(root, file);
+        return MappedSnapshotStore.open(file);
+    }
+
+    @Test
+    public void testLazyLoading() throws IOException {
+
+        MappedSnapshotStore store = writeAndOpen(TestNode.createTree(8, 0));
+        Assert.assertEquals("Holder count", 255, store.getHolderCount());
+        Assert.assertEquals("Loaded holders after opening", 0, store.getLoadedCount());
+
+        TestNode root = (TestNode) store.getRoot();
+        Assert.assertEquals("Loaded holders after getting the root", 0, store.getLoadedCount());
+        Assert.assertEquals("Root name", "node0", root.get(TestNode.NAME).get());
+        Assert.assertEquals("Loaded holders after accessing the root", 1, store.getLoadedCount());
+
+        TestNode right = root.get(TestNode.RIGHT).get();
+        Assert.assertEquals("Loaded holders after reaching a child", 1, store.getLoadedCount());
+        Assert.assertSame("Parent of the unloaded child", root, right.getParent());
+
+        Assert.assertEquals("Value of the child", 2, right.get(TestNode.VALUE).get());
+        Assert.assertEquals("Loaded holders after accessing a child", 2, store.getLoadedCount());
+        Assert.assertSame("Reference of the child", root.get(TestNode.LEFT).get(), right.get(TestNode.LINK).get());
+    }
+
+    @Test
+    public void testSingleFeatureDecoding() throws IOException {
+
+        MappedSnapshotStore store = writeAndOpen(TestNode.createTree(3, 0));
+        TestNode root = (TestNode) store.getRoot();
+
+        Assert.assertEquals("Root name", "node0", root.get(TestNode.NAME).get());
+        Assert.assertEquals("Decoded features after accessing one feature", 1, store.getDecodedFeatureCount());
+        Assert.assertFalse("Features of the root are marked as completely loaded", root.isFeaturesLoaded());
+
+        Assert.assertNull("Link of the root (not stored)", root.get(TestNode.LINK).get());
+        Assert.assertEquals("Decoded features after accessing a feature which isn't stored", 1, store.getDecodedFeatureCount());
+
+        int features = 0;
+        for (@SuppressWarnings ("unused")
+        Feature feature : root) {
+            features++;
+        }
+        Assert.assertEquals("Features of the root after iterating", 5, features);
+        Assert.assertEquals("Decoded features after iterating", 4, store.getDecodedFeatureCount());
+        Assert.assertEquals("Root value after iterating", 0, root.get(TestNode.VALUE).get());
+        Assert.assertEquals("Root name after iterating", "node0", root.get(TestNode.NAME).get());
+        Assert.assertEquals("Decoded features after accessing loaded features", 4, store.getDecodedFeatureCount());
+    }
+
+    @Test
+    public void testLockWithoutLoading() throws IOException {
+
+        MappedSnapshotStore store = writeAndOpen(TestNode.createTree(3, 0));
+        TestNode root = (TestNode) store.getRoot();
+        Assert.assertEquals("Root name", "node0", root.get(TestNode.NAME).get());
+
+        root.setLocked(false);
+        Assert.assertFalse("Root is locked", root.isLocked());
+        Assert.assertEquals("Decoded features after unlocking the root", 1, store.getDecodedFeatureCount());
+        Assert.assertFalse("Features of the root are marked as completely loaded", root.isFeaturesLoaded());
+    }
+
+    @Test
+    public void testPersistentFeaturesWithoutLoadingReferences() throws IOException {
+
+        MappedSnapshotStore store = writeAndOpen(TestNode.createTree(4, 0));
+        TestNode root = (TestNode) store.getRoot();
+
+        Assert.assertEquals("Persistent features of the root", 4, root.getPersistentFeatures().size());
+        Assert.assertEquals("Loaded holders after getting the persistent features of the root", 1, store.getLoadedCount());
+    }
+
+    @Test
+    public void testHashCodeLoadsReachableHolders() throws IOException {
+
+        MappedSnapshotStore store = writeAndOpen(TestNode.createTree(4, 0));
+        TestNode root = (TestNode) store.getRoot();
+
+        // Documented behavior: The hash code depends on the contents of all reachable holders
+        Assert.assertEquals("Hash code of the root", TestNode.createTree(4, 0).hashCode(), root.hashCode());
+        Assert.assertEquals("Loaded holders after computing the hash code of the root", store.getHolderCount(), store.getLoadedCount());
+    }
+
+    @Test
+    public void testCompleteGraph() throws IOException {
+
+        TestNode original = TestNode.createTree(5, 0);
+        original.setLocked(false);
+        original.get(TestNode.VALUE).set(new int[] { 1, 2, 3 });
+
+        MappedSnapshotStore store = writeAndOpen(original);
+        TestNode root = (TestNode) store.getRoot();
+
+        Assert.assertFalse("Root is locked", root.isLocked());
+        Assert.assertTrue("Child is locked", root.get(TestNode.LEFT).get().isLocked());
+        Assert.assertArrayEquals("Array value", new int[] { 1, 2, 3 }, (int[]) root.get(TestNode.VALUE).get());
+        assertTreeEquals(original.get(TestNode.LEFT).get(), root.get(TestNode.LEFT).get(), root);
+        assertTreeEquals(original.get(TestNode.RIGHT).get(), root.get(TestNode.RIGHT).get(), root);
+        Assert.assertEquals("Loaded holders after accessing every holder", store.getHolderCount(), store.getLoadedCount());
+    }
+
+    private void assertTreeEquals(TestNode expected, TestNode actual, TestNode actualParent) {
+
+        Assert.assertEquals("Node name", expected.get(TestNode.NAME).get(), actual.get(TestNode.NAME).get());
+        Assert.assertEquals("Node value", expected.get(TestNode.VALUE).get(), actual.get(TestNode.VALUE).get());
+        Assert.assertSame("Parent of node " + actual.get(TestNode.NAME).get(), actualParent, actual.getParent());
+
+        TestNode expectedLeft = expected.get(TestNode.LEFT).get();
+        if (expectedLeft == null) {
+            Assert.assertNull("Left node of leaf", actual.get(TestNode.LEFT).get());
+        } else {
+            assertTreeEquals(expectedLeft, actual.get(TestNode.LEFT).get(), actual);
+            assertTreeEquals(expected.get(TestNode.RIGHT).get(), actual.get(TestNode.RIGHT).get(), actual);
+            Assert.assertSame("Link of node " + actual.get(TestNode.NAME).get(), actual.get(TestNode.LEFT).get(), actual.get(TestNode.RIGHT).get().get(TestNode.LINK).get());
+        }
+    }
+
+    @Test (expected = IOException.class)
+    public void testOpenMalformed() throws IOException {
+
+        File file = temporaryFolder.newFile("malformed.store");
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[100]);
+        } finally {
+            output.close();
+        }
+
+        MappedSnapshotStore.open(file);
+    }
+
+}
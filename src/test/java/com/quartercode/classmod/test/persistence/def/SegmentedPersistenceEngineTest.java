@@ -0,0 +1,175 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+import com.quartercode.classmod.persistence.def.SegmentedPersistenceEngine;
+
+public class SegmentedPersistenceEngineTest {
+
+    private static FeatureHolder transfer(PersistenceEngine engine, FeatureHolder root) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        engine.write(root, output);
+        return engine.read(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static TestNode getNode(TestNode root, String path) {
+
+        TestNode node = root;
+        for (char direction : path.toCharArray()) {
+            node = node.get(direction == 'l' ? TestNode.LEFT : TestNode.RIGHT).get();
+        }
+        return node;
+    }
+
+    private ExecutorService            executor;
+    private SegmentedPersistenceEngine engine;
+    private TestNode                   world;
+    private List<TestNode>             computers;
+
+    @Before
+    public void setUp() {
+
+        executor = Executors.newFixedThreadPool(4);
+        engine = new SegmentedPersistenceEngine(executor);
+
+        // The world stores its computers in a list, so every computer is a segment
+        world = TestNode.createTree(2, 0);
+        computers = new ArrayList<TestNode>();
+        for (int index = 0; index < 6; index++) {
+            TestNode computer = TestNode.createTree(5, 100 * (index + 1));
+            computer.setParent(world);
+            computers.add(computer);
+        }
+        world.get(TestNode.VALUE).set(computers);
+    }
+
+    @After
+    public void tearDown() {
+
+        executor.shutdown();
+    }
+
+    private void assertTreeEquals(TestNode expected, TestNode actual, TestNode actualParent) {
+
+        Assert.assertEquals("Node name", expected.get(TestNode.NAME).get(), actual.get(TestNode.NAME).get());
+        // The written nodes still use their holder ids, so the read nodes must get new ones
+        Assert.assertTrue("Holder id of node " + actual.get(TestNode.NAME).get() + " is taken twice", actual.getHolderId() > expected.getHolderId());
+        Assert.assertSame("Parent of node " + actual.get(TestNode.NAME).get(), actualParent, actual.getParent());
+
+        TestNode expectedLeft = expected.get(TestNode.LEFT).get();
+        if (expectedLeft != null) {
+            TestNode actualLeft = actual.get(TestNode.LEFT).get();
+            TestNode actualRight = actual.get(TestNode.RIGHT).get();
+            assertTreeEquals(expectedLeft, actualLeft, actual);
+            assertTreeEquals(expected.get(TestNode.RIGHT).get(), actualRight, actual);
+            Assert.assertSame("Reference of the right node", actualLeft, actualRight.get(TestNode.LINK).get());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        TestNode read = (TestNode) transfer(engine, world);
+
+        assertTreeEquals(world, read, null);
+        @SuppressWarnings ("unchecked")
+        List<TestNode> readComputers = (List<TestNode>) read.get(TestNode.VALUE).get();
+        Assert.assertEquals("Amount of computers", computers.size(), readComputers.size());
+        for (int index = 0; index < computers.size(); index++) {
+            assertTreeEquals(computers.get(index), readComputers.get(index), read);
+        }
+    }
+
+    @Test
+    public void testCrossSegmentReferences() throws IOException {
+
+        getNode(computers.get(0), "llll").get(TestNode.LINK).set(getNode(computers.get(5), "rrrr"));
+        getNode(computers.get(5), "rrrl").get(TestNode.LINK).set(computers.get(0));
+        computers.get(2).get(TestNode.LINK).set(world);
+
+        TestNode read = (TestNode) transfer(engine, world);
+        @SuppressWarnings ("unchecked")
+        List<TestNode> readComputers = (List<TestNode>) read.get(TestNode.VALUE).get();
+
+        Assert.assertSame("Reference into another computer", getNode(readComputers.get(5), "rrrr"), getNode(readComputers.get(0), "llll").get(TestNode.LINK).get());
+        Assert.assertSame("Reference to another computer", readComputers.get(0), getNode(readComputers.get(5), "rrrl").get(TestNode.LINK).get());
+        Assert.assertSame("Reference to the world", read, readComputers.get(2).get(TestNode.LINK).get());
+    }
+
+    @Test
+    public void testHashContainerOfOtherSegments() throws IOException {
+
+        // The hash codes of the computers depend on their features, which are read by other segments
+        Set<TestNode> otherComputers = new HashSet<TestNode>(computers.subList(1, computers.size()));
+        Map<TestNode, String> names = new HashMap<TestNode, String>();
+        for (TestNode computer : otherComputers) {
+            names.put(computer, computer.get(TestNode.NAME).get());
+        }
+        computers.get(0).get(TestNode.VALUE).set(new ArrayList<Object>(Arrays.asList(otherComputers, names)));
+
+        TestNode read = (TestNode) transfer(engine, world);
+        @SuppressWarnings ("unchecked")
+        List<TestNode> readComputers = (List<TestNode>) read.get(TestNode.VALUE).get();
+        List<?> readValue = (List<?>) readComputers.get(0).get(TestNode.VALUE).get();
+
+        for (TestNode readComputer : readComputers.subList(1, readComputers.size())) {
+            String name = readComputer.get(TestNode.NAME).get();
+            Assert.assertTrue("Set doesn't contain computer " + name, ((Set<?>) readValue.get(0)).contains(readComputer));
+            Assert.assertEquals("Map value of computer " + name, name, ((Map<?, ?>) readValue.get(1)).get(readComputer));
+        }
+    }
+
+    @Test
+    public void testHolderOnlyReachedByOtherSegment() throws IOException {
+
+        // The holder belongs to the first computer, but it's only reachable through the second one
+        TestNode detached = new TestNode();
+        detached.get(TestNode.NAME).set("detached");
+        detached.setParent(computers.get(0));
+        computers.get(1).get(TestNode.LINK).set(detached);
+
+        TestNode read = (TestNode) transfer(engine, world);
+        @SuppressWarnings ("unchecked")
+        List<TestNode> readComputers = (List<TestNode>) read.get(TestNode.VALUE).get();
+
+        TestNode readDetached = readComputers.get(1).get(TestNode.LINK).get();
+        Assert.assertEquals("Name of the detached holder", "detached", readDetached.get(TestNode.NAME).get());
+        Assert.assertSame("Parent of the detached holder", readComputers.get(0), readDetached.getParent());
+    }
+
+}
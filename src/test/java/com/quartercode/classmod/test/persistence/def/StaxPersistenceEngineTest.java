@@ -0,0 +1,132 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.xml.bind.JAXBException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.persistence.PersistenceEngine;
+import com.quartercode.classmod.persistence.def.JaxbPersistenceEngine;
+import com.quartercode.classmod.persistence.def.StaxPersistenceEngine;
+import com.quartercode.classmod.util.HolderIds;
+
+public class StaxPersistenceEngineTest {
+
+    private static FeatureHolder transfer(PersistenceEngine writer, PersistenceEngine reader, FeatureHolder root) throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.write(root, output);
+        return reader.read(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private JaxbPersistenceEngine jaxbEngine;
+    private StaxPersistenceEngine staxEngine;
+    private TestNode              tree;
+
+    @Before
+    public void setUp() throws JAXBException {
+
+        jaxbEngine = new JaxbPersistenceEngine(TestNode.class);
+        staxEngine = new StaxPersistenceEngine(TestNode.class);
+
+        tree = TestNode.createTree(4, 0);
+        tree.get(TestNode.LEFT).get().get(TestNode.VALUE).set(String.class);
+        tree.get(TestNode.RIGHT).get().get(TestNode.VALUE).set(5L);
+    }
+
+    private void assertTreeEquals(TestNode expected, TestNode actual, TestNode actualParent) {
+
+        Assert.assertEquals("Node name", expected.get(TestNode.NAME).get(), actual.get(TestNode.NAME).get());
+        Assert.assertEquals("Node value", expected.get(TestNode.VALUE).get(), actual.get(TestNode.VALUE).get());
+        Assert.assertSame("Parent of node " + actual.get(TestNode.NAME).get(), actualParent, actual.getParent());
+        // The written nodes still use their holder ids, so the read nodes must get new ones
+        Assert.assertTrue("Holder id of node " + actual.get(TestNode.NAME).get() + " is taken twice", actual.getHolderId() > expected.getHolderId());
+        Assert.assertSame("Holder of the name property", actual, actual.get(TestNode.NAME).getHolder());
+
+        TestNode expectedLeft = expected.get(TestNode.LEFT).get();
+        if (expectedLeft == null) {
+            Assert.assertNull("Left node of leaf", actual.get(TestNode.LEFT).get());
+        } else {
+            TestNode actualLeft = actual.get(TestNode.LEFT).get();
+            TestNode actualRight = actual.get(TestNode.RIGHT).get();
+            assertTreeEquals(expectedLeft, actualLeft, actual);
+            assertTreeEquals(expected.get(TestNode.RIGHT).get(), actualRight, actual);
+            // The reference points forward in the written document
+            Assert.assertSame("Reference of the right node", actualLeft, actualRight.get(TestNode.LINK).get());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        assertTreeEquals(tree, (TestNode) transfer(staxEngine, staxEngine, tree), null);
+    }
+
+    @Test
+    public void testRestoreFreeId() throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        staxEngine.write(tree, output);
+
+        // Pretend that the root was written by another run whose ids aren't used by this one
+        long freeId = HolderIds.allocate() + 1000;
+        String document = output.toString("UTF-8").replace("id=\"" + tree.getId() + "\"", "id=\"" + HolderIds.toString(freeId) + "\"");
+        TestNode read = (TestNode) staxEngine.read(new ByteArrayInputStream(document.getBytes("UTF-8")));
+
+        Assert.assertEquals("Free holder id of the root", freeId, read.getHolderId());
+        Assert.assertTrue("Taken holder id of the left node", read.get(TestNode.LEFT).get().getHolderId() > freeId);
+    }
+
+    @Test (expected = IOException.class)
+    public void testReadDuplicateId() throws IOException {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        staxEngine.write(tree, output);
+
+        // References would be bound to the wrong holder if the duplicate id was accepted
+        String leftId = tree.get(TestNode.LEFT).get().getId();
+        String document = output.toString("UTF-8").replace("id=\"" + leftId + "\"", "id=\"" + tree.getId() + "\"");
+        staxEngine.read(new ByteArrayInputStream(document.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testReadJaxbOutput() throws IOException {
+
+        assertTreeEquals(tree, (TestNode) transfer(jaxbEngine, staxEngine, tree), null);
+    }
+
+    @Test
+    public void testWriteJaxbInput() throws IOException {
+
+        assertTreeEquals(tree, (TestNode) transfer(staxEngine, jaxbEngine, tree), null);
+    }
+
+    @Test
+    public void testRoundTripLocked() throws IOException {
+
+        tree.setLocked(false);
+        Assert.assertFalse("Read root is locked", ((TestNode) transfer(staxEngine, staxEngine, tree)).isLocked());
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.persistence.def;
+
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.extra.def.DefaultChildFeatureHolder;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.ReferenceProperty;
+
+public class TestNode extends DefaultChildFeatureHolder<TestNode> {
+
+    public static final FeatureDefinition<ObjectProperty<String>>      NAME;
+    public static final FeatureDefinition<ObjectProperty<Object>>      VALUE;
+    public static final FeatureDefinition<ObjectProperty<TestNode>>    LEFT;
+    public static final FeatureDefinition<ObjectProperty<TestNode>>    RIGHT;
+    public static final FeatureDefinition<ReferenceProperty<TestNode>> LINK;
+
+    static {
+
+        NAME = new AbstractFeatureDefinition<ObjectProperty<String>>("name") {
+
+            @Override
+            public ObjectProperty<String> create(FeatureHolder holder) {
+
+                return new ObjectProperty<String>(getName(), holder);
+            }
+
+        };
+
+        VALUE = new AbstractFeatureDefinition<ObjectProperty<Object>>("value") {
+
+            @Override
+            public ObjectProperty<Object> create(FeatureHolder holder) {
+
+                return new ObjectProperty<Object>(getName(), holder);
+            }
+
+        };
+
+        LEFT = new AbstractFeatureDefinition<ObjectProperty<TestNode>>("left") {
+
+            @Override
+            public ObjectProperty<TestNode> create(FeatureHolder holder) {
+
+                return new ObjectProperty<TestNode>(getName(), holder);
+            }
+
+        };
+
+        RIGHT = new AbstractFeatureDefinition<ObjectProperty<TestNode>>("right") {
+
+            @Override
+            public ObjectProperty<TestNode> create(FeatureHolder holder) {
+
+                return new ObjectProperty<TestNode>(getName(), holder);
+            }
+
+        };
+
+        LINK = new AbstractFeatureDefinition<ReferenceProperty<TestNode>>("link") {
+
+            @Override
+            public ReferenceProperty<TestNode> create(FeatureHolder holder) {
+
+                return new ReferenceProperty<TestNode>(getName(), holder);
+            }
+
+        };
+
+    }
+
+    public static TestNode createTree(int depth, int index) {
+
+        TestNode node = new TestNode();
+        node.get(NAME).set("node" + index);
+        node.get(VALUE).set(index);
+
+        if (depth > 1) {
+            TestNode left = createTree(depth - 1, index * 2 + 1);
+            left.setParent(node);
+            node.get(LEFT).set(left);
+
+            TestNode right = createTree(depth - 1, index * 2 + 2);
+            right.setParent(node);
+            node.get(RIGHT).set(right);
+
+            right.get(LINK).set(left);
+        }
+
+        return node;
+    }
+
+}
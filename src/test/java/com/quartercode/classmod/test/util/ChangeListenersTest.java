@@ -0,0 +1,172 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.ChangeListener;
+import com.quartercode.classmod.base.Feature;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.def.AbstractFunction;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.TransientProperty;
+import com.quartercode.classmod.util.ChangeListeners;
+
+public class ChangeListenersTest {
+
+    private DefaultFeatureHolder       holder;
+    private ObjectProperty<Integer>    property1;
+    private TransientProperty<Integer> property2;
+    private RecordingListener          listener;
+
+    @Before
+    public void setUp() {
+
+        holder = new DefaultFeatureHolder();
+        property1 = new ObjectProperty<Integer>("property1", holder, 0);
+        property2 = new TransientProperty<Integer>("property2", holder, 0);
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+
+        while (ChangeListeners.isBatching()) {
+            ChangeListeners.endBatch();
+        }
+    }
+
+    @Test
+    public void testWithoutBatch() {
+
+        property1.addChangeListener(listener);
+        property1.set(1);
+        property1.set(2);
+
+        Assert.assertEquals("Calls without a batch", 2, listener.calls.size());
+        Assert.assertEquals("Value seen by the last call", 2, listener.values.get(1));
+    }
+
+    @Test
+    public void testCoalescing() {
+
+        property1.addChangeListener(listener);
+
+        ChangeListeners.beginBatch();
+        for (int value = 1; value <= 50; value++) {
+            property1.set(value);
+        }
+        Assert.assertEquals("Calls inside the batch", 0, listener.calls.size());
+        ChangeListeners.endBatch();
+
+        Assert.assertEquals("Calls after the batch", 1, listener.calls.size());
+        Assert.assertEquals("Dirty features", Arrays.<Feature> asList(property1), listener.calls.get(0));
+        Assert.assertEquals("Final value", 50, listener.values.get(0));
+    }
+
+    @Test
+    public void testHolderListener() {
+
+        holder.addChangeListener(listener);
+
+        ChangeListeners.beginBatch();
+        ChangeListeners.beginBatch();
+        property2.set(1);
+        property1.set(1);
+        property2.set(2);
+        ChangeListeners.endBatch();
+        Assert.assertEquals("Calls after the nested batch", 0, listener.calls.size());
+
+        ChangeListeners.flush();
+        Assert.assertEquals("Calls after the flush", 1, listener.calls.size());
+        Assert.assertEquals("Dirty features in the order of their first change", Arrays.<Feature> asList(property2, property1), listener.calls.get(0));
+
+        property1.set(2);
+        ChangeListeners.endBatch();
+        Assert.assertEquals("Calls after the batch", 2, listener.calls.size());
+        Assert.assertEquals("Dirty features after the flush", Arrays.<Feature> asList(property1), listener.calls.get(1));
+        Assert.assertFalse("Batch is still open", ChangeListeners.isBatching());
+
+        holder.removeChangeListener(listener);
+        property1.set(3);
+        Assert.assertEquals("Calls after removing the listener", 2, listener.calls.size());
+    }
+
+    @Test
+    public void testRemoveListener() {
+
+        property1.addChangeListener(listener);
+        property1.removeChangeListener(listener);
+        property1.set(1);
+
+        Assert.assertEquals("Calls after removing the listener", 0, listener.calls.size());
+    }
+
+    @Test
+    public void testInvocationBoundary() throws ExecutorInvocationException {
+
+        Map<String, FunctionExecutor<Void>> executors = new HashMap<String, FunctionExecutor<Void>>();
+        executors.put("default", new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                for (int value = 1; value <= 10; value++) {
+                    property1.set(value);
+                }
+                Assert.assertEquals("Calls during the invocation", 0, listener.calls.size());
+                return invocation.next(arguments);
+            }
+
+        });
+        AbstractFunction<Void> function = new AbstractFunction<Void>("testFunction", holder, new ArrayList<Class<?>>(), executors);
+        function.setChangeBatching(true);
+        holder.addChangeListener(listener);
+
+        function.invoke();
+        Assert.assertEquals("Calls after the invocation", 1, listener.calls.size());
+        Assert.assertEquals("Final value", 10, listener.values.get(0));
+    }
+
+    private class RecordingListener implements ChangeListener {
+
+        private final List<List<Feature>> calls  = new ArrayList<List<Feature>>();
+        private final List<Object>        values = new ArrayList<Object>();
+
+        @Override
+        public void featuresChanged(FeatureHolder holder, List<Feature> features) {
+
+            calls.add(new ArrayList<Feature>(features));
+            values.add(property1.get());
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.util.HolderIds;
+
+public class HolderIdsTest {
+
+    @Test
+    public void testAllocate() {
+
+        DefaultFeatureHolder first = new DefaultFeatureHolder();
+        DefaultFeatureHolder second = new DefaultFeatureHolder();
+
+        long firstId = first.getHolderId();
+        Assert.assertTrue("Holder id is positive", firstId > 0);
+        Assert.assertEquals("Holder id of the same holder", firstId, first.getHolderId());
+        Assert.assertTrue("Holder id of a later holder is greater", second.getHolderId() > firstId);
+    }
+
+    @Test
+    public void testClaim() {
+
+        long claimed = HolderIds.allocate() + 1000;
+        DefaultFeatureHolder loaded = new DefaultFeatureHolder();
+        loaded.setHolderId(claimed);
+
+        Assert.assertEquals("Restored holder id", claimed, loaded.getHolderId());
+        Assert.assertTrue("Allocated id is greater than the claimed one", new DefaultFeatureHolder().getHolderId() > claimed);
+        Assert.assertFalse("Claimed id can be claimed again", HolderIds.claim(claimed));
+        Assert.assertTrue("Skipped id can't be claimed", HolderIds.claim(claimed - 500));
+        Assert.assertFalse("Skipped id can be claimed twice", HolderIds.claim(claimed - 500));
+        Assert.assertTrue("Skipped id next to a claimed one can't be claimed", HolderIds.claim(claimed - 501));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void testSetTakenId() {
+
+        new DefaultFeatureHolder().setHolderId(new DefaultFeatureHolder().getHolderId());
+    }
+
+    @Test
+    public void testRestoreTakenId() {
+
+        DefaultFeatureHolder existing = new DefaultFeatureHolder();
+        DefaultFeatureHolder loaded = new DefaultFeatureHolder();
+        long restoredId = loaded.restoreHolderId(existing.getHolderId());
+
+        Assert.assertEquals("Returned holder id", loaded.getHolderId(), restoredId);
+        Assert.assertTrue("Taken holder id wasn't replaced by a new one", restoredId > existing.getHolderId());
+
+        long freeId = HolderIds.allocate() + 1000;
+        Assert.assertEquals("Free holder id wasn't kept", freeId, new DefaultFeatureHolder().restoreHolderId(freeId));
+    }
+
+    @Test
+    public void testStringRepresentation() {
+
+        DefaultFeatureHolder holder = new DefaultFeatureHolder();
+        Assert.assertEquals("Parsed string representation", holder.getHolderId(), HolderIds.parse(holder.getId()));
+
+        DefaultFeatureHolder copy = new DefaultFeatureHolder();
+        long freeId = HolderIds.allocate() + 1000;
+        copy.setId(HolderIds.toString(freeId));
+        Assert.assertEquals("Holder id restored from the string representation", freeId, copy.getHolderId());
+
+        Assert.assertEquals("Parsed invalid string", 0, HolderIds.parse("invalid"));
+        Assert.assertEquals("Parsed null string", 0, HolderIds.parse(null));
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.test.persistence.def.TestNode;
+import com.quartercode.classmod.util.HolderTraversal;
+import com.quartercode.classmod.util.HolderTraversal.Filter;
+import com.quartercode.classmod.util.HolderTraversal.Visitor;
+
+public class HolderTraversalTest {
+
+    private ExecutorService workers;
+    private HolderTraversal traversal;
+
+    @Before
+    public void setUp() {
+
+        workers = Executors.newFixedThreadPool(4);
+        traversal = new HolderTraversal(workers, 4);
+    }
+
+    @After
+    public void tearDown() {
+
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void testCount() {
+
+        // Links reference holders of other subtrees and must not be followed
+        Assert.assertEquals("Holders in the tree", 1023, traversal.count(TestNode.createTree(10, 0)));
+    }
+
+    @Test
+    public void testSetLocked() {
+
+        TestNode root = TestNode.createTree(8, 0);
+        Assert.assertEquals("Unlocked holders", 255, traversal.setLocked(root, false));
+
+        Filter lockedFilter = new Filter() {
+
+            @Override
+            public boolean accept(FeatureHolder holder) {
+
+                return ((TestNode) holder).isLocked();
+            }
+
+        };
+        Assert.assertTrue("Locked holders after unlocking", traversal.collect(root, lockedFilter).isEmpty());
+        Assert.assertFalse("Deepest holder is locked", root.get(TestNode.RIGHT).get().get(TestNode.RIGHT).get().isLocked());
+
+        traversal.setLocked(root, true);
+        Assert.assertEquals("Locked holders after locking", 255, traversal.collect(root, lockedFilter).size());
+    }
+
+    @Test
+    public void testSkipSubtree() {
+
+        final TestNode root = TestNode.createTree(6, 0);
+        int visited = traversal.traverse(root, new Visitor() {
+
+            @Override
+            public boolean visit(FeatureHolder holder) {
+
+                return holder != root.get(TestNode.LEFT).get();
+            }
+
+        });
+
+        Assert.assertEquals("Visited holders without the left subtree", 1 + 1 + 31, visited);
+    }
+
+    @Test
+    public void testCycle() {
+
+        TestNode root = TestNode.createTree(5, 0);
+        TestNode leaf = root.get(TestNode.LEFT).get().get(TestNode.LEFT).get().get(TestNode.LEFT).get().get(TestNode.LEFT).get();
+        leaf.get(TestNode.VALUE).set(root);
+        // The same child is stored twice by its parent
+        root.get(TestNode.VALUE).set(Arrays.asList(root.get(TestNode.LEFT).get(), leaf));
+
+        Assert.assertEquals("Holders in the cyclic graph", 31, traversal.count(root));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void testException() {
+
+        traversal.traverse(TestNode.createTree(8, 0), new Visitor() {
+
+            @Override
+            public boolean visit(FeatureHolder holder) {
+
+                if ( ((TestNode) holder).get(TestNode.NAME).get().equals("node100")) {
+                    throw new IllegalStateException("Test exception");
+                }
+                return true;
+            }
+
+        });
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.extra.Prioritized;
+import com.quartercode.classmod.util.FunctionDefinitionFactory;
+import com.quartercode.classmod.util.InvocationTracer;
+
+public class InvocationTracerTest {
+
+    private FunctionDefinition<Void> outerDefinition;
+    private FunctionDefinition<Void> innerDefinition;
+    private TestHolder               holder;
+
+    @Before
+    public void setUp() {
+
+        InvocationTracer.stop();
+        InvocationTracer.reset();
+
+        innerDefinition = FunctionDefinitionFactory.create("inner");
+        innerDefinition.addExecutor(TestHolder.class, "work", new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                busyWait();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        outerDefinition = FunctionDefinitionFactory.create("outer");
+        outerDefinition.addExecutor(TestHolder.class, "first", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_6)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                busyWait();
+                return invocation.next(arguments);
+            }
+
+        });
+        outerDefinition.addExecutor(TestHolder.class, "second", new FunctionExecutor<Void>() {
+
+            @Override
+            @Prioritized (Prioritized.LEVEL_4)
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                invocation.getHolder().get(innerDefinition).invoke();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        holder = new TestHolder();
+    }
+
+    @After
+    public void tearDown() {
+
+        InvocationTracer.stop();
+        InvocationTracer.reset();
+    }
+
+    private static void busyWait() {
+
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < 100000) {
+            // Wait
+        }
+    }
+
+    @Test
+    public void testTracing() throws ExecutorInvocationException {
+
+        InvocationTracer.startTracing();
+        holder.get(outerDefinition).invoke();
+        InvocationTracer.stop();
+
+        Map<String, Long> stacks = InvocationTracer.getCollapsedStacks();
+        // The chained executors are siblings
+        Assert.assertTrue("First executor stack wasn't recorded", stacks.containsKey("TestHolder.outer;first"));
+        Assert.assertTrue("Nested executor stack wasn't recorded", stacks.containsKey("TestHolder.outer;second;TestHolder.inner;work"));
+        Assert.assertFalse("Chained executor was nested into the invoking one", stacks.containsKey("TestHolder.outer;first;second"));
+        Assert.assertTrue("Wrong self time of first executor", stacks.get("TestHolder.outer;first") >= 100000);
+    }
+
+    @Test
+    public void testSampling() throws ExecutorInvocationException {
+
+        FunctionDefinition<Void> sleepingDefinition = FunctionDefinitionFactory.create("sleeping");
+        sleepingDefinition.addExecutor(TestHolder.class, "sleep", new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return invocation.next(arguments);
+            }
+
+        });
+
+        InvocationTracer.startSampling(1, TimeUnit.MILLISECONDS);
+        holder.get(sleepingDefinition).invoke();
+        InvocationTracer.stop();
+
+        Map<String, Long> stacks = InvocationTracer.getCollapsedStacks();
+        Assert.assertTrue("Sleeping executor stack wasn't sampled", stacks.containsKey("TestHolder.sleeping;sleep"));
+        Assert.assertTrue("Wrong sample count of the sleeping executor: " + stacks.get("TestHolder.sleeping;sleep"), stacks.get("TestHolder.sleeping;sleep") <= 100);
+    }
+
+    @Test
+    public void testSwitchFromSamplingToTracing() throws ExecutorInvocationException {
+
+        FunctionDefinition<Void> switchingDefinition = FunctionDefinitionFactory.create("switching");
+        switchingDefinition.addExecutor(TestHolder.class, "switch", new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                InvocationTracer.startTracing();
+                busyWait();
+                return invocation.next(arguments);
+            }
+
+        });
+
+        long start = System.nanoTime();
+        InvocationTracer.startSampling(1, TimeUnit.HOURS);
+        holder.get(switchingDefinition).invoke();
+        InvocationTracer.stop();
+        long elapsed = System.nanoTime() - start;
+
+        // The segments which were started while sampling don't have a start time, so they mustn't be measured
+        for (Entry<String, Long> stack : InvocationTracer.getCollapsedStacks().entrySet()) {
+            Assert.assertTrue("Value of stack " + stack.getKey() + " exceeds the elapsed time", stack.getValue() <= elapsed);
+        }
+    }
+
+    @Test
+    public void testFinishedThread() throws InterruptedException {
+
+        InvocationTracer.startTracing();
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    holder.get(outerDefinition).invoke();
+                } catch (ExecutorInvocationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+        });
+        thread.start();
+        thread.join();
+        InvocationTracer.stop();
+
+        // The trace of the finished thread is merged, but its data is kept
+        Assert.assertTrue("Stack of the finished thread wasn't kept", InvocationTracer.getCollapsedStacks().containsKey("TestHolder.outer;first"));
+
+        InvocationTracer.reset();
+        Assert.assertTrue("Stacks after resetting", InvocationTracer.getCollapsedStacks().isEmpty());
+    }
+
+    @Test
+    public void testInactive() throws ExecutorInvocationException {
+
+        holder.get(outerDefinition).invoke();
+
+        Assert.assertTrue("Stacks were recorded while the tracer was inactive", InvocationTracer.getCollapsedStacks().isEmpty());
+    }
+
+    @Test
+    public void testWriteCollapsedStacks() throws Exception {
+
+        InvocationTracer.startTracing();
+        holder.get(outerDefinition).invoke();
+        InvocationTracer.stop();
+
+        StringWriter writer = new StringWriter();
+        InvocationTracer.writeCollapsedStacks(writer);
+
+        for (String line : writer.toString().split("\n")) {
+            Assert.assertTrue("Line doesn't have the collapsed stack format: " + line, line.matches("[^ ]+ [0-9]+"));
+        }
+    }
+
+    private static class TestHolder extends DefaultFeatureHolder {
+
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureDefinition;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.Persistent;
+import com.quartercode.classmod.base.def.AbstractFeatureDefinition;
+import com.quartercode.classmod.base.def.AbstractPersistentFeature;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.TransientProperty;
+import com.quartercode.classmod.util.PersistentClasses;
+
+public class PersistentClassesTest {
+
+    @Test
+    public void testIsPersistent() {
+
+        Assert.assertTrue("Object property is persistent", PersistentClasses.isPersistent(ObjectProperty.class));
+        Assert.assertFalse("Non-persistent feature is persistent", PersistentClasses.isPersistent(TransientProperty.class));
+        Assert.assertFalse("Non-persistent class is registered", PersistentClasses.getClasses().contains(TransientProperty.class));
+    }
+
+    @Test
+    public void testRegisterDefinition() {
+
+        FeatureDefinition<DefinedFeature> definition = new AbstractFeatureDefinition<DefinedFeature>("defined") {
+
+            @Override
+            public DefinedFeature create(FeatureHolder holder) {
+
+                return new DefinedFeature(getName(), holder);
+            }
+
+        };
+
+        Assert.assertTrue("Definition of a persistent feature", PersistentClasses.register(definition));
+        Assert.assertTrue("Feature class of the definition isn't registered", PersistentClasses.getClasses().contains(DefinedFeature.class));
+    }
+
+    @Test
+    public void testRegisterClasses() {
+
+        PersistentClasses.register(RegisteredHolder.class);
+        Assert.assertTrue("Registered class is missing", PersistentClasses.getClasses().contains(RegisteredHolder.class));
+    }
+
+    // Registered classes are added to all later JAXB contexts, so they must be valid JAXB classes
+
+    @Persistent
+    public static class DefinedFeature extends AbstractPersistentFeature {
+
+        protected DefinedFeature() {
+
+        }
+
+        public DefinedFeature(String name, FeatureHolder holder) {
+
+            super(name, holder);
+        }
+
+    }
+
+    public static class RegisteredHolder extends DefaultFeatureHolder {
+
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.FeatureHolder;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.def.ComputedProperty;
+import com.quartercode.classmod.extra.def.ComputedProperty.Computation;
+import com.quartercode.classmod.extra.def.ObjectProperty;
+import com.quartercode.classmod.extra.def.TransientProperty;
+import com.quartercode.classmod.util.Flow.Subscriber;
+import com.quartercode.classmod.util.Flow.Subscription;
+import com.quartercode.classmod.util.PropertyPublisher;
+import com.quartercode.classmod.util.PropertyPublisher.Change;
+
+public class PropertyPublisherTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+                                                      @Override
+                                                      public void execute(Runnable command) {
+
+                                                          command.run();
+                                                      }
+
+                                                  };
+
+    private DefaultFeatureHolder  holder;
+
+    @Before
+    public void setUp() {
+
+        holder = new DefaultFeatureHolder();
+    }
+
+    @Test
+    public void testConflation() {
+
+        ObjectProperty<Integer> property = new ObjectProperty<Integer>("property", holder, 0);
+        PropertyPublisher publisher = new PropertyPublisher(DIRECT_EXECUTOR, 10);
+        publisher.watch(property);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        for (int value = 1; value <= 50; value++) {
+            property.set(value);
+        }
+        Assert.assertEquals("Items without demand", 0, subscriber.items.size());
+
+        subscriber.subscription.request(1);
+        Assert.assertEquals("Items after the request", 1, subscriber.items.size());
+        Assert.assertEquals("Changes of the conflated item", 1, subscriber.items.get(0).size());
+        Assert.assertSame("Changed property", property, subscriber.items.get(0).get(0).getProperty());
+        Assert.assertEquals("Conflated value", 50, subscriber.items.get(0).get(0).getValue());
+    }
+
+    @Test
+    public void testBatching() {
+
+        PropertyPublisher publisher = new PropertyPublisher(DIRECT_EXECUTOR, 2);
+        List<ObjectProperty<Integer>> properties = new ArrayList<ObjectProperty<Integer>>();
+        for (int index = 0; index < 5; index++) {
+            // Equal properties must not be merged
+            ObjectProperty<Integer> property = new ObjectProperty<Integer>("property", new DefaultFeatureHolder(), 0);
+            properties.add(property);
+            publisher.watch(property);
+        }
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        for (ObjectProperty<Integer> property : properties) {
+            property.set(1);
+        }
+        subscriber.subscription.request(10);
+
+        Assert.assertEquals("Amount of batches", 3, subscriber.items.size());
+        Assert.assertEquals("Size of the first batch", 2, subscriber.items.get(0).size());
+        Assert.assertEquals("Size of the last batch", 1, subscriber.items.get(2).size());
+        Assert.assertSame("Order of the changes", properties.get(2), subscriber.items.get(1).get(0).getProperty());
+    }
+
+    @Test
+    public void testBackpressure() {
+
+        ObjectProperty<Integer> property1 = new ObjectProperty<Integer>("property1", holder, 0);
+        TransientProperty<Integer> property2 = new TransientProperty<Integer>("property2", holder, 0);
+        PropertyPublisher publisher = new PropertyPublisher(DIRECT_EXECUTOR, 10);
+        publisher.watch(property1);
+        publisher.watch(property2);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        property1.set(1);
+        property2.set(2);
+        Assert.assertEquals("Items after the first request", 1, subscriber.items.size());
+
+        subscriber.subscription.request(1);
+        Assert.assertEquals("Items after the second request", 2, subscriber.items.size());
+        Assert.assertSame("Changed transient property", property2, subscriber.items.get(1).get(0).getProperty());
+
+        publisher.unwatch(property1);
+        subscriber.subscription.request(1);
+        property1.set(3);
+        Assert.assertEquals("Items after unwatching", 2, subscriber.items.size());
+
+        publisher.close();
+        Assert.assertTrue("Subscription wasn't completed", subscriber.completed);
+        Assert.assertEquals("Subscribers after closing", 0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testChangeInsideComputation() {
+
+        final ObjectProperty<Integer> source = new ObjectProperty<Integer>("source", holder, 1);
+        final AtomicInteger computations = new AtomicInteger();
+        final ObjectProperty<Integer> published = new ObjectProperty<Integer>("published", holder, 0);
+        ComputedProperty<Integer> computed = new ComputedProperty<Integer>("computed", holder, new Computation<Integer>() {
+
+            @Override
+            public Integer compute(FeatureHolder holder) {
+
+                // Only writes the watched property, so the computation doesn't depend on it
+                published.set(computations.incrementAndGet());
+                return source.get() * 2;
+            }
+
+        });
+        PropertyPublisher publisher = new PropertyPublisher(DIRECT_EXECUTOR, 10);
+        publisher.watch(published);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+
+        Assert.assertEquals("Computed value", 2, (int) computed.get());
+        Assert.assertEquals("Published value", 1, subscriber.items.get(0).get(0).getValue());
+
+        published.set(0);
+        Assert.assertFalse("Computed property depends on the property the publisher read", computed.isStale());
+        source.set(2);
+        Assert.assertTrue("Computed property doesn't depend on the property it read", computed.isStale());
+    }
+
+    @Test
+    public void testInvalidRequest() {
+
+        PropertyPublisher publisher = new PropertyPublisher(DIRECT_EXECUTOR, 10);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(0);
+        Assert.assertTrue("Invalid request wasn't signaled", subscriber.error instanceof IllegalArgumentException);
+        Assert.assertEquals("Subscribers after the error", 0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testConcurrentDelivery() throws InterruptedException {
+
+        final ObjectProperty<Integer> property = new ObjectProperty<Integer>("property", holder, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            PropertyPublisher publisher = new PropertyPublisher(executor, 10);
+            publisher.watch(property);
+
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger overlaps = new AtomicInteger();
+            final CountDownLatch lastValue = new CountDownLatch(1);
+            publisher.subscribe(new Subscriber<List<Change>>() {
+
+                @Override
+                public void onSubscribe(Subscription subscription) {
+
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(List<Change> item) {
+
+                    if (running.incrementAndGet() != 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    if (item.get(0).getValue().equals(1000)) {
+                        lastValue.countDown();
+                    }
+                    running.decrementAndGet();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+
+                }
+
+                @Override
+                public void onComplete() {
+
+                }
+
+            });
+
+            for (int value = 1; value <= 1000; value++) {
+                property.set(value);
+            }
+
+            Assert.assertTrue("Last value wasn't delivered", lastValue.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals("Concurrent onNext() calls", 0, overlaps.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class RecordingSubscriber implements Subscriber<List<Change>> {
+
+        private final List<List<Change>> items = new ArrayList<List<Change>>();
+        private Subscription             subscription;
+        private boolean                  completed;
+        private Throwable                error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(List<Change> item) {
+
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+
+            completed = true;
+        }
+
+    }
+
+}
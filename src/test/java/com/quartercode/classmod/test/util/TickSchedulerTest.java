@@ -0,0 +1,158 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import com.quartercode.classmod.base.def.DefaultFeatureHolder;
+import com.quartercode.classmod.extra.ExecutorInvocationException;
+import com.quartercode.classmod.extra.FunctionDefinition;
+import com.quartercode.classmod.extra.FunctionExecutor;
+import com.quartercode.classmod.extra.FunctionInvocation;
+import com.quartercode.classmod.util.FunctionDefinitionFactory;
+import com.quartercode.classmod.util.TickScheduler;
+import com.quartercode.classmod.util.TickScheduler.Phase;
+
+public class TickSchedulerTest {
+
+    private ExecutorService workers;
+    private TickScheduler   scheduler;
+
+    @Before
+    public void setUp() {
+
+        workers = Executors.newFixedThreadPool(3);
+        scheduler = new TickScheduler(workers, 4);
+    }
+
+    @After
+    public void tearDown() {
+
+        workers.shutdownNow();
+    }
+
+    private FunctionDefinition<Void> createCounter(final AtomicInteger counter) {
+
+        return FunctionDefinitionFactory.create("tick", TickedHolder.class, new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                counter.incrementAndGet();
+                return invocation.next(arguments);
+            }
+
+        });
+    }
+
+    private List<TickedHolder> registerHolders(int count) {
+
+        List<TickedHolder> holders = new ArrayList<TickedHolder>();
+        for (int index = 0; index < count; index++) {
+            TickedHolder holder = new TickedHolder();
+            holders.add(holder);
+            scheduler.register(holder);
+        }
+        return holders;
+    }
+
+    @Test
+    public void testPhaseBarrier() throws ExecutorInvocationException {
+
+        final AtomicInteger firstPhaseCounter = new AtomicInteger();
+        final AtomicInteger barrierViolations = new AtomicInteger();
+        FunctionDefinition<Void> checkDefinition = FunctionDefinitionFactory.create("check", TickedHolder.class, new FunctionExecutor<Void>() {
+
+            @Override
+            public Void invoke(FunctionInvocation<Void> invocation, Object... arguments) throws ExecutorInvocationException {
+
+                // All holders must have completed the first phase of the current tick
+                if (firstPhaseCounter.get() % 100 != 0) {
+                    barrierViolations.incrementAndGet();
+                }
+                return invocation.next(arguments);
+            }
+
+        });
+
+        scheduler.addPhase("first").addTick(TickedHolder.class, createCounter(firstPhaseCounter));
+        scheduler.addPhase("second").addTick(TickedHolder.class, checkDefinition);
+        registerHolders(100);
+
+        for (int tick = 0; tick < 5; tick++) {
+            scheduler.tick();
+        }
+
+        Assert.assertEquals("Invocations of the first phase", 500, firstPhaseCounter.get());
+        Assert.assertEquals("Holders which entered the second phase before the barrier", 0, barrierViolations.get());
+        Assert.assertEquals("Completed ticks", 5, scheduler.getTicks());
+    }
+
+    @Test
+    public void testCadence() throws ExecutorInvocationException {
+
+        AtomicInteger counter = new AtomicInteger();
+        Phase phase = scheduler.addPhase("delayed", 1, 2).addTick(TickedHolder.class, createCounter(counter));
+        registerHolders(10);
+
+        // Runs on the second, fifth and eighth tick
+        for (int tick = 0; tick < 8; tick++) {
+            scheduler.tick();
+        }
+
+        Assert.assertEquals("Runs of the delayed phase", 3, phase.getRuns());
+        Assert.assertEquals("Invocations of the delayed phase", 30, counter.get());
+        Assert.assertEquals("Invocations of the last run", 10, phase.getLastInvocations());
+        Assert.assertTrue("Total time is at least the last time", phase.getTotalTime() >= phase.getLastTime());
+    }
+
+    @Test
+    public void testRegistration() throws ExecutorInvocationException {
+
+        AtomicInteger counter = new AtomicInteger();
+        scheduler.addPhase("phase").addTick(TickedHolder.class, createCounter(counter));
+        List<TickedHolder> holders = registerHolders(10);
+        // Holders of other classes are registered, but not ticked by the phase
+        scheduler.register(new DefaultFeatureHolder());
+        Assert.assertEquals("Holders before the first tick", 0, scheduler.getHolderCount());
+
+        scheduler.tick();
+        Assert.assertEquals("Holders after the first tick", 11, scheduler.getHolderCount());
+        Assert.assertEquals("Invocations of the first tick", 10, counter.get());
+
+        scheduler.register(holders.get(0));
+        scheduler.unregister(holders.get(1));
+        scheduler.unregister(holders.get(2));
+        scheduler.tick();
+        Assert.assertEquals("Holders after unregistering", 9, scheduler.getHolderCount());
+        Assert.assertEquals("Invocations after unregistering", 18, counter.get());
+    }
+
+    public static class TickedHolder extends DefaultFeatureHolder {
+
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of Classmod.
+ * Copyright (c) 2014 QuarterCode <http://www.quartercode.com/>
+ *
+ * Classmod is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Classmod is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Classmod. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.quartercode.classmod.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import com.quartercode.classmod.util.TimerWheel;
+import com.quartercode.classmod.util.TimerWheel.Timer;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testExpireOnDeadline() {
+
+        TimerWheel wheel = new TimerWheel(1, 0);
+        RecordingTimer timer = new RecordingTimer(wheel);
+        wheel.schedule(timer, 10);
+
+        Assert.assertEquals("Expired timers before the deadline", 0, wheel.advance(9));
+        Assert.assertEquals("Expired timers on the deadline", 1, wheel.advance(10));
+        Assert.assertEquals("Expiration time", 10, timer.expiredAt);
+        Assert.assertEquals("Scheduled timers after the expiration", 0, wheel.getSize());
+    }
+
+    @Test
+    public void testResolution() {
+
+        TimerWheel wheel = new TimerWheel(10, 0);
+        RecordingTimer timer = new RecordingTimer(wheel);
+        wheel.schedule(timer, 15);
+
+        // The timer never expires early, but at the end of the tick its deadline is in
+        Assert.assertEquals("Expired timers in the tick of the deadline", 0, wheel.advance(19));
+        Assert.assertEquals("Expired timers after the tick of the deadline", 1, wheel.advance(20));
+    }
+
+    @Test
+    public void testRescheduleAndCancel() {
+
+        TimerWheel wheel = new TimerWheel(1, 0);
+        RecordingTimer timer1 = new RecordingTimer(wheel);
+        RecordingTimer timer2 = new RecordingTimer(wheel);
+        wheel.schedule(timer1, 10);
+        wheel.schedule(timer2, 10);
+        wheel.schedule(timer1, 5000);
+        wheel.cancel(timer2);
+
+        Assert.assertEquals("Scheduled timers", 1, wheel.getSize());
+        Assert.assertEquals("Expired timers at the old deadline", 0, wheel.advance(10));
+        Assert.assertEquals("Expired timers at the new deadline", 1, wheel.advance(5000));
+        Assert.assertEquals("Expiration time of the rescheduled timer", 5000, timer1.expiredAt);
+        Assert.assertEquals("Expiration time of the cancelled timer", -1, timer2.expiredAt);
+    }
+
+    @Test
+    public void testAllLevels() {
+
+        TimerWheel wheel = new TimerWheel(1, 0);
+        Random random = new Random(42);
+        List<RecordingTimer> timers = new ArrayList<RecordingTimer>();
+        for (int index = 0; index < 2000; index++) {
+            RecordingTimer timer = new RecordingTimer(wheel);
+            // Covers every level and the overflow list
+            long deadline = 1 + (long) (random.nextDouble() * random.nextDouble() * 40000000);
+            wheel.schedule(timer, deadline);
+            timers.add(timer);
+        }
+
+        int expired = 0;
+        for (long time = 0; time <= 40000000; time += 1 + random.nextInt(5000)) {
+            expired += wheel.advance(time);
+            for (RecordingTimer timer : timers) {
+                Assert.assertEquals("Timer expired too early or too late", timer.getDeadline() <= time, timer.expiredAt != -1);
+            }
+        }
+        expired += wheel.advance(40000000);
+
+        Assert.assertEquals("Expired timers", timers.size(), expired);
+        for (RecordingTimer timer : timers) {
+            Assert.assertTrue("Timer expired before its deadline", timer.expiredAt >= timer.getDeadline());
+        }
+    }
+
+    private static class RecordingTimer extends Timer {
+
+        private final TimerWheel wheel;
+        private long             expiredAt = -1;
+
+        private RecordingTimer(TimerWheel wheel) {
+
+            this.wheel = wheel;
+        }
+
+        @Override
+        protected void expire() {
+
+            Assert.assertEquals("Timer expired twice", -1, expiredAt);
+            expiredAt = wheel.getTime();
+        }
+
+    }
+
+}